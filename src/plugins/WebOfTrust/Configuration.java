@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
 
 import freenet.support.CurrentTimeUTC;
+import freenet.support.Logger;
 import freenet.support.codeshortification.IfNull;
 
 /* ATTENTION: This code is a duplicate of plugins.Freetalk.Config. Any changes there should also be done here! */
@@ -40,6 +41,28 @@ public final class Configuration extends Persistent {
 	 * TODO: Code quality: Make configurable. */
 	public final static transient long DEFAULT_VERIFY_SCORES_INTERVAL = TimeUnit.DAYS.toMillis(28);
 
+	/**
+	 * Default of {@link #getScoreComputationWorkingSetLimit()}. A Score in the working set costs
+	 * roughly 1 KiB of memory, so this is about 100 MiB. */
+	public final static transient int DEFAULT_SCORE_COMPUTATION_WORKING_SET_LIMIT = 100 * 1000;
+
+	/** @see #getScoreComputationWorkingSetLimit() */
+	private final static transient String SCORE_COMPUTATION_WORKING_SET_LIMIT_KEY
+		= "ScoreComputationWorkingSetLimit";
+
+	/** @see #getMappedDatabasePageCacheSize() */
+	private final static transient String MAPPED_DATABASE_PAGE_CACHE_SIZE_KEY
+		= "MappedDatabasePageCacheSize";
+
+	/**
+	 * Key of the String parameter which stores the {@link RankComputer.Type#name()} of the
+	 * {@link RankComputer} chosen by the user.
+	 * @see #getRankComputerType() */
+	private final static transient String RANK_COMPUTER_KEY = "RankComputer";
+
+	/** @see #getScoreVerificationCursor() */
+	private final static transient String SCORE_VERIFICATION_CURSOR_KEY = "ScoreVerificationCursor";
+
 	/**
 	 * The database format version of this WoT-database.
 	 * Stored in a primitive integer field to ensure that db4o does not lose it - I've observed the HashMaps to be null suddenly sometimes :(
@@ -263,6 +286,109 @@ public final class Configuration extends Persistent {
 		mLastVerificationOfScoresDate = CurrentTimeUTC.get();
 	}
 
+	/**
+	 * Gets the {@link RankComputer.Type} which the user has chosen by
+	 * {@link #setRankComputerType(RankComputer.Type)}, or {@link RankComputer.Type#DEFAULT}.
+	 * Databases of older versions of WoT don't contain the parameter, so we don't require it to
+	 * exist.
+	 */
+	public synchronized RankComputer.Type getRankComputerType() {
+		String name = getString(RANK_COMPUTER_KEY);
+		if(name == null)
+			return RankComputer.Type.DEFAULT;
+		
+		try {
+			return RankComputer.Type.valueOf(name);
+		} catch(IllegalArgumentException e) {
+			// Can happen if a RankComputer was removed from a newer version of WoT.
+			Logger.warning(this, "Unknown RankComputer, using default: " + name);
+			return RankComputer.Type.DEFAULT;
+		}
+	}
+
+	/**
+	 * Sets the {@link RankComputer.Type} which is returned by {@link #getRankComputerType()}.
+	 * You have to call storeAndCommit to write it to disk.
+	 */
+	public synchronized void setRankComputerType(RankComputer.Type type) {
+		IfNull.thenThrow(type, "Type");
+		set(RANK_COMPUTER_KEY, type.name());
+	}
+
+	/**
+	 * Gets the maximal number of {@link Score}s which the incremental Score computation of
+	 * {@link WebOfTrust#updateScoresAfterDistrustWithoutCommit(java.util.Collection)} keeps in
+	 * memory. If more are affected, it marks them in the database instead.
+	 * Defaults to {@link #DEFAULT_SCORE_COMPUTATION_WORKING_SET_LIMIT}.
+	 */
+	public synchronized int getScoreComputationWorkingSetLimit() {
+		if(!containsInt(SCORE_COMPUTATION_WORKING_SET_LIMIT_KEY))
+			return DEFAULT_SCORE_COMPUTATION_WORKING_SET_LIMIT;
+		
+		return getInt(SCORE_COMPUTATION_WORKING_SET_LIMIT_KEY);
+	}
+
+	/**
+	 * Sets the value of {@link #getScoreComputationWorkingSetLimit()}.
+	 * You have to call storeAndCommit to write it to disk.
+	 */
+	public synchronized void setScoreComputationWorkingSetLimit(int limit) {
+		if(limit < 0)
+			throw new IllegalArgumentException("Negative limit: " + limit);
+		
+		set(SCORE_COMPUTATION_WORKING_SET_LIMIT_KEY, limit);
+	}
+
+	/**
+	 * Gets the amount of pages of {@link MappedIoAdapter#DEFAULT_PAGE_SIZE} bytes which
+	 * {@link MappedIoAdapter} keeps mapped of the database file, or 0 if the database is accessed
+	 * with db4o's default file I/O. Defaults to 0.<br>
+	 * The database is opened before this can be read from it, so changes only take effect after
+	 * a restart.
+	 */
+	public synchronized int getMappedDatabasePageCacheSize() {
+		if(!containsInt(MAPPED_DATABASE_PAGE_CACHE_SIZE_KEY))
+			return 0;
+		
+		return getInt(MAPPED_DATABASE_PAGE_CACHE_SIZE_KEY);
+	}
+
+	/**
+	 * Sets the value of {@link #getMappedDatabasePageCacheSize()}.
+	 * You have to call storeAndCommit to write it to disk.
+	 */
+	public synchronized void setMappedDatabasePageCacheSize(int pages) {
+		if(pages < 0)
+			throw new IllegalArgumentException("Negative page count: " + pages);
+		
+		set(MAPPED_DATABASE_PAGE_CACHE_SIZE_KEY, pages);
+	}
+
+	/**
+	 * Gets the position of the background verification of {@link Score}s which
+	 * {@link WebOfTrust#verifyAndCorrectStoredScoresOfNextTreeOwner()} does in chunks of one trust
+	 * tree: The {@link OwnIdentity#getID()} of the last tree owner whose Scores were verified, ""
+	 * if the verification was started but no tree was verified yet, or null if no verification is
+	 * in progress.<br>
+	 * Stored in the database so the verification resumes where it stopped after a restart.
+	 */
+	public synchronized String getScoreVerificationCursor() {
+		return getString(SCORE_VERIFICATION_CURSOR_KEY);
+	}
+
+	/**
+	 * Sets the value of {@link #getScoreVerificationCursor()}. Null marks the verification as
+	 * finished. You have to call storeAndCommit to write it to disk.
+	 */
+	public synchronized void setScoreVerificationCursor(String cursor) {
+		if(cursor != null)
+			set(SCORE_VERIFICATION_CURSOR_KEY, cursor);
+		else {
+			activateStringParams();
+			mStringParams.remove(SCORE_VERIFICATION_CURSOR_KEY);
+		}
+	}
+
 	/**
 	 * Sets a String configuration parameter. You have to call storeAndCommit to write it to disk.
 	 * 
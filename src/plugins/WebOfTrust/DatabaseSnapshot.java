@@ -0,0 +1,324 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import plugins.WebOfTrust.Identity.FetchState;
+
+import com.db4o.ObjectSet;
+
+import freenet.support.CurrentTimeUTC;
+
+/**
+ * Portable file format which contains the {@link Identity}s, {@link Trust}s and optionally the
+ * {@link Score}s of a WoT database. It allows a new node to start with the trust graph of an
+ * existing one instead of fetching it for days, see {@link WebOfTrust#exportSnapshot(
+ * java.io.File, boolean, boolean)} and {@link WebOfTrust#importSnapshot(java.io.File)}.<br>
+ * As opposed to WebOfTrust.cloneDatabase(), it does not depend on db4o's file format, and is a
+ * lot smaller.<br><br>
+ *
+ * Format, written by {@link DataOutputStream} and compressed with GZIP:<br>
+ * - {@link #MAGIC}, {@link #FORMAT_VERSION}, the {@link PersistentCodec#VERSION} of the fields,
+ *   the FLAG_* bits and the date of creation.<br>
+ * - The amount of Identitys, then for each of them a TYPE_* byte and its fields as written by
+ *   {@link Identity#writeFields(DataOutputStream)}.<br>
+ * - The amount of Trusts, then for each of them the indices of its truster and trustee among the
+ *   Identitys and its other fields as written by
+ *   {@link Trust#writeFieldsWithoutIdentities(DataOutputStream)}.<br>
+ * - If {@link #FLAG_SCORES} is set: The Scores, same as the Trusts.<br>
+ * - The {@link CRC32} of all of the above, uncompressed.<br><br>
+ *
+ * The objects are written and read one after another, so neither side needs to keep the Trusts
+ * and Scores in memory.
+ */
+public final class DatabaseSnapshot {
+
+	/** "WoTS" */
+	static final int MAGIC = 0x576f5453;
+
+	static final byte FORMAT_VERSION = 1;
+
+	/** Set if the snapshot contains {@link OwnIdentity}s including their insert URI. If not,
+	 *  they are contained as non-own Identitys. */
+	private static final byte FLAG_OWN_IDENTITIES = 1;
+
+	private static final byte FLAG_SCORES = 2;
+
+	private static final byte TYPE_IDENTITY = 1;
+	private static final byte TYPE_OWN_IDENTITY = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+
+	/** Amounts of the objects which were exported or imported. Immutable. */
+	public static final class Statistics {
+		public final int mIdentities;
+
+		public final int mTrusts;
+
+		public final int mScores;
+
+		Statistics(int identities, int trusts, int scores) {
+			mIdentities = identities;
+			mTrusts = trusts;
+			mScores = scores;
+		}
+
+		@Override public String toString() {
+			return "Identities: " + mIdentities + "; Trusts: " + mTrusts + "; Scores: " + mScores;
+		}
+	}
+
+
+	private DatabaseSnapshot() {}
+
+	/**
+	 * Writes all Identitys and Trusts, and optionally all Scores, of the given WoT to the given
+	 * stream. Does not close it.<br><br>
+	 *
+	 * You must synchronize on the WoT when using this function.
+	 *
+	 * @param includeOwnIdentities If false, {@link OwnIdentity}s are written as non-own
+	 *     Identitys which were not fetched yet. The snapshot then does not contain any private
+	 *     keys, so it can be given to other people.
+	 * @param includeScores Requires includeOwnIdentities: The truster of a Score is an
+	 *     OwnIdentity. */
+	static Statistics write(final WebOfTrust wot, final OutputStream out,
+			final boolean includeOwnIdentities, final boolean includeScores) throws IOException {
+
+		if(includeScores && !includeOwnIdentities)
+			throw new IllegalArgumentException("Scores require OwnIdentitys");
+
+		final CRC32 crc = new CRC32();
+		final GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+		final DataOutputStream data = new DataOutputStream(
+			new BufferedOutputStream(new CheckedOutputStream(gzip, crc), BUFFER_SIZE));
+
+		data.writeInt(MAGIC);
+		data.writeByte(FORMAT_VERSION);
+		data.writeByte(PersistentCodec.VERSION);
+		data.writeByte((includeOwnIdentities ? FLAG_OWN_IDENTITIES : 0)
+			| (includeScores ? FLAG_SCORES : 0));
+		data.writeLong(CurrentTimeUTC.getInMillis());
+
+		final ObjectSet<Identity> identities = wot.getAllIdentities();
+		final HashMap<String, Integer> indices = new HashMap<String, Integer>(identities.size() * 2);
+		data.writeInt(identities.size());
+		for(Identity identity : identities) {
+			if(!identity.canEncode())
+				throw new IOException("Identity uses a deprecated format: " + identity);
+
+			indices.put(identity.getID(), indices.size());
+
+			if(identity instanceof OwnIdentity && includeOwnIdentities) {
+				data.writeByte(TYPE_OWN_IDENTITY);
+				identity.writeFields(data);
+			} else if(identity instanceof OwnIdentity) {
+				data.writeByte(TYPE_IDENTITY);
+				identity.writeIdentityFields(data, FetchState.NotFetched);
+			} else {
+				data.writeByte(TYPE_IDENTITY);
+				identity.writeFields(data);
+			}
+		}
+
+		final ObjectSet<Trust> trusts = wot.getAllTrusts();
+		data.writeInt(trusts.size());
+		for(Trust trust : trusts) {
+			data.writeInt(indices.get(trust.getTruster().getID()));
+			data.writeInt(indices.get(trust.getTrustee().getID()));
+			trust.writeFieldsWithoutIdentities(data);
+		}
+
+		int scoreCount = 0;
+		if(includeScores) {
+			final ObjectSet<Score> scores = wot.getAllScores();
+			scoreCount = scores.size();
+			data.writeInt(scoreCount);
+			for(Score score : scores) {
+				if(!score.canEncode())
+					throw new IOException("Score computation is unfinished: " + score);
+
+				data.writeInt(indices.get(score.getTruster().getID()));
+				data.writeInt(indices.get(score.getTrustee().getID()));
+				score.writeFieldsWithoutIdentities(data);
+			}
+		}
+
+		data.flush();
+		// Not through data: The checksum must not include itself.
+		new DataOutputStream(gzip).writeLong(crc.getValue());
+		gzip.finish();
+		out.flush();
+
+		return new Statistics(identities.size(), trusts.size(), scoreCount);
+	}
+
+	/**
+	 * Reads a snapshot which was written by
+	 * {@link DatabaseSnapshot#write(WebOfTrust, OutputStream, boolean, boolean)}. The functions
+	 * must be called in the order of the format: {@link #readIdentities()}, then
+	 * {@link #readTrustCount()} and {@link #readTrust()} for each of them, then the same for the
+	 * Scores if {@link #hasScores()}, and then {@link #finish()}.<br><br>
+	 *
+	 * Throws IOException if the input is malformed, but does not validate the values of the
+	 * objects: Use {@link Persistent#startupDatabaseIntegrityTest()} for that after storing them.
+	 */
+	static final class Reader {
+
+		private final WebOfTrustInterface mWebOfTrust;
+
+		private final CRC32 mCRC = new CRC32();
+
+		/** Not buffered: A buffer would read ahead into the checksum at the end. The
+		 *  {@link GZIPInputStream} is buffered already. */
+		private final DataInputStream mData;
+
+		private final byte mFieldsVersion;
+
+		private final byte mFlags;
+
+		/** The Identitys, in the order of the snapshot, to resolve the indices of the Trusts and
+		 *  Scores. */
+		private ArrayList<Identity> mIdentities = null;
+
+		/** IDs of the Trusts or Scores which were read so far, to detect duplicates. */
+		private final HashSet<String> mIDs = new HashSet<String>();
+
+
+		/** Reads the header. Does not close the stream. */
+		Reader(WebOfTrustInterface wot, InputStream in) throws IOException {
+			mWebOfTrust = wot;
+			mData = new DataInputStream(
+				new CheckedInputStream(new GZIPInputStream(in, BUFFER_SIZE), mCRC));
+
+			if(mData.readInt() != MAGIC)
+				throw new IOException("Not a WoT snapshot");
+
+			final byte version = mData.readByte();
+			if(version < 1 || version > FORMAT_VERSION)
+				throw new IOException("Unknown snapshot version: " + version);
+
+			mFieldsVersion = mData.readByte();
+			if(mFieldsVersion < 1 || mFieldsVersion > PersistentCodec.VERSION)
+				throw new IOException("Unknown fields version: " + mFieldsVersion);
+
+			mFlags = mData.readByte();
+			mData.readLong(); // Date of creation, only informational
+		}
+
+		boolean hasScores() {
+			return (mFlags & FLAG_SCORES) != 0;
+		}
+
+		/** @return The Identitys, which are not stored in the database yet. */
+		ArrayList<Identity> readIdentities() throws IOException {
+			final int count = readCount();
+			// Not pre-allocated with the count: It is not validated by the checksum yet.
+			final ArrayList<Identity> result = new ArrayList<Identity>();
+			final HashSet<String> ids = new HashSet<String>();
+
+			for(int i = 0; i < count; ++i) {
+				final byte type = mData.readByte();
+				final Identity identity;
+
+				if(type == TYPE_IDENTITY)
+					identity = new Identity(mWebOfTrust, mData, mFieldsVersion);
+				else if(type == TYPE_OWN_IDENTITY && (mFlags & FLAG_OWN_IDENTITIES) != 0)
+					identity = new OwnIdentity(mWebOfTrust, mData, mFieldsVersion);
+				else
+					throw new IOException("Invalid Identity type: " + type);
+
+				if(identity.getID() == null || !ids.add(identity.getID()))
+					throw new IOException("Duplicate Identity: " + identity.getID());
+
+				result.add(identity);
+			}
+
+			mIdentities = result;
+			return result;
+		}
+
+		int readTrustCount() throws IOException {
+			mIDs.clear();
+			return readCount();
+		}
+
+		Trust readTrust() throws IOException {
+			final Identity truster = readIdentityReference();
+			final Identity trustee = readIdentityReference();
+			final Trust trust
+				= new Trust(mWebOfTrust, truster, trustee, mData, mFieldsVersion);
+
+			if(trust.getID() == null || !mIDs.add(trust.getID()))
+				throw new IOException("Duplicate Trust: " + trust.getID());
+
+			return trust;
+		}
+
+		int readScoreCount() throws IOException {
+			if(!hasScores())
+				throw new IllegalStateException("The snapshot does not contain Scores");
+
+			mIDs.clear();
+			return readCount();
+		}
+
+		Score readScore() throws IOException {
+			final Identity truster = readIdentityReference();
+			final Identity trustee = readIdentityReference();
+			if(!(truster instanceof OwnIdentity))
+				throw new IOException("Truster is not an OwnIdentity: " + truster.getID());
+
+			final Score score
+				= new Score(mWebOfTrust, (OwnIdentity)truster, trustee, mData, mFieldsVersion);
+
+			if(score.getID() == null || !mIDs.add(score.getID()))
+				throw new IOException("Duplicate Score: " + score.getID());
+
+			return score;
+		}
+
+		/** Verifies the checksum. The objects must not be committed before this succeeded. */
+		void finish() throws IOException {
+			final long expected = mCRC.getValue();
+			final long actual = mData.readLong();
+
+			if(actual != expected)
+				throw new IOException("Checksum mismatch, the snapshot is damaged");
+
+			if(mData.read() != -1)
+				throw new IOException("Unexpected data after the end of the snapshot");
+		}
+
+		private int readCount() throws IOException {
+			final int count = mData.readInt();
+			if(count < 0)
+				throw new IOException("Invalid amount of objects: " + count);
+			return count;
+		}
+
+		private Identity readIdentityReference() throws IOException {
+			final int index = mData.readInt();
+			if(index < 0 || index >= mIdentities.size())
+				throw new IOException("Invalid Identity index: " + index);
+			return mIdentities.get(index);
+		}
+	}
+
+}
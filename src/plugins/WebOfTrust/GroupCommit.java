@@ -0,0 +1,206 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.concurrent.TimeUnit;
+
+import com.db4o.ext.ExtObjectContainer;
+
+import freenet.support.CurrentTimeUTC;
+import freenet.support.Logger;
+
+/**
+ * Commits a loop of many small, independent database operations once per
+ * {@link #DEFAULT_MAX_OPERATIONS} operations or {@link #DEFAULT_MAX_DELAY_MILLISECONDS},
+ * whichever comes first, instead of once per operation: Each db4o commit is a synchronous write
+ * to disk, so it costs far more than deleting a single {@link Persistent}.<br><br>
+ *
+ * Usage:<br><code>
+ * synchronized(Persistent.transactionLock(mDB)) {<br>
+ * &nbsp;&nbsp;final GroupCommit groupCommit = new GroupCommit(mWoT, this);<br>
+ * &nbsp;&nbsp;for(...) {<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;try { object.deleteWithoutCommit(); }<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;catch(RuntimeException e) { groupCommit.discard(); continue; }<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;try { groupCommit.operationFinished(); }<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;catch(RuntimeException e) { groupCommit.rollback(e); }<br>
+ * &nbsp;&nbsp;}<br>
+ * &nbsp;&nbsp;groupCommit.commit();<br>
+ * }</code><br><br>
+ *
+ * The *WithoutCommit() functions of {@link Persistent} roll back by themselves if they fail, so
+ * their failures must be handled with {@link #discard()} instead of
+ * {@link #rollback(RuntimeException)}.<br><br>
+ *
+ * ATTENTION: A rollback discards all operations since the last commit, not only the failed one.
+ * So only use this for operations which may be repeated later, for example deleting expired
+ * objects.<br><br>
+ *
+ * Not thread-safe: Each loop must use its own instance. The {@link Statistics} may be shared.
+ */
+public final class GroupCommit {
+
+	/** Maximal amount of operations per commit. */
+	public static final int DEFAULT_MAX_OPERATIONS = 64;
+
+	/**
+	 * Maximal age of the oldest uncommitted operation. Bounds the amount of work which is lost if
+	 * WOT is terminated while the operations themselves are slow, for example sending
+	 * notifications over the network. */
+	public static final long DEFAULT_MAX_DELAY_MILLISECONDS = 1000;
+
+
+	/** Commit statistics of all GroupCommits of a {@link WebOfTrust}. */
+	public static final class Statistics implements Cloneable {
+		public final long mStartupTimeMilliseconds = CurrentTimeUTC.getInMillis();
+
+		/** Number of operations which have been committed. */
+		public long mCommittedOperations = 0;
+
+		/** Number of commits, each of which contained at least one operation. */
+		public long mCommits = 0;
+
+		/** Number of operations which were discarded by rollbacks. */
+		public long mRolledBackOperations = 0;
+
+		public float getAverageCommitsPerHour() {
+			float uptimeSeconds
+				= (float)(CurrentTimeUTC.getInMillis() - mStartupTimeMilliseconds)/1000;
+			float uptimeHours = uptimeSeconds / (60*60);
+
+			if(uptimeHours == 0) // prevent division by 0
+				return 0;
+
+			return (float)mCommits / uptimeHours;
+		}
+
+		public float getAverageOperationsPerCommit() {
+			if(mCommits == 0) // prevent division by 0
+				return 0;
+
+			return (float)mCommittedOperations / mCommits;
+		}
+
+		@Override public Statistics clone() {
+			try {
+				return (Statistics)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+
+	private final ExtObjectContainer mDB;
+
+	private final Object mLoggingObject;
+
+	/** Synchronize on it when modifying it. */
+	private final Statistics mStatistics;
+
+	private final int mMaxOperations;
+
+	private final long mMaxDelayNanoseconds;
+
+	private int mPendingOperations = 0;
+
+	/** {@link System#nanoTime()} of the first of the {@link #mPendingOperations}. */
+	private long mFirstPendingOperationTime = 0;
+
+	private long mCommittedOperations = 0;
+
+
+	/** @param loggingObject Passed to {@link Persistent#checkedCommit(ExtObjectContainer, Object)}
+	 *      and {@link Persistent#checkedRollback(ExtObjectContainer, Object, Throwable)}. */
+	public GroupCommit(final WebOfTrust wot, final Object loggingObject) {
+		this(wot, loggingObject, DEFAULT_MAX_OPERATIONS, DEFAULT_MAX_DELAY_MILLISECONDS);
+	}
+
+	public GroupCommit(final WebOfTrust wot, final Object loggingObject, final int maxOperations,
+			final long maxDelayMilliseconds) {
+
+		if(maxOperations < 1)
+			throw new IllegalArgumentException("maxOperations must be at least 1: " + maxOperations);
+
+		mDB = wot.getDatabase();
+		mLoggingObject = loggingObject;
+		mStatistics = wot.getGroupCommitStatisticsForUpdating();
+		mMaxOperations = maxOperations;
+		mMaxDelayNanoseconds = TimeUnit.MILLISECONDS.toNanos(maxDelayMilliseconds);
+	}
+
+	/**
+	 * Must be called after each successful operation. Commits if the maximal amount of operations
+	 * or the maximal delay has been reached.
+	 * You must synchronize on the Persistent.transactionLock() of the database. */
+	public void operationFinished() {
+		final long now = System.nanoTime();
+
+		if(mPendingOperations++ == 0)
+			mFirstPendingOperationTime = now;
+
+		if(mPendingOperations >= mMaxOperations
+				|| now - mFirstPendingOperationTime >= mMaxDelayNanoseconds)
+			commit();
+	}
+
+	/**
+	 * Commits the pending operations, if there are any. Must be called after the loop, and before
+	 * the Persistent.transactionLock() of the database is released.
+	 * You must synchronize on the Persistent.transactionLock() of the database. */
+	public void commit() {
+		if(mPendingOperations == 0)
+			return;
+
+		Persistent.checkedCommit(mDB, mLoggingObject);
+		mCommittedOperations += mPendingOperations;
+
+		synchronized(mStatistics) {
+			mStatistics.mCommittedOperations += mPendingOperations;
+			++mStatistics.mCommits;
+		}
+
+		mPendingOperations = 0;
+	}
+
+	/**
+	 * Rolls back the transaction, which discards all pending operations.
+	 * You must synchronize on the Persistent.transactionLock() of the database. */
+	public void rollback(final RuntimeException e) {
+		Persistent.checkedRollback(mDB, mLoggingObject, e);
+		discard();
+	}
+
+	/**
+	 * Same as {@link #rollback(RuntimeException)}, but throws the given exception afterwards. */
+	public void rollbackAndThrow(final RuntimeException e) {
+		rollback(e);
+		throw e;
+	}
+
+	/** Must be called instead of {@link #rollback(RuntimeException)} if the transaction was
+	 *  rolled back by other code. */
+	public void discard() {
+		if(mPendingOperations == 0)
+			return;
+
+		Logger.warning(mLoggingObject, "Rollback discarded " + mPendingOperations
+			+ " operations of a group commit");
+
+		synchronized(mStatistics) {
+			mStatistics.mRolledBackOperations += mPendingOperations;
+		}
+
+		mPendingOperations = 0;
+	}
+
+	public int getPendingOperations() {
+		return mPendingOperations;
+	}
+
+	/** @return The number of operations which this GroupCommit has committed. */
+	public long getCommittedOperations() {
+		return mCommittedOperations;
+	}
+
+}
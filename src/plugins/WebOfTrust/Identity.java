@@ -3,7 +3,10 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
@@ -17,6 +20,9 @@ import java.util.UUID;
 
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.util.Base32;
+
+import com.db4o.query.Query;
+
 import freenet.keys.FreenetURI;
 import freenet.keys.USK;
 import freenet.support.Base64;
@@ -45,6 +51,9 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 	public static transient final int MAX_PROPERTY_NAME_LENGTH = 256;
 	public static transient final int MAX_PROPERTY_VALUE_LENGTH = 10 * 1024;
 	public static transient final int MAX_PROPERTY_AMOUNT = 64;
+	
+	/** Value of {@link #mBestScore} if the Identity has not received any {@link Score}. */
+	static transient final int NO_SCORE = Integer.MIN_VALUE;
 
 	/** A unique identifier used to query this Identity from the database. In fact, it is simply a String representing its routing key. */
 	@IndexedField
@@ -82,6 +91,17 @@ public class Identity extends Persistent implements Cloneable, EventSource {
      */
     protected String mRequestURIString;
 
+	/**
+	 * Copy of the edition of {@link #mRequestURIString}, must be updated whenever it changes.<br>
+	 * Allows {@link #getEdition()} without parsing the URI, and sorting by edition with a native
+	 * db4o query, see {@link WebOfTrust#getAllIdentitiesFilteredAndSorted(OwnIdentity, String,
+	 * WebOfTrust.SortOrder)}. */
+	@IndexedField
+	protected long mEdition;
+
+	/** Cache of {@link #getRequestURI()}. Not stored in the database. */
+	private transient ParsedRequestURI mParsedRequestURI = null;
+
 	public static enum FetchState {
 		NotFetched,
 		ParsingFailed,
@@ -118,12 +138,41 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 	 * @see Identity#activateProperties()
 	 */
 	private transient boolean mPropertiesActivated;
+	
+	/**
+	 * The best {@link Score#getScore()} of all {@link Score}s this Identity has received, or
+	 * {@link #NO_SCORE} if it has not received any.<br>
+	 * This is a denormalized copy of the Score database so {@link WebOfTrust#getBestScore(Identity)}
+	 * and {@link WebOfTrust#shouldFetchIdentity(Identity)} don't have to query all Scores of the
+	 * Identity. It is kept up to date by {@link #updateBestScoreWithoutCommit(Score, boolean)}.
+	 */
+	@IndexedField
+	protected int mBestScore;
+	
+	/** The best {@link Score#getCapacity()} of all Scores of this Identity, 0 if it has none.
+	 *  @see #mBestScore */
+	protected int mBestCapacity;
+	
+	/** The value of {@link WebOfTrust#shouldFetchIdentity(Identity)}.
+	 *  @see #mBestScore */
+	@IndexedField
+	protected boolean mShouldFetch;
 
 	/** An {@link UUID} set by {@link EventSource#setVersionID(UUID)}. See its JavaDoc for an
 	 *  explanation of the purpose.<br>
 	 *  Stored as String to reduce db4o maintenance overhead. */
 	private String mVersionID = null;
 
+	/**
+	 * Hash of the content of the identity XML which was imported last, and of the decisions
+	 * which depended on the Score of this Identity during the import. Allows the
+	 * {@link XMLTransformer} to skip the trust list of editions which did not change. Null if
+	 * no edition was imported yet.<br>
+	 * Not part of {@link #equals(Object)} and {@link #writeFields(DataOutputStream)}: It is
+	 * only a cache for the import, not information about the Identity.
+	 * @see XMLTransformer#importIdentity(FreenetURI, XMLTransformer.ParsedIdentityXML) */
+	private String mImportedContentHash = null;
+
 	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
@@ -285,7 +334,7 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 		
         // Also takes care of setting the edition to 0 - see below for explanation
         final FreenetURI normalizedRequestURI = testAndNormalizeRequestURI(newRequestURI);
-        mRequestURIString = normalizedRequestURI.toString();
+        setRequestURIString(normalizedRequestURI);
 		
         mID = IdentityID.constructAndValidateFromURI(normalizedRequestURI).toString();
 		
@@ -310,6 +359,10 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 		setPublishTrustList(doesPublishTrustList);
 		mContexts = new ArrayList<String>(4); /* Currently we have: Introduction, Freetalk */
 		mProperties = new HashMap<String, String>();
+		
+		mBestScore = NO_SCORE;
+		mBestCapacity = 0;
+		mShouldFetch = false;
 	}	
 
 	/**
@@ -344,13 +397,63 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 	 */
 	public final FreenetURI getRequestURI() {
         checkedActivate(1); // String is a db4o primitive type so 1 is enough
+        
+        // Read the field only once: It might be replaced concurrently.
+        final ParsedRequestURI cached = mParsedRequestURI;
+        if(cached != null && cached.string == mRequestURIString)
+            return cached.uri;
+        
         try {
-            return new FreenetURI(mRequestURIString);
+            final FreenetURI result = new FreenetURI(mRequestURIString);
+            mParsedRequestURI = new ParsedRequestURI(mRequestURIString, result);
+            return result;
         } catch (MalformedURLException e) {
             // Should never happen: We never store invalid URIs.
             throw new RuntimeException(e);
         }
 	}
+
+	/**
+	 * Sets {@link #mRequestURIString} and the values which are derived from it: {@link #mEdition}
+	 * and the cache of {@link #getRequestURI()}.<br>
+	 * You must call {@link #checkedActivate(int)} before, and store this Identity afterwards. */
+	private void setRequestURIString(final FreenetURI requestURI) {
+		// String is a db4o primitive type, and thus automatically deleted. This also applies
+		// to the long.
+		/* checkedDelete(mRequestURIString); */
+		mRequestURIString = requestURI.toString();
+		mEdition = requestURI.getEdition();
+		mParsedRequestURI = new ParsedRequestURI(mRequestURIString, requestURI);
+	}
+
+	/**
+	 * A {@link FreenetURI} along with the String it was parsed from.<br>
+	 * The cache of {@link #getRequestURI()} is only valid if its String is the same object as
+	 * {@link #mRequestURIString}: This ensures it cannot become stale if db4o replaces the String,
+	 * for example by re-activating the Identity after a rollback.<br>
+	 * FreenetURI is immutable, and the fields are final, so it is safe to share between threads.
+	 */
+	private static final class ParsedRequestURI {
+		final String string;
+		final FreenetURI uri;
+
+		ParsedRequestURI(final String string, final FreenetURI uri) {
+			this.string = string;
+			this.uri = uri;
+		}
+
+		/** For the unit test of {@link Identity#clone()}, which compares all fields. */
+		@Override public boolean equals(final Object o) {
+			if(!(o instanceof ParsedRequestURI))
+				return false;
+			final ParsedRequestURI other = (ParsedRequestURI)o;
+			return string.equals(other.string) && uri.equals(other.uri);
+		}
+
+		@Override public int hashCode() {
+			return string.hashCode();
+		}
+	}
 	
 	/**
 	 * Checks whether the given URI is a valid identity request URI and throws if is not.
@@ -382,7 +485,8 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 	 * Safe to be called without any additional synchronization.
 	 */
 	public final long getEdition() {
-		return getRequestURI().getEdition();
+		checkedActivate(1); // long is a db4o primitive type so 1 is enough
+		return mEdition;
 	}
 	
 	public final FetchState getCurrentEditionFetchState() {
@@ -426,10 +530,8 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 		}
 		
 		if (newEdition > currentEdition) {
-            // String is a db4o primitive type, and thus automatically deleted. This also applies
-            // to the enum and long which we set in the following code.
-            /* checkedDelete(mRequestURIString); */
-            mRequestURIString = requestURI.setSuggestedEdition(newEdition).toString();
+            // Enum and long are db4o primitive types, and thus automatically deleted.
+            setRequestURIString(requestURI.setSuggestedEdition(newEdition));
 			mCurrentEditionFetchState = FetchState.NotFetched;
 			if (newEdition > mLatestEditionHint) {
 				// Do not call setNewEditionHint() to prevent confusing logging.
@@ -454,10 +556,7 @@ public class Identity extends Persistent implements Cloneable, EventSource {
         final long currentEdition = requestURI.getEdition();
 		
 		if(newEdition != currentEdition) {
-            // String is a db4o primitive type, and thus automatically deleted. This also applies
-            // to the long which we set in the following code.
-            /* checkedDelete(mRequestURIString); */
-            mRequestURIString = requestURI.setSuggestedEdition(newEdition).toString();
+            setRequestURIString(requestURI.setSuggestedEdition(newEdition));
 			if (newEdition > mLatestEditionHint) {
 				// Do not call setNewEditionHint() to prevent confusing logging.
 				mLatestEditionHint = newEdition;
@@ -513,9 +612,7 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 
         requestURI = requestURI.setSuggestedEdition(Math.max(requestURI.getEdition() - 1, 0));
 
-        // String is a db4o primitive type, and thus automatically deleted.
-        /* checkedDelete(mRequestURIString); */
-        mRequestURIString = requestURI.toString();
+        setRequestURIString(requestURI);
 
 		// TODO: I decided that we should not decrease the edition hint here. Think about that again.
 	}
@@ -553,6 +650,115 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 		return (Date)mLastFetchedDate.clone();	// Clone it because date is mutable
 	}
 
+	/** @see #mBestScore */
+	final int getBestScore() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		return mBestScore;
+	}
+	
+	/** @see #mBestCapacity */
+	final int getBestCapacity() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		return mBestCapacity;
+	}
+	
+	/** @see #mShouldFetch */
+	final boolean shouldFetch() {
+		checkedActivate(1); // boolean is a db4o primitive type so 1 is enough
+		return mShouldFetch;
+	}
+	
+	/** @see #mImportedContentHash */
+	final String getImportedContentHash() {
+		checkedActivate(1); // String is a db4o primitive type so 1 is enough
+		return mImportedContentHash;
+	}
+	
+	/** @see #mImportedContentHash */
+	final void setImportedContentHash(String hash) {
+		checkedActivate(1);
+		// No need to delete the old value from db4o: Its a String, and thus a native db4o value.
+		mImportedContentHash = hash;
+	}
+	
+	/**
+	 * Updates {@link #mBestScore}, {@link #mBestCapacity} and {@link #mShouldFetch} after a
+	 * {@link Score} which this Identity has received was stored or deleted. Called by
+	 * {@link Score#storeWithoutCommit()} and {@link Score#deleteWithoutCommit()}.<br><br>
+	 * 
+	 * If a Score was stored which is at least as good as the current best values, they are
+	 * replaced by the values of the Score without a database query. Otherwise, the Score might
+	 * have been the best one before, so all Scores of this Identity are queried.
+	 * 
+	 * @param changedScore The Score which was stored or deleted. Null to recompute the values from
+	 *     all Scores, as needed by {@link WebOfTrust#upgradeDatabaseFormatVersion7()}.
+	 * @param deleted True if changedScore was deleted, false if it was stored.
+	 */
+	protected void updateBestScoreWithoutCommit(final Score changedScore, final boolean deleted) {
+		checkedActivate(1); // int/boolean are db4o primitive types so 1 is enough
+		
+		// Might be the case if the Scores of an Identity are deleted while the Identity itself
+		// is being deleted.
+		if(!mDB.isStored(this))
+			return;
+		
+		final int oldBestScore = mBestScore;
+		final int oldBestCapacity = mBestCapacity;
+		final boolean oldShouldFetch = mShouldFetch;
+		
+		if(changedScore != null && !deleted
+				&& changedScore.getScore() >= mBestScore
+				&& changedScore.getCapacity() >= mBestCapacity) {
+			
+			mBestScore = changedScore.getScore();
+			mBestCapacity = changedScore.getCapacity();
+			
+			if(this instanceof OwnIdentity) {
+				// See computeBestScoreFromDatabase()
+				mShouldFetch |= changedScore.getTruster().getID().equals(getID());
+			} else
+				mShouldFetch = (mBestCapacity > 0 || mBestScore >= 0);
+		} else
+			computeBestScoreFromDatabase();
+		
+		if(mBestScore != oldBestScore || mBestCapacity != oldBestCapacity
+				|| mShouldFetch != oldShouldFetch) {
+			checkedStore();
+		}
+	}
+	
+	/**
+	 * Sets {@link #mBestScore}, {@link #mBestCapacity} and {@link #mShouldFetch} to the values
+	 * computed from all {@link Score}s of this Identity in the database. Does not store this
+	 * Identity.
+	 */
+	private void computeBestScoreFromDatabase() {
+		final boolean isOwnIdentity = (this instanceof OwnIdentity);
+		int bestScore = NO_SCORE;
+		int bestCapacity = 0;
+		boolean ownScoreExists = false;
+		
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend("mTrustee").constrain(this).identity();
+		for(Score score : new Persistent.InitializingObjectSet<Score>(mWebOfTrust, query)) {
+			bestScore = Math.max(score.getScore(), bestScore);
+			bestCapacity = Math.max(score.getCapacity(), bestCapacity);
+			
+			if(isOwnIdentity && score.getTruster().getID().equals(getID()))
+				ownScoreExists = true;
+		}
+		
+		mBestScore = bestScore;
+		mBestCapacity = bestCapacity;
+		// See WebOfTrust.shouldFetchIdentity() for why we fetch Identitys with negative Score if
+		// their capacity is > 0. An OwnIdentity is only fetched once it has the Score which it
+		// gives to itself, i.e. once WebOfTrust.initTrustTreeWithoutCommit() was called.
+		mShouldFetch = isOwnIdentity
+			? ownScoreExists
+			: (bestCapacity > 0 || (bestScore != NO_SCORE && bestScore >= 0));
+	}
+	
 	/**
 	 * @return The date of this Identity's last modification.
 	 */
@@ -1092,6 +1298,10 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 			clone.mLatestEditionHint = getLatestEditionHint(); // Don't use the setter since it won't lower the current edition hint.
 			clone.setContexts(getContexts());
 			clone.setProperties(getProperties());
+			clone.mBestScore = mBestScore;
+			clone.mBestCapacity = mBestCapacity;
+			clone.mShouldFetch = mShouldFetch;
+			clone.mImportedContentHash = getImportedContentHash();
 			// Clone it because date is mutable. Set it *after* calling all setters since they would
 			// update it to the current time otherwise.
 	        clone.mLastChangedDate = (Date)mLastChangedDate.clone();
@@ -1134,6 +1344,12 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 			checkedStore(mProperties);
 			checkedStore(mContexts);
 			checkedStore();
+			
+			// A different cached object with the same ID is stale, e.g. the other type during
+			// conversion between Identity and OwnIdentity.
+			final IdentityCache cache = IdentityCache.of(mWebOfTrust);
+			if(cache != null)
+				cache.removeOthers(this);
 		}
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
@@ -1154,7 +1370,7 @@ public class Identity extends Persistent implements Cloneable, EventSource {
         
         assert(mRequestURI != null);
         checkedActivate(mRequestURI, 2);
-        mRequestURIString = mRequestURI.toString();
+        setRequestURIString(mRequestURI);
 
         // A FreenetURI currently only contains db4o primitive types (String, arrays, etc.) and thus
         // we can delete it having to delete its member variables explicitly.
@@ -1165,6 +1381,15 @@ public class Identity extends Persistent implements Cloneable, EventSource {
         storeWithoutCommit();
     }
 
+	/**
+	 * Initializes {@link #mEdition}, which did not exist in database format version 8.
+	 * @see WebOfTrust#upgradeDatabaseFormatVersion8() */
+	protected void upgradeDatabaseFormatVersion8WithoutCommit() {
+		checkedActivate(1);
+		mEdition = getRequestURI().getEdition();
+		checkedStore();
+	}
+
 	/**
 	 * Locks the WoT and the database and stores the identity.
 	 */
@@ -1208,6 +1433,10 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 			checkedDelete(mProperties);
 			checkedDelete(mContexts);
 			checkedDelete();
+			
+			final IdentityCache cache = IdentityCache.of(mWebOfTrust);
+			if(cache != null)
+				cache.remove(this);
 		}
 		catch(RuntimeException e) {
 			checkedRollbackAndThrow(e);
@@ -1246,6 +1475,11 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 		if(mCurrentEditionFetchState == null)
 			throw new NullPointerException("mCurrentEditionFetchState==null");
 		
+        if(mEdition != requestURI.getEdition()) {
+            throw new IllegalStateException("mEdition does not match request URI: " + mEdition
+                                          + "; request URI: " + requestURI);
+        }
+
         if(mLatestEditionHint < 0 || mLatestEditionHint < requestURI.getEdition()) {
             throw new IllegalStateException("Invalid edition hint: " + mLatestEditionHint
                                           + "; current edition: " + requestURI.getEdition());
@@ -1288,6 +1522,34 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 		
 		if(mProperties.size() > MAX_PROPERTY_AMOUNT)
 			throw new IllegalStateException("Too many properties: " + mProperties.size());
+		
+		if(mBestCapacity < 0)
+			throw new IllegalStateException("Negative mBestCapacity: " + mBestCapacity);
+		
+		{ // Check whether the denormalized Score data matches the Score objects
+			final int bestScore = mBestScore;
+			final int bestCapacity = mBestCapacity;
+			final boolean shouldFetch = mShouldFetch;
+			
+			computeBestScoreFromDatabase();
+			final int realBestScore = mBestScore;
+			final int realBestCapacity = mBestCapacity;
+			final boolean realShouldFetch = mShouldFetch;
+			
+			// Restore the values: The integrity test must not change the object, the changed values
+			// would be stored if any other code stored it later on.
+			mBestScore = bestScore;
+			mBestCapacity = bestCapacity;
+			mShouldFetch = shouldFetch;
+			
+			if(realBestScore != bestScore || realBestCapacity != bestCapacity
+					|| realShouldFetch != shouldFetch) {
+				throw new IllegalStateException("Best Score / capacity / shouldFetch mismatch: "
+					+ "stored: " + bestScore + " / " + bestCapacity + " / " + shouldFetch
+					+ "; should be: "
+					+ realBestScore + " / " + realBestCapacity + " / " + realShouldFetch);
+			}
+		}
 			
 		// TODO: Verify context/property names/values 
 	}
@@ -1298,6 +1560,84 @@ public class Identity extends Persistent implements Cloneable, EventSource {
 		stream.defaultWriteObject();
 	}
 
+	/**
+	 * Byte arrays which were serialized before {@link #mEdition} existed do not contain it, so it
+	 * is computed from the URI instead of being trusted. */
+	private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+		stream.defaultReadObject();
+		if(mRequestURIString != null)
+			mEdition = new FreenetURI(mRequestURIString).getEdition();
+		else if(mRequestURI != null)
+			mEdition = mRequestURI.getEdition();
+	}
+
+	/**
+	 * @return False if the deprecated {@link #mRequestURI} is set: {@link PersistentCodec} does
+	 *     not contain it, so Java serialization must be used. */
+	boolean canEncode() {
+		checkedActivate(1);
+		return mRequestURI == null;
+	}
+
+	/**
+	 * Writes the fields of this Identity for {@link PersistentCodec}.
+	 * @see #Identity(WebOfTrustInterface, DataInputStream, byte) The inverse function. */
+	void writeFields(DataOutputStream out) throws IOException {
+		activateFully();
+		writeIdentityFields(out, mCurrentEditionFetchState);
+	}
+
+	/**
+	 * Writes only the fields of class Identity, even if this is an {@link OwnIdentity}, with the
+	 * given {@link FetchState} instead of the actual one. Used by {@link DatabaseSnapshot} to
+	 * export an OwnIdentity as a non-own Identity which the importing node has yet to fetch.
+	 * @see #Identity(WebOfTrustInterface, DataInputStream, byte) The inverse function. */
+	final void writeIdentityFields(DataOutputStream out, FetchState fetchState)
+			throws IOException {
+		
+		activateFully();
+		PersistentCodec.writeDate(mCreationDate, out);
+		PersistentCodec.writeString(mID, out);
+		PersistentCodec.writeString(mRequestURIString, out);
+		PersistentCodec.writeEnum(fetchState, out);
+		out.writeLong(mLatestEditionHint);
+		PersistentCodec.writeDate(mLastFetchedDate, out);
+		PersistentCodec.writeDate(mLastChangedDate, out);
+		PersistentCodec.writeString(mNickname, out);
+		out.writeBoolean(mDoesPublishTrustList);
+		PersistentCodec.writeStringList(mContexts, out);
+		PersistentCodec.writeStringMap(mProperties, out);
+		out.writeInt(mBestScore);
+		out.writeInt(mBestCapacity);
+		out.writeBoolean(mShouldFetch);
+		PersistentCodec.writeString(mVersionID, out);
+	}
+
+	/**
+	 * Reads an Identity which was written by {@link #writeFields(DataOutputStream)}. Used by
+	 * {@link PersistentCodec}, does not validate anything.
+	 * @param version The {@link PersistentCodec#VERSION} of the input. */
+	Identity(WebOfTrustInterface myWoT, DataInputStream in, byte version) throws IOException {
+		initializeTransient(myWoT);
+		mCreationDate = PersistentCodec.readDate(in);
+		mID = PersistentCodec.readString(in);
+		mRequestURIString = PersistentCodec.readString(in);
+		// Not part of the format: It is a copy of the edition of the URI.
+		mEdition = mRequestURIString != null ? new FreenetURI(mRequestURIString).getEdition() : 0;
+		mCurrentEditionFetchState = PersistentCodec.readEnum(FetchState.class, in);
+		mLatestEditionHint = in.readLong();
+		mLastFetchedDate = PersistentCodec.readDate(in);
+		mLastChangedDate = PersistentCodec.readDate(in);
+		mNickname = PersistentCodec.readString(in);
+		mDoesPublishTrustList = in.readBoolean();
+		mContexts = PersistentCodec.readStringList(in);
+		mProperties = PersistentCodec.readStringMap(in);
+		mBestScore = in.readInt();
+		mBestCapacity = in.readInt();
+		mShouldFetch = in.readBoolean();
+		mVersionID = PersistentCodec.readString(in);
+	}
+
 	/** {@inheritDoc} */
     @Override public void setVersionID(UUID versionID) { 
         checkedActivate(1);
@@ -0,0 +1,117 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least-recently-used cache of stored {@link Identity} objects by {@link Identity#getID()},
+ * for {@link WebOfTrust#getIdentityByID(String)}: A trust list import looks up each of up to
+ * {@link XMLTransformer#MAX_IDENTITY_XML_TRUSTEE_AMOUNT} trustees by ID, which would be a
+ * database query each.<br>
+ * Only stored objects are cached, so an entry always is the same object which the database
+ * would return. Unknown IDs are not cached.<br><br>
+ *
+ * Invalidation:<br>
+ * - {@link Identity#deleteWithoutCommit()} removes the Identity. This includes the conversion
+ *   between Identity and {@link OwnIdentity}, which deletes the old object.<br>
+ * - {@link Identity#storeWithoutCommit()} removes a different object with the same ID.<br>
+ * - Rolling back the database clears the cache, see {@link #clear()}. This happens before the
+ *   rollback as well: db4o cannot revert objects which are still referenced by the cache.<br><br>
+ *
+ * Synchronization: All functions are synchronized on the cache itself, so it may be used
+ * without the locks of the {@link WebOfTrust} and the database.
+ */
+final class IdentityCache {
+
+	private final LinkedHashMap<String, Identity> mIdentities;
+
+	/**
+	 * Incremented by {@link #clear()}. A lookup which missed the cache must pass the value which
+	 * it had before the database query to {@link #put(Identity, int)}, so an object of a
+	 * transaction which was rolled back during the query is not cached. */
+	private int mGeneration = 0;
+
+	private long mHits = 0;
+
+	private long mMisses = 0;
+
+
+	IdentityCache(final int capacity) {
+		// accessOrder = true makes it an LRU cache
+		mIdentities = new LinkedHashMap<String, Identity>(capacity * 4 / 3 + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override protected boolean removeEldestEntry(Map.Entry<String, Identity> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return The cache of the given WebOfTrust, or null for other implementations of
+	 *     {@link WebOfTrustInterface}, which do not store anything. */
+	static IdentityCache of(final WebOfTrustInterface wot) {
+		return wot instanceof WebOfTrust ? ((WebOfTrust)wot).getIdentityCache() : null;
+	}
+
+	/** @return The cached Identity, or null if it is not cached. Counts a hit or miss. */
+	synchronized Identity get(final String id) {
+		final Identity result = mIdentities.get(id);
+		if(result != null)
+			++mHits;
+		else
+			++mMisses;
+		return result;
+	}
+
+	/** @see #mGeneration */
+	synchronized int getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * Caches a stored Identity which the database returned for a missed lookup.
+	 * @param generation The value of {@link #getGeneration()} before the database was queried. */
+	synchronized void put(final Identity identity, final int generation) {
+		if(generation == mGeneration)
+			mIdentities.put(identity.getID(), identity);
+	}
+
+	/** Removes the given Identity. Does nothing if a different object with the same ID is
+	 *  cached. */
+	synchronized void remove(final Identity identity) {
+		final String id = identity.getID();
+		if(mIdentities.get(id) == identity)
+			mIdentities.remove(id);
+	}
+
+	/** Removes any Identity with the same ID as the given one, unless it is the given object. */
+	synchronized void removeOthers(final Identity identity) {
+		final String id = identity.getID();
+		final Identity cached = mIdentities.get(id);
+		if(cached != null && cached != identity)
+			mIdentities.remove(id);
+	}
+
+	/** Must be called when the database is rolled back. */
+	synchronized void clear() {
+		mIdentities.clear();
+		++mGeneration;
+	}
+
+	synchronized int size() {
+		return mIdentities.size();
+	}
+
+	synchronized long getHits() {
+		return mHits;
+	}
+
+	synchronized long getMisses() {
+		return mMisses;
+	}
+
+}
@@ -9,6 +9,7 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.HashSet;
 
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
@@ -34,6 +35,13 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 	/** {@link #poll()} puts files to this subdir of {@link #mDataDir}. */
 	private final File mProcessingDir;
 
+	/**
+	 * Names of the files in {@link #mProcessingDir} whose stream has not been closed yet.<br>
+	 * With deduplication, the filename is specific to the {@link Identity}, so
+	 * {@link #poll()} uses this to not return a file whose name would collide with a file which
+	 * is still being processed. */
+	private final HashSet<String> mProcessingFilenames = new HashSet<String>();
+
 	/**
 	 * If {@link #logDEBUG} is true, when the stream of a file returned by {@link #poll()} is
 	 * closed, the closing function of the stream will move the file to this subdir of
@@ -130,9 +138,9 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		// Processing dir policy:
 		// In theory we could move the files back to the queue. But its possible that a colliding
 		// filename exists there, which would need special code to handle.
-		// Since there should only be 1 file at a time in processing, and lost files will
-		// automatically be downloaded again, we just delete it to avoid the hassle of writing code
-		// for moving it back.
+		// Since there should only be few files at a time in processing, and lost files will
+		// automatically be downloaded again, we just delete them to avoid the hassle of writing
+		// code for moving them back.
 		for(File file : mProcessingDir.listFiles()) {
 			if(!file.getName().endsWith(IdentityFile.FILE_EXTENSION)) {
 				Logger.warning(this, "cleanDirectories(): Unexpected file type: " + file);
@@ -314,6 +322,14 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		// directory, we loop over the files in the queue dir nevertheless:
 		// If processing a file fails, we try the others until we succeed. 
 		for(File queuedFile : queue) {
+			// Another file of the same Identity is being processed. Its processing dir file would
+			// collide. Also, files of the same Identity are better imported in order.
+			// The caller will poll() again once the stream of the other file is closed.
+			if(mProcessingFilenames.contains(queuedFile.getName())) {
+				if(logMINOR) Logger.minor(this, "poll(): Skipping file in processing: " + queuedFile);
+				continue;
+			}
+			
 			try {
 				IdentityFile fileData = IdentityFile.read(queuedFile);
 				
@@ -337,7 +353,7 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 						new ByteArrayInputStream(fileData.mXML)));
 				
 				++mStatistics.mProcessingFiles;
-				assert(mStatistics.mProcessingFiles == 1);
+				mProcessingFilenames.add(dequeuedFile.getName());
 				
 				--mStatistics.mQueuedFiles;
 				assert(mStatistics.checkConsistency());
@@ -368,7 +384,7 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		}
 
 		if(logDEBUG) Logger.debug(this, "poll(): Yielded no file" );
-		return null; // Queue is empty
+		return null; // Queue is empty, or only contains files of Identitys which are in processing
 	}
 
 	/**
@@ -410,14 +426,18 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 					if(mClosedAlready)
 						return;
 
-					assert(mStatistics.mProcessingFiles == 1);
+					assert(mStatistics.mProcessingFiles >= 1);
+					final int processingFiles = mStatistics.mProcessingFiles;
 
 					if(!logDEBUG)
 						deleteFile();
 					else
 						archiveFile();
 					
-					assert(mStatistics.mProcessingFiles == 0);
+					assert(mStatistics.mProcessingFiles == processingFiles - 1);
+					// If the file could not be removed, poll() must keep avoiding its name.
+					if(mStatistics.mProcessingFiles < processingFiles)
+						mProcessingFilenames.remove(mSourceFile.getName());
 
 					mClosedAlready = true;
 				}
@@ -3,14 +3,21 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.XMLTransformer.BatchImportResult;
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+import freenet.keys.FreenetURI;
 import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.io.Closer;
@@ -21,8 +28,16 @@ import freenet.support.io.NativeThread.PriorityLevel;
  * in the {@link IdentityFileQueue}. The job of this processor is to take the files from the queue,
  * and import them into the WOT database using the {@link XMLTransformer}.<br><br>
  * 
- * Notice: The implementation is single-threaded and processes the files sequentially one-by-one.
- * It is not parallelized since the core WOT {@link Score} computation algorithm is not.<br><br>
+ * Processing is a pipeline: {@link #PARSER_THREADS} threads of the node's {@link Executor} take
+ * files from the queue and parse their XML ahead into a buffer of at most
+ * {@link #PARSED_FILES_BUFFER_SIZE} files. A single
+ * thread imports the parsed files under the WOT lock, in the order in which they were taken from
+ * the queue. The import is not parallelized since the core WOT {@link Score} computation
+ * algorithm is not. But the CPU-bound parsing then overlaps with the lock-bound import instead of
+ * alternating with it.<br>
+ * Files which are parsed already when the import of the previous ones is finished are imported
+ * together in a single transaction, with one {@link Score} update for all of them, see
+ * {@link #IMPORT_BATCH_SIZE}.<br><br>
  * 
  * Implemented as a {@link DelayedBackgroundJob} instead of just {@link BackgroundJob}: The default
  * implementation of {@link IdentityFileQueue} supports deduplication of old versions of identity
@@ -50,6 +65,29 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 	 * https://bugs.freenetproject.org/view.php?id=6555 */
 	public static final long PROCESSING_DELAY_MILLISECONDS = TimeUnit.MINUTES.toMillis(1);
 
+	/** Amount of threads which parse files while the processing thread imports them. One core is
+	 *  left for the import. */
+	public static final int PARSER_THREADS
+		= Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+	/**
+	 * Maximal amount of files which are imported in a single transaction by
+	 * {@link XMLTransformer#importIdentities(java.util.List, java.util.List)}. The per-file commit
+	 * and Score update would otherwise take much more time than the actual changes of the trust
+	 * lists.<br>
+	 * Batches are not waited for: A batch only contains the files which were parsed already when
+	 * the previous import finished, so they only get large if the import is the bottleneck.<br>
+	 * Larger batches hold the WOT lock for a longer time, which delays the UI and other
+	 * subsystems. */
+	public static final int IMPORT_BATCH_SIZE = 16;
+
+	/**
+	 * Maximal amount of files which have been taken from the queue but not imported yet, including
+	 * the ones which are being parsed. Limits the memory usage, and the amount of files which are
+	 * lost if WOT is terminated while processing: Their stream is closed without importing them,
+	 * which removes them from the queue. (They will be fetched again.) */
+	public static final int PARSED_FILES_BUFFER_SIZE = IMPORT_BATCH_SIZE + 2 * PARSER_THREADS;
+
 	/** We consume the files of this queue when it calls our {@link #triggerExecution()}. */
 	private final IdentityFileQueue mQueue;
 
@@ -59,6 +97,9 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 	/** Identity files will be passed to this {@link XMLTransformer} for the actual processing. */
 	private final XMLTransformer mXMLTransformer;
 
+	/** Runs the {@link Processor.Parser}s. */
+	private final Executor mExecutor;
+
 	private final Statistics mStatistics = new Statistics();
 
 
@@ -72,16 +113,37 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		 * inserted bogus data, which they might do as they please. */
 		public int mFailedFiles = 0;
 
-		/** Total time it took to process all {@link #mProcessedFiles}. */
+		/** Total time it took to import all {@link #mProcessedFiles}, not including parsing. */
 		public long mProcessingTimeNanoseconds = 0;
 
+		/** Total time it took to parse the XML of all {@link #mProcessedFiles}. Parsing happens in
+		 *  parallel to importing, so this is not included in {@link #mProcessingTimeNanoseconds}. */
+		public long mParsingTimeNanoseconds = 0;
+
+		/** Number of transactions in which multiple files were imported, see
+		 *  {@link IdentityFileProcessor#IMPORT_BATCH_SIZE}. */
+		public int mImportBatches = 0;
+
+		/** Number of such transactions which failed, and whose files were thus imported one by one
+		 *  instead. Each of them is also counted in {@link #mImportBatches}. */
+		public int mFailedImportBatches = 0;
+
 		/**
-		 * Gets the average time it took for processing a file, in seconds. This is rather crude as
+		 * Number of {@link #mProcessedFiles} whose content was equal to the previous edition of
+		 * the identity, so only the edition number had to be imported. See
+		 * {@link XMLTransformer#importIdentity(FreenetURI, ParsedIdentityXML)}. */
+		public int mUnchangedFiles = 0;
+
+		/**
+		 * Gets the average time it took for importing a file, in seconds. This is rather crude as
 		 * it includes all of those:<br>
 		 * - The time to acquire all locks, which could be a lot if WOT is busy.<br>
-		 * - The time to parse the XML.<br>
 		 * - The time to do Score recomputations.<br>
-		 * (There is a FIXME in {@link IdentityFileProcessor.Processor#run()} to improve this).<br>
+		 * (There is a FIXME in {@link IdentityFileProcessor.Processor#importFile(ParsedFile)} to
+		 * improve this).<br>
+		 * For files which were imported in a batch, the time of the batch is split evenly among
+		 * them.<br>
+		 * The time to parse the XML is not included, see {@link #getAverageXMLParsingTime()}.<br>
 		 * <br>
 		 * 
 		 * ATTENTION: Not synchronized - only use this if you are sure that the Statistics object is
@@ -95,6 +157,30 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 				/ (double) mProcessedFiles;
 		}
 
+		/**
+		 * Gets the average time it took for parsing the XML of a file, in seconds.<br><br>
+		 * 
+		 * ATTENTION: Not synchronized, see {@link #getAverageXMLImportTime()}. */
+		public double getAverageXMLParsingTime() {
+			if (mProcessedFiles == 0) // prevent division by 0
+				return 0;
+
+			return ((double) mParsingTimeNanoseconds / (1000 * 1000 * 1000))
+				/ (double) mProcessedFiles;
+		}
+
+		/**
+		 * Gets the fraction of the {@link #mProcessedFiles} which were {@link #mUnchangedFiles},
+		 * from 0 to 1.<br><br>
+		 * 
+		 * ATTENTION: Not synchronized, see {@link #getAverageXMLImportTime()}. */
+		public double getUnchangedFilesRatio() {
+			if (mProcessedFiles == 0) // prevent division by 0
+				return 0;
+
+			return (double) mUnchangedFiles / (double) mProcessedFiles;
+		}
+
 		@Override public Statistics clone() {
 			try {
 				return (Statistics)super.clone();
@@ -105,7 +191,9 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 	}
 
 
-	IdentityFileProcessor(IdentityFileQueue queue, Ticker ticker, XMLTransformer xmlTransformer) {
+	IdentityFileProcessor(IdentityFileQueue queue, Ticker ticker, Executor executor,
+			XMLTransformer xmlTransformer) {
+
 		if(ticker != null) {
 			mRealDelayedBackgroundJob = new TickerDelayedBackgroundJob(
 				new Processor(), "WOT IdentityFileProcessor", PROCESSING_DELAY_MILLISECONDS,
@@ -124,6 +212,7 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		/* mQueue.registerEventHandler(this); */
 		
 		mXMLTransformer = xmlTransformer;
+		mExecutor = executor;
 	}
 
 	/** Must be called during startup of WOT */
@@ -150,67 +239,271 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		mRealDelayedBackgroundJob.triggerExecution(delayMillis);
 	}
 
-	/** The actual processing thread, run by {@link IdentityFileProcessor#triggerExecution()}. */
+	/**
+	 * A file which a {@link Parser} has taken from the queue, and its parsed XML once parsing is
+	 * finished. */
+	private static final class ParsedFile {
+		final IdentityFileStream mStream;
+
+		/** Null until parsing is finished. Protected by synchronized(this). */
+		private ParsedIdentityXML mXML = null;
+
+		/** Protected by synchronized(this). */
+		private long mParsingTimeNanoseconds = 0;
+
+		ParsedFile(IdentityFileStream stream) {
+			mStream = stream;
+		}
+
+		synchronized void setParsed(ParsedIdentityXML xml, long parsingTimeNanoseconds) {
+			assert(mXML == null);
+			mXML = xml;
+			mParsingTimeNanoseconds = parsingTimeNanoseconds;
+			notifyAll();
+		}
+
+		synchronized boolean isParsed() {
+			return mXML != null;
+		}
+
+		/** Null if {@link #isParsed()} is false. */
+		synchronized ParsedIdentityXML getParsedXML() {
+			return mXML;
+		}
+
+		synchronized ParsedIdentityXML waitForParsing() throws InterruptedException {
+			while(mXML == null)
+				wait();
+			return mXML;
+		}
+
+		synchronized long getParsingTimeNanoseconds() {
+			return mParsingTimeNanoseconds;
+		}
+	}
+
+	/**
+	 * The actual processing thread, run by {@link IdentityFileProcessor#triggerExecution()}.<br>
+	 * Runs the {@link Parser}s on the {@link #mExecutor} and imports the files which they have
+	 * parsed. */
 	private final class Processor implements Runnable, PrioRunnable {
+		/** Marks the end of {@link #mParsedFiles}. */
+		private final ParsedFile mEnd = new ParsedFile(null);
+
+		/**
+		 * Files in the order in which the {@link Parser}s took them from the queue. They are
+		 * added before they are parsed, so the import can preserve the order of the queue.<br>
+		 * After the last file, {@link #mEnd} is added. */
+		private ArrayBlockingQueue<ParsedFile> mParsedFiles;
+
+		/** Must be held while calling {@link IdentityFileQueue#poll()} and adding the result to
+		 *  {@link #mParsedFiles}, to keep their order equal. */
+		private final Object mPollLock = new Object();
+
+		/** True once {@link #mEnd} was added. Protected by {@link #mPollLock}. */
+		private boolean mQueueExhausted;
+
+		/** Set to tell the {@link Parser}s to exit. */
+		private volatile boolean mStopParsing;
+
+
 		public void run() {
 			Logger.normal(this, "run()...");
-			
+
 			// We query the IdentityFileQueue for *multiple* files until it is empty since if
 			// it does multiple calls to triggerExecution(), that will only cause one execution of
 			// run().
-			while(true) {
-				IdentityFileStream stream = null;
-				
-				try {
-					stream = mQueue.poll();
-					if(stream == null)
+			// The queue may return no file while it holds back files of Identitys which are being
+			// processed, see IdentityFileQueue.poll(). So we repeat once those are finished.
+			while(processQueue() && mQueue.getStatistics().mQueuedFiles != 0) {
+				Logger.normal(this, "run(): Files were held back by the queue, polling again...");
+			}
+
+			Logger.normal(this, "run() finished.");
+		}
+
+		/**
+		 * Runs the pipeline until the queue yields no more files.
+		 *
+		 * @return True if at least one file was processed and the thread was not interrupted. */
+		private boolean processQueue() {
+			mParsedFiles = new ArrayBlockingQueue<ParsedFile>(PARSED_FILES_BUFFER_SIZE);
+			mQueueExhausted = false;
+			mStopParsing = false;
+
+			final CountDownLatch parsersFinished = new CountDownLatch(PARSER_THREADS);
+			for(int i = 0; i < PARSER_THREADS; ++i) {
+				mExecutor.execute(new Parser(mParsedFiles, parsersFinished),
+					"WOT IdentityFileProcessor parser " + (i+1) + "/" + PARSER_THREADS);
+			}
+
+			int processedFiles = 0;
+			boolean interrupted = false;
+
+			try {
+				while(true) {
+					final ParsedFile first = mParsedFiles.take();
+					if(first == mEnd)
+						break;
+
+					final ArrayList<ParsedFile> batch = new ArrayList<ParsedFile>(IMPORT_BATCH_SIZE);
+					batch.add(first);
+					try {
+						first.waitForParsing();
+						addParsedFilesToBatch(batch);
+						importBatch(batch);
+					} finally {
+						for(ParsedFile file : batch)
+							Closer.close(file.mStream.mXMLInputStream);
+					}
+					processedFiles += batch.size();
+
+					if(Thread.interrupted()) {
+						// terminate() interrupts our thread, so we obey that.
+						Logger.normal(this, "run(): Shutdown requested, exiting...");
+						interrupted = true;
 						break;
-					
-					Logger.normal(this, "run(): Processing: " + stream.mURI);
-
-
-					// FIXME: Improve accuracy: importIdentity() first takes a lot of locks, which
-					// might take some time if other daemons (CAPTCHAs, UI, SubscriptionManager)
-					// are running. Thus, it should do the measurement itself to exclude that, and
-					// return the measured value.
-					// When implementing that, also do separate measurement of XML processing time
-					// so we get an idea how slow it is (I suspect it to be rather slow).
-					final long startTime = System.nanoTime();
-					mXMLTransformer.importIdentity(stream.mURI, stream.mXMLInputStream);
-					final long endTime = System.nanoTime();
-
-					synchronized(IdentityFileProcessor.this) {
-						++mStatistics.mProcessedFiles;
-						mStatistics.mProcessingTimeNanoseconds +=  endTime - startTime;
 					}
-				} catch(RuntimeException e) {
-					if(stream != null && stream.mURI != null) {
-						Logger.error(this,
-						    "Parsing identity XML failed severely - edition probably could NOT be "
-						  + "marked for not being fetched again: " + stream.mURI, e);
-					} else
-						Logger.error(this, "Error in poll()", e);
-					
-					synchronized(IdentityFileProcessor.this) {
-						++mStatistics.mFailedFiles;
+
+					// Processing an identity file can take a long time, and thus we give other
+					// stuff a chance to execute in between processing each.
+					Thread.yield();
+				}
+			} catch(InterruptedException e) {
+				Logger.normal(this, "run(): Shutdown requested, exiting...");
+				interrupted = true;
+			} finally {
+				mStopParsing = true;
+
+				// Files which were parsed ahead but not imported.
+				final ArrayList<ParsedFile> notImported = new ArrayList<ParsedFile>();
+				// Makes room for the parsers which are blocked on adding to the full buffer. Each
+				// of them adds at most one more file before it notices mStopParsing, so they
+				// cannot block again.
+				mParsedFiles.drainTo(notImported);
+
+				// We must wait for them even if we are interrupted: Only then all streams can be
+				// closed. They exit quickly since parsing a single file does not take long.
+				while(true) {
+					try {
+						parsersFinished.await();
+						break;
+					} catch(InterruptedException e) {
+						interrupted = true;
 					}
-				} finally {
-					if(stream != null)
-						Closer.close(stream.mXMLInputStream);
 				}
-				
-				if(Thread.interrupted()) {
-					// terminate() interrupts our thread, so we obey that.
-					Logger.normal(this, "run(): Shutdown requested, exiting...");
+
+				// Closing their stream removes them from the queue.
+				mParsedFiles.drainTo(notImported);
+				for(ParsedFile file : notImported) {
+					if(file != mEnd) {
+						Logger.normal(this, "run(): Not importing due to shutdown: "
+							+ file.mStream.mURI);
+						Closer.close(file.mStream.mXMLInputStream);
+					}
+				}
+			}
+
+			return processedFiles > 0 && !interrupted;
+		}
+
+		/**
+		 * Moves the files at the head of {@link #mParsedFiles} to the batch as long as they are
+		 * parsed already. Does not wait for the parsing of further files: The import would be
+		 * delayed by that. */
+		private void addParsedFilesToBatch(ArrayList<ParsedFile> batch) {
+			// We are the only thread which takes files from the buffer, so the head does not
+			// change between peek() and poll().
+			while(batch.size() < IMPORT_BATCH_SIZE) {
+				final ParsedFile next = mParsedFiles.peek();
+				if(next == null || next == mEnd || !next.isParsed())
 					break;
+
+				batch.add(mParsedFiles.poll());
+			}
+		}
+
+		/**
+		 * Imports the given parsed files in a single transaction if there are multiple, see
+		 * {@link XMLTransformer#importIdentities(java.util.List, java.util.List)}. A single one
+		 * is imported using {@link #importFile(ParsedFile)}.<br>
+		 * Does not close their streams. */
+		private void importBatch(ArrayList<ParsedFile> batch) throws InterruptedException {
+			if(batch.size() == 1) {
+				importFile(batch.get(0));
+				return;
+			}
+
+			final ArrayList<FreenetURI> uris = new ArrayList<FreenetURI>(batch.size());
+			final ArrayList<ParsedIdentityXML> xmls = new ArrayList<ParsedIdentityXML>(batch.size());
+			long parsingTime = 0;
+			for(ParsedFile file : batch) {
+				uris.add(file.mStream.mURI);
+				xmls.add(file.getParsedXML());
+				parsingTime += file.getParsingTimeNanoseconds();
+			}
+
+			Logger.normal(this, "run(): Processing batch of " + batch.size() + " files");
+
+			try {
+				final long startTime = System.nanoTime();
+				final BatchImportResult result = mXMLTransformer.importIdentities(uris, xmls);
+				final long endTime = System.nanoTime();
+
+				synchronized(IdentityFileProcessor.this) {
+					++mStatistics.mImportBatches;
+					if(!result.mImportedInSingleTransaction)
+						++mStatistics.mFailedImportBatches;
+					mStatistics.mProcessedFiles += batch.size();
+					mStatistics.mUnchangedFiles += result.mUnchangedFiles;
+					mStatistics.mProcessingTimeNanoseconds += endTime - startTime;
+					mStatistics.mParsingTimeNanoseconds += parsingTime;
+				}
+			} catch(RuntimeException e) {
+				Logger.error(this,
+				    "Importing batch failed severely - editions probably could NOT be "
+				  + "marked for not being fetched again: " + uris, e);
+
+				synchronized(IdentityFileProcessor.this) {
+					++mStatistics.mImportBatches;
+					mStatistics.mFailedFiles += batch.size();
+				}
+			}
+		}
+
+		/** Imports the file once it is parsed. Does not close its stream. */
+		private void importFile(ParsedFile file) throws InterruptedException {
+			final IdentityFileStream stream = file.mStream;
+
+			try {
+				final ParsedIdentityXML xml = file.waitForParsing();
+
+				Logger.normal(this, "run(): Processing: " + stream.mURI);
+
+				// FIXME: Improve accuracy: importIdentity() first takes a lot of locks, which
+				// might take some time if other daemons (CAPTCHAs, UI, SubscriptionManager)
+				// are running. Thus, it should do the measurement itself to exclude that, and
+				// return the measured value.
+				final long startTime = System.nanoTime();
+				final boolean unchanged = mXMLTransformer.importIdentity(stream.mURI, xml);
+				final long endTime = System.nanoTime();
+
+				synchronized(IdentityFileProcessor.this) {
+					++mStatistics.mProcessedFiles;
+					if(unchanged)
+						++mStatistics.mUnchangedFiles;
+					mStatistics.mProcessingTimeNanoseconds +=  endTime - startTime;
+					mStatistics.mParsingTimeNanoseconds += file.getParsingTimeNanoseconds();
+				}
+			} catch(RuntimeException e) {
+				Logger.error(this,
+				    "Parsing identity XML failed severely - edition probably could NOT be "
+				  + "marked for not being fetched again: " + stream.mURI, e);
+
+				synchronized(IdentityFileProcessor.this) {
+					++mStatistics.mFailedFiles;
 				}
-				
-				// Processing an identity file can take a long time, and thus we give other stuff
-				// a chance to execute in between processing each.
-				Thread.yield();
 			}
-			
-			Logger.normal(this, "run() finished.");
 		}
 
 		@Override public int getPriority() {
@@ -219,6 +512,89 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 			// of delivering updated trust lists to Score computation.
 			return PriorityLevel.LOW_PRIORITY.value;
 		}
+
+		/**
+		 * Takes files from the queue, adds them to {@link Processor#mParsedFiles} and parses them.
+		 * Multiple Parsers run concurrently. The one which finds the queue empty adds
+		 * {@link Processor#mEnd}. */
+		private final class Parser implements Runnable, PrioRunnable {
+			/** The buffer of the {@link Processor#processQueue()} call which started us. */
+			private final ArrayBlockingQueue<ParsedFile> mBuffer;
+
+			/** Counted down when we exit, {@link Processor#processQueue()} waits for it. */
+			private final CountDownLatch mFinished;
+
+			Parser(ArrayBlockingQueue<ParsedFile> buffer, CountDownLatch finished) {
+				mBuffer = buffer;
+				mFinished = finished;
+			}
+
+			@Override public void run() {
+				try {
+					while(!mStopParsing) {
+						final ParsedFile file;
+
+						synchronized(mPollLock) {
+							if(mQueueExhausted)
+								break;
+
+							final IdentityFileStream stream;
+							try {
+								stream = mQueue.poll();
+							} catch(RuntimeException e) {
+								Logger.error(this, "Error in poll()", e);
+								synchronized(IdentityFileProcessor.this) {
+									++mStatistics.mFailedFiles;
+								}
+								continue;
+							}
+
+							if(stream == null) {
+								mQueueExhausted = true;
+								mBuffer.put(mEnd);
+								break;
+							}
+
+							file = new ParsedFile(stream);
+							try {
+								// Blocks while the buffer is full
+								mBuffer.put(file);
+							} catch(InterruptedException e) {
+								Closer.close(stream.mXMLInputStream);
+								throw e;
+							}
+						}
+
+						parse(file);
+					}
+				} catch(InterruptedException e) {
+					// The Executor is shutting down. Processor.processQueue() will close the
+					// streams of the buffered files.
+				} finally {
+					mFinished.countDown();
+				}
+			}
+
+			@Override public int getPriority() {
+				return Processor.this.getPriority();
+			}
+
+			private void parse(ParsedFile file) {
+				final long startTime = System.nanoTime();
+				try {
+					file.setParsed(mXMLTransformer.parseIdentityXML(file.mStream.mXMLInputStream),
+						System.nanoTime() - startTime);
+				} finally {
+					// parseIdentityXML() stores Exceptions in the result, but an Error could be
+					// thrown. The Processor would wait forever then.
+					if(!file.isParsed()) {
+						final ParsedIdentityXML failed = new ParsedIdentityXML();
+						failed.parseError = new RuntimeException("Parser thread failed");
+						file.setParsed(failed, System.nanoTime() - startTime);
+					}
+				}
+			}
+		}
 	}
 
 
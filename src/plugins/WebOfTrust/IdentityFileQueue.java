@@ -71,9 +71,12 @@ public interface IdentityFileQueue {
 	/**
 	 * Removes and returns element from the queue. Returns null if the queue is empty.<br><br>
 	 * 
-	 * ATTENTION: Concurrent processing of multiple elements from the queue is not supported.
-	 * This means that the {@link InputStream} of a returned {@link IdentityFileStream} must be
-	 * closed before you call {@link #poll()} the next time.*/
+	 * Multiple returned elements may be processed concurrently, i.e. their {@link InputStream}s
+	 * may be open at the same time. The {@link IdentityFileProcessor} does so to parse files while
+	 * it imports others.<br>
+	 * Implementations may then return null even though the queue is not empty: They may hold back
+	 * the files of an {@link Identity} while another file of it is being processed. The caller
+	 * should poll again once it has closed the streams. */
 	public IdentityFileStream poll();
 
 	/**
@@ -113,8 +116,8 @@ public interface IdentityFileQueue {
 		 * A file is considered to be in processing when it has been dequeued using
 		 * {@link IdentityFileQueue#poll()}, but the {@link InputStream} of the
 		 * {@link IdentityFileStream} has not been closed yet.<br>
-		 * This number should only ever be 0 or 1 as required by {@link IdentityFileQueue#poll()}.
-		 * (Concurrent processing is not supported because the filenames could collide).<br><br>
+		 * This can be more than 1 since the {@link IdentityFileProcessor} parses files ahead of
+		 * importing them, see {@link IdentityFileQueue#poll()}.<br><br>
 		 * 
 		 * Notice: Queue implementations are free to not track this number, i.e. keep it at 0.<br>
 		 * Without warranty it can be said that {@link IdentityFileDiskQueue} does track this
@@ -196,8 +199,6 @@ public interface IdentityFileQueue {
 				 
 				 && (mDeduplicatedFiles <= mTotalQueuedFiles)
 				 
-				 && (mProcessingFiles <= 1)
-					
 				 && (mDeduplicatedFiles ==
 						mTotalQueuedFiles - mQueuedFiles - mProcessingFiles - mFinishedFiles)
 			 );
@@ -0,0 +1,323 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.db4o.ext.DatabaseFileLockedException;
+import com.db4o.ext.Db4oIOException;
+import com.db4o.io.IoAdapter;
+
+import freenet.support.Logger;
+
+/**
+ * db4o {@link IoAdapter} which accesses the database file through memory-mapped pages of
+ * {@link #DEFAULT_PAGE_SIZE} bytes instead of a {@link RandomAccessFile}: db4o does many small
+ * reads and writes at random positions, and each of them is a system call with the default
+ * adapter. With a mapped page, they are a memory copy.<br><br>
+ *
+ * The amount of mapped pages is bounded by an LRU cache. Each of them costs address space, not
+ * necessarily memory: The operating system decides which parts of a mapping are kept in memory.
+ * Nevertheless, the cache should be small on 32-bit JVMs.<br><br>
+ *
+ * Only pages which are entirely within the file are mapped. The incomplete page at the end of the
+ * file, to which db4o appends, is accessed through the {@link FileChannel}. This ensures that
+ * mapping never changes the length of the file, and that every part of the file is only accessed
+ * either through a mapping or through the channel.<br><br>
+ *
+ * The file format is the same as with the default adapter, so a database can be switched between
+ * both at any time. Chosen by {@link Configuration#getMappedDatabasePageCacheSize()}.<br><br>
+ *
+ * Not thread-safe: db4o synchronizes access to the adapter of an open database.
+ */
+public final class MappedIoAdapter extends IoAdapter {
+
+	/** Size of a mapped page. Must be a multiple of the operating system's page size. */
+	public static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+
+	private final int mPageSize;
+
+	/** Maximal amount of mapped pages. */
+	private final int mPageCacheSize;
+
+	/** Null for the instance which is passed to db4o's configuration and only used by it to
+	 *  {@link #open(String, boolean, long, boolean)} the database file. */
+	private final RandomAccessFile mFile;
+
+	private final FileChannel mChannel;
+
+	private final boolean mReadOnly;
+
+	private final FileLock mLock;
+
+	/** Key = index of the page, i.e. its position divided by {@link #mPageSize}. */
+	private final LinkedHashMap<Long, Page> mPages;
+
+	/** Length of the file. Tracked here because {@link FileChannel#size()} is a system call. */
+	private long mLength;
+
+	private long mPosition = 0;
+
+
+	private static final class Page {
+		final MappedByteBuffer buffer;
+
+		/** True if the page was written since it was forced to disk the last time. */
+		boolean dirty = false;
+
+		Page(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+
+	/**
+	 * @param pageCacheSize Maximal amount of pages of {@link #DEFAULT_PAGE_SIZE} bytes which each
+	 *     opened file keeps mapped. */
+	public MappedIoAdapter(int pageCacheSize) {
+		this(DEFAULT_PAGE_SIZE, pageCacheSize);
+	}
+
+	public MappedIoAdapter(int pageSize, int pageCacheSize) {
+		if(pageSize < 1)
+			throw new IllegalArgumentException("Invalid page size: " + pageSize);
+		if(pageCacheSize < 1)
+			throw new IllegalArgumentException("Invalid page cache size: " + pageCacheSize);
+
+		mPageSize = pageSize;
+		mPageCacheSize = pageCacheSize;
+		mFile = null;
+		mChannel = null;
+		mReadOnly = true;
+		mLock = null;
+		mPages = null;
+	}
+
+	private MappedIoAdapter(MappedIoAdapter prototype, String path, boolean lockFile,
+			long initialLength, boolean readOnly) throws IOException {
+
+		mPageSize = prototype.mPageSize;
+		mPageCacheSize = prototype.mPageCacheSize;
+		mReadOnly = readOnly;
+		mFile = new RandomAccessFile(path, readOnly ? "r" : "rw");
+
+		try {
+			mChannel = mFile.getChannel();
+			mLock = (lockFile && !readOnly) ? lock(path) : null;
+
+			// Same as com.db4o.io.RandomAccessFileAdapter
+			if(initialLength > 0 && !readOnly && mFile.length() < initialLength) {
+				mFile.seek(initialLength - 1);
+				mFile.write(new byte[] { 0 });
+			}
+
+			mLength = mChannel.size();
+		} catch(IOException e) {
+			mFile.close();
+			throw e;
+		} catch(RuntimeException e) {
+			mFile.close();
+			throw e;
+		}
+
+		mPages = new LinkedHashMap<Long, Page>(mPageCacheSize * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override protected boolean removeEldestEntry(Map.Entry<Long, Page> eldest) {
+				if(size() <= mPageCacheSize)
+					return false;
+
+				// The page might be unmapped by garbage collection after we drop it. The operating
+				// system will still write it to disk, but only forcing it guarantees that sync()
+				// covers it.
+				force(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	private FileLock lock(String path) throws IOException {
+		FileLock lock;
+		try {
+			lock = mChannel.tryLock();
+		} catch(OverlappingFileLockException e) {
+			// Locked by another channel of this JVM
+			lock = null;
+		}
+
+		if(lock == null)
+			throw new DatabaseFileLockedException(path);
+
+		return lock;
+	}
+
+	@Override public IoAdapter open(String path, boolean lockFile, long initialLength,
+			boolean readOnly) throws Db4oIOException {
+
+		try {
+			return new MappedIoAdapter(this, path, lockFile, initialLength, readOnly);
+		} catch(IOException e) {
+			throw new Db4oIOException(e);
+		}
+	}
+
+	@Override public boolean exists(String path) {
+		final File file = new File(path);
+		return file.exists() && file.length() > 0;
+	}
+
+	@Override public void delete(String path) {
+		new File(path).delete();
+	}
+
+	@Override public long getLength() throws Db4oIOException {
+		return mLength;
+	}
+
+	@Override public void seek(long pos) throws Db4oIOException {
+		if(pos < 0)
+			throw new Db4oIOException(new IOException("Negative position: " + pos));
+
+		mPosition = pos;
+	}
+
+	@Override public int read(byte[] bytes, int length) throws Db4oIOException {
+		if(mPosition >= mLength)
+			return -1;
+
+		length = (int)Math.min(length, mLength - mPosition);
+
+		try {
+			int done = 0;
+			while(done < length) {
+				final Page page = getPage(mPosition);
+				final int amount;
+
+				if(page != null) {
+					final int offset = (int)(mPosition % mPageSize);
+					amount = Math.min(length - done, mPageSize - offset);
+					page.buffer.position(offset);
+					page.buffer.get(bytes, done, amount);
+				} else {
+					// The page is incomplete, i.e. at the end of the file, which was checked above.
+					amount = mChannel.read(ByteBuffer.wrap(bytes, done, length - done), mPosition);
+					if(amount <= 0)
+						break;
+				}
+
+				done += amount;
+				mPosition += amount;
+			}
+			return done;
+		} catch(IOException e) {
+			throw new Db4oIOException(e);
+		}
+	}
+
+	@Override public void write(byte[] buffer, int length) throws Db4oIOException {
+		if(mReadOnly)
+			throw new Db4oIOException(new IOException("File was opened read-only"));
+
+		try {
+			int done = 0;
+			while(done < length) {
+				final Page page = getPage(mPosition);
+				final int amount;
+
+				if(page != null) {
+					final int offset = (int)(mPosition % mPageSize);
+					amount = Math.min(length - done, mPageSize - offset);
+					page.buffer.position(offset);
+					page.buffer.put(buffer, done, amount);
+					page.dirty = true;
+				} else {
+					// The page is incomplete, i.e. the write appends to the file. No page after it
+					// can be complete, so write the remaining data at once.
+					final ByteBuffer remaining = ByteBuffer.wrap(buffer, done, length - done);
+					long position = mPosition;
+					while(remaining.hasRemaining())
+						position += mChannel.write(remaining, position);
+					amount = length - done;
+				}
+
+				done += amount;
+				mPosition += amount;
+				mLength = Math.max(mLength, mPosition);
+			}
+		} catch(IOException e) {
+			throw new Db4oIOException(e);
+		}
+	}
+
+	/**
+	 * @return The mapped page which contains the given position, or null if the page is not
+	 *     entirely within the file. */
+	private Page getPage(long position) throws IOException {
+		final long index = position / mPageSize;
+		final long start = index * mPageSize;
+
+		if(start + mPageSize > mLength)
+			return null;
+
+		Page page = mPages.get(index);
+		if(page == null) {
+			page = new Page(mChannel.map(mReadOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE,
+				start, mPageSize));
+			mPages.put(index, page);
+		}
+		return page;
+	}
+
+	private static void force(Page page) {
+		if(page.dirty) {
+			page.buffer.force();
+			page.dirty = false;
+		}
+	}
+
+	@Override public void sync() throws Db4oIOException {
+		for(Page page : mPages.values())
+			force(page);
+
+		try {
+			// Same as com.db4o.io.RandomAccessFileAdapter
+			mFile.getFD().sync();
+		} catch(IOException e) {
+			throw new Db4oIOException(e);
+		}
+	}
+
+	@Override public void close() throws Db4oIOException {
+		try {
+			if(!mReadOnly)
+				sync();
+		} finally {
+			mPages.clear();
+
+			try {
+				if(mLock != null)
+					mLock.release();
+			} catch(IOException e) {
+				Logger.warning(this, "Releasing the lock of the database file failed", e);
+			}
+
+			try {
+				mFile.close();
+			} catch(IOException e) {
+				throw new Db4oIOException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,405 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import com.db4o.ext.Db4oIOException;
+import com.db4o.io.IoAdapter;
+
+import freenet.support.CurrentTimeUTC;
+import freenet.support.Logger;
+
+/**
+ * Copies the database file while WoT keeps running, as opposed to
+ * {@link WebOfTrust#backupDatabase(File)} which must be run during startup.<br><br>
+ *
+ * The database is opened with a {@link MirroringIoAdapter}. While a backup is running, it writes
+ * everything which db4o writes to the database file to the backup file as well. Meanwhile, a
+ * background thread copies the database file to the backup file in chunks of {@link #CHUNK_SIZE}
+ * bytes, sleeping between them to not exceed the given bytes per second. Thus, the backup file
+ * always equals the database file once the copy has reached the end.<br>
+ * The copy then briefly takes the
+ * {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)} to copy the remaining bytes
+ * and stop the mirroring at a commit boundary. So the backup contains exactly the committed
+ * transactions, and only has to wait for the transaction which is running at that time.<br><br>
+ *
+ * The backup is written to a temporary file which replaces the previous backup once it is
+ * complete, so an aborted backup does not destroy the previous one.
+ */
+public final class OnlineBackup implements Runnable {
+
+	/** Default of the maximal amount of bytes which a backup reads per second. */
+	public static final long DEFAULT_MAX_BYTES_PER_SECOND = 4 * 1024 * 1024;
+
+	/** Amount of bytes which are copied while blocking the database. */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	public static enum State {
+		NotStarted,
+		Running,
+		Succeeded,
+		Failed,
+		Aborted
+	}
+
+	/** Progress or result of a backup. Immutable. */
+	public static final class Status {
+		public final State mState;
+
+		/** Null if the backup was not started. */
+		public final File mFile;
+
+		public final long mBytesCopied;
+
+		/** Size of the database file. Can grow while the backup is running. */
+		public final long mBytesTotal;
+
+		/** Null if the backup was not started. */
+		public final Date mStartDate;
+
+		/** Null if the backup is not finished. */
+		public final Date mEndDate;
+
+		/** Non-null if the backup failed. */
+		public final String mError;
+
+		Status(State state, File file, long bytesCopied, long bytesTotal, Date startDate,
+				Date endDate, String error) {
+			mState = state;
+			mFile = file;
+			mBytesCopied = bytesCopied;
+			mBytesTotal = bytesTotal;
+			mStartDate = startDate;
+			mEndDate = endDate;
+			mError = error;
+		}
+
+		/** @return The progress in percent. */
+		public int getPercentage() {
+			if(mBytesTotal == 0) // prevent division by 0
+				return mState == State.Succeeded ? 100 : 0;
+
+			return (int)(100 * mBytesCopied / mBytesTotal);
+		}
+	}
+
+
+	private final WebOfTrust mWebOfTrust;
+
+	private final MirroringIoAdapter mIoAdapter;
+
+	/** Protected by synchronized(this). */
+	private Status mStatus = new Status(State.NotStarted, null, 0, 0, null, null, null);
+
+	private volatile boolean mTerminated = false;
+
+	/** Parameter of the running backup. */
+	private long mMaxBytesPerSecond;
+
+	/** Null if no backup is running. */
+	private Thread mThread = null;
+
+
+	/** @param ioAdapter The adapter which was passed to db4o's configuration when opening the
+	 *     database of the given WebOfTrust. */
+	OnlineBackup(WebOfTrust wot, MirroringIoAdapter ioAdapter) {
+		mWebOfTrust = wot;
+		mIoAdapter = ioAdapter;
+	}
+
+	/**
+	 * Starts a backup in the background. Its progress is returned by {@link #getStatus()}.
+	 *
+	 * @throws IllegalStateException If a backup is running already, or if WoT is terminating.
+	 */
+	public synchronized void start(File file, long maxBytesPerSecond) {
+		if(maxBytesPerSecond < 1)
+			throw new IllegalArgumentException("Invalid rate: " + maxBytesPerSecond);
+		if(mTerminated)
+			throw new IllegalStateException("Terminated already");
+		if(mStatus.mState == State.Running)
+			throw new IllegalStateException("A backup is running already: " + mStatus.mFile);
+
+		mMaxBytesPerSecond = maxBytesPerSecond;
+		mStatus = new Status(State.Running, file, 0, mIoAdapter.getOpened().getLength(),
+			CurrentTimeUTC.get(), null, null);
+
+		// Not using the node's Executor so terminate() can wait for the thread.
+		mThread = new Thread(this, "WoT online backup");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	public synchronized Status getStatus() {
+		return mStatus;
+	}
+
+	/** Aborts the running backup, if any, and waits for it to stop. */
+	public void terminate() {
+		final Thread thread;
+		synchronized(this) {
+			mTerminated = true;
+			thread = mThread;
+		}
+
+		if(thread == null)
+			return;
+
+		try {
+			thread.interrupt(); // Wakes it up if it is sleeping for the rate limit
+			thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override public void run() {
+		final File file;
+		synchronized(this) {
+			file = mStatus.mFile;
+		}
+
+		final File tempFile = new File(file.getPath() + ".temp");
+		final MirroringIoAdapter database = mIoAdapter.getOpened();
+		RandomAccessFile backup = null;
+		State result = State.Failed;
+		String error = null;
+
+		Logger.normal(this, "Starting online backup to " + file);
+
+		try {
+			tempFile.delete();
+			backup = new RandomAccessFile(tempFile, "rw");
+			database.startMirroring(backup);
+
+			final byte[] buffer = new byte[CHUNK_SIZE];
+			final long startTime = System.nanoTime();
+			long position = 0;
+			boolean finished = false;
+
+			while(!finished && !mTerminated) {
+				final long length = database.copy(position, buffer, backup);
+				if(length < 0) {
+					// Reached the end. Copy the rest at a commit boundary.
+					synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+						long copied;
+						while((copied = database.copy(position, buffer, backup)) >= 0)
+							position += copied;
+						database.stopMirroring();
+					}
+					finished = true;
+				} else
+					position += length;
+
+				updateProgress(position, database.getLength());
+
+				// Sleep to not exceed the rate. The database is not blocked meanwhile.
+				final long targetNanos
+					= (long)((double)TimeUnit.SECONDS.toNanos(1) * position / mMaxBytesPerSecond);
+				final long sleepNanos = targetNanos - (System.nanoTime() - startTime);
+				if(!finished && sleepNanos > 0)
+					Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos));
+			}
+
+			if(finished) {
+				backup.getFD().sync();
+				backup.close();
+				backup = null;
+
+				if(file.exists() && !file.delete())
+					throw new IOException("Cannot delete previous backup: " + file);
+				if(!tempFile.renameTo(file))
+					throw new IOException("Cannot rename " + tempFile + " to " + file);
+
+				result = State.Succeeded;
+				Logger.normal(this, "Online backup finished: " + file);
+			} else {
+				result = State.Aborted;
+				Logger.normal(this, "Online backup aborted: " + file);
+			}
+		} catch(IOException e) {
+			error = e.toString();
+			Logger.error(this, "Online backup failed: " + file, e);
+		} catch(InterruptedException e) {
+			result = State.Aborted;
+			Logger.normal(this, "Online backup interrupted: " + file);
+		} catch(RuntimeException e) {
+			error = e.toString();
+			Logger.error(this, "Online backup failed: " + file, e);
+		} finally {
+			// Does nothing if it was stopped already
+			database.stopMirroring();
+
+			if(backup != null) {
+				try {
+					backup.close();
+				} catch(IOException e) {
+					Logger.error(this, "Closing the backup failed: " + tempFile, e);
+				}
+			}
+
+			if(result != State.Succeeded)
+				tempFile.delete();
+
+			synchronized(this) {
+				mStatus = new Status(result, file, mStatus.mBytesCopied, mStatus.mBytesTotal,
+					mStatus.mStartDate, CurrentTimeUTC.get(), error);
+				mThread = null;
+			}
+		}
+	}
+
+	private synchronized void updateProgress(long bytesCopied, long bytesTotal) {
+		mStatus = new Status(State.Running, mStatus.mFile, bytesCopied, bytesTotal,
+			mStatus.mStartDate, null, null);
+	}
+
+
+	/**
+	 * Wraps the {@link IoAdapter} of the database to write to the backup file everything which
+	 * is written to the database file while a backup is running.<br>
+	 * The adapter which is passed to db4o's configuration is only used by db4o to open the
+	 * database file, which returns a new instance. {@link #getOpened()} returns it.
+	 */
+	static final class MirroringIoAdapter extends IoAdapter {
+
+		private final IoAdapter mDelegate;
+
+		/** The instance which {@link #open(String, boolean, long, boolean)} returned last. */
+		private volatile MirroringIoAdapter mOpened = null;
+
+		/** Tracked to restore the position of the delegate after {@link #copy(long, byte[],
+		 *  RandomAccessFile)}. */
+		private long mPosition = 0;
+
+		/** Non-null while a backup is running. Protected by synchronized(this). */
+		private RandomAccessFile mBackup = null;
+
+		/** Non-null if writing to {@link #mBackup} failed. Protected by synchronized(this). */
+		private IOException mBackupFailure = null;
+
+
+		MirroringIoAdapter(IoAdapter delegate) {
+			mDelegate = delegate;
+		}
+
+		MirroringIoAdapter getOpened() {
+			final MirroringIoAdapter opened = mOpened;
+			if(opened == null)
+				throw new IllegalStateException("The database was not opened with this adapter");
+			return opened;
+		}
+
+		@Override public IoAdapter open(String path, boolean lockFile, long initialLength,
+				boolean readOnly) throws Db4oIOException {
+
+			final MirroringIoAdapter opened = new MirroringIoAdapter(
+				mDelegate.open(path, lockFile, initialLength, readOnly));
+			mOpened = opened;
+			return opened;
+		}
+
+		@Override public boolean exists(String path) {
+			return mDelegate.exists(path);
+		}
+
+		@Override public void delete(String path) {
+			mDelegate.delete(path);
+		}
+
+		@Override public synchronized long getLength() throws Db4oIOException {
+			return mDelegate.getLength();
+		}
+
+		@Override public synchronized void seek(long pos) throws Db4oIOException {
+			mDelegate.seek(pos);
+			mPosition = pos;
+		}
+
+		@Override public synchronized int read(byte[] bytes, int length)
+				throws Db4oIOException {
+
+			final int read = mDelegate.read(bytes, length);
+			if(read > 0)
+				mPosition += read;
+			return read;
+		}
+
+		@Override public synchronized void write(byte[] buffer, int length)
+				throws Db4oIOException {
+
+			mDelegate.write(buffer, length);
+
+			if(mBackup != null) {
+				try {
+					mBackup.seek(mPosition);
+					mBackup.write(buffer, 0, length);
+				} catch(IOException e) {
+					// Must not break the database, so only abort the backup.
+					mBackup = null;
+					mBackupFailure = e;
+				}
+			}
+
+			mPosition += length;
+		}
+
+		@Override public synchronized void sync() throws Db4oIOException {
+			mDelegate.sync();
+		}
+
+		@Override public synchronized void close() throws Db4oIOException {
+			mBackup = null;
+			mDelegate.close();
+		}
+
+		synchronized void startMirroring(RandomAccessFile backup) {
+			mBackup = backup;
+			mBackupFailure = null;
+		}
+
+		synchronized void stopMirroring() {
+			mBackup = null;
+		}
+
+		/**
+		 * Copies up to buffer.length bytes of the database file at the given position to the
+		 * backup file.
+		 * @return The amount of copied bytes, or -1 if the position is at the end of the file.
+		 * @throws IOException If writing to the backup failed, now or during an earlier
+		 *     {@link #write(byte[], int)}. */
+		synchronized int copy(long position, byte[] buffer, RandomAccessFile backup)
+				throws IOException {
+
+			if(mBackupFailure != null)
+				throw mBackupFailure;
+			if(mBackup != backup)
+				throw new IOException("Mirroring was stopped, the database was closed?");
+
+			if(position >= mDelegate.getLength())
+				return -1;
+
+			final int read;
+			try {
+				mDelegate.seek(position);
+				read = mDelegate.read(buffer, buffer.length);
+			} finally {
+				mDelegate.seek(mPosition);
+			}
+
+			if(read <= 0)
+				return -1;
+
+			backup.seek(position);
+			backup.write(buffer, 0, read);
+			return read;
+		}
+	}
+
+}
@@ -3,6 +3,8 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -343,6 +345,10 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 			clone.mLatestEditionHint = getLatestEditionHint(); // Don't use the setter since it won't lower the current edition hint.
 			clone.setContexts(getContexts());
 			clone.setProperties(getProperties());
+			clone.mBestScore = mBestScore;
+			clone.mBestCapacity = mBestCapacity;
+			clone.mShouldFetch = mShouldFetch;
+			clone.setImportedContentHash(getImportedContentHash());
             // Clone it because date is mutable. Set it *after* calling all setters since they would
             // update it to the current time otherwise.
             clone.mLastChangedDate = (Date)mLastChangedDate.clone();
@@ -475,4 +481,24 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 		stream.defaultWriteObject();
 	}
 
+	/** Same as {@link Identity#canEncode()} for the deprecated {@link #mInsertURI}. */
+	@Override boolean canEncode() {
+		checkedActivate(1);
+		return super.canEncode() && mInsertURI == null;
+	}
+
+	/** @see Identity#writeFields(DataOutputStream) */
+	@Override void writeFields(DataOutputStream out) throws IOException {
+		super.writeFields(out);
+		PersistentCodec.writeString(mInsertURIString, out);
+		PersistentCodec.writeDate(mLastInsertDate, out);
+	}
+
+	/** @see Identity#Identity(WebOfTrustInterface, DataInputStream, byte) */
+	OwnIdentity(WebOfTrustInterface myWoT, DataInputStream in, byte version) throws IOException {
+		super(myWoT, in, version);
+		mInsertURIString = PersistentCodec.readString(in);
+		mLastInsertDate = PersistentCodec.readDate(in);
+	}
+
 }
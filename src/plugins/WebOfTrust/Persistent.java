@@ -5,6 +5,8 @@ package plugins.WebOfTrust;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -13,11 +15,14 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.WeakHashMap;
 
 import com.db4o.ObjectSet;
 import com.db4o.ext.ExtObjectContainer;
@@ -79,6 +84,17 @@ public abstract class Persistent implements Serializable {
 	 */
 	private static transient final Object mTransactionLock = new Object();
 	
+	/**
+	 * The {@link RollbackListener}s registered via
+	 * {@link #addRollbackListener(ExtObjectContainer, RollbackListener)}.<br>
+	 * The listeners are referenced weakly so a forgotten call to
+	 * {@link #removeRollbackListener(ExtObjectContainer, RollbackListener)} does not keep a closed
+	 * database and its owner in memory. This matters for unit tests which create many databases.<br>
+	 * Synchronized upon itself. */
+	private static transient final WeakHashMap<ExtObjectContainer,
+		ArrayList<WeakReference<RollbackListener>>> mRollbackListeners
+			= new WeakHashMap<ExtObjectContainer, ArrayList<WeakReference<RollbackListener>>>();
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -181,6 +197,88 @@ public abstract class Persistent implements Serializable {
 	public static final Object transactionLock(ExtObjectContainer db) {
 		return mTransactionLock;
 	}
+	
+	/**
+	 * Implemented by in-memory structures which mirror database contents and are modified before
+	 * the transaction which they mirror is committed. Such structures become stale if the
+	 * transaction is rolled back instead, so they need to be told about that.<br><br>
+	 * 
+	 * {@link #onRollback()} is called by
+	 * {@link Persistent#checkedRollback(ExtObjectContainer, Object, Throwable, LogLevel)} while
+	 * the {@link Persistent#transactionLock(ExtObjectContainer)} is held, twice: Once before the
+	 * database is rolled back and once afterwards. It must not throw and must not access the
+	 * database.<br>
+	 * The first call is what makes the rollback work for structures which keep strong references
+	 * to {@link Persistent} objects: db4o only reloads objects from the database which were garbage
+	 * collected before the rollback, so the references must be dropped by then.
+	 * 
+	 * @see Persistent#addRollbackListener(ExtObjectContainer, RollbackListener) */
+	public interface RollbackListener {
+		void onRollback();
+	}
+	
+	/**
+	 * Registers a {@link RollbackListener} for the given database.<br>
+	 * ATTENTION: The listener is only referenced weakly, the caller must keep a strong reference
+	 * to it for as long as it shall be notified. */
+	public static final void addRollbackListener(final ExtObjectContainer db,
+			final RollbackListener listener) {
+		synchronized(mRollbackListeners) {
+			ArrayList<WeakReference<RollbackListener>> listeners = mRollbackListeners.get(db);
+			if(listeners == null) {
+				listeners = new ArrayList<WeakReference<RollbackListener>>(4);
+				mRollbackListeners.put(db, listeners);
+			}
+			listeners.add(new WeakReference<RollbackListener>(listener));
+		}
+	}
+	
+	public static final void removeRollbackListener(final ExtObjectContainer db,
+			final RollbackListener listener) {
+		synchronized(mRollbackListeners) {
+			final ArrayList<WeakReference<RollbackListener>> listeners = mRollbackListeners.get(db);
+			if(listeners == null)
+				return;
+			
+			final Iterator<WeakReference<RollbackListener>> i = listeners.iterator();
+			while(i.hasNext()) {
+				final RollbackListener l = i.next().get();
+				if(l == null || l == listener)
+					i.remove();
+			}
+			
+			if(listeners.isEmpty())
+				mRollbackListeners.remove(db);
+		}
+	}
+	
+	private static final void notifyRollbackListeners(final ExtObjectContainer db) {
+		final ArrayList<RollbackListener> toNotify = new ArrayList<RollbackListener>(4);
+		
+		synchronized(mRollbackListeners) {
+			final ArrayList<WeakReference<RollbackListener>> listeners = mRollbackListeners.get(db);
+			if(listeners == null)
+				return;
+			
+			final Iterator<WeakReference<RollbackListener>> i = listeners.iterator();
+			while(i.hasNext()) {
+				final RollbackListener l = i.next().get();
+				if(l == null)
+					i.remove();
+				else
+					toNotify.add(l);
+			}
+		}
+		
+		// Call them outside of the lock so they may (un)register listeners.
+		for(RollbackListener l : toNotify) {
+			try {
+				l.onRollback();
+			} catch(RuntimeException e) {
+				Logger.error(l, "RollbackListener threw", e);
+			}
+		}
+	}
 
 	/**
 	 * Only to be used by the extending classes, not to be called from the outside.
@@ -315,9 +413,12 @@ public abstract class Persistent implements Serializable {
 	public static final void checkedRollback(final ExtObjectContainer db, final Object loggingObject, final Throwable error, LogLevel logLevel) {
 		// As of db4o 7.4 it seems necessary to call gc(); to cause rollback() to work.
 		testDatabaseIntegrity(null, db);
+		// Must happen before the gc() so caches release the objects which are to be rolled back.
+		notifyRollbackListeners(db);
 		System.gc();
 		db.rollback();
 		System.gc(); 
+		notifyRollbackListeners(db);
 		Logger.logStatic(loggingObject, "ROLLED BACK!", error, logLevel);
 		testDatabaseIntegrity(null, db);
 	}
@@ -789,7 +890,7 @@ public abstract class Persistent implements Serializable {
 	/* Non-db4o related code */
 
 	/**
-	 * Uses standard Java serialization to convert this Object to a byte array. NOT used by db4o.
+	 * Converts this Object to a byte array. NOT used by db4o.
 	 * 
 	 * The purpose for this is to allow in-db4o storage of cloned {@link Identity}/{@link Trust}/{@link Score}/etc. objects:
 	 * Normally there should only be one object with a given ID in the database, if we clone a Persistent object it will have the same ID.
@@ -797,16 +898,45 @@ public abstract class Persistent implements Serializable {
 	 * 
 	 * Typically used by {@link SubscriptionManager} for being able to store clones.
 	 * 
+	 * {@link Identity}, {@link OwnIdentity}, {@link Trust} and {@link Score} are converted with the
+	 * compact {@link PersistentCodec}. Other classes use standard Java serialization, see
+	 * {@link #serializeWithObjectOutputStream()}.
+	 * 
+	 * @see Persistent#deserialize(WebOfTrustInterface, byte[]) The inverse function.
+	 */
+	final byte[] serialize() {
+		if(!PersistentCodec.canEncode(this))
+			return serializeWithObjectOutputStream();
+		
+		ByteArrayOutputStream bos = null;
+		DataOutputStream dos = null;
+		
+		try {
+			bos = new ByteArrayOutputStream(256);
+			dos = new DataOutputStream(bos);
+			PersistentCodec.encode(this, dos);
+			dos.flush();
+			return bos.toByteArray();
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			Closer.close(dos);
+			Closer.close(bos);
+		}
+	}
+	
+	/**
+	 * Uses standard Java serialization to convert this Object to a byte array.
+	 * Used by {@link #serialize()} for classes which {@link PersistentCodec} does not support.
+	 * 
 	 * ATTENTION: Your Persistent class must provide an implementation of the following function:
 	 * <code>private void writeObject(ObjectOutputStream stream) throws IOException;</code>
 	 * This function is not specified by an interface, it can be read up about in the <a href="http://docs.oracle.com/javase/7/docs/platform/serialization/spec/output.html#861">serialization documentation</a>.
 	 * It must properly activate the object, all of its members and all of their members:
 	 * serialize() will store all members and their members. If they are not activated, this will fail.
 	 * After that, it must call {@link ObjectOutputStream#defaultWriteObject()}.
-	 * 
-	 * @see Persistent#deserialize(WebOfTrustInterface, byte[]) The inverse function.
 	 */
-	final byte[] serialize() {
+	final byte[] serializeWithObjectOutputStream() {
 		ByteArrayOutputStream bos = null;
 		ObjectOutputStream ous = null;
 		
@@ -824,8 +954,36 @@ public abstract class Persistent implements Serializable {
 		}
 	}
 	
-	/** Inverse function of {@link #serialize()}. */
+	/**
+	 * Inverse function of {@link #serialize()}.
+	 * Also reads the output of {@link #serializeWithObjectOutputStream()}, which all byte arrays
+	 * stored before the introduction of {@link PersistentCodec} are. */
 	static final Persistent deserialize(final WebOfTrustInterface wot, final byte[] data) {
+		if(data.length > 0 && data[0] == PersistentCodec.JAVA_SERIALIZATION_MAGIC)
+			return deserializeWithObjectInputStream(wot, data);
+		
+		ByteArrayInputStream bis = null;
+		DataInputStream dis = null;
+		
+		try {
+			bis = new ByteArrayInputStream(data);
+			dis = new DataInputStream(bis);
+			final Persistent deserialized = PersistentCodec.decode(wot, dis);
+			deserialized.initializeTransient(wot);
+			assert(deserialized.startupDatabaseIntegrityTestBoolean());
+			return deserialized;
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			Closer.close(dis);
+			Closer.close(bis);
+		}
+	}
+	
+	/** Inverse function of {@link #serializeWithObjectOutputStream()}. */
+	static final Persistent deserializeWithObjectInputStream(final WebOfTrustInterface wot,
+			final byte[] data) {
+		
 		ByteArrayInputStream bis = null;
 		ObjectInputStream ois = null;
 		
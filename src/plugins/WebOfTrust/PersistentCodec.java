@@ -0,0 +1,242 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hand-written binary format for {@link Persistent#serialize()} of {@link Identity},
+ * {@link OwnIdentity}, {@link Trust} and {@link Score}.<br>
+ * Standard Java serialization stores a class descriptor of each class in every byte[], which is
+ * the majority of the size of a serialized Score or Trust, and is slow due to reflection. The
+ * {@link SubscriptionManager} serializes two objects for each event notification, so this
+ * matters for large trust list imports.<br><br>
+ *
+ * Format: {@link #MAGIC}, {@link #VERSION}, one of the TYPE_* bytes, and then the fields as
+ * written by the writeFields() function of the type. Trust and Score contain their truster and
+ * trustee with their own TYPE_* byte, but without MAGIC and VERSION.<br>
+ * Java serialization streams always begin with {@link #JAVA_SERIALIZATION_MAGIC}, so
+ * {@link Persistent#deserialize(WebOfTrustInterface, byte[])} can tell them apart and still
+ * read the byte[]s which were stored in the database before this format was introduced.<br><br>
+ *
+ * ATTENTION: When adding fields to one of the classes, you must increment {@link #VERSION},
+ * write them at the end of the writeFields() function, and only read them in the decoding
+ * constructor if the version of the input is high enough.
+ */
+final class PersistentCodec {
+
+	/** First byte of the format. Must differ from the first byte of
+	 *  {@link #JAVA_SERIALIZATION_MAGIC}. */
+	static final byte MAGIC = 'W';
+
+	/** The first byte of ObjectOutputStream output, see STREAM_MAGIC of
+	 *  {@link java.io.ObjectStreamConstants}. */
+	static final byte JAVA_SERIALIZATION_MAGIC = (byte)0xAC;
+
+	static final byte VERSION = 1;
+
+	private static final byte TYPE_IDENTITY = 1;
+	private static final byte TYPE_OWN_IDENTITY = 2;
+	private static final byte TYPE_TRUST = 3;
+	private static final byte TYPE_SCORE = 4;
+
+	private PersistentCodec() {}
+
+	/**
+	 * @return True if {@link #encode(Persistent, DataOutputStream)} can be used for the object.
+	 *     False for classes other than Identity, OwnIdentity, Trust and Score, and for objects
+	 *     with state which this format does not contain, such as the deprecated FreenetURI
+	 *     fields of old databases. Those must use Java serialization. */
+	static boolean canEncode(final Persistent p) {
+		if(p instanceof Identity)
+			return ((Identity)p).canEncode();
+		else if(p instanceof Trust)
+			return ((Trust)p).canEncode();
+		else if(p instanceof Score)
+			return ((Score)p).canEncode();
+		else
+			return false;
+	}
+
+	/** @param p Must be supported as indicated by {@link #canEncode(Persistent)}. */
+	static void encode(final Persistent p, final DataOutputStream out) throws IOException {
+		out.writeByte(MAGIC);
+		out.writeByte(VERSION);
+		writeObject(p, out);
+	}
+
+	static Persistent decode(final WebOfTrustInterface wot, final DataInputStream in)
+			throws IOException {
+
+		if(in.readByte() != MAGIC)
+			throw new IOException("Invalid magic");
+
+		final byte version = in.readByte();
+		if(version < 1 || version > VERSION)
+			throw new IOException("Unknown version: " + version);
+
+		return readObject(wot, in, version);
+	}
+
+	private static void writeObject(final Persistent p, final DataOutputStream out)
+			throws IOException {
+
+		if(p instanceof OwnIdentity) {
+			out.writeByte(TYPE_OWN_IDENTITY);
+			((OwnIdentity)p).writeFields(out);
+		} else if(p instanceof Identity) {
+			out.writeByte(TYPE_IDENTITY);
+			((Identity)p).writeFields(out);
+		} else if(p instanceof Trust) {
+			out.writeByte(TYPE_TRUST);
+			((Trust)p).writeFields(out);
+		} else if(p instanceof Score) {
+			out.writeByte(TYPE_SCORE);
+			((Score)p).writeFields(out);
+		} else
+			throw new IllegalArgumentException("Unsupported class: " + p.getClass());
+	}
+
+	private static Persistent readObject(final WebOfTrustInterface wot, final DataInputStream in,
+			final byte version) throws IOException {
+
+		final byte type = in.readByte();
+		switch(type) {
+			case TYPE_IDENTITY: return new Identity(wot, in, version);
+			case TYPE_OWN_IDENTITY: return new OwnIdentity(wot, in, version);
+			case TYPE_TRUST: return new Trust(wot, in, version);
+			case TYPE_SCORE: return new Score(wot, in, version);
+			default: throw new IOException("Unknown type: " + type);
+		}
+	}
+
+	/** For the truster and trustee of Trust and Score. */
+	static void writeIdentity(final Identity identity, final DataOutputStream out)
+			throws IOException {
+		writeObject(identity, out);
+	}
+
+	/** Inverse of {@link #writeIdentity(Identity, DataOutputStream)}. */
+	static Identity readIdentity(final WebOfTrustInterface wot, final DataInputStream in,
+			final byte version) throws IOException {
+
+		final Persistent result = readObject(wot, in, version);
+		if(!(result instanceof Identity))
+			throw new IOException("Not an Identity: " + result.getClass());
+		return (Identity)result;
+	}
+
+	/* Field encoders. They all allow null. */
+
+	static void writeString(final String s, final DataOutputStream out) throws IOException {
+		out.writeBoolean(s != null);
+		if(s == null)
+			return;
+
+		// Not writeUTF(): It is limited to 64 KiB
+		final byte[] utf8 = s.getBytes("UTF-8");
+		out.writeInt(utf8.length);
+		out.write(utf8);
+	}
+
+	static String readString(final DataInputStream in) throws IOException {
+		if(!in.readBoolean())
+			return null;
+
+		final int length = in.readInt();
+		if(length < 0)
+			throw new IOException("Invalid String length: " + length);
+
+		final byte[] utf8 = new byte[length];
+		in.readFully(utf8);
+		return new String(utf8, "UTF-8");
+	}
+
+	static void writeDate(final Date date, final DataOutputStream out) throws IOException {
+		out.writeBoolean(date != null);
+		if(date != null)
+			out.writeLong(date.getTime());
+	}
+
+	static Date readDate(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? new Date(in.readLong()) : null;
+	}
+
+	static <E extends Enum<E>> void writeEnum(final E e, final DataOutputStream out)
+			throws IOException {
+		out.writeByte(e != null ? e.ordinal() : -1);
+	}
+
+	static <E extends Enum<E>> E readEnum(final Class<E> enumClass, final DataInputStream in)
+			throws IOException {
+
+		final byte ordinal = in.readByte();
+		if(ordinal == -1)
+			return null;
+
+		final E[] values = enumClass.getEnumConstants();
+		if(ordinal < 0 || ordinal >= values.length)
+			throw new IOException("Invalid ordinal for " + enumClass + ": " + ordinal);
+		return values[ordinal];
+	}
+
+	static void writeStringList(final ArrayList<String> list, final DataOutputStream out)
+			throws IOException {
+
+		out.writeInt(list != null ? list.size() : -1);
+		if(list == null)
+			return;
+
+		for(String s : list)
+			writeString(s, out);
+	}
+
+	static ArrayList<String> readStringList(final DataInputStream in) throws IOException {
+		final int size = in.readInt();
+		if(size == -1)
+			return null;
+
+		if(size < 0)
+			throw new IOException("Invalid list size: " + size);
+
+		final ArrayList<String> result = new ArrayList<String>(size);
+		for(int i = 0; i < size; ++i)
+			result.add(readString(in));
+		return result;
+	}
+
+	static void writeStringMap(final HashMap<String, String> map, final DataOutputStream out)
+			throws IOException {
+
+		out.writeInt(map != null ? map.size() : -1);
+		if(map == null)
+			return;
+
+		for(Map.Entry<String, String> entry : map.entrySet()) {
+			writeString(entry.getKey(), out);
+			writeString(entry.getValue(), out);
+		}
+	}
+
+	static HashMap<String, String> readStringMap(final DataInputStream in) throws IOException {
+		final int size = in.readInt();
+		if(size == -1)
+			return null;
+
+		if(size < 0)
+			throw new IOException("Invalid map size: " + size);
+
+		final HashMap<String, String> result = new HashMap<String, String>(size * 2);
+		for(int i = 0; i < size; ++i)
+			result.put(readString(in), readString(in));
+		return result;
+	}
+
+}
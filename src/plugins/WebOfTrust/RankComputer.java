@@ -0,0 +1,186 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import freenet.support.CurrentTimeUTC;
+
+/**
+ * Computes the rank of an {@link Identity} in the trust tree of an {@link OwnIdentity}, i.e. the
+ * value which {@link Score#getRank()} should have.
+ *
+ * There are 4 implementations of rank computation, see {@link Type}. They are equal in their
+ * results but differ in their performance characteristics, which depend on the shape of the
+ * {@link Trust} graph. The one which is used by
+ * {@link WebOfTrust#updateScoresAfterDistrustWithoutCommit(java.util.Collection)} can be chosen
+ * by the user with {@link WebOfTrust#setRankComputerType(Type)}, with help of the results of
+ * {@link WebOfTrust#benchmarkRankComputers(int)}.
+ *
+ * Implementations may cache results. Thus, an instance is only valid as long as no {@link Trust}
+ * and no {@link Score} of an {@link OwnIdentity} to itself is changed. Obtain a fresh one by
+ * {@link Type#construct(WebOfTrust)} afterwards.
+ *
+ * Synchronization:
+ * You must synchronize on the {@link WebOfTrust} and on the Persistent.transactionLock() of its
+ * database when constructing and using instances.
+ */
+public interface RankComputer {
+
+	/**
+	 * @return The rank of the target in the trust tree of the source, or -1 if the target is not
+	 *     in the trust tree. Same as {@link Score#getRank()} of the Score which should exist.
+	 */
+	int computeRank(OwnIdentity source, Identity target);
+
+	public enum Type {
+		/** {@link WebOfTrust#computeRankFromScratch_Caching(OwnIdentity, Identity, java.util.Map)} */
+		Caching,
+		/** {@link WebOfTrust#computeRankFromScratch(OwnIdentity, Identity)} */
+		Backward,
+		/** {@link WebOfTrust#computeRankFromScratch_Forward(OwnIdentity, Identity)} */
+		Forward,
+		/**
+		 * {@link TrustGraph.Snapshot#computeScoreTable(int, int)}, which is what
+		 * {@link WebOfTrust#computeAllScoresWithoutCommit()} uses. Computes the whole trust tree
+		 * of a source at the first query for it. */
+		TrustGraph;
+
+		/** Used if the user did not choose a Type. */
+		public static final Type DEFAULT = Caching;
+
+		RankComputer construct(final WebOfTrust wot) {
+			switch(this) {
+				case Caching: return new CachingRankComputer(wot);
+				case Backward: return new BackwardRankComputer(wot);
+				case Forward: return new ForwardRankComputer(wot);
+				case TrustGraph: return new TrustGraphRankComputer(wot);
+				default: throw new UnsupportedOperationException("Unknown Type: " + this);
+			}
+		}
+	}
+
+	static final class CachingRankComputer implements RankComputer {
+		private final WebOfTrust mWebOfTrust;
+
+		/** Key = {@link Score.ScoreID#toString()}, Value = rank */
+		private final HashMap<String, Integer> mRankCache = new HashMap<String, Integer>();
+
+		CachingRankComputer(WebOfTrust wot) {
+			mWebOfTrust = wot;
+		}
+
+		@Override public int computeRank(OwnIdentity source, Identity target) {
+			return mWebOfTrust.computeRankFromScratch_Caching(source, target, mRankCache);
+		}
+	}
+
+	static final class BackwardRankComputer implements RankComputer {
+		private final WebOfTrust mWebOfTrust;
+
+		BackwardRankComputer(WebOfTrust wot) {
+			mWebOfTrust = wot;
+		}
+
+		@Override public int computeRank(OwnIdentity source, Identity target) {
+			return mWebOfTrust.computeRankFromScratch(source, target);
+		}
+	}
+
+	static final class ForwardRankComputer implements RankComputer {
+		private final WebOfTrust mWebOfTrust;
+
+		ForwardRankComputer(WebOfTrust wot) {
+			mWebOfTrust = wot;
+		}
+
+		@Override public int computeRank(OwnIdentity source, Identity target) {
+			return mWebOfTrust.computeRankFromScratch_Forward(source, target);
+		}
+	}
+
+	static final class TrustGraphRankComputer implements RankComputer {
+		private final WebOfTrust mWebOfTrust;
+
+		/** Taken at the first query so constructing an unused instance is cheap. */
+		private TrustGraph.Snapshot mSnapshot = null;
+
+		/** Key = {@link OwnIdentity#getID()} of the source, Value = its trust tree */
+		private final HashMap<String, TrustGraph.ScoreTable> mScoreTables
+			= new HashMap<String, TrustGraph.ScoreTable>();
+
+		TrustGraphRankComputer(WebOfTrust wot) {
+			mWebOfTrust = wot;
+		}
+
+		@Override public int computeRank(OwnIdentity source, Identity target) {
+			final int sourceRank;
+			try {
+				sourceRank = mWebOfTrust.getScore(source, source).getRank();
+			} catch(NotInTrustTreeException e) {
+				// Same as the other implementations: Without a Score of the source to itself,
+				// its trust tree is empty.
+				return -1;
+			}
+
+			if(mSnapshot == null)
+				mSnapshot = mWebOfTrust.getTrustGraph().snapshot();
+
+			final int sourceIndex = mSnapshot.getIndex(source.getID());
+			if(sourceIndex == TrustGraph.NO_INDEX) // Has not given or received any Trust
+				return source == target ? sourceRank : -1;
+
+			final int targetIndex = mSnapshot.getIndex(target.getID());
+			if(targetIndex == TrustGraph.NO_INDEX)
+				return -1;
+
+			TrustGraph.ScoreTable table = mScoreTables.get(source.getID());
+			if(table == null) {
+				table = mSnapshot.computeScoreTable(sourceIndex, sourceRank);
+				mScoreTables.put(source.getID(), table);
+			}
+
+			final int rank = table.rank[targetIndex];
+			return rank == TrustGraph.NO_RANK ? -1 : rank;
+		}
+	}
+
+	/** Result of {@link WebOfTrust#benchmarkRankComputers(int)}. Immutable. */
+	public static final class Benchmark {
+		private final Date mDate = CurrentTimeUTC.get();
+
+		/** Number of ranks which each {@link Type} has computed. */
+		public final int mSampleCount;
+
+		/** Value = Total nanoseconds for computing the {@link #mSampleCount} ranks. */
+		private final EnumMap<Type, Long> mNanoseconds;
+
+		Benchmark(int sampleCount, EnumMap<Type, Long> nanoseconds) {
+			mSampleCount = sampleCount;
+			mNanoseconds = new EnumMap<Type, Long>(nanoseconds);
+		}
+
+		public Date getDate() {
+			return (Date)mDate.clone(); // Clone it because date is mutable
+		}
+
+		public double getAverageSecondsPerRank(Type type) {
+			return (double)mNanoseconds.get(type)
+				/ (1000d * 1000d * 1000d * (mSampleCount != 0 ? mSampleCount : 1));
+		}
+
+		public Type getFastest() {
+			Type fastest = null;
+			for(Type type : Type.values()) {
+				if(fastest == null || mNanoseconds.get(type) < mNanoseconds.get(fastest))
+					fastest = type;
+			}
+			return fastest;
+		}
+	}
+
+}
@@ -3,6 +3,8 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -11,6 +13,7 @@ import java.util.StringTokenizer;
 import java.util.UUID;
 
 import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.util.AssertUtil;
 import freenet.support.CurrentTimeUTC;
 
 
@@ -84,6 +87,38 @@ public final class Score extends Persistent implements Cloneable, EventSource {
      *  Stored as String to reduce db4o maintenance overhead. */
     private String mVersionID = null;
 
+	/**
+	 * True if the rank of this Score is queued for recomputation by the bounded-memory mode of
+	 * {@link WebOfTrust#updateScoresAfterDistrustWithoutCommit(java.util.Collection)}.
+	 * That mode marks Scores in the database instead of keeping them in memory. Thus, this and the
+	 * following markers are always false outside of a Score computation, i.e. in committed
+	 * transactions. */
+	@IndexedField
+	private boolean mRankOutdated = false;
+
+	/** Same as {@link #mRankOutdated}, but for the {@link #mValue}. */
+	@IndexedField
+	private boolean mValueOutdated = false;
+
+	/**
+	 * True if the bounded-memory mode of Score computation has changed this Score but not yet
+	 * stored the event notification about the change. The Score as it was before the change can
+	 * then be obtained by {@link #clearPendingChange()}. */
+	@IndexedField
+	private boolean mChangePending = false;
+
+	/** True if {@link #mChangePending} and the Score did not exist before the change. */
+	private boolean mCreatedByPendingChange = false;
+
+	/** The {@link #mValue} before the change if {@link #mChangePending}. */
+	private int mValueBeforeChange = 0;
+
+	/** The {@link #mRank} before the change if {@link #mChangePending}. */
+	private int mRankBeforeChange = 0;
+
+	/** The {@link #mCapacity} before the change if {@link #mChangePending}. */
+	private int mCapacityBeforeChange = 0;
+
 
 	/**
 	 * A class for generating and validating Score IDs.
@@ -108,6 +143,24 @@ public final class Score extends Persistent implements Cloneable, EventSource {
 			mID = truster.getID() + "@" + trustee.getID();
 		}
 		
+		/**
+		 * For code which only knows the IDs of the identities, such as the {@link TrustGraph}
+		 * based Score computation: It avoids having to query the {@link Identity} objects.
+		 * @param trusterID A valid {@link IdentityID}.
+		 * @param trusteeID A valid {@link IdentityID}. */
+		public ScoreID(final String trusterID, final String trusteeID) {
+			AssertUtil.assertDidNotThrow(new Runnable() {
+				@Override public void run() {
+					IdentityID.constructAndValidateFromString(trusterID);
+					IdentityID.constructAndValidateFromString(trusteeID);
+				}
+			});
+			
+			mTrusterID = trusterID;
+			mTrusteeID = trusteeID;
+			mID = trusterID + "@" + trusteeID;
+		}
+		
 		private ScoreID(String id) {
 			if(id.length() > MAX_SCORE_ID_LENGTH)
 				throw new IllegalArgumentException("ID is too long, length: " + id.length());
@@ -308,6 +361,81 @@ public final class Score extends Persistent implements Cloneable, EventSource {
 		mLastChangedDate = CurrentTimeUTC.get();
 	}
 	
+	/** @see #mRankOutdated */
+	protected synchronized boolean isRankOutdated() {
+		checkedActivate(1); // boolean is a db4o primitive type so 1 is enough
+		return mRankOutdated;
+	}
+
+	/** @see #mRankOutdated */
+	protected synchronized void setRankOutdated(boolean outdated) {
+		checkedActivate(1); // boolean is a db4o primitive type so 1 is enough
+		mRankOutdated = outdated;
+	}
+
+	/** @see #mValueOutdated */
+	protected synchronized boolean isValueOutdated() {
+		checkedActivate(1); // boolean is a db4o primitive type so 1 is enough
+		return mValueOutdated;
+	}
+
+	/** @see #mValueOutdated */
+	protected synchronized void setValueOutdated(boolean outdated) {
+		checkedActivate(1); // boolean is a db4o primitive type so 1 is enough
+		mValueOutdated = outdated;
+	}
+
+	/** @see #mChangePending */
+	protected synchronized boolean isChangePending() {
+		checkedActivate(1); // boolean is a db4o primitive type so 1 is enough
+		return mChangePending;
+	}
+
+	/**
+	 * Marks this Score as changed, see {@link #mChangePending}. Does nothing if it is marked
+	 * already: The state before the first change is the one which must be reported.
+	 * 
+	 * @param beforeChange The Score as it was before the change, which is typically this Score
+	 *     itself before it is modified. Null if it was created by the change.
+	 */
+	protected synchronized void markChangePending(Score beforeChange) {
+		checkedActivate(1); // int/boolean is a db4o primitive type so 1 is enough
+		
+		if(mChangePending)
+			return;
+		
+		mChangePending = true;
+		mCreatedByPendingChange = (beforeChange == null);
+		if(beforeChange != null) {
+			mValueBeforeChange = beforeChange.getScore();
+			mRankBeforeChange = beforeChange.getRank();
+			mCapacityBeforeChange = beforeChange.getCapacity();
+		}
+	}
+
+	/**
+	 * Removes the marker of {@link #markChangePending(Score)}.
+	 * 
+	 * @return A clone of this Score with the value, rank and capacity which it had before the
+	 *     change, or null if it was created by the change.
+	 */
+	protected synchronized Score clearPendingChange() {
+		checkedActivate(1); // int/boolean is a db4o primitive type so 1 is enough
+		assert(mChangePending);
+		
+		mChangePending = false;
+		if(mCreatedByPendingChange) {
+			mCreatedByPendingChange = false;
+			return null;
+		}
+		
+		final Score beforeChange = clone();
+		beforeChange.mValue = mValueBeforeChange;
+		beforeChange.mRank = mRankBeforeChange;
+		beforeChange.mCapacity = mCapacityBeforeChange;
+		return beforeChange;
+	}
+
 	/**
 	 * Gets the {@link Date} when this score object was created. The date of creation does never change for an existing score object, so if the value, rank
 	 * or capacity of a score changes then its date of creation stays constant.
@@ -336,6 +464,10 @@ public final class Score extends Persistent implements Cloneable, EventSource {
 		mTrustee.initializeTransient(mWebOfTrust);
 	}
 	
+	/**
+	 * Also updates the best Score / capacity which the {@link #getTrustee()} stores, see
+	 * {@link Identity#updateBestScoreWithoutCommit(Score, boolean)}.
+	 */
 	@Override
 	protected void storeWithoutCommit() {
 		try {
@@ -343,6 +475,39 @@ public final class Score extends Persistent implements Cloneable, EventSource {
 			throwIfNotStored(mTruster);
 			throwIfNotStored(mTrustee);
 			checkedStore();
+			mTrustee.updateBestScoreWithoutCommit(this, false);
+			
+			final TrustAndScoreIndex index = TrustAndScoreIndex.getIfLoaded(mWebOfTrust);
+			if(index != null)
+				index.put(this);
+		}
+		catch(final RuntimeException e) {
+			checkedRollbackAndThrow(e);
+		}
+	}
+	
+	/**
+	 * Also updates the best Score / capacity which the {@link #getTrustee()} stores, see
+	 * {@link Identity#updateBestScoreWithoutCommit(Score, boolean)}, and removes this Score from
+	 * the {@link TrustAndScoreIndex}.
+	 */
+	@Override
+	protected void deleteWithoutCommit() {
+		// Before deleting, see TrustAndScoreIndex.remove(). If the deletion fails, the rollback
+		// invalidates the index.
+		final TrustAndScoreIndex index = TrustAndScoreIndex.getIfLoaded(mWebOfTrust);
+		if(index != null)
+			index.remove(this);
+		
+		super.deleteWithoutCommit(); // Not in the try{} so we don't do checkedRollbackAndThrow twice
+		
+		try {
+			// Not activateFully(): WebOfTrust.repairDatabase() deletes Scores whose
+			// mTruster / mTrustee is null.
+			if(mTrustee != null) {
+				mTrustee.initializeTransient(mWebOfTrust);
+				mTrustee.updateBestScoreWithoutCommit(this, true);
+			}
 		}
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
@@ -396,6 +561,13 @@ public final class Score extends Persistent implements Cloneable, EventSource {
 		final Score clone = new Score(mWebOfTrust, getTruster().clone(), getTrustee().clone(), getScore(), getRank(), getCapacity());
 		clone.setCreationDate(getCreationDate());
 		clone.mLastChangedDate = (Date)mLastChangedDate.clone();	// Clone it because date is mutable
+		clone.mRankOutdated = mRankOutdated;
+		clone.mValueOutdated = mValueOutdated;
+		clone.mChangePending = mChangePending;
+		clone.mCreatedByPendingChange = mCreatedByPendingChange;
+		clone.mValueBeforeChange = mValueBeforeChange;
+		clone.mRankBeforeChange = mRankBeforeChange;
+		clone.mCapacityBeforeChange = mCapacityBeforeChange;
 		return clone;
 	}
 
@@ -428,6 +600,12 @@ public final class Score extends Persistent implements Cloneable, EventSource {
 		
 		if(mLastChangedDate.after(CurrentTimeUTC.get()))
 			throw new IllegalStateException("mLastChangedDate is in the future: " + mLastChangedDate);
+		
+		if(mRankOutdated || mValueOutdated || mChangePending) {
+			throw new IllegalStateException("Marked by unfinished Score computation: "
+				+ "mRankOutdated: " + mRankOutdated + "; mValueOutdated: " + mValueOutdated
+				+ "; mChangePending: " + mChangePending);
+		}
 	}
 	
 	/** @see Persistent#serialize() */
@@ -438,6 +616,88 @@ public final class Score extends Persistent implements Cloneable, EventSource {
 		stream.defaultWriteObject();
 	}
 
+	/**
+	 * @return False if this Score is marked by an unfinished Score computation:
+	 *     {@link PersistentCodec} does not contain the markers, so Java serialization must be
+	 *     used. */
+	boolean canEncode() {
+		checkedActivate(1);
+		return !mRankOutdated && !mValueOutdated && !mChangePending
+			&& getTruster().canEncode() && getTrustee().canEncode();
+	}
+
+	/**
+	 * Writes the fields of this Score, including its truster and trustee, for
+	 * {@link PersistentCodec}.
+	 * @see #Score(WebOfTrustInterface, DataInputStream, byte) The inverse function. */
+	void writeFields(DataOutputStream out) throws IOException {
+		activateFully();
+		PersistentCodec.writeDate(mCreationDate, out);
+		PersistentCodec.writeIdentity(mTruster, out);
+		PersistentCodec.writeIdentity(mTrustee, out);
+		writeValueFields(out);
+	}
+
+	/**
+	 * Writes the fields of this Score except for its truster and trustee, which
+	 * {@link DatabaseSnapshot} writes as references to the Identitys it contains.
+	 * @see #Score(WebOfTrustInterface, OwnIdentity, Identity, DataInputStream, byte) The inverse
+	 *     function. */
+	void writeFieldsWithoutIdentities(DataOutputStream out) throws IOException {
+		activateFully();
+		PersistentCodec.writeDate(mCreationDate, out);
+		writeValueFields(out);
+	}
+
+	/** The fields after the truster and trustee, same for both formats. */
+	private void writeValueFields(DataOutputStream out) throws IOException {
+		PersistentCodec.writeString(mID, out);
+		out.writeInt(mValue);
+		out.writeInt(mRank);
+		out.writeInt(mCapacity);
+		PersistentCodec.writeDate(mLastChangedDate, out);
+		PersistentCodec.writeString(mVersionID, out);
+	}
+
+	/**
+	 * Reads a Score which was written by {@link #writeFields(DataOutputStream)}. Used by
+	 * {@link PersistentCodec}, does not validate anything.
+	 * @param version The {@link PersistentCodec#VERSION} of the input. */
+	Score(WebOfTrustInterface myWoT, DataInputStream in, byte version) throws IOException {
+		initializeTransient(myWoT);
+		mCreationDate = PersistentCodec.readDate(in);
+		final Identity truster = PersistentCodec.readIdentity(myWoT, in, version);
+		if(!(truster instanceof OwnIdentity))
+			throw new IOException("Truster is not an OwnIdentity: " + truster);
+		mTruster = (OwnIdentity)truster;
+		mTrustee = PersistentCodec.readIdentity(myWoT, in, version);
+		readValueFields(in);
+	}
+
+	/**
+	 * Reads a Score which was written by {@link #writeFieldsWithoutIdentities(DataOutputStream)}.
+	 * Used by {@link DatabaseSnapshot}, does not validate anything.
+	 * @param version The {@link PersistentCodec#VERSION} of the input. */
+	Score(WebOfTrustInterface myWoT, OwnIdentity truster, Identity trustee, DataInputStream in,
+			byte version) throws IOException {
+		
+		initializeTransient(myWoT);
+		mTruster = truster;
+		mTrustee = trustee;
+		mCreationDate = PersistentCodec.readDate(in);
+		readValueFields(in);
+	}
+
+	/** @see #writeValueFields(DataOutputStream) */
+	private void readValueFields(DataInputStream in) throws IOException {
+		mID = PersistentCodec.readString(in);
+		mValue = in.readInt();
+		mRank = in.readInt();
+		mCapacity = in.readInt();
+		mLastChangedDate = PersistentCodec.readDate(in);
+		mVersionID = PersistentCodec.readString(in);
+	}
+
     /** {@inheritDoc} */
     @Override public void setVersionID(UUID versionID) { 
         checkedActivate(1);
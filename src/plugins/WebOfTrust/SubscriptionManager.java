@@ -231,6 +231,7 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * Sends out the notification queue for this Client, in sequence.
 		 * 
 		 * If a notification is sent successfully, it is deleted and the transaction is committed.
+		 * The commits of multiple notifications are batched using a {@link GroupCommit}.
 		 * 
 		 * If sending a single notification fails, the failure counter {@link #mSendNotificationsFailureCount} is incremented
 		 * and {@link SubscriptionManager#scheduleNotificationProcessing()} is executed to retry sending the notification after some time.
@@ -261,16 +262,29 @@ public final class SubscriptionManager implements PrioRunnable {
 			// This is necessary for SubscriptionManager.stop() to be fast.
 			switch(getType()) {
 				case FCP:
+					// If processing of a single notification fails, we do not want the previous
+					// notifications to be sent again when the failed notification is retried.
+					// Therefore, the deletions of the sent notifications are committed before the
+					// failure is handled. Until then they are batched by the GroupCommit.
+					// This relies on notifySubscriberByFCP() not modifying the database: The
+					// transaction then only contains the deletions of previously sent
+					// notifications. If deleteWithoutCommit() fails, it rolls back the transaction
+					// itself, so the batch is lost and those notifications are sent again.
+					final GroupCommit groupCommit = new GroupCommit(manager.mWoT, this);
+					
 					for(final Notification notification : manager.getNotifications(this)) {
 						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP: " + notification);
+						boolean sent = false;
 						try {
 							try {
 								notification.getSubscription().notifySubscriberByFCP(notification);
+								sent = true;
 								notification.deleteWithoutCommit();
 							} catch(InterruptedException e) {
                                 // Shutdown of WOT was requested. This is normal mode of operation,
                                 // and not the fault of the client, so we do not increment its
                                 // failure counter.
+                                groupCommit.commit();
                                 Persistent.checkedRollback(mDB, this, e, LogLevel.NORMAL);
                                 throw e;
                             } catch(Throwable e) {
@@ -280,6 +294,10 @@ public final class SubscriptionManager implements PrioRunnable {
 							    // compatible until the next build. Change it back to the
 							    // Java7-style catch(). 
 							    
+								if(!sent)
+									groupCommit.commit();
+								else // deleteWithoutCommit() did roll back already
+									groupCommit.discard();
 								Persistent.checkedRollback(mDB, this, e, LogLevel.WARNING);
 								
 								final byte failureCount = incrementSendNotificationsFailureCountWithoutCommit();
@@ -312,16 +330,14 @@ public final class SubscriptionManager implements PrioRunnable {
 								return doNotDeleteClient;
 							}
 							
-							// If processing of a single notification fails, we do not want the previous notifications
-							// to be sent again when the failed notification is retried. Therefore, we commit after
-							// each processed notification but do not catch RuntimeExceptions here
-							
-							Persistent.checkedCommit(mDB, this);
+							groupCommit.operationFinished();
 						} catch(RuntimeException e) {
-							Persistent.checkedRollbackAndThrow(mDB, this, e);
+							groupCommit.rollbackAndThrow(e);
 						}
 						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP finished: " + notification);
 					}
+					
+					groupCommit.commit();
 					break;
 				default:
 					throw new UnsupportedOperationException("Unknown Type: " + getType());
@@ -3,6 +3,8 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -395,11 +397,27 @@ public final class Trust extends Persistent implements Cloneable, EventSource {
 			throwIfNotStored(mTruster);
 			throwIfNotStored(mTrustee);
 			checkedStore();
+			
+			final TrustAndScoreIndex index = TrustAndScoreIndex.getIfLoaded(mWebOfTrust);
+			if(index != null)
+				index.put(this);
 		}
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
 		}
 	}
+	
+	/** Also removes this Trust from the {@link TrustAndScoreIndex}. */
+	@Override
+	protected void deleteWithoutCommit() {
+		// Before deleting, see TrustAndScoreIndex.remove(). If the deletion fails, the rollback
+		// invalidates the index.
+		final TrustAndScoreIndex index = TrustAndScoreIndex.getIfLoaded(mWebOfTrust);
+		if(index != null)
+			index.remove(this);
+		
+		super.deleteWithoutCommit();
+	}
 
 	/**
 	 * Test if two trust objects are equal.<br />
@@ -502,6 +520,80 @@ public final class Trust extends Persistent implements Cloneable, EventSource {
 		stream.defaultWriteObject();
 	}
 
+	/** @see PersistentCodec#canEncode(Persistent) */
+	boolean canEncode() {
+		return getTruster().canEncode() && getTrustee().canEncode();
+	}
+
+	/**
+	 * Writes the fields of this Trust, including its truster and trustee, for
+	 * {@link PersistentCodec}.
+	 * @see #Trust(WebOfTrustInterface, DataInputStream, byte) The inverse function. */
+	void writeFields(DataOutputStream out) throws IOException {
+		activateFully();
+		PersistentCodec.writeDate(mCreationDate, out);
+		PersistentCodec.writeIdentity(mTruster, out);
+		PersistentCodec.writeIdentity(mTrustee, out);
+		writeValueFields(out);
+	}
+
+	/**
+	 * Writes the fields of this Trust except for its truster and trustee, which
+	 * {@link DatabaseSnapshot} writes as references to the Identitys it contains.
+	 * @see #Trust(WebOfTrustInterface, Identity, Identity, DataInputStream, byte) The inverse
+	 *     function. */
+	void writeFieldsWithoutIdentities(DataOutputStream out) throws IOException {
+		activateFully();
+		PersistentCodec.writeDate(mCreationDate, out);
+		writeValueFields(out);
+	}
+
+	/** The fields after the truster and trustee, same for both formats. */
+	private void writeValueFields(DataOutputStream out) throws IOException {
+		PersistentCodec.writeString(mID, out);
+		out.writeByte(mValue);
+		PersistentCodec.writeString(mComment, out);
+		PersistentCodec.writeDate(mLastChangedDate, out);
+		out.writeLong(mTrusterTrustListEdition);
+		PersistentCodec.writeString(mVersionID, out);
+	}
+
+	/**
+	 * Reads a Trust which was written by {@link #writeFields(DataOutputStream)}. Used by
+	 * {@link PersistentCodec}, does not validate anything.
+	 * @param version The {@link PersistentCodec#VERSION} of the input. */
+	Trust(WebOfTrustInterface myWoT, DataInputStream in, byte version) throws IOException {
+		initializeTransient(myWoT);
+		mCreationDate = PersistentCodec.readDate(in);
+		mTruster = PersistentCodec.readIdentity(myWoT, in, version);
+		mTrustee = PersistentCodec.readIdentity(myWoT, in, version);
+		readValueFields(in);
+	}
+
+	/**
+	 * Reads a Trust which was written by {@link #writeFieldsWithoutIdentities(DataOutputStream)}.
+	 * Used by {@link DatabaseSnapshot}, does not validate anything.
+	 * @param version The {@link PersistentCodec#VERSION} of the input. */
+	Trust(WebOfTrustInterface myWoT, Identity truster, Identity trustee, DataInputStream in,
+			byte version) throws IOException {
+		
+		initializeTransient(myWoT);
+		mTruster = truster;
+		mTrustee = trustee;
+		mCreationDate = PersistentCodec.readDate(in);
+		readValueFields(in);
+	}
+
+	/** @see #writeValueFields(DataOutputStream) */
+	private void readValueFields(DataInputStream in) throws IOException {
+		mID = PersistentCodec.readString(in);
+		mValue = in.readByte();
+		mComment = PersistentCodec.readString(in);
+		mLastChangedDate = PersistentCodec.readDate(in);
+		mTrusterTrustListEdition = in.readLong();
+		mVersionID = PersistentCodec.readString(in);
+	}
+
     /** {@inheritDoc} */
     @Override public void setVersionID(UUID versionID) { 
         checkedActivate(1);
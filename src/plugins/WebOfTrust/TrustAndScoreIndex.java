@@ -0,0 +1,225 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.HashMap;
+import java.util.List;
+
+import plugins.WebOfTrust.Score.ScoreID;
+import plugins.WebOfTrust.Trust.TrustID;
+import plugins.WebOfTrust.exceptions.DuplicateScoreException;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.util.StopWatch;
+
+import com.db4o.ext.ExtObjectContainer;
+
+import freenet.support.Logger;
+
+/**
+ * In-memory index of all stored {@link Trust} and {@link Score} objects by their {@link TrustID}
+ * and {@link ScoreID}.<br>
+ * db4o does not support indices on multiple fields, so looking up the Trust / Score between a
+ * given truster and trustee needs a query on the ID field. {@link WebOfTrust#getTrust(String)}
+ * and {@link WebOfTrust#getScore(String)} are called in the innermost loops of Score computation
+ * and trust list import, so they use this HashMap lookup instead.<br>
+ * The index maps to the db4o object IDs instead of the objects themselves: Strong references
+ * would keep all Trusts and Scores in memory, and prevent db4o from reverting them when the
+ * database is rolled back. {@link ExtObjectContainer#getByID(long)} returns the object which db4o
+ * has in memory already, or loads it from the database.<br>
+ * Multiple objects with the same ID should not exist. If they do nevertheless, lookups of the ID
+ * throw a {@link DuplicateTrustException} / {@link DuplicateScoreException}, as the database
+ * query which the index replaces did.<br><br>
+ *
+ * Maintenance:<br>
+ * - {@link Trust#storeWithoutCommit()}, {@link Trust#deleteWithoutCommit()},
+ *   {@link Score#storeWithoutCommit()} and {@link Score#deleteWithoutCommit()} update it.<br>
+ * - Rolling back the database invalidates it, see
+ *   {@link WebOfTrust#getTrustAndScoreIndex()}.<br>
+ * - {@link WebOfTrust#verifyDatabaseIntegrity()} checks it against the database.<br><br>
+ *
+ * Synchronization:
+ * You must synchronize on the {@link WebOfTrust} and on the Persistent.transactionLock() of its
+ * database when using this class.
+ */
+final class TrustAndScoreIndex {
+
+	private final ExtObjectContainer mDB;
+
+	/** Key = {@link Trust#getID()}, value = {@link ExtObjectContainer#getID(Object)} */
+	private final HashMap<String, Long> mTrusts;
+
+	/** Key = {@link Score#getID()}, value = {@link ExtObjectContainer#getID(Object)} */
+	private final HashMap<String, Long> mScores;
+
+	/** Key = {@link Trust#getID()} of which multiple objects exist, value = amount of them */
+	private final HashMap<String, Integer> mDuplicateTrusts = new HashMap<String, Integer>();
+
+	/** Key = {@link Score#getID()} of which multiple objects exist, value = amount of them */
+	private final HashMap<String, Integer> mDuplicateScores = new HashMap<String, Integer>();
+
+
+	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
+
+	private static transient volatile boolean logDEBUG = false;
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		Logger.registerClass(TrustAndScoreIndex.class);
+	}
+
+
+	private TrustAndScoreIndex(ExtObjectContainer db, int trustCount, int scoreCount) {
+		mDB = db;
+		mTrusts = new HashMap<String, Long>(trustCount * 2);
+		mScores = new HashMap<String, Long>(scoreCount * 2);
+	}
+
+	/** Loads all {@link Trust}s and {@link Score}s. O(number of Trusts + number of Scores). */
+	static TrustAndScoreIndex constructFromDatabase(final WebOfTrust wot) {
+		final StopWatch time = logMINOR ? new StopWatch() : null;
+
+		final List<Trust> trusts = wot.getAllTrusts();
+		final List<Score> scores = wot.getAllScores();
+		final TrustAndScoreIndex index
+			= new TrustAndScoreIndex(wot.getDatabase(), trusts.size(), scores.size());
+
+		for(Trust trust : trusts)
+			index.put(trust);
+
+		for(Score score : scores)
+			index.put(score);
+
+		if(logMINOR) {
+			Logger.minor(TrustAndScoreIndex.class, "Loaded " + index.mTrusts.size() + " Trusts and "
+				+ index.mScores.size() + " Scores: " + time);
+		}
+
+		return index;
+	}
+
+	/**
+	 * @return The index of the given WebOfTrust if it has been loaded, null otherwise. Also null
+	 *     for other implementations of {@link WebOfTrustInterface}, which do not store anything. */
+	static TrustAndScoreIndex getIfLoaded(final WebOfTrustInterface wot) {
+		return wot instanceof WebOfTrust ? ((WebOfTrust)wot).getTrustAndScoreIndexIfLoaded() : null;
+	}
+
+	/**
+	 * @return The stored Trust with the given {@link TrustID}, or null if there is none. You must
+	 *     call {@link Persistent#initializeTransient(WebOfTrust)} on it. */
+	Trust getTrust(final String trustID) throws DuplicateTrustException {
+		final Integer copies = mDuplicateTrusts.get(trustID);
+		if(copies != null)
+			throw new DuplicateTrustException(trustID, copies);
+		
+		final Long id = mTrusts.get(trustID);
+		return id != null ? (Trust)mDB.getByID(id) : null;
+	}
+
+	/**
+	 * @return The stored Score with the given {@link ScoreID}, or null if there is none. You must
+	 *     call {@link Persistent#initializeTransient(WebOfTrust)} on it. */
+	Score getScore(final String scoreID) throws DuplicateScoreException {
+		final Integer copies = mDuplicateScores.get(scoreID);
+		if(copies != null)
+			throw new DuplicateScoreException(scoreID, copies);
+		
+		final Long id = mScores.get(scoreID);
+		return id != null ? (Score)mDB.getByID(id) : null;
+	}
+
+	int getTrustCount() {
+		return mTrusts.size();
+	}
+
+	int getScoreCount() {
+		return mScores.size();
+	}
+
+	/**
+	 * Must be called after the Trust was stored, db4o does not assign an ID before.<br>
+	 * If a different object with the same ID is indexed, the ID is marked as duplicate instead. */
+	void put(final Trust trust) {
+		put(mTrusts, mDuplicateTrusts, trust.getID(), mDB.getID(trust));
+	}
+
+	/** Same as {@link #put(Trust)}. */
+	void put(final Score score) {
+		put(mScores, mDuplicateScores, score.getID(), mDB.getID(score));
+	}
+
+	private static void put(final HashMap<String, Long> index,
+			final HashMap<String, Integer> duplicates, final String id, final long databaseID) {
+		
+		final Long indexedID = index.get(id);
+		if(indexedID == null) {
+			index.put(id, databaseID);
+		} else if(indexedID.longValue() != databaseID) {
+			final Integer copies = duplicates.get(id);
+			duplicates.put(id, copies != null ? copies + 1 : 2);
+		}
+	}
+
+	/**
+	 * Must be called before the Trust is deleted, db4o does not know its ID anymore afterwards.
+	 * Does nothing if a different object with the same ID is indexed.<br>
+	 * Code which deletes one of multiple objects with the same ID must invalidate the index, see
+	 * {@link WebOfTrust#getTrustAndScoreIndex()}: It does not know which of them remains. */
+	void remove(final Trust trust) {
+		final String id = trust.getID();
+		if(isIndexed(mTrusts.get(id), trust))
+			mTrusts.remove(id);
+	}
+
+	/** Same as {@link #remove(Trust)}. */
+	void remove(final Score score) {
+		final String id = score.getID();
+		if(isIndexed(mScores.get(id), score))
+			mScores.remove(id);
+	}
+
+	/** @return True if the given value of {@link #mTrusts} / {@link #mScores} is the object. */
+	private boolean isIndexed(final Long indexedID, final Persistent object) {
+		return indexedID != null && indexedID.longValue() == mDB.getID(object);
+	}
+
+	/**
+	 * Checks whether this index contains exactly the Trusts and Scores which are stored in the
+	 * database of the given WebOfTrust, and logs an error about each mismatch.
+	 * @return True if it does. */
+	boolean verify(final WebOfTrust wot) {
+		boolean result = true;
+
+		int trustCount = 0;
+		for(Trust trust : wot.getAllTrusts()) {
+			++trustCount;
+			if(!isIndexed(mTrusts.get(trust.getID()), trust)) {
+				Logger.error(this, "Trust missing in index or duplicate: " + trust);
+				result = false;
+			}
+		}
+		if(trustCount != mTrusts.size()) {
+			Logger.error(this, "Index contains " + mTrusts.size() + " Trusts, database contains "
+				+ trustCount);
+			result = false;
+		}
+
+		int scoreCount = 0;
+		for(Score score : wot.getAllScores()) {
+			++scoreCount;
+			if(!isIndexed(mScores.get(score.getID()), score)) {
+				Logger.error(this, "Score missing in index or duplicate: " + score);
+				result = false;
+			}
+		}
+		if(scoreCount != mScores.size()) {
+			Logger.error(this, "Index contains " + mScores.size() + " Scores, database contains "
+				+ scoreCount);
+			result = false;
+		}
+
+		return result;
+	}
+
+}
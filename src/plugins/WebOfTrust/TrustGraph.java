@@ -0,0 +1,1021 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import plugins.WebOfTrust.util.StopWatch;
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * In-memory mirror of the {@link Trust} table of the database, for use by the {@link Score}
+ * computation code in {@link WebOfTrust}.<br><br>
+ *
+ * Score computation walks the Trust graph vertex by vertex and edge by edge. Doing a db4o query
+ * for each of those steps is what makes a full recomputation take minutes on large databases and
+ * churn the heap with activated {@link Trust} objects. This class stores the graph in a compact
+ * form instead:<br>
+ * - Each {@link Identity} which is involved in a Trust is mapped to an int index.<br>
+ * - For each index, the given and received Trusts are stored as primitive arrays of the indices
+ *   of the trustees / trusters plus a byte array of the Trust values.<br>
+ * It only contains what the Score computation needs: Who trusts whom by which value. Comments,
+ * dates etc. are not mirrored.<br><br>
+ *
+ * The per-vertex arrays can be modified in O(number of Trusts of the vertex) to keep the mirror
+ * in sync with {@link WebOfTrust#setTrustWithoutCommit(Identity, Identity, byte, String)} and
+ * {@link WebOfTrust#removeTrustWithoutCommit(Trust)}. For full computations, {@link #snapshot()}
+ * packs them into a read-only {@link Snapshot} in compressed sparse row (CSR) format.<br><br>
+ *
+ * Vertex indices are never removed: An Identity which had all its Trusts deleted keeps its index
+ * with empty adjacency arrays. This keeps indices stable and is cheap since the graph is rebuilt
+ * from the database after each restart anyway.<br><br>
+ *
+ * Synchronization: This class is not thread-safe. {@link WebOfTrust} only accesses it while
+ * holding the lock on itself and the {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)}.
+ * {@link Snapshot}s are immutable and can be shared between threads.
+ */
+public final class TrustGraph {
+
+	/** Returned by {@link #getIndex(String)} if the Identity is not part of the graph. */
+	public static final int NO_INDEX = -1;
+
+	/**
+	 * Returned by {@link #getTrustValue(int, int)} if no Trust exists between the two vertices.
+	 * Outside of the range of byte so it cannot collide with a real Trust value. */
+	public static final int NO_TRUST = Integer.MIN_VALUE;
+
+	/** Rank value in {@link ScoreTable#rank} for Identitys which are not in the trust tree. */
+	public static final int NO_RANK = -1;
+
+	private static final int INITIAL_ADJACENCY_CAPACITY = 4;
+
+	/** Key = {@link Identity#getID()}, value = vertex index. */
+	private final HashMap<String, Integer> mIndexOfID;
+
+	/** Value = {@link Identity#getID()}, index = vertex index. */
+	private String[] mIDs;
+
+	private int mVertexCount = 0;
+
+	private int mEdgeCount = 0;
+
+	/** Per vertex: Indices of the trustees of the Trusts it has given. Only the first
+	 *  {@link #mGivenCount} entries are valid. */
+	private int[][] mGivenTrustees;
+
+	/** Per vertex: Values of the Trusts it has given, in the order of {@link #mGivenTrustees} */
+	private byte[][] mGivenValues;
+
+	private int[] mGivenCount;
+
+	/** Per vertex: Indices of the trusters of the Trusts it has received. Only the first
+	 *  {@link #mReceivedCount} entries are valid. */
+	private int[][] mReceivedTrusters;
+
+	/** Per vertex: Values of the Trusts it has received, in the order of
+	 *  {@link #mReceivedTrusters} */
+	private byte[][] mReceivedValues;
+
+	private int[] mReceivedCount;
+
+	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
+
+	private static transient volatile boolean logDEBUG = false;
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		Logger.registerClass(TrustGraph.class);
+	}
+
+
+	public TrustGraph(int expectedVertexCount) {
+		final int capacity = Math.max(expectedVertexCount, 16);
+		mIndexOfID = new HashMap<String, Integer>(capacity * 2);
+		mIDs = new String[capacity];
+		mGivenTrustees = new int[capacity][];
+		mGivenValues = new byte[capacity][];
+		mGivenCount = new int[capacity];
+		mReceivedTrusters = new int[capacity][];
+		mReceivedValues = new byte[capacity][];
+		mReceivedCount = new int[capacity];
+	}
+
+	/**
+	 * Builds the mirror from all {@link Trust} objects in the database of the given
+	 * {@link WebOfTrust}.<br>
+	 * Uses {@link Trust#getID()} to obtain the IDs of the truster and trustee so the
+	 * {@link Identity} objects do not have to be activated.
+	 *
+	 * Synchronization: You must synchronize on the WebOfTrust and the transaction lock while
+	 * calling this.
+	 */
+	public static TrustGraph constructFromDatabase(final WebOfTrust wot) {
+		final StopWatch time = logMINOR ? new StopWatch() : null;
+
+		final TrustGraph graph = new TrustGraph(wot.getAllIdentities().size());
+		for(Trust trust : wot.getAllTrusts()) {
+			final String id = trust.getID();
+			final int separator = id.indexOf('@');
+			graph.setTrust(id.substring(0, separator), id.substring(separator + 1),
+				trust.getValue());
+		}
+
+		if(logMINOR) {
+			Logger.minor(TrustGraph.class, "Loaded " + graph.getEdgeCount() + " Trusts between "
+				+ graph.getVertexCount() + " Identitys from database in " + time);
+		}
+
+		return graph;
+	}
+
+	public int getVertexCount() {
+		return mVertexCount;
+	}
+
+	public int getEdgeCount() {
+		return mEdgeCount;
+	}
+
+	/** @return The vertex index of the given {@link Identity#getID()}, or {@link #NO_INDEX}. */
+	public int getIndex(final String identityID) {
+		final Integer index = mIndexOfID.get(identityID);
+		return index != null ? index : NO_INDEX;
+	}
+
+	/** @return The {@link Identity#getID()} of the given vertex index. */
+	public String getID(final int index) {
+		return mIDs[index];
+	}
+
+	/**
+	 * Same as {@link #getIndex(String)} except for adding a vertex without any edges if the
+	 * Identity is not part of the graph yet. */
+	public int getOrCreateIndex(final String identityID) {
+		final Integer existing = mIndexOfID.get(identityID);
+		if(existing != null)
+			return existing;
+
+		if(mVertexCount == mIDs.length)
+			growVertexArrays();
+
+		final int index = mVertexCount++;
+		mIDs[index] = identityID;
+		mIndexOfID.put(identityID, index);
+		return index;
+	}
+
+	private void growVertexArrays() {
+		final int newLength = mIDs.length * 2;
+		mIDs = Arrays.copyOf(mIDs, newLength);
+		mGivenTrustees = Arrays.copyOf(mGivenTrustees, newLength);
+		mGivenValues = Arrays.copyOf(mGivenValues, newLength);
+		mGivenCount = Arrays.copyOf(mGivenCount, newLength);
+		mReceivedTrusters = Arrays.copyOf(mReceivedTrusters, newLength);
+		mReceivedValues = Arrays.copyOf(mReceivedValues, newLength);
+		mReceivedCount = Arrays.copyOf(mReceivedCount, newLength);
+	}
+
+	/**
+	 * Creates the edge, or changes its value if it exists already.
+	 * Must be called for every {@link Trust} which is stored or whose value changes. */
+	public void setTrust(final String trusterID, final String trusteeID, final byte value) {
+		final int truster = getOrCreateIndex(trusterID);
+		final int trustee = getOrCreateIndex(trusteeID);
+
+		final int givenPosition = find(mGivenTrustees[truster], mGivenCount[truster], trustee);
+		if(givenPosition != -1) {
+			mGivenValues[truster][givenPosition] = value;
+			final int receivedPosition
+				= find(mReceivedTrusters[trustee], mReceivedCount[trustee], truster);
+			assert(receivedPosition != -1) : "Given and received edges must be symmetric";
+			mReceivedValues[trustee][receivedPosition] = value;
+			return;
+		}
+
+		// Add given edge
+		{
+			int[] trustees = mGivenTrustees[truster];
+			byte[] values = mGivenValues[truster];
+			final int count = mGivenCount[truster];
+			if(trustees == null) {
+				trustees = mGivenTrustees[truster] = new int[INITIAL_ADJACENCY_CAPACITY];
+				values = mGivenValues[truster] = new byte[INITIAL_ADJACENCY_CAPACITY];
+			} else if(count == trustees.length) {
+				trustees = mGivenTrustees[truster] = Arrays.copyOf(trustees, count * 2);
+				values = mGivenValues[truster] = Arrays.copyOf(values, count * 2);
+			}
+			trustees[count] = trustee;
+			values[count] = value;
+			mGivenCount[truster] = count + 1;
+		}
+
+		// Add received edge
+		{
+			int[] trusters = mReceivedTrusters[trustee];
+			byte[] values = mReceivedValues[trustee];
+			final int count = mReceivedCount[trustee];
+			if(trusters == null) {
+				trusters = mReceivedTrusters[trustee] = new int[INITIAL_ADJACENCY_CAPACITY];
+				values = mReceivedValues[trustee] = new byte[INITIAL_ADJACENCY_CAPACITY];
+			} else if(count == trusters.length) {
+				trusters = mReceivedTrusters[trustee] = Arrays.copyOf(trusters, count * 2);
+				values = mReceivedValues[trustee] = Arrays.copyOf(values, count * 2);
+			}
+			trusters[count] = truster;
+			values[count] = value;
+			mReceivedCount[trustee] = count + 1;
+		}
+
+		++mEdgeCount;
+	}
+
+	/**
+	 * Must be called for every {@link Trust} which is deleted.
+	 * @return True if the edge existed. */
+	public boolean removeTrust(final String trusterID, final String trusteeID) {
+		final int truster = getIndex(trusterID);
+		final int trustee = getIndex(trusteeID);
+		if(truster == NO_INDEX || trustee == NO_INDEX)
+			return false;
+
+		final int givenPosition = find(mGivenTrustees[truster], mGivenCount[truster], trustee);
+		if(givenPosition == -1)
+			return false;
+
+		final int receivedPosition
+			= find(mReceivedTrusters[trustee], mReceivedCount[trustee], truster);
+		assert(receivedPosition != -1) : "Given and received edges must be symmetric";
+
+		// Order of the edges is irrelevant, so we fill the gap with the last element.
+		{
+			final int last = --mGivenCount[truster];
+			mGivenTrustees[truster][givenPosition] = mGivenTrustees[truster][last];
+			mGivenValues[truster][givenPosition] = mGivenValues[truster][last];
+		}
+		{
+			final int last = --mReceivedCount[trustee];
+			mReceivedTrusters[trustee][receivedPosition] = mReceivedTrusters[trustee][last];
+			mReceivedValues[trustee][receivedPosition] = mReceivedValues[trustee][last];
+		}
+
+		--mEdgeCount;
+		return true;
+	}
+
+	private static int find(final int[] array, final int count, final int value) {
+		for(int i = 0; i < count; ++i) {
+			if(array[i] == value)
+				return i;
+		}
+		return -1;
+	}
+
+	/** @return The value of the Trust from truster to trustee, or {@link #NO_TRUST}. */
+	public int getTrustValue(final int truster, final int trustee) {
+		// OwnIdentitys typically give a lot more Trusts than a single Identity receives, so search
+		// whichever list is shorter.
+		if(mGivenCount[truster] <= mReceivedCount[trustee]) {
+			final int position = find(mGivenTrustees[truster], mGivenCount[truster], trustee);
+			return position != -1 ? mGivenValues[truster][position] : NO_TRUST;
+		} else {
+			final int position
+				= find(mReceivedTrusters[trustee], mReceivedCount[trustee], truster);
+			return position != -1 ? mReceivedValues[trustee][position] : NO_TRUST;
+		}
+	}
+
+	public int getGivenTrustCount(final int truster) {
+		return mGivenCount[truster];
+	}
+
+	/** @param i Must be less than {@link #getGivenTrustCount(int)} */
+	public int getGivenTrustee(final int truster, final int i) {
+		return mGivenTrustees[truster][i];
+	}
+
+	/** @param i Must be less than {@link #getGivenTrustCount(int)} */
+	public byte getGivenTrustValue(final int truster, final int i) {
+		return mGivenValues[truster][i];
+	}
+
+	public int getReceivedTrustCount(final int trustee) {
+		return mReceivedCount[trustee];
+	}
+
+	/** @param i Must be less than {@link #getReceivedTrustCount(int)} */
+	public int getReceivedTruster(final int trustee, final int i) {
+		return mReceivedTrusters[trustee][i];
+	}
+
+	/** @param i Must be less than {@link #getReceivedTrustCount(int)} */
+	public byte getReceivedTrustValue(final int trustee, final int i) {
+		return mReceivedValues[trustee][i];
+	}
+
+	/**
+	 * Packs the current state of the graph into a read-only {@link Snapshot}.
+	 * O(vertices + edges) time and memory. */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Creates an {@link Overlay} for hypothetical changes to this graph. The graph must not be
+	 * modified while the Overlay is in use. */
+	public Overlay overlay() {
+		return new Overlay(this);
+	}
+
+	/**
+	 * Hypothetical changes to a {@link TrustGraph} which are kept separate from it:<br>
+	 * {@link #setTrust(String, String, byte)} and {@link #removeTrust(String, String)} only store
+	 * the change in this object, the underlying graph is not modified. {@link #snapshot()} merges
+	 * both into a Snapshot which can be used for computing the {@link Score}s which would result
+	 * from the changes.<br>
+	 * Memory usage is O(number of changes), so it is cheap to create one for a large graph.<br>
+	 * Used by {@link WebOfTrust#simulateTrustChanges(java.util.List)}.<br><br>
+	 *
+	 * Vertices which are created by the Overlay get the indices following the ones of the
+	 * underlying graph.
+	 */
+	public static final class Overlay {
+		private final TrustGraph mBase;
+
+		/** IDs of vertices which do not exist in {@link #mBase}. Index = vertex index - vertex
+		 *  count of mBase. */
+		private final ArrayList<String> mAddedIDs = new ArrayList<String>();
+
+		private final HashMap<String, Integer> mAddedIndexOfID = new HashMap<String, Integer>();
+
+		/** Key = truster, value = (Key = trustee, value = new Trust value or {@link #NO_TRUST} if
+		 *  the Trust was removed) */
+		private final HashMap<Integer, HashMap<Integer, Integer>> mGivenChanges
+			= new HashMap<Integer, HashMap<Integer, Integer>>();
+
+		/** Same as {@link #mGivenChanges} with truster and trustee swapped. */
+		private final HashMap<Integer, HashMap<Integer, Integer>> mReceivedChanges
+			= new HashMap<Integer, HashMap<Integer, Integer>>();
+
+		private int mEdgeCount;
+
+		private Overlay(final TrustGraph base) {
+			mBase = base;
+			mEdgeCount = base.mEdgeCount;
+		}
+
+		public int getVertexCount() {
+			return mBase.mVertexCount + mAddedIDs.size();
+		}
+
+		public int getEdgeCount() {
+			return mEdgeCount;
+		}
+
+		/** @see TrustGraph#getIndex(String) */
+		public int getIndex(final String identityID) {
+			final int index = mBase.getIndex(identityID);
+			if(index != NO_INDEX)
+				return index;
+
+			final Integer added = mAddedIndexOfID.get(identityID);
+			return added != null ? added : NO_INDEX;
+		}
+
+		/** @see TrustGraph#getOrCreateIndex(String) */
+		public int getOrCreateIndex(final String identityID) {
+			final int existing = getIndex(identityID);
+			if(existing != NO_INDEX)
+				return existing;
+
+			final int index = getVertexCount();
+			mAddedIDs.add(identityID);
+			mAddedIndexOfID.put(identityID, index);
+			return index;
+		}
+
+		/** @see TrustGraph#getTrustValue(int, int) */
+		public int getTrustValue(final int truster, final int trustee) {
+			final HashMap<Integer, Integer> changes = mGivenChanges.get(truster);
+			if(changes != null) {
+				final Integer changed = changes.get(trustee);
+				if(changed != null)
+					return changed;
+			}
+
+			if(truster >= mBase.mVertexCount || trustee >= mBase.mVertexCount)
+				return NO_TRUST;
+
+			return mBase.getTrustValue(truster, trustee);
+		}
+
+		/** @see TrustGraph#setTrust(String, String, byte) */
+		public void setTrust(final String trusterID, final String trusteeID, final byte value) {
+			final int truster = getOrCreateIndex(trusterID);
+			final int trustee = getOrCreateIndex(trusteeID);
+			if(getTrustValue(truster, trustee) == NO_TRUST)
+				++mEdgeCount;
+			putChange(truster, trustee, value);
+		}
+
+		/** @see TrustGraph#removeTrust(String, String) */
+		public boolean removeTrust(final String trusterID, final String trusteeID) {
+			final int truster = getIndex(trusterID);
+			final int trustee = getIndex(trusteeID);
+			if(truster == NO_INDEX || trustee == NO_INDEX
+					|| getTrustValue(truster, trustee) == NO_TRUST)
+				return false;
+
+			--mEdgeCount;
+			putChange(truster, trustee, NO_TRUST);
+			return true;
+		}
+
+		private void putChange(final int truster, final int trustee, final int value) {
+			HashMap<Integer, Integer> given = mGivenChanges.get(truster);
+			if(given == null)
+				mGivenChanges.put(truster, given = new HashMap<Integer, Integer>());
+			given.put(trustee, value);
+
+			HashMap<Integer, Integer> received = mReceivedChanges.get(trustee);
+			if(received == null)
+				mReceivedChanges.put(trustee, received = new HashMap<Integer, Integer>());
+			received.put(truster, value);
+		}
+
+		/**
+		 * Packs the underlying graph with the changes applied into a read-only {@link Snapshot}.
+		 * O(vertices + edges) time and memory, same as {@link TrustGraph#snapshot()}. */
+		public Snapshot snapshot() {
+			return new Snapshot(this);
+		}
+
+		/**
+		 * Copies the given or received edges of a vertex with the changes applied into the
+		 * arrays of a {@link Snapshot}.
+		 * @return The position after the last copied edge. */
+		private int copyEdges(final int vertex, final boolean given, final int[] targets,
+				final byte[] values, int position) {
+
+			final HashMap<Integer, Integer> changes
+				= (given ? mGivenChanges : mReceivedChanges).get(vertex);
+
+			if(vertex < mBase.mVertexCount) {
+				final int count = given ? mBase.mGivenCount[vertex] : mBase.mReceivedCount[vertex];
+				final int[] others
+					= given ? mBase.mGivenTrustees[vertex] : mBase.mReceivedTrusters[vertex];
+				final byte[] otherValues
+					= given ? mBase.mGivenValues[vertex] : mBase.mReceivedValues[vertex];
+
+				for(int i = 0; i < count; ++i) {
+					if(changes != null && changes.containsKey(others[i]))
+						continue;
+
+					targets[position] = others[i];
+					values[position] = otherValues[i];
+					++position;
+				}
+			}
+
+			if(changes != null) {
+				for(Map.Entry<Integer, Integer> change : changes.entrySet()) {
+					if(change.getValue() == NO_TRUST)
+						continue;
+
+					targets[position] = change.getKey();
+					values[position] = (byte)(int)change.getValue();
+					++position;
+				}
+			}
+
+			return position;
+		}
+	}
+
+	/**
+	 * Immutable copy of a {@link TrustGraph} in compressed sparse row format:<br>
+	 * The given Trusts of vertex v are at the positions [givenOffsets[v], givenOffsets[v+1]) of
+	 * the arrays {@link #givenTrustees} and {@link #givenValues}. The same applies to the received
+	 * Trusts.<br>
+	 * Vertex indices are the same as the ones of the {@link TrustGraph} at the time the snapshot
+	 * was taken.<br><br>
+	 *
+	 * As it does not reference the database or the TrustGraph, it can be used by any thread
+	 * without locking. */
+	public static final class Snapshot {
+
+		public final int vertexCount;
+
+		public final int edgeCount;
+
+		/** Value = {@link Identity#getID()}, index = vertex index. */
+		private final String[] mIDs;
+
+		private final HashMap<String, Integer> mIndexOfID;
+
+		public final int[] givenOffsets;
+		public final int[] givenTrustees;
+		public final byte[] givenValues;
+
+		public final int[] receivedOffsets;
+		public final int[] receivedTrusters;
+		public final byte[] receivedValues;
+
+		private Snapshot(final TrustGraph graph) {
+			vertexCount = graph.mVertexCount;
+			edgeCount = graph.mEdgeCount;
+			mIDs = Arrays.copyOf(graph.mIDs, vertexCount);
+			mIndexOfID = new HashMap<String, Integer>(graph.mIndexOfID);
+
+			givenOffsets = new int[vertexCount + 1];
+			givenTrustees = new int[edgeCount];
+			givenValues = new byte[edgeCount];
+			receivedOffsets = new int[vertexCount + 1];
+			receivedTrusters = new int[edgeCount];
+			receivedValues = new byte[edgeCount];
+
+			int given = 0;
+			int received = 0;
+			for(int v = 0; v < vertexCount; ++v) {
+				givenOffsets[v] = given;
+				final int givenCount = graph.mGivenCount[v];
+				if(givenCount > 0) {
+					System.arraycopy(graph.mGivenTrustees[v], 0, givenTrustees, given, givenCount);
+					System.arraycopy(graph.mGivenValues[v], 0, givenValues, given, givenCount);
+					given += givenCount;
+				}
+
+				receivedOffsets[v] = received;
+				final int receivedCount = graph.mReceivedCount[v];
+				if(receivedCount > 0) {
+					System.arraycopy(graph.mReceivedTrusters[v], 0, receivedTrusters, received,
+						receivedCount);
+					System.arraycopy(graph.mReceivedValues[v], 0, receivedValues, received,
+						receivedCount);
+					received += receivedCount;
+				}
+			}
+			givenOffsets[vertexCount] = given;
+			receivedOffsets[vertexCount] = received;
+
+			assert(given == edgeCount);
+			assert(received == edgeCount);
+		}
+
+		private Snapshot(final Overlay overlay) {
+			final TrustGraph graph = overlay.mBase;
+			vertexCount = overlay.getVertexCount();
+			edgeCount = overlay.getEdgeCount();
+			mIDs = Arrays.copyOf(graph.mIDs, vertexCount);
+			for(int v = graph.mVertexCount; v < vertexCount; ++v)
+				mIDs[v] = overlay.mAddedIDs.get(v - graph.mVertexCount);
+			mIndexOfID = new HashMap<String, Integer>(graph.mIndexOfID);
+			mIndexOfID.putAll(overlay.mAddedIndexOfID);
+
+			givenOffsets = new int[vertexCount + 1];
+			givenTrustees = new int[edgeCount];
+			givenValues = new byte[edgeCount];
+			receivedOffsets = new int[vertexCount + 1];
+			receivedTrusters = new int[edgeCount];
+			receivedValues = new byte[edgeCount];
+
+			int given = 0;
+			int received = 0;
+			for(int v = 0; v < vertexCount; ++v) {
+				givenOffsets[v] = given;
+				given = overlay.copyEdges(v, true, givenTrustees, givenValues, given);
+				receivedOffsets[v] = received;
+				received = overlay.copyEdges(v, false, receivedTrusters, receivedValues, received);
+			}
+			givenOffsets[vertexCount] = given;
+			receivedOffsets[vertexCount] = received;
+
+			assert(given == edgeCount);
+			assert(received == edgeCount);
+		}
+
+		/** @see TrustGraph#getIndex(String) */
+		public int getIndex(final String identityID) {
+			final Integer index = mIndexOfID.get(identityID);
+			return index != null ? index : NO_INDEX;
+		}
+
+		/** @see TrustGraph#getID(int) */
+		public String getID(final int index) {
+			return mIDs[index];
+		}
+
+		/**
+		 * Computes the rank, capacity and score value of all vertices in the trust tree of the
+		 * given tree owner.<br>
+		 * This is the same algorithm as the one of
+		 * {@link WebOfTrust#computeAllScoresWithoutCommit()}, please see its comments for the
+		 * specification. It only differs in that it operates upon this snapshot instead of
+		 * database queries.
+		 *
+		 * @param treeOwner The vertex index of the {@link OwnIdentity} which owns the trust tree.
+		 * @param treeOwnerRank The {@link Score#getRank()} of the self-Score of the tree owner, or
+		 *     {@link #NO_RANK} if it has none (only happens in unit tests). */
+		public ScoreTable computeScoreTable(final int treeOwner, final int treeOwnerRank) {
+			final ScoreTable table = new ScoreTable(vertexCount);
+			final int[] rank = table.rank;
+
+			if(treeOwnerRank < 0) // Cannot give its rank to anyone.
+				return table;
+
+			// The Trust values the tree owner has assigned. They override all other Trusts.
+			final boolean[] hasTreeOwnerTrust = new boolean[vertexCount];
+			final byte[] treeOwnerTrust = new byte[vertexCount];
+			for(int i = givenOffsets[treeOwner]; i < givenOffsets[treeOwner + 1]; ++i) {
+				hasTreeOwnerTrust[givenTrustees[i]] = true;
+				treeOwnerTrust[givenTrustees[i]] = givenValues[i];
+			}
+
+			// Compute the ranks using breadth first search
+
+			final int[] queue = new int[vertexCount];
+			int queueHead = 0;
+			int queueTail = 0;
+
+			rank[treeOwner] = treeOwnerRank;
+			queue[queueTail++] = treeOwner;
+
+			while(queueHead < queueTail) {
+				final int truster = queue[queueHead++];
+				final int trusterRank = rank[truster];
+
+				// We do not enqueue identities with infinite rank but check for security
+				if(trusterRank == Integer.MAX_VALUE)
+					continue;
+
+				final int trusteeRank = trusterRank + 1;
+
+				for(int i = givenOffsets[truster]; i < givenOffsets[truster + 1]; ++i) {
+					final int trustee = givenTrustees[i];
+					final int oldTrusteeRank = rank[trustee];
+
+					if(oldTrusteeRank == NO_RANK) {
+						if(givenValues[i] > 0) {
+							rank[trustee] = trusteeRank;
+							queue[queueTail++] = trustee;
+						} else
+							rank[trustee] = Integer.MAX_VALUE;
+					} else {
+						assert(oldTrusteeRank == Integer.MAX_VALUE || trusteeRank >= oldTrusteeRank);
+
+						// An infinite rank may be overwritten by a finite one unless the infinite
+						// rank was given by the tree owner.
+						if(oldTrusteeRank == Integer.MAX_VALUE && !hasTreeOwnerTrust[trustee]
+								&& givenValues[i] > 0) {
+							rank[trustee] = trusteeRank;
+							queue[queueTail++] = trustee;
+						}
+
+						assert(!hasTreeOwnerTrust[trustee] || rank[trustee] != Integer.MAX_VALUE
+							|| treeOwnerTrust[trustee] <= 0);
+					}
+				}
+			}
+
+			completeScoreTable(table, treeOwner, hasTreeOwnerTrust, treeOwnerTrust);
+			return table;
+		}
+
+		/**
+		 * Computes the capacities and values of a {@link ScoreTable} whose ranks have been
+		 * computed already.
+		 *
+		 * @param hasTreeOwnerTrust True for each vertex to which the treeOwner has given a Trust.
+		 * @param treeOwnerTrust The Trust values the treeOwner has given, for each vertex. */
+		private void completeScoreTable(final ScoreTable table, final int treeOwner,
+				final boolean[] hasTreeOwnerTrust, final byte[] treeOwnerTrust) {
+
+			final int[] rank = table.rank;
+
+			// Compute the capacities
+
+			final int[] capacity = table.capacity;
+			for(int v = 0; v < vertexCount; ++v) {
+				if(v == treeOwner)
+					capacity[v] = 100;
+				else if(hasTreeOwnerTrust[v] && treeOwnerTrust[v] <= 0) {
+					assert(rank[v] == Integer.MAX_VALUE);
+					capacity[v] = 0;
+				} else if(rank[v] == NO_RANK || rank[v] == Integer.MAX_VALUE)
+					capacity[v] = 0;
+				else
+					capacity[v] = (rank[v] < WebOfTrust.capacities.length)
+						? WebOfTrust.capacities[rank[v]] : 1;
+			}
+
+			// Compute the score values
+
+			final int[] value = table.value;
+			for(int v = 0; v < vertexCount; ++v) {
+				if(rank[v] == NO_RANK)
+					continue;
+
+				if(rank[v] == 0) // The treeOwner trusts himself.
+					value[v] = Integer.MAX_VALUE;
+				else if(hasTreeOwnerTrust[v])
+					value[v] = treeOwnerTrust[v];
+				else {
+					int sum = 0;
+					for(int i = receivedOffsets[v]; i < receivedOffsets[v + 1]; ++i)
+						sum += (receivedValues[i] * capacity[receivedTrusters[i]]) / 100;
+					value[v] = sum;
+				}
+			}
+		}
+
+		/**
+		 * Computes the {@link ScoreTable}s of up to 64 trust trees with a single breadth first
+		 * search: Each vertex has a long whose bit j represents the tree owner
+		 * treeOwners[first + j], so each edge is only scanned once per rank level for all of the
+		 * trust trees instead of once per tree owner.<br>
+		 * The result is the same as the one of {@link #computeScoreTable(int, int)}, which is the
+		 * reference implementation. Only the ranks are computed in a bit-parallel manner, the
+		 * capacities and values are computed per tree owner afterwards.<br><br>
+		 *
+		 * The computation follows from the rules of {@link #computeScoreTable(int, int)}:<br>
+		 * - A vertex has a finite rank if there is a path of positive Trusts from the tree owner
+		 *   to it which does not pass through a vertex to which the tree owner has given a Trust
+		 *   of <= 0. The rank is the length of the shortest such path plus the rank of the tree
+		 *   owner.<br>
+		 * - A vertex without a finite rank has a rank of Integer.MAX_VALUE if it received a
+		 *   Trust of <= 0 from a vertex with a finite rank.<br>
+		 * - All other vertices have no rank.
+		 *
+		 * @param tables Receives the ScoreTables at the positions [first, first + count). */
+		private void computeScoreTablesBitParallel(final int[] treeOwners,
+				final int[] treeOwnerRanks, final ScoreTable[] tables, final int first,
+				final int count) {
+
+			assert(count > 0 && count <= Long.SIZE);
+
+			// Bits of the tree owners which have given a Trust <= 0 to the vertex. It cannot
+			// receive a finite rank in their trust trees.
+			final long[] blocked = new long[vertexCount];
+			// Bits of the tree owners in whose trust tree the vertex has a finite rank.
+			final long[] visited = new long[vertexCount];
+			// Bits of the tree owners in whose trust tree the vertex has received a Trust <= 0
+			// from a vertex with a finite rank.
+			final long[] distrusted = new long[vertexCount];
+			// Bits of the tree owners in whose trust tree the vertex is part of the current /
+			// next level of the breadth first search.
+			final long[] frontier = new long[vertexCount];
+			final long[] next = new long[vertexCount];
+
+			// The vertices which have a non-zero frontier[] / next[] entry.
+			int[] frontierList = new int[Math.min(vertexCount, Math.max(count, 16))];
+			int frontierSize = 0;
+			int[] nextList = new int[frontierList.length];
+			int nextSize = 0;
+
+			for(int j = 0; j < count; ++j) {
+				final int i = first + j;
+				tables[i] = new ScoreTable(vertexCount);
+
+				if(treeOwnerRanks[i] < 0) // Cannot give its rank to anyone.
+					continue;
+
+				final long bit = 1L << j;
+				final int treeOwner = treeOwners[i];
+
+				tables[i].rank[treeOwner] = treeOwnerRanks[i];
+				visited[treeOwner] |= bit;
+				frontier[treeOwner] |= bit;
+				frontierList[frontierSize++] = treeOwner;
+
+				for(int e = givenOffsets[treeOwner]; e < givenOffsets[treeOwner + 1]; ++e) {
+					if(givenValues[e] <= 0)
+						blocked[givenTrustees[e]] |= bit;
+				}
+			}
+
+			int level = 0;
+
+			while(frontierSize > 0) {
+				++level;
+
+				for(int f = 0; f < frontierSize; ++f) {
+					final int truster = frontierList[f];
+					final long trusterBits = frontier[truster];
+
+					for(int e = givenOffsets[truster]; e < givenOffsets[truster + 1]; ++e) {
+						final int trustee = givenTrustees[e];
+
+						if(givenValues[e] > 0) {
+							final long newBits
+								= trusterBits & ~visited[trustee] & ~blocked[trustee] & ~next[trustee];
+
+							if(newBits != 0) {
+								if(next[trustee] == 0) {
+									if(nextSize == nextList.length)
+										nextList = Arrays.copyOf(nextList, Math.min(vertexCount, nextSize * 2));
+
+									nextList[nextSize++] = trustee;
+								}
+
+								next[trustee] |= newBits;
+							}
+						} else
+							distrusted[trustee] |= trusterBits;
+					}
+
+					frontier[truster] = 0;
+				}
+
+				for(int n = 0; n < nextSize; ++n) {
+					final int trustee = nextList[n];
+					long bits = next[trustee];
+					next[trustee] = 0;
+					visited[trustee] |= bits;
+					frontier[trustee] = bits;
+
+					while(bits != 0) {
+						final int j = Long.numberOfTrailingZeros(bits);
+						bits &= bits - 1;
+						tables[first + j].rank[trustee] = treeOwnerRanks[first + j] + level;
+					}
+				}
+
+				final int[] swap = frontierList;
+				frontierList = nextList;
+				frontierSize = nextSize;
+				nextList = swap;
+				nextSize = 0;
+			}
+
+			for(int v = 0; v < vertexCount; ++v) {
+				long bits = distrusted[v] & ~visited[v];
+
+				while(bits != 0) {
+					final int j = Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					tables[first + j].rank[v] = Integer.MAX_VALUE;
+				}
+			}
+
+			// Compute the capacities and values per tree owner.
+
+			final boolean[] hasTreeOwnerTrust = new boolean[vertexCount];
+			final byte[] treeOwnerTrust = new byte[vertexCount];
+
+			for(int j = 0; j < count; ++j) {
+				final int i = first + j;
+
+				if(treeOwnerRanks[i] < 0)
+					continue;
+
+				final int treeOwner = treeOwners[i];
+
+				for(int e = givenOffsets[treeOwner]; e < givenOffsets[treeOwner + 1]; ++e) {
+					hasTreeOwnerTrust[givenTrustees[e]] = true;
+					treeOwnerTrust[givenTrustees[e]] = givenValues[e];
+				}
+
+				completeScoreTable(tables[i], treeOwner, hasTreeOwnerTrust, treeOwnerTrust);
+
+				for(int e = givenOffsets[treeOwner]; e < givenOffsets[treeOwner + 1]; ++e) {
+					hasTreeOwnerTrust[givenTrustees[e]] = false;
+					treeOwnerTrust[givenTrustees[e]] = 0;
+				}
+			}
+		}
+
+		/**
+		 * Computes the {@link ScoreTable}s of multiple trust trees.<br><br>
+		 *
+		 * If bitParallel is false, each trust tree is computed by
+		 * {@link #computeScoreTable(int, int)}. If it is true, the tree owners are processed in
+		 * groups of 64 by {@link #computeScoreTablesBitParallel(int[], int[], ScoreTable[], int,
+		 * int)}, which is faster if there are many tree owners.<br><br>
+		 *
+		 * The trust trees of different tree owners are independent of each other, so if an
+		 * {@link Executor} is passed and threadCount is greater than 1, they are computed in
+		 * parallel: threadCount jobs are started on the executor, each of them repeatedly takes
+		 * the next not yet computed tree owner (or group of tree owners) until all are done. The
+		 * calling thread waits for all jobs to finish. The result does not depend on the amount
+		 * of threads, and not on whether bitParallel is used.<br><br>
+		 *
+		 * This does not access the database, so the jobs need no locks. The caller may hold locks
+		 * while calling this as long as the jobs do not need them.
+		 *
+		 * @param treeOwners The vertex indices of the tree owners.
+		 * @param treeOwnerRanks The treeOwnerRank for
+		 *     {@link #computeScoreTable(int, int)}, for each of the treeOwners.
+		 * @param executor May be null to compute serially on the calling thread.
+		 * @return The ScoreTable for each of the treeOwners, in the same order.
+		 * @throws RuntimeException If one of the jobs failed or the calling thread was interrupted
+		 *     while waiting for them. */
+		public ScoreTable[] computeScoreTables(final int[] treeOwners, final int[] treeOwnerRanks,
+				final boolean bitParallel, final Executor executor, final int threadCount) {
+
+			assert(treeOwners.length == treeOwnerRanks.length);
+
+			final ScoreTable[] tables = new ScoreTable[treeOwners.length];
+			final int groupSize = bitParallel ? Long.SIZE : 1;
+			final int groupCount = (treeOwners.length + groupSize - 1) / groupSize;
+			final int jobCount = Math.min(threadCount, groupCount);
+
+			if(executor == null || jobCount <= 1) {
+				for(int group = 0; group < groupCount; ++group)
+					computeScoreTableGroup(treeOwners, treeOwnerRanks, tables, group, groupSize);
+
+				return tables;
+			}
+
+			final AtomicInteger nextGroup = new AtomicInteger(0);
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>(null);
+			final CountDownLatch finished = new CountDownLatch(jobCount);
+
+			final Runnable job = new Runnable() { @Override public void run() {
+				try {
+					int group;
+					while((group = nextGroup.getAndIncrement()) < groupCount
+							&& failure.get() == null) {
+						computeScoreTableGroup(treeOwners, treeOwnerRanks, tables, group, groupSize);
+					}
+				} catch(Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					finished.countDown();
+				}
+			}};
+
+			for(int i = 0; i < jobCount; ++i)
+				executor.execute(job, "WebOfTrust ScoreTable computation " + (i+1) + "/" + jobCount);
+
+			try {
+				finished.await();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while computing ScoreTables", e);
+			}
+
+			if(failure.get() != null)
+				throw new RuntimeException("Computing a ScoreTable failed", failure.get());
+
+			// The CountDownLatch guarantees that the writes of the jobs to the array are visible.
+			return tables;
+		}
+
+		/** Unit of work of {@link #computeScoreTables(int[], int[], boolean, Executor, int)}. */
+		private void computeScoreTableGroup(final int[] treeOwners, final int[] treeOwnerRanks,
+				final ScoreTable[] tables, final int group, final int groupSize) {
+
+			final int first = group * groupSize;
+
+			if(groupSize == 1) {
+				tables[first] = computeScoreTable(treeOwners[first], treeOwnerRanks[first]);
+				return;
+			}
+
+			computeScoreTablesBitParallel(treeOwners, treeOwnerRanks, tables, first,
+				Math.min(groupSize, treeOwners.length - first));
+		}
+	}
+
+	/**
+	 * Result of {@link Snapshot#computeScoreTable(int, int)}: The rank, capacity and value of the
+	 * {@link Score} of each vertex in a single trust tree. Indexed by vertex index.<br>
+	 * Vertices with a rank of {@link TrustGraph#NO_RANK} shall have no Score. For them, capacity
+	 * and value are 0. */
+	public static final class ScoreTable {
+		public final int[] rank;
+		public final int[] capacity;
+		public final int[] value;
+
+		ScoreTable(final int vertexCount) {
+			rank = new int[vertexCount];
+			Arrays.fill(rank, NO_RANK);
+			capacity = new int[vertexCount];
+			value = new int[vertexCount];
+		}
+
+		@Override public boolean equals(final Object obj) {
+			if(obj == this)
+				return true;
+
+			if(!(obj instanceof ScoreTable))
+				return false;
+
+			final ScoreTable other = (ScoreTable)obj;
+			return Arrays.equals(rank, other.rank)
+				&& Arrays.equals(capacity, other.capacity)
+				&& Arrays.equals(value, other.value);
+		}
+
+		@Override public int hashCode() {
+			return Arrays.hashCode(rank) ^ Arrays.hashCode(capacity) ^ Arrays.hashCode(value);
+		}
+	}
+}
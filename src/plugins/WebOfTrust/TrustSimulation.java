@@ -0,0 +1,104 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ChangeSet;
+
+/**
+ * Result of {@link WebOfTrust#simulateTrustChanges(List)}: The {@link Score}s which would change
+ * and the {@link Identity}s whose {@link WebOfTrust#shouldFetchIdentity(Identity)} would change
+ * if the given {@link Operation}s were applied to the database.<br>
+ * Nothing of it is stored in the database. Immutable.
+ */
+public final class TrustSimulation {
+
+	/**
+	 * A hypothetical {@link WebOfTrust#setTrust(String, String, byte, String)} or
+	 * {@link WebOfTrust#removeTrust(String, String)}. Immutable.
+	 */
+	public static final class Operation {
+		public final String trusterID;
+
+		public final String trusteeID;
+
+		/** The new value of the {@link Trust}, or null if the Trust is removed. */
+		public final Byte value;
+
+		private Operation(String myTrusterID, String myTrusteeID, Byte myValue) {
+			trusterID = myTrusterID;
+			trusteeID = myTrusteeID;
+			value = myValue;
+		}
+
+		public static Operation setTrust(String ownTrusterID, String trusteeID, byte value) {
+			return new Operation(ownTrusterID, trusteeID, value);
+		}
+
+		public static Operation removeTrust(String ownTrusterID, String trusteeID) {
+			return new Operation(ownTrusterID, trusteeID, null);
+		}
+
+		public boolean isRemoval() {
+			return value == null;
+		}
+
+		@Override public String toString() {
+			return "Operation { truster: " + trusterID + "; trustee: " + trusteeID + "; value: "
+				+ (value != null ? value : "removed") + " }";
+		}
+	}
+
+	private final List<Operation> mOperations;
+
+	private final List<ChangeSet<Score>> mScoreChanges;
+
+	/** {@link Identity#getID()} of the Identitys which would start being fetched. */
+	private final List<String> mIdentitiesToStartFetching;
+
+	/** {@link Identity#getID()} of the Identitys which would stop being fetched. */
+	private final List<String> mIdentitiesToStopFetching;
+
+	TrustSimulation(List<Operation> operations, ArrayList<ChangeSet<Score>> scoreChanges,
+			ArrayList<String> identitiesToStartFetching,
+			ArrayList<String> identitiesToStopFetching) {
+
+		mOperations = Collections.unmodifiableList(new ArrayList<Operation>(operations));
+		mScoreChanges = Collections.unmodifiableList(scoreChanges);
+		mIdentitiesToStartFetching = Collections.unmodifiableList(identitiesToStartFetching);
+		mIdentitiesToStopFetching = Collections.unmodifiableList(identitiesToStopFetching);
+	}
+
+	public List<Operation> getOperations() {
+		return mOperations;
+	}
+
+	/**
+	 * The {@link ChangeSet#beforeChange} is a clone of the stored {@link Score}, or null if it
+	 * would be created.<br>
+	 * The {@link ChangeSet#afterChange} is a Score which is not stored in the database, or null if
+	 * the Score would be deleted. */
+	public List<ChangeSet<Score>> getScoreChanges() {
+		return mScoreChanges;
+	}
+
+	public List<String> getIdentitiesToStartFetching() {
+		return mIdentitiesToStartFetching;
+	}
+
+	public List<String> getIdentitiesToStopFetching() {
+		return mIdentitiesToStopFetching;
+	}
+
+	@Override public String toString() {
+		return "TrustSimulation { operations: " + mOperations.size()
+			+ "; changed Scores: " + mScoreChanges.size()
+			+ "; identities to start fetching: " + mIdentitiesToStartFetching.size()
+			+ "; identities to stop fetching: " + mIdentitiesToStopFetching.size() + " }";
+	}
+
+}
@@ -4,20 +4,29 @@
 package plugins.WebOfTrust;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import plugins.WebOfTrust.Identity.FetchState;
@@ -41,6 +50,9 @@ import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ChangeSet;
 import plugins.WebOfTrust.ui.fcp.FCPInterface;
 import plugins.WebOfTrust.ui.web.WebInterface;
 import plugins.WebOfTrust.util.StopWatch;
+import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
 
 import com.db4o.Db4o;
 import com.db4o.ObjectContainer;
@@ -48,6 +60,8 @@ import com.db4o.ObjectSet;
 import com.db4o.defragment.Defragment;
 import com.db4o.defragment.DefragmentConfig;
 import com.db4o.ext.ExtObjectContainer;
+import com.db4o.io.IoAdapter;
+import com.db4o.io.RandomAccessFileAdapter;
 import com.db4o.query.Query;
 import com.db4o.reflect.jdk.JdkReflector;
 
@@ -104,8 +118,53 @@ public final class WebOfTrust extends WebOfTrustInterface
 	/** Package-private method to allow unit tests to bypass some assert()s */
 	
 	public static final String DATABASE_FILENAME =  WebOfTrustInterface.WOT_NAME + ".db4o"; 
-	public static final int DATABASE_FORMAT_VERSION = 7;
+	public static final int DATABASE_FORMAT_VERSION = 9;
 	
+	/**
+	 * Amount of threads which {@link #computeAllScoresWithoutCommit()} uses for computing the
+	 * trust trees of the {@link OwnIdentity}s in parallel. 1 disables parallelization. */
+	public static final int SCORE_COMPUTATION_THREADS
+		= Math.max(1, Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * Amount of threads which {@link #verifyDatabaseIntegrity()} uses for searching for broken
+	 * objects and for testing the integrity of all objects in parallel. 1 disables
+	 * parallelization. */
+	public static final int INTEGRITY_TEST_THREADS
+		= Math.max(1, Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * Amount of objects of a class of which {@link #verifyDatabaseIntegrity()} tests the integrity
+	 * in a single unit of work of one of the {@link #INTEGRITY_TEST_THREADS}. */
+	private static final int INTEGRITY_TEST_CHUNK_SIZE = 1024;
+	
+	/**
+	 * If at least this many {@link OwnIdentity}s exist, {@link #computeAllScoresWithoutCommit()}
+	 * computes the ranks of up to 64 of their trust trees with a single bit-parallel breadth first
+	 * search instead of one search per OwnIdentity.
+	 * @see TrustGraph.Snapshot#computeScoreTables(int[], int[], boolean, Executor, int) */
+	public static final int BIT_PARALLEL_SCORE_COMPUTATION_MIN_TREE_OWNERS = 8;
+	
+	/**
+	 * If true, {@link #computeAllScoresWithoutCommit()} computes the trust trees a second time
+	 * serially on the calling thread, one tree owner after another, and compares the result
+	 * against the one of the parallel / bit-parallel computation. Mismatches are logged and the
+	 * serial result is used then.<br>
+	 * For debugging
+	 * {@link TrustGraph.Snapshot#computeScoreTables(int[], int[], boolean, Executor, int)}. */
+	public static final boolean DEBUG__VERIFY_PARALLEL_SCORE_COMPUTATION = false;
+	
+	/**
+	 * Delay between the transactions of the background verification of {@link Score}s, see
+	 * {@link #verifyAndCorrectStoredScoresOfNextTreeOwner()}. Other threads can take the locks
+	 * during it. */
+	public static final long SCORE_VERIFICATION_DELAY = 10 * 1000;
+	
+	/**
+	 * Maximal amount of {@link Identity}s in the {@link IdentityCache} of
+	 * {@link #getIdentityByID(String)}. A multiple of the trustee count of a trust list, so
+	 * the trustees of consecutive trust list imports are likely to be cached. */
+	public static final int IDENTITY_CACHE_SIZE = 16 * XMLTransformer.MAX_IDENTITY_XML_TRUSTEE_AMOUNT;
 	
 
 	/* References from the node */
@@ -178,7 +237,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	/**
 	 * TODO: Performance / Code quality: We have incremental computation in
 	 * {@link #updateScoresWithoutCommit(Trust, Trust)} now using
-	 * {@link #updateScoresAfterDistrustWithoutCommit(Identity)}. It uses this variable where
+	 * {@link #updateScoresAfterDistrustWithoutCommit(Collection)}. It uses this variable where
 	 * full recomputation was needed previously. Thus, this should be renamed to
 	 * "mUpdateScoresAfterDistrustNeeded", and probably become a local variable in
 	 * {@link #updateScoresWithoutCommit(Trust, Trust)}. However, before doing that, please
@@ -188,6 +247,71 @@ public final class WebOfTrust extends WebOfTrustInterface
 	
 	private boolean mTrustListImportInProgress = false;
 	
+	/**
+	 * While {@link #mTrustListImportInProgress} is true, {@link #updateScoresWithoutCommit(Trust,
+	 * Trust)} does not update the Scores but only adds the {@link Identity#getID()} of the trustee
+	 * of the changed {@link Trust} to this set. {@link #finishTrustListImport()} then updates the
+	 * Scores of all of them in a single batch, see
+	 * {@link #updateScoresAfterTrustListImportWithoutCommit()}.<br>
+	 * Null if no trust list import is in progress. */
+	private HashSet<String> mTrustListImportTrusteesWithChangedTrust = null;
+	
+	/**
+	 * In-memory mirror of all {@link Trust} objects, used by the Score computation instead of
+	 * database queries. Null if it has not been loaded yet or was invalidated.<br>
+	 * Kept in sync by {@link #setTrustWithoutCommit(Identity, Identity, byte, String)} and
+	 * {@link #removeTrustWithoutCommit(Trust)}. Other code which stores or deletes Trust objects
+	 * must call {@link #invalidateTrustGraph()}. Rolling back the database invalidates it through
+	 * {@link #mTrustGraphRollbackListener}.
+	 * @see #getTrustGraph() */
+	private TrustGraph mTrustGraph = null;
+	
+	/**
+	 * Invalidates the {@link #mTrustGraph} when the database is rolled back: It may contain
+	 * changes of the rolled back transaction.<br>
+	 * Must be a member variable because {@link Persistent#addRollbackListener(ExtObjectContainer,
+	 * Persistent.RollbackListener)} only keeps a weak reference. */
+	private final Persistent.RollbackListener mTrustGraphRollbackListener
+			= new Persistent.RollbackListener() {
+		@Override public void onRollback() {
+			// The rollback happens while the transaction lock is held, and all users of the
+			// TrustGraph hold it as well, so we do not have to synchronize on the WebOfTrust.
+			invalidateTrustGraph();
+			// Same for the index: It may contain IDs of objects of the rolled back transaction.
+			invalidateTrustAndScoreIndex();
+			mIdentityCache.clear();
+		}
+	};
+	
+	/**
+	 * Index of all {@link Trust}s and {@link Score}s by ID, for {@link #getTrust(String)} and
+	 * {@link #getScore(String)}. Null if it has not been loaded yet or was invalidated.<br>
+	 * Maintained and invalidated in the same ways as the {@link #mTrustGraph}.
+	 * @see #getTrustAndScoreIndex() */
+	private TrustAndScoreIndex mTrustAndScoreIndex = null;
+	
+	/** @see #getIdentityByID(String) */
+	private final IdentityCache mIdentityCache = new IdentityCache(IDENTITY_CACHE_SIZE);
+	
+	/** @see GroupCommit */
+	private final GroupCommit.Statistics mGroupCommitStatistics = new GroupCommit.Statistics();
+	
+	/**
+	 * Backs up the database while WoT is running. Constructed by {@link #openDatabase(File)}
+	 * because it needs the {@link OnlineBackup.MirroringIoAdapter} of the database.<br>
+	 * Volatile since {@link #terminate()} uses it without synchronization. */
+	private volatile OnlineBackup mOnlineBackup = null;
+	
+	/** @see #getDatabaseFile() */
+	private File mDatabaseFile = null;
+	
+	
+	/**
+	 * Executes {@link #verifyAndCorrectStoredScoresOfNextTreeOwner()} until all trust trees have
+	 * been verified. {@link MockDelayedBackgroundJob#DEFAULT} if no verification was started.<br>
+	 * Volatile since {@link #terminate()} uses it without synchronization. */
+	private volatile DelayedBackgroundJob mScoreVerificationJob
+		= MockDelayedBackgroundJob.DEFAULT;
 	
 	/* User interfaces */
 	
@@ -198,6 +322,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 	
 	private DebugFCPClient mDebugFCPClient;
 	
+	/** Used instead of the node's Executor in unit tests. Created lazily by {@link #getExecutor()}. */
+	private Executor mUnitTestExecutor = null;
+	
 	/* Statistics */
 	private int mFullScoreRecomputationCount = 0;
 	private long mFullScoreRecomputationMilliseconds = 0;
@@ -205,6 +332,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 	private int mIncrementalScoreRecomputationDueToDistrustCount = 0;
 	private long mIncrementalScoreRecomputationDueToTrustNanos = 0;
 	private long mIncrementalScoreRecomputationDueToDistrustNanos = 0;
+	private int mIncrementalScoreRecomputationDueToTrustListImportCount = 0;
+	private long mIncrementalScoreRecomputationDueToTrustListImportNanos = 0;
+	private int mIncrementalScoreRecomputationInDatabaseCount = 0;
+	private int mTrustTreeComputationCount = 0;
+	private long mTrustTreeComputationNanos = 0;
+	/** Result of the last {@link #benchmarkRankComputers(int)}, null if it was never run. */
+	private RankComputer.Benchmark mRankComputerBenchmark = null;
 
 	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
@@ -231,6 +365,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// cloneDatabase(new File(getUserDataDirectory(), DATABASE_FILENAME), new File(getUserDataDirectory(), DATABASE_FILENAME + ".clone"));
 			
 			mDB = openDatabase(new File(getUserDataDirectory(), DATABASE_FILENAME));
+			Persistent.addRollbackListener(mDB, mTrustGraphRollbackListener);
 			
 			mConfig = getOrCreateConfig();
 			
@@ -262,7 +397,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			mXMLTransformer = new XMLTransformer(this);
 
 			mIdentityFileProcessor = new IdentityFileProcessor(
-				mIdentityFileQueue, mPR.getNode().getTicker(), mXMLTransformer);
+				mIdentityFileQueue, mPR.getNode().getTicker(), getExecutor(), mXMLTransformer);
 
 			mFetcher = new IdentityFetcher(this, getPluginRespirator(), mIdentityFileQueue);
 
@@ -280,6 +415,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 			if(logDEBUG)
 				verifyDatabaseIntegrity();
 			
+			// Load the index now instead of at the first Trust or Score lookup, which would
+			// delay the first identity file import or web interface request.
+			synchronized(this) {
+			synchronized(Persistent.transactionLock(mDB)) {
+				getTrustAndScoreIndex();
+			}
+			}
+			
 			// Identity files flow through the following pipe:
 			//     mFetcher -> mIdentityFileQueue -> mIdentityFileProcessor
 			// Thus, we start the pipe's daemons in reverse order to ensure that the receiving ones
@@ -345,6 +488,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 */
 	public WebOfTrust(String databaseFilename) {
 		mDB = openDatabase(new File(databaseFilename));
+		Persistent.addRollbackListener(mDB, mTrustGraphRollbackListener);
 		mConfig = getOrCreateConfig();
 		
 		if(mConfig.getDatabaseFormatVersion() != WebOfTrust.DATABASE_FORMAT_VERSION)
@@ -365,7 +509,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		mXMLTransformer = new XMLTransformer(this);
 		
 		mIdentityFileProcessor
-			= new IdentityFileProcessor(mIdentityFileQueue, null, mXMLTransformer);
+			= new IdentityFileProcessor(mIdentityFileQueue, null, getExecutor(), mXMLTransformer);
 
 		mFetcher = new IdentityFetcher(this, null, mIdentityFileQueue);
 		
@@ -627,7 +771,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 	private synchronized ExtObjectContainer openDatabase(File file) {
 		Logger.normal(this, "Opening database using db4o " + Db4o.version());
 		
-		if(peekDatabaseFormatVersion(file) > WebOfTrust.DATABASE_FORMAT_VERSION) {
+		final PeekedConfiguration peekedConfig = peekConfiguration(file);
+		
+		if(peekedConfig.mDatabaseFormatVersion > WebOfTrust.DATABASE_FORMAT_VERSION) {
 			throw new RuntimeException(
 			    "The format of your WoT database is newer than the WoT plugin you tried to load. "
 			  + "Please upgrade to the latest version of the WoT plugin!");
@@ -641,8 +787,24 @@ public final class WebOfTrust extends WebOfTrustInterface
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-
-		return Db4o.openFile(getNewDatabaseConfiguration(), file.getAbsolutePath()).ext();
+		
+		final com.db4o.config.Configuration config = getNewDatabaseConfiguration();
+		final IoAdapter io;
+		
+		if(peekedConfig.mMappedDatabasePageCacheSize > 0) {
+			Logger.normal(this, "Memory-mapping database, page cache size: "
+				+ peekedConfig.mMappedDatabasePageCacheSize);
+			io = new MappedIoAdapter(peekedConfig.mMappedDatabasePageCacheSize);
+		} else
+			io = new RandomAccessFileAdapter(); // The default of db4o
+		
+		final OnlineBackup.MirroringIoAdapter mirroringIo = new OnlineBackup.MirroringIoAdapter(io);
+		config.io(mirroringIo);
+		
+		final ExtObjectContainer database = Db4o.openFile(config, file.getAbsolutePath()).ext();
+		mOnlineBackup = new OnlineBackup(this, mirroringIo);
+		mDatabaseFile = file;
+		return database;
 	}
 	
 	/**
@@ -672,6 +834,18 @@ public final class WebOfTrust extends WebOfTrustInterface
                 // Notice: The below switch() might call it again. That won't break anything.
                 if (databaseFormatVersion < 5)
                     upgradeDatabaseFormatVersion12345();
+                
+                // The upgrade functions of older versions modify Scores, which updates the
+                // values which upgradeDatabaseFormatVersion7() initializes. So they must be
+                // initialized before. It is safe to call the function twice.
+                if (databaseFormatVersion < 7)
+                    upgradeDatabaseFormatVersion7();
+                
+                // Identity.getEdition() returns the value which upgradeDatabaseFormatVersion8()
+                // initializes, and the upgrade functions of older versions might use it. So it
+                // must be initialized before. It is safe to call the function twice.
+                if (databaseFormatVersion < 9)
+                    upgradeDatabaseFormatVersion8();
 
 				switch(databaseFormatVersion) {
 					case 1: upgradeDatabaseFormatVersion1(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
@@ -684,7 +858,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 					case 4: upgradeDatabaseFormatVersion4(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
                     case 5: upgradeDatabaseFormatVersion12345(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
 					case 6: upgradeDatabaseFormatVersion6(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
-					case 7: break;
+					case 7: upgradeDatabaseFormatVersion7(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
+					case 8: upgradeDatabaseFormatVersion8(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
+					case 9: break;
 					default:
 						throw new UnsupportedOperationException("Your database is newer than this WOT version! Please upgrade WOT.");
 				}
@@ -948,6 +1124,31 @@ public final class WebOfTrust extends WebOfTrustInterface
 		mConfig.storeWithoutCommit();
 	}
 
+	/**
+	 * Upgrades database format version 7 to version 8.<br><br>
+	 * 
+	 * Initializes the best Score / capacity / should-fetch state which {@link Identity} now stores
+	 * as a copy of its {@link Score}s, see {@link Identity#updateBestScoreWithoutCommit(Score,
+	 * boolean)}. */
+	private void upgradeDatabaseFormatVersion7() {
+		Logger.normal(this, "Computing best Score / capacity of identities...");
+		
+		for(Identity identity : getAllIdentities())
+			identity.updateBestScoreWithoutCommit(null, false);
+	}
+
+	/**
+	 * Upgrades database format version 8 to version 9.<br><br>
+	 * 
+	 * Initializes the edition which {@link Identity} now stores as a separate, indexed field so
+	 * it can be sorted by natively, see {@link SortOrder#ByEditionAscending}. */
+	private void upgradeDatabaseFormatVersion8() {
+		Logger.normal(this, "Copying editions of identities...");
+		
+		for(Identity identity : getAllIdentities())
+			identity.upgradeDatabaseFormatVersion8WithoutCommit();
+	}
+
 	/**
 	 * DO NOT USE THIS FUNCTION ON A DATABASE WHICH YOU WANT TO CONTINUE TO USE!
 	 * 
@@ -1024,37 +1225,53 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return foundLeak;
 	}
 	
+	/**
+	 * Deletes duplicate and orphan objects, calls {@link Persistent#startupDatabaseIntegrityTest()}
+	 * upon all objects in the database and verifies the {@link TrustAndScoreIndex}.<br><br>
+	 * 
+	 * Except for the repairs, this only reads the database, so it is done in parallel by
+	 * {@link #INTEGRITY_TEST_THREADS} threads while this thread holds the locks on their behalf:
+	 * - {@link #findBrokenObjects()} runs the searches for the different kinds of broken objects
+	 *   concurrently.<br>
+	 * - {@link #repairDatabase(BrokenObjects)} then deletes all of them in a single transaction on
+	 *   this thread.<br>
+	 * - {@link #testIntegrityOfAllObjects()} partitions the objects by class and by database ID and
+	 *   tests the partitions concurrently.<br>
+	 * 
+	 * @return False if the integrity test of any object failed or the index was inconsistent.
+	 */
 	public synchronized boolean verifyDatabaseIntegrity() {
 		// Take locks of all objects which deal with persistent stuff because we act upon ALL persistent objects.
 		synchronized(mPuzzleStore) {
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
-			deleteDuplicateObjects();
-			deleteOrphanObjects();
+			final StopWatch time = new StopWatch();
+			
+			BrokenObjects broken = findBrokenObjects();
+			if(!broken.mDuplicateIdentities.isEmpty()) {
+				// Deleting an Identity also deletes its Trusts and Scores, which the other searches
+				// may have found. So delete the duplicates first and search again.
+				final BrokenObjects duplicates = new BrokenObjects();
+				duplicates.mDuplicateIdentities.addAll(broken.mDuplicateIdentities);
+				repairDatabase(duplicates);
+				broken = findBrokenObjects();
+			}
+			repairDatabase(broken);
 			
 			Logger.debug(this, "Testing database integrity...");
 			
-			final Query q = mDB.query();
-			q.constrain(Persistent.class);
-			
-			boolean result = true;
+			boolean result = testIntegrityOfAllObjects();
 			
-			for(final Persistent p : new Persistent.InitializingObjectSet<Persistent>(this, q)) {
-				try {
-					p.startupDatabaseIntegrityTest();
-				} catch(Exception e) {
+			synchronized(Persistent.transactionLock(mDB)) {
+				if(!getTrustAndScoreIndex().verify(this)) {
 					result = false;
-					
-					try {
-						Logger.error(this, "Integrity test failed for " + p, e);
-					} catch(Exception e2) {
-						Logger.error(this, "Integrity test failed for Persistent of class " + p.getClass(), e);
-						Logger.error(this, "Exception thrown by toString() was:", e2);
-					}
+					Logger.error(this, "TrustAndScoreIndex is inconsistent, reloading it.");
+					invalidateTrustAndScoreIndex();
 				}
 			}
 			
-			Logger.debug(this, "Database integrity test finished.");
+			Logger.normal(this, "Database integrity test finished in " + time + " using "
+				+ INTEGRITY_TEST_THREADS + " threads, result: " + result);
 			
 			return result;
 		}
@@ -1062,6 +1279,226 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 	
+	/**
+	 * Runs the given jobs on {@link #getExecutor()} using up to {@link #INTEGRITY_TEST_THREADS}
+	 * threads and waits for all of them to finish. Each thread repeatedly takes the next not yet
+	 * started job, same as
+	 * {@link TrustGraph.Snapshot#computeScoreTables(int[], int[], boolean, Executor, int)}.<br>
+	 * The jobs must not take any locks: The calling thread may hold them.
+	 * 
+	 * @throws RuntimeException If one of the jobs failed or the calling thread was interrupted
+	 *     while waiting for them. */
+	private void runIntegrityTestJobs(final List<? extends Runnable> jobs, final String name) {
+		final int threadCount = Math.min(INTEGRITY_TEST_THREADS, jobs.size());
+		
+		if(threadCount <= 1) {
+			for(Runnable job : jobs)
+				job.run();
+			
+			return;
+		}
+		
+		final AtomicInteger nextJob = new AtomicInteger(0);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>(null);
+		final CountDownLatch finished = new CountDownLatch(threadCount);
+		
+		final Runnable worker = new Runnable() { @Override public void run() {
+			try {
+				int job;
+				while((job = nextJob.getAndIncrement()) < jobs.size() && failure.get() == null)
+					jobs.get(job).run();
+			} catch(Throwable t) {
+				failure.compareAndSet(null, t);
+			} finally {
+				finished.countDown();
+			}
+		}};
+		
+		final Executor executor = getExecutor();
+		for(int i = 0; i < threadCount; ++i)
+			executor.execute(worker, name + " " + (i+1) + "/" + threadCount);
+		
+		try {
+			finished.await();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted during " + name, e);
+		}
+		
+		if(failure.get() != null)
+			throw new RuntimeException(name + " failed", failure.get());
+		
+		// The CountDownLatch guarantees that the writes of the jobs are visible to this thread.
+	}
+	
+	/**
+	 * Unit of work of {@link #testIntegrityOfAllObjects()}: Calls
+	 * {@link Persistent#startupDatabaseIntegrityTest()} upon the objects of a range of the given
+	 * database IDs. */
+	private final class IntegrityTestJob implements Runnable {
+		/** The class whose query returned the IDs. Only used for logging. */
+		final Class<? extends Persistent> mClass;
+		
+		final long[] mIDs;
+		
+		final int mFrom;
+		
+		/** Exclusive. */
+		final int mTo;
+		
+		/** Written by the job, read after {@link #runIntegrityTestJobs(List, String)} returned. */
+		long mNanos = 0;
+		
+		/** @see #mNanos */
+		int mFailures = 0;
+		
+		IntegrityTestJob(Class<? extends Persistent> clazz, long[] ids, int from, int to) {
+			mClass = clazz;
+			mIDs = ids;
+			mFrom = from;
+			mTo = to;
+		}
+		
+		@Override public void run() {
+			final long start = System.nanoTime();
+			
+			for(int i = mFrom; i < mTo; ++i) {
+				final Persistent p = (Persistent)mDB.getByID(mIDs[i]);
+				if(p == null) {
+					// Cannot happen as verifyDatabaseIntegrity() holds all locks.
+					Logger.error(WebOfTrust.this, "Object vanished during integrity test: " + mIDs[i]);
+					continue;
+				}
+				
+				// Does not set the activation depth, the object might not be activated yet.
+				p.initializeTransient(WebOfTrust.this);
+				
+				if(!testIntegrity(p))
+					++mFailures;
+			}
+			
+			mNanos = System.nanoTime() - start;
+		}
+	}
+	
+	/** @return The result of {@link Persistent#startupDatabaseIntegrityTest()}, as a boolean. */
+	private boolean testIntegrity(final Persistent p) {
+		try {
+			p.startupDatabaseIntegrityTest();
+			return true;
+		} catch(Exception e) {
+			try {
+				Logger.error(this, "Integrity test failed for " + p, e);
+			} catch(Exception e2) {
+				Logger.error(this, "Integrity test failed for Persistent of class " + p.getClass(), e);
+				Logger.error(this, "Exception thrown by toString() was:", e2);
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Calls {@link Persistent#startupDatabaseIntegrityTest()} upon all objects in the database,
+	 * using {@link #INTEGRITY_TEST_THREADS} threads.<br>
+	 * The work is partitioned by the root classes of the class hierarchy of {@link Persistent},
+	 * and then into ranges of {@link #INTEGRITY_TEST_CHUNK_SIZE} sorted database IDs, each of
+	 * which is an {@link IntegrityTestJob}. The time spent on each class is logged.<br><br>
+	 * 
+	 * You must synchronize on this WoT, the {@link IntroductionPuzzleStore}, the
+	 * {@link IdentityFetcher} and the {@link SubscriptionManager} when using this function.
+	 * 
+	 * @return False if the test of any object failed. */
+	private boolean testIntegrityOfAllObjects() {
+		// ATTENTION: The classes must not be subclasses of each other. Classes which are added
+		// to the database without being added here are tested as well, but not logged separately.
+		@SuppressWarnings("unchecked")
+		final Class<? extends Persistent>[] classes = new Class[] {
+			Configuration.class,
+			Identity.class,
+			Trust.class,
+			Score.class,
+			IdentityFetcher.IdentityFetcherCommand.class,
+			SubscriptionManager.Client.class,
+			SubscriptionManager.Subscription.class,
+			SubscriptionManager.Notification.class,
+			IntroductionPuzzle.class
+		};
+		
+		final ArrayList<IntegrityTestJob> jobs = new ArrayList<IntegrityTestJob>();
+		int covered = 0;
+		
+		for(Class<? extends Persistent> clazz : classes) {
+			final long[] ids = getIDs(clazz);
+			addIntegrityTestJobs(jobs, clazz, ids, ids.length);
+			covered += ids.length;
+		}
+		
+		final long[] all = getIDs(Persistent.class);
+		if(all.length != covered) {
+			final HashSet<Long> coveredIDs = new HashSet<Long>(covered * 2);
+			for(IntegrityTestJob job : jobs) {
+				for(int i = job.mFrom; i < job.mTo; ++i)
+					coveredIDs.add(job.mIDs[i]);
+			}
+			
+			final long[] others = new long[all.length];
+			int count = 0;
+			for(long id : all) {
+				if(!coveredIDs.contains(id))
+					others[count++] = id;
+			}
+			addIntegrityTestJobs(jobs, Persistent.class, others, count);
+		}
+		
+		runIntegrityTestJobs(jobs, "WebOfTrust integrity test");
+		
+		boolean result = true;
+		
+		// The jobs of each class are consecutive.
+		for(int i = 0; i < jobs.size(); ) {
+			final Class<? extends Persistent> clazz = jobs.get(i).mClass;
+			int objects = 0;
+			int failures = 0;
+			long nanos = 0;
+			
+			for(; i < jobs.size() && jobs.get(i).mClass == clazz; ++i) {
+				final IntegrityTestJob job = jobs.get(i);
+				objects += job.mTo - job.mFrom;
+				failures += job.mFailures;
+				nanos += job.mNanos;
+			}
+			
+			if(failures > 0)
+				result = false;
+			
+			Logger.normal(this, "Integrity test of " + objects + " " + clazz.getSimpleName()
+				+ " objects: " + failures + " failed, took "
+				+ TimeUnit.NANOSECONDS.toMillis(nanos) + " ms of all threads");
+		}
+		
+		return result;
+	}
+	
+	/** @return The database IDs of all objects of the given class, sorted ascending. */
+	private long[] getIDs(final Class<? extends Persistent> clazz) {
+		final Query q = mDB.query();
+		q.constrain(clazz);
+		final long[] ids = q.execute().ext().getIDs();
+		// Neighboring IDs are likely stored close to each other in the database file.
+		Arrays.sort(ids);
+		return ids;
+	}
+	
+	/** Adds {@link IntegrityTestJob}s for the first count of the given IDs to the given list. */
+	private void addIntegrityTestJobs(final List<IntegrityTestJob> jobs,
+			final Class<? extends Persistent> clazz, final long[] ids, final int count) {
+		
+		for(int from = 0; from < count; from += INTEGRITY_TEST_CHUNK_SIZE) {
+			jobs.add(new IntegrityTestJob(clazz, ids, from,
+				Math.min(count, from + INTEGRITY_TEST_CHUNK_SIZE)));
+		}
+	}
+	
 	/**
 	 * Does not do proper synchronization! Only use it in single-thread-mode during startup.
 	 * 
@@ -1237,34 +1674,52 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * last execution, verifies that all stored {@link Score} objects are correct.<br><br>
 	 * 
 	 * Shall be called at startup: Score computation is fully incremental nowadays and thus wrong
-	 * results due to bugs will persist for a long time. This function fixes wrong Scores. */
+	 * results due to bugs will persist for a long time. This function fixes wrong Scores.<br><br>
+	 * 
+	 * If DEBUG logging is enabled, the verification is done immediately by
+	 * {@link #verifyAndCorrectStoredScores()}. Otherwise it is done in the background, one trust
+	 * tree per transaction, by {@link #mScoreVerificationJob}: A full verification holds all
+	 * locks for a long time, which would block the user interfaces. A background verification
+	 * which was interrupted by shutdown is resumed, see
+	 * {@link Configuration#getScoreVerificationCursor()}. */
 	private synchronized void maybeVerifyAndCorrectStoredScores() {
-		boolean doVerify = false;
-		
 		if(logDEBUG) {
 			Logger.debug(this, "maybeVerifyAndCorrectStoredScores(): Executing verification: "
 			                 + "DEBUG logging enabled");
-			doVerify = true;
+			verifyAndCorrectStoredScores();
+			mConfig.setScoreVerificationCursor(null);
+			mConfig.updateLastVerificationOfScoresDate();
+			mConfig.storeAndCommit();
+			return;
+		}
+		
+		if(mConfig.getScoreVerificationCursor() != null) {
+			Logger.normal(this, "maybeVerifyAndCorrectStoredScores(): Resuming verification in "
+			                  + "background: Was interrupted");
 		} else {
 			Date lastVerification = mConfig.getLastVerificationOfScoresDate();
 			Date nextVerification = new Date(lastVerification.getTime()
 			                               + Configuration.DEFAULT_VERIFY_SCORES_INTERVAL);
 			
-			if(!nextVerification.after(CurrentTimeUTC.get())) {
-				Logger.normal(this, "maybeVerifyAndCorrectStoredScores(): Executing verification: "
-				                  + "Minimal delay expired");
-				doVerify = true;
+			if(nextVerification.after(CurrentTimeUTC.get())) {
+				Logger.normal(this, "maybeVerifyAndCorrectStoredScores(): Not executing verification: "
+				                  + "Minimal delay not expired, DEBUG logging disabled");
+				return;
 			}
-		}
-		
-		if(doVerify) {
-			verifyAndCorrectStoredScores();
-			mConfig.updateLastVerificationOfScoresDate();
+			
+			Logger.normal(this, "maybeVerifyAndCorrectStoredScores(): Executing verification in "
+			                  + "background: Minimal delay expired");
+			mConfig.setScoreVerificationCursor("");
 			mConfig.storeAndCommit();
-		} else {
-			Logger.normal(this, "maybeVerifyAndCorrectStoredScores(): Not executing verification: "
-			                  + "Minimal delay not expired, DEBUG logging disabled");
 		}
+		
+		mScoreVerificationJob = new TickerDelayedBackgroundJob(new Runnable() {
+			@Override public void run() {
+				if(verifyAndCorrectStoredScoresOfNextTreeOwner())
+					mScoreVerificationJob.triggerExecution();
+			}
+		}, "WoT Score verification", SCORE_VERIFICATION_DELAY, mPR.getNode().getTicker());
+		mScoreVerificationJob.triggerExecution();
 	}
 
 	/**
@@ -1294,197 +1749,308 @@ public final class WebOfTrust extends WebOfTrustInterface
 	}
 	
 	/**
-	 * Debug function for deleting duplicate identities etc. which might have been created due to bugs :)
-	 */
-	private synchronized void deleteDuplicateObjects() {
-		synchronized(mPuzzleStore) { // Needed for deleteWithoutCommit(Identity)
-		synchronized(mFetcher) { // Needed for deleteWithoutCommit(Identity)
-		synchronized(mSubscriptionManager) { // Needed for deleteWithoutCommit(Identity)
-		synchronized(Persistent.transactionLock(mDB)) {
-		try {
-			HashSet<String> deleted = new HashSet<String>();
-
-			if(logDEBUG) Logger.debug(this, "Searching for duplicate identities ...");
-
-			for(Identity identity : getAllIdentities()) {
-				Query q = mDB.query();
-				q.constrain(Identity.class);
-				q.descend("mID").constrain(identity.getID());
-				q.constrain(identity).identity().not();
-				ObjectSet<Identity> duplicates = new Persistent.InitializingObjectSet<Identity>(this, q);
-				for(Identity duplicate : duplicates) {
-					if(deleted.contains(duplicate.getID()) == false) {
-						Logger.error(duplicate, "Deleting duplicate identity " + duplicate.getRequestURI());
-						deleteWithoutCommit(duplicate);
-						Persistent.checkedCommit(mDB, this);
-					}
-				}
-				deleted.add(identity.getID());
-			}
-			Persistent.checkedCommit(mDB, this);
-			
-			if(logDEBUG) Logger.debug(this, "Finished searching for duplicate identities.");
-		}
-		catch(RuntimeException e) {
-			Persistent.checkedRollback(mDB, this, e);
-		}
-		} // synchronized(Persistent.transactionLock(mDB)) {
-		} // synchronized(mSubscriptionManager) {
-		} // synchronized(mFetcher) { 
-		} // synchronized(mPuzzleStore) {
-
-		// synchronized(this) { // For computeAllScoresWithoutCommit() / removeTrustWithoutCommit(). Done at function level already.
-		synchronized(mFetcher) { // For computeAllScoresWithoutCommit() / removeTrustWithoutCommit()
-		synchronized(mSubscriptionManager) { // For computeAllScoresWithoutCommit() / removeTrustWithoutCommit()
-		synchronized(Persistent.transactionLock(mDB)) {
-		try {
-		if(logDEBUG) Logger.debug(this, "Searching for duplicate Trust objects ...");
-
-		boolean duplicateTrustFound = false;
-		for(OwnIdentity truster : getAllOwnIdentities()) {
-			HashSet<String> givenTo = new HashSet<String>();
-
-			for(Trust trust : getGivenTrusts(truster)) {
-				if(givenTo.contains(trust.getTrustee().getID()) == false)
-					givenTo.add(trust.getTrustee().getID());
-				else {
-					Logger.error(this, "Deleting duplicate given trust:" + trust);
-					removeTrustWithoutCommit(trust);
-					duplicateTrustFound = true;
-				}
-			}
-		}
-		
-		if(duplicateTrustFound) {
-			computeAllScoresWithoutCommit();
-		}
-		
-		Persistent.checkedCommit(mDB, this);
-		if(logDEBUG) Logger.debug(this, "Finished searching for duplicate trust objects.");
-		}
-		catch(RuntimeException e) {
-			Persistent.checkedRollback(mDB, this, e);
-		}
-		} // synchronized(Persistent.transactionLock(mDB)) {
-		} // synchronized(mSubscriptionManager) {
-		} // synchronized(mFetcher) { 
-		
-		/* TODO: Also delete duplicate score */
-	}
-	
-	/**
-	 * Debug function for deleting trusts or scores of which one of the involved partners is missing.
+	 * Does one step of the background verification of {@link Score}s which
+	 * {@link #maybeVerifyAndCorrectStoredScores()} starts: Verifies and corrects the trust tree
+	 * of the {@link OwnIdentity} whose ID follows {@link Configuration#getScoreVerificationCursor()}
+	 * and advances the cursor to it. If there is no further OwnIdentity, the verification is
+	 * finished by setting the cursor to null and updating
+	 * {@link Configuration#getLastVerificationOfScoresDate()}.<br>
+	 * The result equals the one of {@link #verifyAndCorrectStoredScores()} if no Trust is changed
+	 * while the verification is in progress, but each step only needs the locks for the
+	 * computation of a single trust tree.
+	 * 
+	 * The function is synchronized and does a transaction, no outer synchronization is needed.
+	 * 
+	 * @return True if there are further trust trees to verify, false if the verification is
+	 *     finished or was not started.
 	 */
-	private synchronized void deleteOrphanObjects() {
-		// synchronized(this) { // For computeAllScoresWithoutCommit(). Done at function level already.
-		synchronized(mFetcher) { // For computeAllScoresWithoutCommit()
-		synchronized(mSubscriptionManager) { // For computeAllScoresWithoutCommit()
+	boolean verifyAndCorrectStoredScoresOfNextTreeOwner() {
+		synchronized(this) {
+		synchronized(mFetcher) {
+		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
-				boolean orphanTrustFound = false;
-				
-				Query q = mDB.query();
-				q.constrain(Trust.class);
-				q.descend("mTruster").constrain(null).identity().or(q.descend("mTrustee").constrain(null).identity());
-				ObjectSet<Trust> orphanTrusts = new Persistent.InitializingObjectSet<Trust>(this, q);
+				final String cursor = mConfig.getScoreVerificationCursor();
+				if(cursor == null)
+					return false;
 				
-				for(Trust trust : orphanTrusts) {
-					if(trust.getTruster() != null && trust.getTrustee() != null) {
-						// TODO: Remove this workaround for the db4o bug as soon as we are sure that it does not happen anymore.
-						Logger.error(this, "Db4o bug: constrain(null).identity() did not work for " + trust);
-						continue;
-					}
-					
-					Logger.error(trust, "Deleting orphan trust, truster = " + trust.getTruster() + ", trustee = " + trust.getTrustee());
-					orphanTrustFound = true;
-					trust.deleteWithoutCommit();
-					// No need to update subscriptions as the trust is broken anyway.
+				// Ordering by ID ensures that OwnIdentitys which are created or deleted while the
+				// verification is in progress do not cause the others to be skipped.
+				OwnIdentity next = null;
+				for(OwnIdentity ownIdentity : getAllOwnIdentities()) {
+					final String id = ownIdentity.getID();
+					if(id.compareTo(cursor) > 0
+							&& (next == null || id.compareTo(next.getID()) < 0))
+						next = ownIdentity;
 				}
 				
-				if(orphanTrustFound) {
-					computeAllScoresWithoutCommit();
+				if(next == null) {
+					mConfig.setScoreVerificationCursor(null);
+					mConfig.updateLastVerificationOfScoresDate();
+					mConfig.storeWithoutCommit();
 					Persistent.checkedCommit(mDB, this);
+					Logger.normal(this, "Verifying all stored scores in background finished.");
+					return false;
 				}
-			}
-			catch(Exception e) {
-				Persistent.checkedRollback(mDB, this, e); 
-			}
-		}
-		}
-		}
-
-		// synchronized(this) { // For computeAllScoresWithoutCommit(). Done at function level already.
-		synchronized(mFetcher) { // For computeAllScoresWithoutCommit()
-		synchronized(mSubscriptionManager) { // For computeAllScoresWithoutCommit()
-		synchronized(Persistent.transactionLock(mDB)) {
-			try {
-				boolean orphanScoresFound = false;
 				
-				Query q = mDB.query();
-				q.constrain(Score.class);
-				q.descend("mTruster").constrain(null).identity().or(q.descend("mTrustee").constrain(null).identity());
-				ObjectSet<Score> orphanScores = new Persistent.InitializingObjectSet<Score>(this, q);
+				if(logMINOR) Logger.minor(this, "Verifying stored scores of " + next + " ...");
 				
-				for(Score score : orphanScores) {
-					if(score.getTruster() != null && score.getTrustee() != null) {
-						// TODO: Remove this workaround for the db4o bug as soon as we are sure that it does not happen anymore.
-						Logger.error(this, "Db4o bug: constrain(null).identity() did not work for " + score);
-						continue;
-					}
-					
-					Logger.error(score, "Deleting orphan score, truster = " + score.getTruster() + ", trustee = " + score.getTrustee());
-					orphanScoresFound = true;
-					score.deleteWithoutCommit();
-					// No need to update subscriptions as the score is broken anyway.
+				int treeOwnerRank = TrustGraph.NO_RANK;
+				try {
+					final int selfRank = getScore(next, next).getRank();
+					if(selfRank >= 0)
+						treeOwnerRank = selfRank;
+				} catch(NotInTrustTreeException e) {
+					Logger.error(this, "OwnIdentity has no Score of itself: " + next);
 				}
 				
-				if(orphanScoresFound) {
-					computeAllScoresWithoutCommit();
-					Persistent.checkedCommit(mDB, this);
-				}
-			}
-			catch(Exception e) {
-				Persistent.checkedRollback(mDB, this, e);
+				computeAndStoreTrustTreeWithoutCommit(next, treeOwnerRank, true);
+				
+				mConfig.setScoreVerificationCursor(next.getID());
+				mConfig.storeWithoutCommit();
+				Persistent.checkedCommit(mDB, this);
+				return true;
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+				throw e; // The compiler doesn't know that the above function throws
 			}
 		}
 		}
 		}
+		}
 	}
 	
 	/**
-	 * Warning: This function is not synchronized, use it only in single threaded mode.
-	 * @return The WOT database format version of the given database. -1 if there is no Configuration stored in it or multiple configurations exist.
+	 * Broken objects which {@link #findBrokenObjects()} found and which
+	 * {@link #repairDatabase(BrokenObjects)} deletes. They might have been created due to bugs :)
+	 * <br>Each list is only written by a single search.
 	 */
-	@SuppressWarnings("deprecation")
-	private int peekDatabaseFormatVersion(File dbFile) {
-		if(!dbFile.exists())
-			return -1;
+	private static final class BrokenObjects {
+		/** Identities of which another Identity with the same ID exists. Does not contain the
+		 *  first of them. */
+		final ArrayList<Identity> mDuplicateIdentities = new ArrayList<Identity>();
 		
-		ObjectContainer database
-			= Db4o.openFile(getNewDatabaseConfiguration(true), dbFile.getAbsolutePath());
+		/** Trusts of an {@link OwnIdentity} to a trustee to which it has given another Trust
+		 *  already. */
+		final ArrayList<Trust> mDuplicateTrusts = new ArrayList<Trust>();
 		
-		try {
-		final Query query = database.query();
-		query.constrain(Configuration.class);
-		@SuppressWarnings("unchecked")
-		ObjectSet<Configuration> result = (ObjectSet<Configuration>)query.execute(); 
+		/** Trusts of which the truster or trustee is missing. */
+		final ArrayList<Trust> mOrphanTrusts = new ArrayList<Trust>();
 		
-		switch(result.size()) {
-			case 1: {
-				final Configuration config = (Configuration)result.next();
-				config.initializeTransient(this, database.ext());
-				// For the HashMaps to stay alive we need to activate to full depth.
-				config.checkedActivate(4);
-				return config.getDatabaseFormatVersion();
-			}
-			default:
-				return -1;
-		}
-		} finally {
-			database.close();
+		/** Scores of which the truster or trustee is missing. */
+		final ArrayList<Score> mOrphanScores = new ArrayList<Score>();
+		
+		/* TODO: Also search for duplicate scores */
+		
+		boolean isEmpty() {
+			return mDuplicateIdentities.isEmpty() && mDuplicateTrusts.isEmpty()
+				&& mOrphanTrusts.isEmpty() && mOrphanScores.isEmpty();
 		}
 	}
-
+	
+	/**
+	 * Searches for duplicate and orphan objects. Does not modify the database. The searches are
+	 * run concurrently by {@link #runIntegrityTestJobs(List, String)}.<br><br>
+	 * 
+	 * You must synchronize on this WoT, the {@link IntroductionPuzzleStore}, the
+	 * {@link IdentityFetcher} and the {@link SubscriptionManager} when using this function.
+	 */
+	private BrokenObjects findBrokenObjects() {
+		final BrokenObjects result = new BrokenObjects();
+		final ArrayList<Runnable> searches = new ArrayList<Runnable>(4);
+		
+		searches.add(new Runnable() { @Override public void run() {
+			final StopWatch time = new StopWatch();
+			final HashSet<String> ids = new HashSet<String>();
+			
+			for(Identity identity : getAllIdentities()) {
+				if(!ids.add(identity.getID()))
+					result.mDuplicateIdentities.add(identity);
+			}
+			
+			Logger.normal(WebOfTrust.this, "Searching for duplicate identities took " + time
+				+ ", found: " + result.mDuplicateIdentities.size());
+		}});
+		
+		searches.add(new Runnable() { @Override public void run() {
+			final StopWatch time = new StopWatch();
+			
+			for(OwnIdentity truster : getAllOwnIdentities()) {
+				final HashSet<String> givenTo = new HashSet<String>();
+				
+				for(Trust trust : getGivenTrusts(truster)) {
+					if(!givenTo.add(trust.getTrustee().getID()))
+						result.mDuplicateTrusts.add(trust);
+				}
+			}
+			
+			Logger.normal(WebOfTrust.this, "Searching for duplicate Trust objects took " + time
+				+ ", found: " + result.mDuplicateTrusts.size());
+		}});
+		
+		searches.add(new Runnable() { @Override public void run() {
+			final StopWatch time = new StopWatch();
+			
+			final Query q = mDB.query();
+			q.constrain(Trust.class);
+			q.descend("mTruster").constrain(null).identity().or(q.descend("mTrustee").constrain(null).identity());
+			
+			for(Trust trust : new Persistent.InitializingObjectSet<Trust>(WebOfTrust.this, q)) {
+				if(trust.getTruster() != null && trust.getTrustee() != null) {
+					// TODO: Remove this workaround for the db4o bug as soon as we are sure that it does not happen anymore.
+					Logger.error(WebOfTrust.this, "Db4o bug: constrain(null).identity() did not work for " + trust);
+					continue;
+				}
+				
+				result.mOrphanTrusts.add(trust);
+			}
+			
+			Logger.normal(WebOfTrust.this, "Searching for orphan Trust objects took " + time
+				+ ", found: " + result.mOrphanTrusts.size());
+		}});
+		
+		searches.add(new Runnable() { @Override public void run() {
+			final StopWatch time = new StopWatch();
+			
+			final Query q = mDB.query();
+			q.constrain(Score.class);
+			q.descend("mTruster").constrain(null).identity().or(q.descend("mTrustee").constrain(null).identity());
+			
+			for(Score score : new Persistent.InitializingObjectSet<Score>(WebOfTrust.this, q)) {
+				if(score.getTruster() != null && score.getTrustee() != null) {
+					// TODO: Remove this workaround for the db4o bug as soon as we are sure that it does not happen anymore.
+					Logger.error(WebOfTrust.this, "Db4o bug: constrain(null).identity() did not work for " + score);
+					continue;
+				}
+				
+				result.mOrphanScores.add(score);
+			}
+			
+			Logger.normal(WebOfTrust.this, "Searching for orphan Score objects took " + time
+				+ ", found: " + result.mOrphanScores.size());
+		}});
+		
+		runIntegrityTestJobs(searches, "WebOfTrust search for broken objects");
+		return result;
+	}
+	
+	/**
+	 * Deletes the given broken objects in a single transaction, and recomputes all Scores if
+	 * Trusts or Scores were deleted. Rolls back if that fails.<br><br>
+	 * 
+	 * You must synchronize on this WoT, the {@link IntroductionPuzzleStore}, the
+	 * {@link IdentityFetcher} and the {@link SubscriptionManager} when using this function.
+	 * They are needed for {@link #deleteWithoutCommit(Identity)},
+	 * {@link #removeTrustWithoutCommit(Trust)} and {@link #computeAllScoresWithoutCommit()}.
+	 */
+	private void repairDatabase(final BrokenObjects broken) {
+		if(broken.isEmpty())
+			return;
+		
+		synchronized(Persistent.transactionLock(mDB)) {
+		try {
+			for(Identity duplicate : broken.mDuplicateIdentities) {
+				Logger.error(duplicate, "Deleting duplicate identity " + duplicate.getRequestURI());
+				deleteWithoutCommit(duplicate);
+			}
+			
+			for(Trust trust : broken.mDuplicateTrusts) {
+				Logger.error(this, "Deleting duplicate given trust:" + trust);
+				removeTrustWithoutCommit(trust);
+			}
+			
+			for(Trust trust : broken.mOrphanTrusts) {
+				Logger.error(trust, "Deleting orphan trust, truster = " + trust.getTruster() + ", trustee = " + trust.getTrustee());
+				trust.deleteWithoutCommit();
+				// No need to update subscriptions as the trust is broken anyway.
+			}
+			
+			for(Score score : broken.mOrphanScores) {
+				Logger.error(score, "Deleting orphan score, truster = " + score.getTruster() + ", trustee = " + score.getTrustee());
+				score.deleteWithoutCommit();
+				// No need to update subscriptions as the score is broken anyway.
+			}
+			
+			if(!broken.mDuplicateTrusts.isEmpty() || !broken.mOrphanTrusts.isEmpty()
+					|| !broken.mOrphanScores.isEmpty()) {
+				// removeTrustWithoutCommit() removed the edge from the TrustGraph even though the
+				// other copy of the Trust still exists. The orphans were deleted without updating
+				// the TrustGraph at all. Same for the index.
+				invalidateTrustGraph();
+				invalidateTrustAndScoreIndex();
+				computeAllScoresWithoutCommit();
+			}
+			
+			Persistent.checkedCommit(mDB, this);
+		}
+		catch(RuntimeException e) {
+			Persistent.checkedRollback(mDB, this, e);
+		}
+		}
+	}
+	
+	/**
+	 * Warning: This function is not synchronized, use it only in single threaded mode.
+	 * @return The WOT database format version of the given database. -1 if there is no Configuration stored in it or multiple configurations exist.
+	 */
+	private int peekDatabaseFormatVersion(File dbFile) {
+		return peekConfiguration(dbFile).mDatabaseFormatVersion;
+	}
+	
+	/** The values of the {@link Configuration} which are needed before the database is opened. */
+	private static final class PeekedConfiguration {
+		/** @see Configuration#getDatabaseFormatVersion() */
+		final int mDatabaseFormatVersion;
+		
+		/** @see Configuration#getMappedDatabasePageCacheSize() */
+		final int mMappedDatabasePageCacheSize;
+		
+		/** The values of a database which does not contain a single Configuration. */
+		static final PeekedConfiguration NONE = new PeekedConfiguration(-1, 0);
+		
+		PeekedConfiguration(int databaseFormatVersion, int mappedDatabasePageCacheSize) {
+			mDatabaseFormatVersion = databaseFormatVersion;
+			mMappedDatabasePageCacheSize = mappedDatabasePageCacheSize;
+		}
+	}
+	
+	/**
+	 * Warning: This function is not synchronized, use it only in single threaded mode.
+	 * @return The values of the {@link Configuration} of the given database.
+	 *     {@link PeekedConfiguration#NONE} if there is no Configuration stored in it or multiple
+	 *     configurations exist.
+	 */
+	@SuppressWarnings("deprecation")
+	private PeekedConfiguration peekConfiguration(File dbFile) {
+		if(!dbFile.exists())
+			return PeekedConfiguration.NONE;
+		
+		ObjectContainer database
+			= Db4o.openFile(getNewDatabaseConfiguration(true), dbFile.getAbsolutePath());
+		
+		try {
+		final Query query = database.query();
+		query.constrain(Configuration.class);
+		@SuppressWarnings("unchecked")
+		ObjectSet<Configuration> result = (ObjectSet<Configuration>)query.execute(); 
+		
+		switch(result.size()) {
+			case 1: {
+				final Configuration config = (Configuration)result.next();
+				config.initializeTransient(this, database.ext());
+				// For the HashMaps to stay alive we need to activate to full depth.
+				config.checkedActivate(4);
+				return new PeekedConfiguration(config.getDatabaseFormatVersion(),
+					config.getMappedDatabasePageCacheSize());
+			}
+			default:
+				return PeekedConfiguration.NONE;
+		}
+		} finally {
+			database.close();
+		}
+	}
+
 	/**
 	 * ATTENTION: This function is not synchronized, use it only in single threaded mode.
 	 * @return
@@ -1622,6 +2188,99 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return (rank < capacities.length) ? capacities[rank] : 1;
 	}
 	
+	/**
+	 * Gets the in-memory mirror of all {@link Trust} objects in the database, loading it from
+	 * the database if necessary.<br>
+	 * Do not keep a reference to the returned object: It is replaced with a fresh one when it
+	 * is invalidated, for example by a rollback of the database.
+	 * 
+	 * Synchronization:
+	 * You must synchronize on this WebOfTrust and on the Persistent.transactionLock(mDB) when
+	 * using this function and the returned object.
+	 */
+	TrustGraph getTrustGraph() {
+		if(mTrustGraph == null)
+			mTrustGraph = TrustGraph.constructFromDatabase(this);
+		
+		return mTrustGraph;
+	}
+	
+	/**
+	 * Returns the node's {@link Executor}. In unit tests, where there is no node, returns a
+	 * {@link PooledExecutor} instead. */
+	private Executor getExecutor() {
+		if(mPR != null)
+			return mPR.getNode().executor;
+		
+		if(mUnitTestExecutor == null)
+			mUnitTestExecutor = new PooledExecutor();
+		
+		return mUnitTestExecutor;
+	}
+	
+	/**
+	 * Must be called by code which stores or deletes {@link Trust} objects without using
+	 * {@link #setTrustWithoutCommit(Identity, Identity, byte, String)} or
+	 * {@link #removeTrustWithoutCommit(Trust)}: Causes {@link #getTrustGraph()} to re-load the
+	 * graph from the database.
+	 */
+	private void invalidateTrustGraph() {
+		mTrustGraph = null;
+	}
+	
+	/**
+	 * Gets the {@link TrustAndScoreIndex}, loading it from the database if necessary.
+	 * Do not keep a reference to the returned object, see {@link #getTrustGraph()}.
+	 * 
+	 * Synchronization:
+	 * You must synchronize on this WebOfTrust and on the Persistent.transactionLock(mDB) when
+	 * using this function and the returned object.
+	 */
+	TrustAndScoreIndex getTrustAndScoreIndex() {
+		if(mTrustAndScoreIndex == null)
+			mTrustAndScoreIndex = TrustAndScoreIndex.constructFromDatabase(this);
+		
+		return mTrustAndScoreIndex;
+	}
+	
+	/**
+	 * For {@link Trust} and {@link Score} to update the index when they are stored or deleted:
+	 * If it is not loaded, they do not need to, it will be loaded from the database.
+	 * 
+	 * Synchronization: Same as {@link #getTrustAndScoreIndex()}.
+	 * 
+	 * @return The {@link TrustAndScoreIndex} or null if it is not loaded. */
+	TrustAndScoreIndex getTrustAndScoreIndexIfLoaded() {
+		return mTrustAndScoreIndex;
+	}
+	
+	/** For {@link Identity} to remove itself when it is deleted, see {@link IdentityCache}. */
+	IdentityCache getIdentityCache() {
+		return mIdentityCache;
+	}
+	
+	/** @return The number of {@link #getIdentityByID(String)} and
+	 *      {@link #getOwnIdentityByID(String)} calls which were answered by the cache. */
+	public long getNumberOfIdentityCacheHits() {
+		return mIdentityCache.getHits();
+	}
+	
+	/** @return The number of {@link #getIdentityByID(String)} and
+	 *      {@link #getOwnIdentityByID(String)} calls which had to query the database. */
+	public long getNumberOfIdentityCacheMisses() {
+		return mIdentityCache.getMisses();
+	}
+	
+	/**
+	 * Must be called by code which stores or deletes {@link Trust} or {@link Score} objects
+	 * without their storeWithoutCommit() / deleteWithoutCommit(), or which deletes one of
+	 * multiple objects with the same ID: Causes {@link #getTrustAndScoreIndex()} to re-load the
+	 * index from the database.
+	 */
+	private void invalidateTrustAndScoreIndex() {
+		mTrustAndScoreIndex = null;
+	}
+	
 	/**
 	 * Reference-implementation of score computation. This means:<br />
 	 * - It is used by unit tests (and WoT) to check whether the real implementation works<br />
@@ -1657,314 +2316,424 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		boolean returnValue = true;
 		
+		// The Trust graph does not change during this function, so we can work on a snapshot of it.
+		// All OwnIdentitys need a vertex, even if they have not given any Trust yet.
+		final TrustGraph trustGraph = getTrustGraph();
+		// Copy to an ArrayList since we iterate over it twice
+		final ArrayList<OwnIdentity> allOwnIdentities
+			= new ArrayList<OwnIdentity>(getAllOwnIdentities());
+		for(OwnIdentity treeOwner : allOwnIdentities)
+			trustGraph.getOrCreateIndex(treeOwner.getID());
+		final TrustGraph.Snapshot graph = trustGraph.snapshot();
+		
 		// Scores are a rating of an identity from the view of an OwnIdentity so we compute them per OwnIdentity.
-		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
-			// TODO: Performance: Move this outside the above loop once the issue which caused this
-			// workaround is fixed: https://bugs.freenetproject.org/view.php?id=6646
-			final ObjectSet<Identity> allIdentities = getAllIdentities();
+		// The trust trees of different OwnIdentitys are independent of each other, so we first
+		// compute all of them in parallel from the snapshot, and then write the resulting
+		// changes to the database on this thread.
+		final int treeOwnerCount = allOwnIdentities.size();
+		final int[] treeOwners = new int[treeOwnerCount];
+		final int[] treeOwnerRanks = new int[treeOwnerCount];
+		for(int i = 0; i < treeOwnerCount; ++i) {
+			final OwnIdentity treeOwner = allOwnIdentities.get(i);
+			treeOwners[i] = graph.getIndex(treeOwner.getID());
+			
+			// The own identity is the root of the trust tree, it should assign itself a rank of 0 , a capacity of 100 and a symbolic score of Integer.MAX_VALUE
+			treeOwnerRanks[i] = TrustGraph.NO_RANK;
+			try {
+				final int selfRank = getScore(treeOwner, treeOwner).getRank();
+				// It can only give it's rank if it has a valid one
+				if(selfRank >= 0)
+					treeOwnerRanks[i] = selfRank;
+			} catch(NotInTrustTreeException e) {
+				// If there is no self-Score, it only happens in unit tests.
+			}
+		}
+		
+		// The tables will be filled with the ranks of all identities which are visible for treeOwner.
+		// An identity is visible if there is a trust chain from the owner to it.
+		// The rank is the distance in trust steps from the treeOwner.			
+		// So the treeOwner is rank 0, the trustees of the treeOwner are rank 1 and so on.
+		//
+		// The rank values are computed by breadth first search:
+		// All trustees which have received positive (> 0) trust will get his rank + 1
+		// Trustees with negative trust or 0 trust will get a rank of Integer.MAX_VALUE.
+		// Trusters with rank Integer.MAX_VALUE cannot inherit their rank to their trustees so the trustees will get no rank at all.
+		// Identities with no rank are considered to be not in the trust tree of the own identity and their score will be null / none.
+		//
+		// Further, if the treeOwner has assigned a trust value to an identity, the rank decision is done by only considering this trust value:
+		// The decision of the own identity shall not be overpowered by the view of the remote identities.
+		//
+		// The purpose of differentiation between Integer.MAX_VALUE and -1 is:
+		// Score objects of identities with rank Integer.MAX_VALUE are kept in the database because WoT will usually "hear" about those identities by seeing
+		// them in the trust lists of trusted identities (with 0 or negative trust values). So it must store the trust values to those identities and
+		// have a way of telling the user "this identity is not trusted" by keeping a score object of them.
+		// Score objects of identities with rank -1 are deleted because they are the trustees of distrusted identities and we will not get to the point where
+		// we hear about those identities because the only way of hearing about them is importing a trust list of a identity with Integer.MAX_VALUE rank
+		// - and we never import their trust lists. 
+		// We include trust values of 0 in the set of rank Integer.MAX_VALUE (instead of only NEGATIVE trust) so that identities which only have solved
+		// introduction puzzles cannot inherit their rank to their trustees.
+		//
+		// Then the score of each identity is computed: It is the sum of all weighted trust values it has received.
+		// Each trust value is weighted with the capacity of the truster - the capacity decays with increasing rank.
+		// The capacity is a weight function for trust values which are given from an identity:
+		// The higher the rank, the less the capacity.
+		// If the rank is Integer.MAX_VALUE (infinite) or -1 (no rank at all) the capacity will be 0.
+		// If the treeOwner has assigned a trust value to the target, it always overrides the "remote" score.
+		//
+		// See TrustGraph.Snapshot.computeScoreTable() for the implementation.
+		final TrustGraph.ScoreTable[] tables = computeScoreTables(graph, treeOwners, treeOwnerRanks);
+		
+		// Rank values and scores of all visible identities are computed now.
+		// Next step is to check the stored scores of all identities against them.
+		
+		for(int treeOwnerNumber = 0; treeOwnerNumber < treeOwnerCount; ++treeOwnerNumber) {
+			if(!storeTrustTreeWithoutCommit(allOwnIdentities.get(treeOwnerNumber), graph,
+					tables[treeOwnerNumber], !mFullScoreComputationNeeded))
+				returnValue = false;
+		}
+		
+		mFullScoreComputationNeeded = false;
+		
+		++mFullScoreRecomputationCount;
+		mFullScoreRecomputationMilliseconds += CurrentTimeUTC.getInMillis() - beginTime;
+		
+		if(logMINOR) {
+			Logger.minor(this, "Full score computation finished. Amount: " + mFullScoreRecomputationCount + "; Avg Time:" + getAverageFullScoreRecomputationTime() + "s");
+		}
+		
+		return returnValue;
+	}
+	
+	/**
+	 * Compares the stored {@link Score}s of the trust tree of the given {@link OwnIdentity}
+	 * against the given {@link TrustGraph.ScoreTable} and corrects them, including the
+	 * {@link SubscriptionManager} notifications and the {@link IdentityFetcher} commands.<br>
+	 * Used by {@link #computeAllScoresWithoutCommit()} for each tree owner, and by
+	 * {@link #computeTrustTreeWithoutCommit(OwnIdentity)} for a single one.
+	 * 
+	 * Synchronization: Same as {@link #computeAllScoresWithoutCommit()}.
+	 * 
+	 * @param graph The snapshot from which the table was computed.
+	 * @param logCorrections If true, each corrected Score is logged as an error because the caller
+	 *     expected the stored Scores to be correct already.
+	 * @return True if all stored scores were correct. False if there were any errors in stored scores.
+	 */
+	private boolean storeTrustTreeWithoutCommit(final OwnIdentity treeOwner,
+			final TrustGraph.Snapshot graph, final TrustGraph.ScoreTable table,
+			final boolean logCorrections) {
+		
+		boolean returnValue = true;
+		
+		// TODO: Performance: Move this to the caller, outside of the loop of
+		// computeAllScoresWithoutCommit(), once the issue which caused this workaround is fixed:
+		// https://bugs.freenetproject.org/view.php?id=6646
+		final ObjectSet<Identity> allIdentities = getAllIdentities();
+		
+		// All Scores which are currently stored in the trust tree of the treeOwner.
+		// Key = Identity.getID() of the trustee. Obtained by parsing the ScoreID so the trustee
+		// objects do not have to be activated.
+		// Entries are removed as they are compared against the computed Scores.
+		final HashMap<String, Score> storedScores
+			= new HashMap<String, Score>(allIdentities.size() * 2);
+		for(Score score : getGivenScores(treeOwner)) {
+			final String scoreID = score.getID();
+			final String trusteeID = scoreID.substring(scoreID.indexOf('@') + 1);
+			if(storedScores.put(trusteeID, score) != null)
+				throw new DuplicateScoreException(scoreID, 2);
+		}
+		
+		for(Identity target : allIdentities) {
+			final int targetIndex = graph.getIndex(target.getID());
+			// Identities which are not part of the graph have not received any Trust, and
+			// thus cannot have a rank.
+			final int targetRank
+				= targetIndex != TrustGraph.NO_INDEX ? table.rank[targetIndex] : TrustGraph.NO_RANK;
+			
+			/* RankComputationTest does this as a unit test for us
+			 * 
+			assert(computeRankFromScratch(treeOwner, target) == targetRank);
+			*/
 			
-			// At the end of the loop body, this table will be filled with the ranks of all identities which are visible for treeOwner.
-			// An identity is visible if there is a trust chain from the owner to it.
-			// The rank is the distance in trust steps from the treeOwner.			
-			// So the treeOwner is rank 0, the trustees of the treeOwner are rank 1 and so on.
-			// (The initial size is specified as twice the possible maximal amount of entries to
-			// ensure that the HashMap does not have to be grown.)
-			final HashMap<Identity, Integer> rankValues = new HashMap<Identity, Integer>(allIdentities.size() * 2);
-			
-			// Compute the rank values
-			{
-				// For each identity which is added to rankValues, all its trustees are added to unprocessedTrusters.
-				// The inner loop then pulls out one unprocessed identity and computes the rank of its trustees:
-				// All trustees which have received positive (> 0) trust will get his rank + 1
-				// Trustees with negative trust or 0 trust will get a rank of Integer.MAX_VALUE.
-				// Trusters with rank Integer.MAX_VALUE cannot inherit their rank to their trustees so the trustees will get no rank at all.
-				// Identities with no rank are considered to be not in the trust tree of the own identity and their score will be null / none.
-				//
-				// Further, if the treeOwner has assigned a trust value to an identity, the rank decision is done by only considering this trust value:
-				// The decision of the own identity shall not be overpowered by the view of the remote identities.
-				//
-				// The purpose of differentiation between Integer.MAX_VALUE and -1 is:
-				// Score objects of identities with rank Integer.MAX_VALUE are kept in the database because WoT will usually "hear" about those identities by seeing
-				// them in the trust lists of trusted identities (with 0 or negative trust values). So it must store the trust values to those identities and
-				// have a way of telling the user "this identity is not trusted" by keeping a score object of them.
-				// Score objects of identities with rank -1 are deleted because they are the trustees of distrusted identities and we will not get to the point where
-				// we hear about those identities because the only way of hearing about them is importing a trust list of a identity with Integer.MAX_VALUE rank
-				// - and we never import their trust lists. 
-				// We include trust values of 0 in the set of rank Integer.MAX_VALUE (instead of only NEGATIVE trust) so that identities which only have solved
-				// introduction puzzles cannot inherit their rank to their trustees.
-				final LinkedList<Identity> unprocessedTrusters = new LinkedList<Identity>();
-				
-				// The own identity is the root of the trust tree, it should assign itself a rank of 0 , a capacity of 100 and a symbolic score of Integer.MAX_VALUE
+			final boolean shouldHaveScore = (targetRank != TrustGraph.NO_RANK);
+			final int targetScore = shouldHaveScore ? table.value[targetIndex] : 0;
+			final int targetCapacity = shouldHaveScore ? table.capacity[targetIndex] : 0;
+			
+			boolean needToCheckFetchStatus = false;
+			boolean oldShouldFetch = false;
+			int oldCapacity = 0;
+			Score newScore = null;
+			
+			// Now we have the rank and the score of the target computed and can check whether the database-stored score object is correct.
+			final Score currentStoredScore = storedScores.remove(target.getID());
+			if(currentStoredScore != null) {
+				assert(currentStoredScore.getTrustee() == target);
+				oldCapacity = currentStoredScore.getCapacity();
 				
-				try {
-					Score selfScore = getScore(treeOwner, treeOwner);
+				if(!shouldHaveScore) {
+					returnValue = false;
+					if(logCorrections)
+						Logger.error(this, "Correcting wrong score: The identity has no rank and should have no score but score was " + currentStoredScore, new RuntimeException());
 					
-					if(selfScore.getRank() >= 0) { // It can only give it's rank if it has a valid one
-						rankValues.put(treeOwner, selfScore.getRank());
-						unprocessedTrusters.addLast(treeOwner);
-					} else {
-						rankValues.put(treeOwner, null);
-					}
-				} catch(NotInTrustTreeException e) {
-					// This only happens in unit tests.
-				}
-				 
-				while(!unprocessedTrusters.isEmpty()) {
-					final Identity truster = unprocessedTrusters.removeFirst();
-	
-					final Integer trusterRank = rankValues.get(truster);
+					needToCheckFetchStatus = true;
+					oldShouldFetch = shouldFetchIdentity(target);
 					
-					// The truster cannot give his rank to his trustees because he has none (or infinite), they receive no rank at all.
-					if(trusterRank == null || trusterRank == Integer.MAX_VALUE) {
-						// (Normally this does not happen because we do not enqueue the identities if they have no rank but we check for security)
-						continue;
-					}
-					
-					final int trusteeRank = trusterRank + 1;
+					currentStoredScore.deleteWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(currentStoredScore, null);
 					
-					for(Trust trust : getGivenTrusts(truster)) {
-						final Identity trustee = trust.getTrustee();
-						final Integer oldTrusteeRank = rankValues.get(trustee);
-						
-						
-						if(oldTrusteeRank == null) { // The trustee was not processed yet
-							if(trust.getValue() > 0) {
-								rankValues.put(trustee, trusteeRank);
-								unprocessedTrusters.addLast(trustee);
-							}
-							else
-								rankValues.put(trustee, Integer.MAX_VALUE);
-						} else {
-							// Breadth first search will process all rank one identities are processed before any rank two identities, etc.
-							assert(oldTrusteeRank == Integer.MAX_VALUE || trusteeRank >= oldTrusteeRank);
-							
-							if(oldTrusteeRank == Integer.MAX_VALUE) {
-								// If we found a rank less than infinite we can overwrite the old rank with this one, but only if the infinite rank was not
-								// given by the tree owner.
-								try {
-									final Trust treeOwnerTrust = getTrust(treeOwner, trustee);
-									assert(treeOwnerTrust.getValue() <= 0)
-										: "The treeOwner Trusts are processed before all other "
-										+ "Trusts, and their rank value overwrites the ones of "
-										+ "non-treeOwner Trusts. Thus, if there is a treeOwner "
-										+ "Trust, it should have a value which could have caused "
-										+ "the current rank of Integer.MAX_VALUE.";
-								} catch(NotTrustedException e) {
-									if(trust.getValue() > 0) {
-										rankValues.put(trustee, trusteeRank);
-										unprocessedTrusters.addLast(trustee);
-									}
-								}
-							}
-						}
-					}
-				}
-			}
-			
-			// Rank values of all visible identities are computed now.
-			// Next step is to compute the scores of all identities
-			
-			for(Identity target : allIdentities) {
-				// The score of an identity is the sum of all weighted trust values it has received.
-				// Each trust value is weighted with the capacity of the truster - the capacity decays with increasing rank.
-				Integer targetScore;
-				final Integer targetRank = rankValues.get(target);
-				
-				/* RankComputationTest does this as a unit test for us
-				 * 
-				assert(computeRankFromScratch(treeOwner, target)
-					== (targetRank != null ? targetRank : -1));
-				*/
-				
-				if(targetRank == null) {
-					targetScore = null;
 				} else {
-					// The treeOwner trusts himself.
-					if(targetRank == 0) {
-						targetScore = Integer.MAX_VALUE;
-					}
-					else {
-						// If the treeOwner has assigned a trust value to the target, it always overrides the "remote" score.
-						try {
-							targetScore = (int)getTrust(treeOwner, target).getValue();
-						} catch(NotTrustedException e) {
-							targetScore = 0;
-							for(Trust receivedTrust : getReceivedTrusts(target)) {
-								final Identity truster = receivedTrust.getTruster();
-								final Integer trusterRank = rankValues.get(truster);
-								
-								// The capacity is a weight function for trust values which are given from an identity:
-								// The higher the rank, the less the capacity.
-								// If the rank is Integer.MAX_VALUE (infinite) or -1 (no rank at all) the capacity will be 0.
-								final int capacity = computeCapacity(treeOwner, truster, trusterRank != null ? trusterRank : -1);
-								
-								targetScore += (receivedTrust.getValue() * capacity) / 100;
-							}
-						}
-					}
-				}
-				
-				Score newScore = null;
-				if(targetScore != null) {
-					newScore = new Score(this, treeOwner, target, targetScore, targetRank, computeCapacity(treeOwner, target, targetRank));
-				}
-				
-				boolean needToCheckFetchStatus = false;
-				boolean oldShouldFetch = false;
-				int oldCapacity = 0;
-				
-				// Now we have the rank and the score of the target computed and can check whether the database-stored score object is correct.
-				try {
-					Score currentStoredScore = getScore(treeOwner, target);
-					oldCapacity = currentStoredScore.getCapacity();
+					newScore = currentStoredScore;
 					
-					if(newScore == null) {
-						returnValue = false;
-						if(!mFullScoreComputationNeeded)
-							Logger.error(this, "Correcting wrong score: The identity has no rank and should have no score but score was " + currentStoredScore, new RuntimeException());
+					// Only Scores which actually changed are written to the database.
+					if(currentStoredScore.getRank() != targetRank
+							|| currentStoredScore.getCapacity() != targetCapacity
+							|| currentStoredScore.getScore() != targetScore) {
 						
-						needToCheckFetchStatus = true;
-						oldShouldFetch = shouldFetchIdentity(target);
-						
-						currentStoredScore.deleteWithoutCommit();
-						mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(currentStoredScore, null);
-						
-					} else {
-						if(!newScore.equals(currentStoredScore)) {
-							returnValue = false;
-							if(!mFullScoreComputationNeeded)
-								Logger.error(this, "Correcting wrong score: Should have been " + newScore + " but was " + currentStoredScore, new RuntimeException());
-							
-							needToCheckFetchStatus = true;
-							oldShouldFetch = shouldFetchIdentity(target);
-							
-							final Score oldScore = currentStoredScore.clone();
-							
-							currentStoredScore.setRank(newScore.getRank());
-							currentStoredScore.setCapacity(newScore.getCapacity());
-							currentStoredScore.setValue(newScore.getScore());
-
-							currentStoredScore.storeWithoutCommit();
-							mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(oldScore, currentStoredScore);
-						}
-					}
-				} catch(NotInTrustTreeException e) {
-					oldCapacity = 0;
-					
-					if(newScore != null) {
 						returnValue = false;
-						if(!mFullScoreComputationNeeded)
-							Logger.error(this, "Correcting wrong score: No score was stored for the identity but it should be " + newScore, new RuntimeException());
+						if(logCorrections) {
+							Logger.error(this, "Correcting wrong score: Should have been "
+								+ new Score(this, treeOwner, target, targetScore, targetRank, targetCapacity)
+								+ " but was " + currentStoredScore, new RuntimeException());
+						}
 						
 						needToCheckFetchStatus = true;
 						oldShouldFetch = shouldFetchIdentity(target);
 						
-						newScore.storeWithoutCommit();
-						mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(null, newScore);
+						final Score oldScore = currentStoredScore.clone();
+						
+						currentStoredScore.setRank(targetRank);
+						currentStoredScore.setCapacity(targetCapacity);
+						currentStoredScore.setValue(targetScore);
+
+						currentStoredScore.storeWithoutCommit();
+						mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(oldScore, currentStoredScore);
 					}
 				}
-
-				if(!needToCheckFetchStatus) {
-					// The Score database was correct, and thus shouldFetchIdentity() cannot have
-					// changed its value since no Score changed - which is why
-					// needToCheckFetchStatus == false is false yet.
-					// However, previously called alternate Score computation implementations could
-					// have forgotten to tell IdentityFetcher the shouldFetchIdentity() value, so
-					// for debugging purposes we now also check whether IdentityFetcher has the
-					// correct state.
+			} else {
+				oldCapacity = 0;
+				
+				if(shouldHaveScore) {
+					newScore = new Score(this, treeOwner, target, targetScore, targetRank, targetCapacity);
 					
-					final boolean realOldShouldFetch = mFetcher.getShouldFetchState(target.getID());
-					final boolean newShouldFetch = shouldFetchIdentity(target);
+					returnValue = false;
+					if(logCorrections)
+						Logger.error(this, "Correcting wrong score: No score was stored for the identity but it should be " + newScore, new RuntimeException());
 					
-					if(realOldShouldFetch != newShouldFetch) {
-						needToCheckFetchStatus = true;
-						returnValue = false;
-						oldShouldFetch = realOldShouldFetch;
-						
-						// We purposely always log an error even if mFullScoreComputationNeeded is
-						// false: needToCheckFetchStatus was false when we entered this branch
-						// because the stored Scores were correct, so the Scores were already
-						// correct before this function was called, and thus the code which
-						// set mFullScoreComputationNeeded wasn't responsible for the wrong
-						// shouldFetchState as it didn't create those Scores either.
-						Logger.error(this, "Correcting wrong IdentityFetcher shouldFetch state: "
-							+ "was: " + realOldShouldFetch + "; should be: " + newShouldFetch + "; "
-							+ "identity: " + target, new Exception());
-					}
+					needToCheckFetchStatus = true;
+					oldShouldFetch = shouldFetchIdentity(target);
 					
-					// ATTENTION if you want to implement an alternate Score computation algorithm:
-					// What we just validated about the previous Score computation run is NOT the 
-					// whole deal of verifying the IdentityFetcher state. What also would have to be
-					// validated is: If the capacity of the identity was 0 before the previous run
-					// and then changed to > 0 in the previous run, then the current edition of the
-					// identity has to be marked as "not fetched". This is because identities with
-					// capacity 0 are not allowed to introduce trustees, but identities with
-					// capacity > 0 are. To get those trustees, we have to re-fetch the identity's
-					// tust list.
-					// We cannot check this here though: The information whether capacity changed
-					// from 0 to > 0 in the previous Score computation run only available *during*
-					// the previous run, not now.
-					// We compensate for this by having a unit test for this situation:
-					// WoTTest.testRefetchDueToCapacityChange()
+					newScore.storeWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(null, newScore);
+				}
+			}
+
+			if(!needToCheckFetchStatus) {
+				// The Score database was correct, and thus shouldFetchIdentity() cannot have
+				// changed its value since no Score changed - which is why
+				// needToCheckFetchStatus == false is false yet.
+				// However, previously called alternate Score computation implementations could
+				// have forgotten to tell IdentityFetcher the shouldFetchIdentity() value, so
+				// for debugging purposes we now also check whether IdentityFetcher has the
+				// correct state.
+				
+				final boolean realOldShouldFetch = mFetcher.getShouldFetchState(target.getID());
+				final boolean newShouldFetch = shouldFetchIdentity(target);
+				
+				if(realOldShouldFetch != newShouldFetch) {
+					needToCheckFetchStatus = true;
+					returnValue = false;
+					oldShouldFetch = realOldShouldFetch;
 					
-					// TODO: Code quality: Instead of only checking the "should fetch?" state for
-					// existing Identitys, also check for those which have been deleted: Obtain the
-					// full list of URIs being fetched from the IdentityFetcher, and check for any
-					// URIs which don't belong to an existing Identity which should be fetched.
-					// However, these false positives are not security critical: When the
-					// XMLTransformer imports fetched files, it will check whether an Identity
-					// exists (and whether should be fetched).
+					// We purposely always log an error even if logCorrections is false:
+					// needToCheckFetchStatus was false when we entered this branch
+					// because the stored Scores were correct, so the Scores were already
+					// correct before this function was called, and thus the code which
+					// caused the computation wasn't responsible for the wrong
+					// shouldFetchState as it didn't create those Scores either.
+					Logger.error(this, "Correcting wrong IdentityFetcher shouldFetch state: "
+						+ "was: " + realOldShouldFetch + "; should be: " + newShouldFetch + "; "
+						+ "identity: " + target, new Exception());
 				}
 				
-				if(needToCheckFetchStatus) {
-					// If fetch status changed from false to true, we need to start fetching it
-					// If the capacity changed from 0 to positive, we need to refetch the current edition: Identities with capacity 0 cannot
-					// cause new identities to be imported from their trust list, capacity > 0 allows this.
-					// If the fetch status changed from true to false, we need to stop fetching it
-					if((!oldShouldFetch || (oldCapacity == 0 && newScore != null && newScore.getCapacity() > 0)) && shouldFetchIdentity(target) ) {
-						returnValue = false;
-						
-						if(logMINOR) {
-							if(!oldShouldFetch)
-								Logger.minor(this, "Fetch status changed from false to true, refetching " + target);
-							else
-								Logger.minor(this, "Capacity changed from 0 to " + newScore.getCapacity() + ", refetching" + target);
-						}
+				// ATTENTION if you want to implement an alternate Score computation algorithm:
+				// What we just validated about the previous Score computation run is NOT the 
+				// whole deal of verifying the IdentityFetcher state. What also would have to be
+				// validated is: If the capacity of the identity was 0 before the previous run
+				// and then changed to > 0 in the previous run, then the current edition of the
+				// identity has to be marked as "not fetched". This is because identities with
+				// capacity 0 are not allowed to introduce trustees, but identities with
+				// capacity > 0 are. To get those trustees, we have to re-fetch the identity's
+				// tust list.
+				// We cannot check this here though: The information whether capacity changed
+				// from 0 to > 0 in the previous Score computation run only available *during*
+				// the previous run, not now.
+				// We compensate for this by having a unit test for this situation:
+				// WoTTest.testRefetchDueToCapacityChange()
+				
+				// TODO: Code quality: Instead of only checking the "should fetch?" state for
+				// existing Identitys, also check for those which have been deleted: Obtain the
+				// full list of URIs being fetched from the IdentityFetcher, and check for any
+				// URIs which don't belong to an existing Identity which should be fetched.
+				// However, these false positives are not security critical: When the
+				// XMLTransformer imports fetched files, it will check whether an Identity
+				// exists (and whether should be fetched).
+			}
+			
+			if(needToCheckFetchStatus) {
+				// If fetch status changed from false to true, we need to start fetching it
+				// If the capacity changed from 0 to positive, we need to refetch the current edition: Identities with capacity 0 cannot
+				// cause new identities to be imported from their trust list, capacity > 0 allows this.
+				// If the fetch status changed from true to false, we need to stop fetching it
+				if((!oldShouldFetch || (oldCapacity == 0 && newScore != null && newScore.getCapacity() > 0)) && shouldFetchIdentity(target) ) {
+					returnValue = false;
+					
+					if(logMINOR) {
+						if(!oldShouldFetch)
+							Logger.minor(this, "Fetch status changed from false to true, refetching " + target);
+						else
+							Logger.minor(this, "Capacity changed from 0 to " + newScore.getCapacity() + ", refetching" + target);
+					}
 
-						final Identity oldTarget = target.clone();
-						
-						target.markForRefetch();
-						target.storeWithoutCommit();
-						
-						// Clients shall determine shouldFetch from the scores of an identity on their own so there is no need to notify the client about that
-						// - but we do tell the client the state of Identity.getCurrentEditionFetchState() which is changed by markForRefetch().
-						// Therefore we me must store a notification nevertheless.
-						if(!oldTarget.equals(target)) // markForRefetch() will not change anything if the current edition had not been fetched yet
-							mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldTarget, target);
+					final Identity oldTarget = target.clone();
+					
+					target.markForRefetch();
+					target.storeWithoutCommit();
+					
+					// Clients shall determine shouldFetch from the scores of an identity on their own so there is no need to notify the client about that
+					// - but we do tell the client the state of Identity.getCurrentEditionFetchState() which is changed by markForRefetch().
+					// Therefore we me must store a notification nevertheless.
+					if(!oldTarget.equals(target)) // markForRefetch() will not change anything if the current edition had not been fetched yet
+						mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldTarget, target);
 
-						mFetcher.storeStartFetchCommandWithoutCommit(target);
-					}
-					else if(oldShouldFetch && !shouldFetchIdentity(target)) {
-						returnValue = false;
-						
-						if(logMINOR) Logger.minor(this, "Fetch status changed from true to false, aborting fetch of " + target);
+					mFetcher.storeStartFetchCommandWithoutCommit(target);
+				}
+				else if(oldShouldFetch && !shouldFetchIdentity(target)) {
+					returnValue = false;
+					
+					if(logMINOR) Logger.minor(this, "Fetch status changed from true to false, aborting fetch of " + target);
 
-						mFetcher.storeAbortFetchCommandWithoutCommit(target);
-					}
+					mFetcher.storeAbortFetchCommandWithoutCommit(target);
 				}
 			}
 		}
 		
-		mFullScoreComputationNeeded = false;
+		return returnValue;
+	}
+	
+	/**
+	 * Computes the trust tree of a single {@link OwnIdentity} from scratch and stores it, see
+	 * {@link #computeAllScoresWithoutCommit()} for how Score computation works.<br>
+	 * This is only a valid replacement for the full computation if the {@link Trust}s which were
+	 * changed since the Scores were correct can only have affected the trust tree of the given
+	 * tree owner, i.e. if they were given by an identity which is not part of any other trust
+	 * tree. This is the case for the trust list of an OwnIdentity which was just created:
+	 * Nobody could have trusted it yet. Then the cost is the one of a single tree instead of the
+	 * one of the trees of all OwnIdentitys.<br>
+	 * The tree owner must have its self-{@link Score} already, see
+	 * {@link #initTrustTreeWithoutCommit(OwnIdentity)}.
+	 * 
+	 * This function does neither lock the database nor commit the transaction. You have to surround it with
+	 * <code>
+	 * synchronized(WebOfTrust.this) {
+	 * synchronized(mFetcher) {
+	 * synchronized(mSubscriptionManager) {
+	 * synchronized(Persistent.transactionLock(mDB)) {
+	 *     try { ... computeTrustTreeWithoutCommit(...); Persistent.checkedCommit(mDB, this); }
+	 *     catch(RuntimeException e) { Persistent.checkedRollbackAndThrow(mDB, this, e); }
+	 * }}}}
+	 * </code>
+	 */
+	private void computeTrustTreeWithoutCommit(final OwnIdentity treeOwner) {
+		if(logMINOR) Logger.minor(this, "Computing the trust tree of " + treeOwner + " ...");
 		
-		++mFullScoreRecomputationCount;
-		mFullScoreRecomputationMilliseconds += CurrentTimeUTC.getInMillis() - beginTime;
+		final StopWatch time = new StopWatch();
+		
+		final int treeOwnerRank;
+		try {
+			treeOwnerRank = getScore(treeOwner, treeOwner).getRank();
+		} catch(NotInTrustTreeException e) {
+			throw new IllegalStateException("initTrustTreeWithoutCommit() was not called for "
+				+ treeOwner, e);
+		}
+		
+		// The stored tree is expected to be outdated, so corrections are not logged as errors.
+		computeAndStoreTrustTreeWithoutCommit(treeOwner, treeOwnerRank, false);
+		
+		++mTrustTreeComputationCount;
+		mTrustTreeComputationNanos += time.getNanos();
+		
+		if(logMINOR)
+			Logger.minor(this, "Computing the trust tree of " + treeOwner + " finished: " + time);
+		
+		// The trust trees of all other OwnIdentitys must not have been affected.
+		assert(computeAllScoresWithoutCommit());
+	}
+	
+	/**
+	 * Computes the {@link TrustGraph.ScoreTable} of the given tree owner from a snapshot of the
+	 * {@link #getTrustGraph()} and passes it to
+	 * {@link #storeTrustTreeWithoutCommit(OwnIdentity, TrustGraph.Snapshot, TrustGraph.ScoreTable,
+	 * boolean)}.
+	 * 
+	 * Synchronization: Same as {@link #computeAllScoresWithoutCommit()}.
+	 * 
+	 * @param treeOwnerRank The rank of the tree owner in its own tree, or
+	 *     {@link TrustGraph#NO_RANK} if it has none.
+	 * @return True if all stored scores were correct. False if there were any errors in stored scores.
+	 */
+	private boolean computeAndStoreTrustTreeWithoutCommit(final OwnIdentity treeOwner,
+			final int treeOwnerRank, final boolean logCorrections) {
+		
+		final TrustGraph trustGraph = getTrustGraph();
+		trustGraph.getOrCreateIndex(treeOwner.getID());
+		final TrustGraph.Snapshot graph = trustGraph.snapshot();
+		
+		final TrustGraph.ScoreTable table
+			= graph.computeScoreTable(graph.getIndex(treeOwner.getID()), treeOwnerRank);
+		
+		return storeTrustTreeWithoutCommit(treeOwner, graph, table, logCorrections);
+	}
+	
+	/**
+	 * Computes the {@link TrustGraph.ScoreTable}s of the given trust trees for
+	 * {@link #computeAllScoresWithoutCommit()}, using {@link #SCORE_COMPUTATION_THREADS} threads,
+	 * and the bit-parallel rank computation if there are at least
+	 * {@link #BIT_PARALLEL_SCORE_COMPUTATION_MIN_TREE_OWNERS} trees.<br>
+	 * If {@link #DEBUG__VERIFY_PARALLEL_SCORE_COMPUTATION} is true, the result is compared
+	 * against a serial computation.<br><br>
+	 * 
+	 * Only the database-independent part of the computation is parallelized: The jobs only see the
+	 * immutable {@link TrustGraph.Snapshot}, so it is safe to run them while the caller holds the
+	 * locks. Writing the resulting {@link Score}s is left to the single calling thread. */
+	private TrustGraph.ScoreTable[] computeScoreTables(final TrustGraph.Snapshot graph,
+			final int[] treeOwners, final int[] treeOwnerRanks) {
+		
+		final StopWatch time = logMINOR ? new StopWatch() : null;
+		
+		final boolean bitParallel
+			= treeOwners.length >= BIT_PARALLEL_SCORE_COMPUTATION_MIN_TREE_OWNERS;
+		
+		final TrustGraph.ScoreTable[] tables = graph.computeScoreTables(treeOwners, treeOwnerRanks,
+			bitParallel, SCORE_COMPUTATION_THREADS > 1 ? getExecutor() : null,
+			SCORE_COMPUTATION_THREADS);
 		
 		if(logMINOR) {
-			Logger.minor(this, "Full score computation finished. Amount: " + mFullScoreRecomputationCount + "; Avg Time:" + getAverageFullScoreRecomputationTime() + "s");
+			Logger.minor(this, "Computed " + tables.length + " trust trees with "
+				+ SCORE_COMPUTATION_THREADS + " threads, bit-parallel: " + bitParallel + ": "
+				+ time);
 		}
 		
-		return returnValue;
+		if(DEBUG__VERIFY_PARALLEL_SCORE_COMPUTATION) {
+			final TrustGraph.ScoreTable[] serialTables
+				= graph.computeScoreTables(treeOwners, treeOwnerRanks, false, null, 1);
+			
+			if(!Arrays.equals(tables, serialTables)) {
+				Logger.error(this, "Parallel Score computation differs from serial computation, "
+					+ "using serial result!", new RuntimeException());
+				return serialTables;
+			}
+		}
+		
+		return tables;
 	}
 	
 	private synchronized void createSeedIdentities() {
@@ -2119,6 +2888,23 @@ public final class WebOfTrust extends WebOfTrustInterface
 				mSubscriptionManager.stop();
 		}});
 
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			// Must be terminated before the database is closed. The backup file is left as it was
+			// before the backup started.
+			if(mOnlineBackup != null)
+				mOnlineBackup.terminate();
+		}});
+
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			// The verification resumes at the next startup, see maybeVerifyAndCorrectStoredScores()
+			mScoreVerificationJob.terminate();
+			try {
+				mScoreVerificationJob.waitForTermination(Long.MAX_VALUE);
+			} catch (InterruptedException e) {
+				Logger.error(this, "ShutdownThread should not be interrupted!", e);
+			}
+		}});
+
         latch.set(new CountDownLatch(shutdownThreads.size()));
 
         Executor executor = (mPR != null /* Can be null in unit tests */)
@@ -2163,6 +2949,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				 * If it becomes possible some day, we should check that here, and log an error if there is an uncommitted transaction. 
 				 * - All transactions should be committed after obtaining the lock() on the database. */
 				synchronized(Persistent.transactionLock(mDB)) {
+					Persistent.removeRollbackListener(mDB, mTrustGraphRollbackListener);
 					System.gc();
 					mDB.rollback();
 					System.gc(); 
@@ -2210,13 +2997,23 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws UnknownIdentityException if there is no identity with this id in the database
 	 */
 	public synchronized Identity getIdentityByID(String id) throws UnknownIdentityException {
+		final Identity cached = mIdentityCache.get(id);
+		if(cached != null) {
+			cached.initializeTransient(this);
+			return cached;
+		}
+		
+		final int cacheGeneration = mIdentityCache.getGeneration();
 		final Query query = mDB.query();
 		query.constrain(Identity.class);
 		query.descend("mID").constrain(id);
 		final ObjectSet<Identity> result = new Persistent.InitializingObjectSet<Identity>(this, query);
 		
 		switch(result.size()) {
-			case 1: return result.next();
+			case 1:
+				final Identity identity = result.next();
+				mIdentityCache.put(identity, cacheGeneration);
+				return identity;
 			case 0: throw new UnknownIdentityException(id);
 			default: throw new DuplicateIdentityException(id, result.size());
 		}  
@@ -2230,13 +3027,26 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws UnknownIdentityException if there is now OwnIdentity with that id
 	 */
 	public synchronized OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException {
+		final Identity cached = mIdentityCache.get(id);
+		if(cached != null) {
+			if(!(cached instanceof OwnIdentity))
+				throw new UnknownIdentityException(id);
+			
+			cached.initializeTransient(this);
+			return (OwnIdentity)cached;
+		}
+		
+		final int cacheGeneration = mIdentityCache.getGeneration();
 		final Query query = mDB.query();
 		query.constrain(OwnIdentity.class);
 		query.descend("mID").constrain(id);
 		final ObjectSet<OwnIdentity> result = new Persistent.InitializingObjectSet<OwnIdentity>(this, query);
 		
 		switch(result.size()) {
-			case 1: return result.next();
+			case 1:
+				final OwnIdentity identity = result.next();
+				mIdentityCache.put(identity, cacheGeneration);
+				return identity;
 			case 0: throw new UnknownIdentityException(id);
 			default: throw new DuplicateIdentityException(id, result.size());
 		}  
@@ -2311,7 +3121,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 		ByScoreAscending,
 		ByScoreDescending,
 		ByLocalTrustAscending,
-		ByLocalTrustDescending
+		ByLocalTrustDescending,
+		ByLastFetchedAscending,
+		ByLastFetchedDescending,
+		ByReceivedTrustCountAscending,
+		ByReceivedTrustCountDescending
 	}
 
 	/** TODO: Code quality: Use {@link Long#compare(long, long)}} once we require Java 7 */
@@ -2323,6 +3137,32 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 
+	/**
+	 * Compares {@link Identity}s by the amount of {@link Trust}s they have received.<br>
+	 * The counts are copied from the {@link TrustGraph} before sorting, so each comparison is a
+	 * HashMap lookup instead of a database query.
+	 * You have to synchronize on this WoT when calling the function and using the comparator. */
+	private Comparator<Identity> getReceivedTrustCountComparator(final boolean descending) {
+		final HashMap<String, Integer> counts;
+		synchronized(Persistent.transactionLock(mDB)) {
+			final TrustGraph graph = getTrustGraph();
+			counts = new HashMap<String, Integer>(graph.getVertexCount() * 2);
+			for(int i = 0; i < graph.getVertexCount(); ++i)
+				counts.put(graph.getID(i), graph.getReceivedTrustCount(i));
+		}
+		
+		return new Comparator<Identity>() {
+			@Override public int compare(Identity i1, Identity i2) {
+				i1.initializeTransient(WebOfTrust.this);
+				i2.initializeTransient(WebOfTrust.this);
+				final Integer c1 = counts.get(i1.getID());
+				final Integer c2 = counts.get(i2.getID());
+				final int result = LongJava6.compare(c1 != null ? c1 : 0, c2 != null ? c2 : 0);
+				return descending ? -result : result;
+			}
+		};
+	}
+
 	/**
 	 * Get a filtered and sorted list of identities.
 	 * You have to synchronize on this WoT when calling the function and processing the returned list.
@@ -2331,38 +3171,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 		Query q = mDB.query();
 		
 		switch(sortInstruction) {
-            case ByEditionAscending:
-                q.constrain(Identity.class);
-                // TODO: Performance: Add a member variable "mEdition" to Identity and use a native
-                // db4o sorting query upon that. Currently, class Identity stores the edition inside
-                // the String which holds its FreenetURI. The base URI is different for each
-                // identity so we cannot just sort upon the URI string.
-                // Also do the same for the case ByEditionDescending below.
-                // NOTICE: If implement this TODO, you will have to write database upgrade code to
-                // populate the new member variable in old databases. This requires quite a bit of
-                // work and good testing. Thus, I would suggest you implement it together with
-                // all possible further sorting functions which also need new fields. You should 
-                // check the web interface's KnownIdentitiesPage for values which need sorting.
-                // There is also a bugtracker entry for adding more sorting:
-                // https://bugs.freenetproject.org/view.php?id=6501
-                q.sortBy(new Comparator<Identity>() {
-                    @Override public int compare(Identity i1, Identity i2) {
-                        i1.initializeTransient(WebOfTrust.this);
-                        i2.initializeTransient(WebOfTrust.this);
-                        return LongJava6.compare(i1.getEdition(), i2.getEdition());
-                    }
-                });
-                break;
-            case ByEditionDescending:
-                q.constrain(Identity.class);
-                q.sortBy(new Comparator<Identity>() {
-                    @Override public int compare(Identity i1, Identity i2) {
-                        i1.initializeTransient(WebOfTrust.this);
-                        i2.initializeTransient(WebOfTrust.this);
-                        return -LongJava6.compare(i1.getEdition(), i2.getEdition());
-                    }
-                });
-                break;
+			case ByEditionAscending:
+				q.constrain(Identity.class);
+				q.descend("mEdition").orderAscending();
+				break;
+			case ByEditionDescending:
+				q.constrain(Identity.class);
+				q.descend("mEdition").orderDescending();
+				break;
 			case ByNicknameAscending:
 				q.constrain(Identity.class);
 				q.descend("mNickname").orderAscending();
@@ -2397,6 +3213,22 @@ public final class WebOfTrust extends WebOfTrustInterface
 				q.descend("mValue").orderDescending();
 				q = q.descend("mTrustee");
 				break;
+			case ByLastFetchedAscending:
+				q.constrain(Identity.class);
+				q.descend("mLastFetchedDate").orderAscending();
+				break;
+			case ByLastFetchedDescending:
+				q.constrain(Identity.class);
+				q.descend("mLastFetchedDate").orderDescending();
+				break;
+			case ByReceivedTrustCountAscending:
+				q.constrain(Identity.class);
+				q.sortBy(getReceivedTrustCountComparator(false));
+				break;
+			case ByReceivedTrustCountDescending:
+				q.constrain(Identity.class);
+				q.sortBy(getReceivedTrustCountComparator(true));
+				break;
 		}
 		
 		if(nickFilter != null) {
@@ -2498,6 +3330,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 			for(Trust trust : getReceivedTrusts(identity)) {
 				trust.deleteWithoutCommit();
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
+				if(mTrustGraph != null)
+					mTrustGraph.removeTrust(trust.getTruster().getID(), identity.getID());
 			}
 
 			if(logDEBUG) Logger.debug(this, "Deleting given trusts...");
@@ -2505,6 +3339,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 				givenTrust.deleteWithoutCommit();
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(givenTrust, null);
 				// We call computeAllScores anyway so we do not use removeTrustWithoutCommit()
+				if(mTrustGraph != null)
+					mTrustGraph.removeTrust(identity.getID(), givenTrust.getTrustee().getID());
 			}
 			
 			mFullScoreComputationNeeded = true; // finishTrustListImport will call computeAllScoresWithoutCommit for us.
@@ -2548,36 +3384,34 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws NotInTrustTreeException if this identity is not in the required trust tree 
 	 */
 	public synchronized Score getScore(final OwnIdentity truster, final Identity trustee) throws NotInTrustTreeException {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mID").constrain(new ScoreID(truster, trustee).toString());
-		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(this, query);
-		
-		switch(result.size()) {
-			case 1: 
-				final Score score = result.next();
-				assert(score.getTruster() == truster);
-				assert(score.getTrustee() == trustee);
-				return score;
-			case 0: throw new NotInTrustTreeException(truster, trustee);
-			default: throw new DuplicateScoreException(truster, trustee, result.size());
+		final Score score;
+		synchronized(Persistent.transactionLock(mDB)) {
+			score = getTrustAndScoreIndex().getScore(new ScoreID(truster, trustee).toString());
 		}
+		
+		if(score == null)
+			throw new NotInTrustTreeException(truster, trustee);
+		
+		score.initializeTransient(this);
+		assert(score.getTruster() == truster);
+		assert(score.getTrustee() == trustee);
+		return score;
 	}
 
 	/** @see #getScore(OwnIdentity, Identity) */
 	public synchronized Score getScore(final String id) throws NotInTrustTreeException {
 		// TODO: Code quality: assert(id is valid)
 		
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mID").constrain(id);
-		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(this, query);
-		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new NotInTrustTreeException(id);
-			default: throw new DuplicateScoreException(id, result.size());
+		final Score score;
+		synchronized(Persistent.transactionLock(mDB)) {
+			score = getTrustAndScoreIndex().getScore(id);
 		}
+		
+		if(score == null)
+			throw new NotInTrustTreeException(id);
+		
+		score.initializeTransient(this);
+		return score;
 	}
 
 	/**
@@ -2613,16 +3447,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws NotInTrustTreeException If the identity has no score in any trusttree.
 	 */
 	public synchronized int getBestScore(final Identity identity) throws NotInTrustTreeException {
-		int bestScore = Integer.MIN_VALUE;
-		final ObjectSet<Score> scores = getScores(identity);
+		final int bestScore = identity.getBestScore();
 		
-		if(scores.size() == 0)
+		if(bestScore == Identity.NO_SCORE)
 			throw new NotInTrustTreeException(identity);
 		
-		// TODO: Cache the best score of an identity as a member variable.
-		for(final Score score : scores) 
-			bestScore = Math.max(score.getScore(), bestScore);
-		
 		return bestScore;
 	}
 	
@@ -2631,17 +3460,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws NotInTrustTreeException If the identity is not in any trust tree. Can be interpreted as capacity 0.
 	 */
 	public synchronized int getBestCapacity(final Identity identity) throws NotInTrustTreeException {
-		int bestCapacity = 0;
-		final ObjectSet<Score> scores = getScores(identity);
-		
-		if(scores.size() == 0)
+		if(identity.getBestScore() == Identity.NO_SCORE)
 			throw new NotInTrustTreeException(identity);
 		
-		// TODO: Cache the best score of an identity as a member variable.
-		for(final Score score : scores) 
-			bestCapacity  = Math.max(score.getCapacity(), bestCapacity);
-		
-		return bestCapacity;
+		return identity.getBestCapacity();
 	}
 	
 	/**
@@ -2660,12 +3482,22 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * 
 	 * Synchronization: You must synchronize on this WebOfTrust when using this function.
 	 * 
-	 * TODO: Performance: Various callers could be optimized by storing the value of this for all
-	 * identities in a database table.
+	 * The value is stored by the {@link Identity} itself and thus does not need a database query,
+	 * see {@link Identity#updateBestScoreWithoutCommit(Score, boolean)}.
 	 * 
 	 * @return Returns true if the identity has any capacity > 0, any score >= 0 or if it is an own identity.
 	 */
     boolean shouldFetchIdentity(final Identity identity) {
+		final boolean result = identity.shouldFetch();
+		assert(result == computeShouldFetchIdentity(identity));
+		return result;
+	}
+
+	/**
+	 * Computes the value of {@link #shouldFetchIdentity(Identity)} from the {@link Score}s in the
+	 * database. Only for assert()s.
+	 */
+	private boolean computeShouldFetchIdentity(final Identity identity) {
 		if(identity instanceof OwnIdentity) {
 			// TODO: Performance: Get rid of the self-score check and just return true.
 			// See main TODO at WoTTest.testSetTrust1().
@@ -2688,7 +3520,6 @@ public final class WebOfTrust extends WebOfTrustInterface
 		if(scores.size() == 0)
 			return false;
 			
-		// TODO: Cache the best score of an identity as a member variable.
 		for(Score score : scores) { 
 			bestCapacity  = Math.max(score.getCapacity(), bestCapacity);
 			bestScore  = Math.max(score.getScore(), bestScore);
@@ -2806,22 +3637,22 @@ public final class WebOfTrust extends WebOfTrustInterface
 	/**
 	 * Gets the {@link Trust} with the given {@link TrustID}. 
 	 * 
+	 * @throws DuplicateTrustException If multiple Trusts with the ID are stored, see
+	 *     {@link TrustAndScoreIndex}. Should never happen.
 	 * @see #getTrust(Identity, Identity)
 	 */
 	public synchronized Trust getTrust(final String trustID) throws NotTrustedException, DuplicateTrustException {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		query.descend("mID").constrain(trustID);
-		final ObjectSet<Trust> result = new Persistent.InitializingObjectSet<Trust>(this, query);
-		
-		switch(result.size()) {
-			case 1: 
-				final Trust trust = result.next();
-				assert(trustID.equals(new TrustID(trust.getTruster(), trust.getTrustee()).toString()));
-				return trust;
-			case 0: throw new NotTrustedException(trustID);
-			default: throw new DuplicateTrustException(trustID, result.size());
+		final Trust trust;
+		synchronized(Persistent.transactionLock(mDB)) {
+			trust = getTrustAndScoreIndex().getTrust(trustID);
 		}
+		
+		if(trust == null)
+			throw new NotTrustedException(trustID);
+		
+		trust.initializeTransient(this);
+		assert(trustID.equals(new TrustID(trust.getTruster(), trust.getTrustee()).toString()));
+		return trust;
 	}
 
 	/**
@@ -2976,6 +3807,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 			
 			trust.storeWithoutCommit();
 			
+			if(valueChanged && mTrustGraph != null)
+				mTrustGraph.setTrust(truster.getID(), trustee.getID(), newValue);
+			
 			if(!trust.equals(oldTrust))
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(oldTrust, trust);
 			
@@ -2986,6 +3820,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 		} catch (NotTrustedException e) {
 			final Trust trust = new Trust(this, truster, trustee, newValue, newComment);
 			trust.storeWithoutCommit();
+			if(mTrustGraph != null)
+				mTrustGraph.setTrust(truster.getID(), trustee.getID(), newValue);
 			mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(null, trust);
 			if(logDEBUG) Logger.debug(this, "New trust value ("+ trust +"), now updating Score.");
 			updateScoresWithoutCommit(null, trust);
@@ -3064,6 +3900,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 */
 	protected void removeTrustWithoutCommit(Trust trust) {
 		trust.deleteWithoutCommit();
+		if(mTrustGraph != null) {
+			final TrustID id = new TrustID(trust);
+			mTrustGraph.removeTrust(id.getTrusterID(), id.getTrusteeID());
+		}
 		mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
 		updateScoresWithoutCommit(trust, null);
 	}
@@ -3111,17 +3951,26 @@ public final class WebOfTrust extends WebOfTrustInterface
 		if(trustee == truster)
 			return Integer.MAX_VALUE;
 		
-		int value = 0;
+		final TrustGraph graph = getTrustGraph();
+		final int trusteeIndex = graph.getIndex(trustee.getID());
+		if(trusteeIndex == TrustGraph.NO_INDEX) // Has not received any Trust
+			return 0;
 		
-		try {
-			return getTrust(truster, trustee).getValue();
+		final String trusterID = truster.getID();
+		final int trusterIndex = graph.getIndex(trusterID);
+		if(trusterIndex != TrustGraph.NO_INDEX) {
+			final int treeOwnerTrust = graph.getTrustValue(trusterIndex, trusteeIndex);
+			if(treeOwnerTrust != TrustGraph.NO_TRUST)
+				return treeOwnerTrust;
 		}
-		catch(NotTrustedException e) { }
 		
-		for(Trust trust : getReceivedTrusts(trustee)) {
+		int value = 0;
+		
+		for(int i = 0; i < graph.getReceivedTrustCount(trusteeIndex); ++i) {
 			try {
-				final Score trusterScore = getScore(truster, trust.getTruster());
-				value += ( trust.getValue() * trusterScore.getCapacity() ) / 100;
+				final String giverID = graph.getID(graph.getReceivedTruster(trusteeIndex, i));
+				final Score trusterScore = getScore(new ScoreID(trusterID, giverID).toString());
+				value += ( graph.getReceivedTrustValue(trusteeIndex, i) * trusterScore.getCapacity() ) / 100;
 			} catch (NotInTrustTreeException e) {}
 		}
 		return value;
@@ -3141,9 +3990,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * - for unit testing purposes, provide an alternate, unoptimized implementation of said
 	 *   functions.
 	 *   
-	 * TODO: Code quality: Since we have 4 implementations of rank computation now
-	 * (including {@link #computeAllScoresWithoutCommit()}), this and the other functions should be
-	 * moved to an interface "RankComputer" with 4 implementing classes.*/
+	 * The 4 implementations of rank computation (including
+	 * {@link #computeAllScoresWithoutCommit()}) are available through the interface
+	 * {@link RankComputer}, see {@link RankComputer.Type}. */
 	int computeRankFromScratch_Forward(final OwnIdentity source, final Identity target) {
 		final class Vertex implements Comparable<Vertex>{
 			final Identity identity;
@@ -3840,22 +4689,32 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		int rank = -1;
 		
-		try {
-			Trust treeOwnerTrust = getTrust(truster, trustee);
+		final TrustGraph graph = getTrustGraph();
+		final int trusteeIndex = graph.getIndex(trustee.getID());
+		if(trusteeIndex == TrustGraph.NO_INDEX) // Has not received any Trust
+			return -1;
+		
+		final String trusterID = truster.getID();
+		final int trusterIndex = graph.getIndex(trusterID);
+		if(trusterIndex != TrustGraph.NO_INDEX) {
+			final int treeOwnerTrust = graph.getTrustValue(trusterIndex, trusteeIndex);
 			
-			if(treeOwnerTrust.getValue() > 0)
-				return 1;
-			else
-				return Integer.MAX_VALUE;
-		} catch(NotTrustedException e) { }
+			if(treeOwnerTrust != TrustGraph.NO_TRUST) {
+				if(treeOwnerTrust > 0)
+					return 1;
+				else
+					return Integer.MAX_VALUE;
+			}
+		}
 		
-		for(Trust trust : getReceivedTrusts(trustee)) {
+		for(int i = 0; i < graph.getReceivedTrustCount(trusteeIndex); ++i) {
 			try {
-				Score score = getScore(truster, trust.getTruster());
+				final String giverID = graph.getID(graph.getReceivedTruster(trusteeIndex, i));
+				Score score = getScore(new ScoreID(trusterID, giverID).toString());
 
 				if(score.getCapacity() != 0) { // If the truster has no capacity, he can't give his rank
 					// A truster only gives his rank to a trustee if he has assigned a strictly positive trust value
-					if(trust.getValue() > 0 ) {
+					if(graph.getReceivedTrustValue(trusteeIndex, i) > 0 ) {
 						// We give the rank to the trustee if it is better than its current rank or he has no rank yet. 
 						if(rank == -1 || score.getRank() < rank)  
 							rank = score.getRank();						
@@ -3923,6 +4782,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		mTrustListImportInProgress = true;
+		mTrustListImportTrusteesWithChangedTrust = new HashSet<String>();
 		assert(!mFullScoreComputationNeeded);
 		assert(computeAllScoresWithoutCommit()); // The database is intact before the import
 	}
@@ -3954,6 +4814,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		assert(mTrustListImportInProgress);
 		mTrustListImportInProgress = false;
+		mTrustListImportTrusteesWithChangedTrust = null;
 		mFullScoreComputationNeeded = false;
 		Persistent.checkedRollback(mDB, this, e, logLevel);
 		assert(computeAllScoresWithoutCommit()); // Test rollback.
@@ -4015,11 +4876,54 @@ public final class WebOfTrust extends WebOfTrustInterface
 			computeAllScoresWithoutCommit();
 			assert(!mFullScoreComputationNeeded); // It properly clears the flag
 			assert(computeAllScoresWithoutCommit()); // computeAllScoresWithoutCommit() is stable
+		} else {
+			if(!mTrustListImportTrusteesWithChangedTrust.isEmpty())
+				updateScoresAfterTrustListImportWithoutCommit();
+			
+			assert(computeAllScoresWithoutCommit()); // Verify whether the batch update worked.
 		}
-		else
-			assert(computeAllScoresWithoutCommit()); // Verify whether updateScoresWithoutCommit worked.
 		
 		mTrustListImportInProgress = false;
+		mTrustListImportTrusteesWithChangedTrust = null;
+	}
+	
+	/**
+	 * Called by {@link #finishTrustListImport()} to update the Scores after all {@link Trust}s
+	 * which were changed during the import: Instead of doing one incremental computation per
+	 * changed Trust, as {@link #updateScoresWithoutCommit(Trust, Trust)} does outside of trust list
+	 * imports, the Scores are updated in a single pass for all of them by
+	 * {@link #updateScoresAfterDistrustWithoutCommit(Collection)}.<br>
+	 * That function recomputes the ranks from scratch, starting at the trustees of the changed
+	 * Trusts, and thus works no matter whether the Trusts were increased, decreased, created or
+	 * deleted. Therefore a trust list with many distrusts does not cause a full Score
+	 * computation anymore.
+	 * 
+	 * Synchronization: Same as {@link #finishTrustListImport()}. */
+	private void updateScoresAfterTrustListImportWithoutCommit() {
+		StopWatch time = new StopWatch();
+		
+		final ArrayList<Identity> trustees
+			= new ArrayList<Identity>(mTrustListImportTrusteesWithChangedTrust.size());
+		
+		for(String trusteeID : mTrustListImportTrusteesWithChangedTrust) {
+			try {
+				trustees.add(getIdentityByID(trusteeID));
+			} catch(UnknownIdentityException e) {
+				// Deleted during the import. deleteWithoutCommit() schedules a full Score
+				// computation then, so we should not have been called.
+				throw new RuntimeException(e);
+			}
+		}
+		
+		updateScoresAfterDistrustWithoutCommit(trustees);
+		
+		++mIncrementalScoreRecomputationDueToTrustListImportCount;
+		mIncrementalScoreRecomputationDueToTrustListImportNanos += time.getNanos();
+		
+		if(logMINOR) {
+			Logger.minor(this, "Batch update of Scores after trust list import with "
+				+ trustees.size() + " trustees finished: " + time);
+		}
 	}
 	
 	/**
@@ -4039,10 +4943,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 		if(logMINOR) Logger.minor(this, "Doing an incremental computation of all Scores...");
 		
 		if(mFullScoreComputationNeeded) {
-			// updateScoresAfterDistrustWithoutCommit() which we call below will only work if
-			// called for each individual distrust, it is not a batch operation.
-			// Thus, if a full score computation is scheduled, which indicates that multiple Trusts
-			// have been modified, we must not proceed.
+			// A full score computation is scheduled, which indicates that multiple Trusts
+			// have been modified in a way which neither the code below nor the batch update of
+			// finishTrustListImport() keeps track of. Thus, we must not proceed.
 			// Normally, we should throw a RuntimeException, as all Score computation should be
 			// incremental for performance reasons, but createOwnIdentity() currently needs this
 			// codepath, so we just return.
@@ -4065,6 +4968,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 			return;
 		}
+		
+		if(mTrustListImportInProgress) {
+			// finishTrustListImport() will update the Scores for all changed Trusts at once.
+			final Trust changedTrust = newTrust != null ? newTrust : oldTrust;
+			mTrustListImportTrusteesWithChangedTrust.add(changedTrust.getTrustee().getID());
+			
+			if(logMINOR)
+				Logger.minor(this, "Trust list import in progress, deferring incremental computation.");
+			return;
+		}
 
 		StopWatch time = new StopWatch();
 		
@@ -4254,7 +5167,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				}
 			}
 			
-			updateScoresAfterDistrustWithoutCommit(distrusted);
+			updateScoresAfterDistrustWithoutCommit(Collections.singletonList(distrusted));
 			
 			mFullScoreComputationNeeded = false;
 	
@@ -4289,19 +5202,38 @@ public final class WebOfTrust extends WebOfTrustInterface
 	/**
 	 * FIXME: Check whether all the HashMap/HashSet used by this and the callees to avoid double 
 	 * computations of stuff actually yield hits. It is possible that I wrongly assumed that double
-	 * computations are possible in some of the cases where a map is used. */
-	private void updateScoresAfterDistrustWithoutCommit(Identity distrusted) {
-		// FIXME: Profile memory usage of this. It might get too large to fit into memory.
-		// If it does, then instead store this in the database by having an "outdated?" flag on
-		// Score objects.
+	 * computations are possible in some of the cases where a map is used.
+	 * 
+	 * @param changedTrustees The receivers of the {@link Trust} values which have changed. Usually
+	 *     this is a single distrusted {@link Identity}, but as the ranks are recomputed from scratch
+	 *     it may be any amount of Identitys whose received Trusts have been created, modified or
+	 *     deleted in any way. This is used by {@link #finishTrustListImport()}. */
+	private void updateScoresAfterDistrustWithoutCommit(Collection<Identity> changedTrustees) {
+		// If this gets larger than Configuration.getScoreComputationWorkingSetLimit(), the
+		// function will store the working set in the database by marking the Score objects, and
+		// return null. We then continue in that bounded-memory mode.
 		HashMap<String, ChangeSet<Score>> scoresWithUpdatedRank
-			= updateRanksAfterDistrustWithoutCommit(distrusted); // Key = Score.getID()
+			= updateRanksAfterDistrustWithoutCommit(changedTrustees); // Key = Score.getID()
+		
+		if(scoresWithUpdatedRank == null) {
+			updateScoresAfterDistrustInDatabaseWithoutCommit(changedTrustees);
+			return;
+		}
 		
 		HashMap<String, ChangeSet<Score>> scoresWhichNeedEventNotification = scoresWithUpdatedRank;
 		
 		HashMap<String, ChangeSet<Score>> scoresWithUpdatedCapacity
 			= updateCapacitiesAfterDistrustWithoutCommit(scoresWithUpdatedRank.values());
 		
+		// Scores which updateRanksAfterDistrustWithoutCommit() created for Identitys which are not
+		// in changedTrustees: If a Trust has been increased, the trustees of its receiver can be
+		// eligible for a Score now. Their value has not been computed yet.
+		ArrayList<Score> scoresCreated = new ArrayList<Score>();
+		for(ChangeSet<Score> changeSet : scoresWithUpdatedRank.values()) {
+			if(changeSet.beforeChange == null)
+				scoresCreated.add(changeSet.afterChange);
+		}
+		
 		scoresWithUpdatedRank = null;
 		
 		// No need to add scoresWithUpdatedCapacity to scoresWhichNeedEventNotification: They are
@@ -4318,10 +5250,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// identity has received, multiplied by the capacity each trust giver has received in the
 		// Score of the OwnIdentity.
 		// So we must update Scores for which the product "Trust * capacity(Trust giver)" changed:
-		// 1) Scores for which an included Trust value has changed = Scores which the distrusted
-		//    identity has received. This is because this function is to be called when a single
-		//    trust value has changed, and the distrusted identity is the receiver of that value.
-		//    This is what the following loop does.
+		// 1) Scores for which an included Trust value has changed = Scores which the changed
+		//    trustees have received. This is because this function is to be called when trust
+		//    values have changed, and the changed trustees are the receivers of those values.
+		//    This is what the following loop does. It also deals with Scores which were created
+		//    by updateRanksAfterDistrustWithoutCommit() as they have no value yet.
 		// 2) Scores in which a Trust value is included for which the capacity of the giver of
 		//    the Trust value has changed.
 		//    This is what the loop after the following loop does.
@@ -4329,14 +5262,21 @@ public final class WebOfTrust extends WebOfTrustInterface
 		int scoresAffectedByTrustChange = 0;
 		// Normally, we might have to check whether a new Score has to be created due to the changed
 		// trust value - but updateRanksAfterDistrustWithoutCommit() did this already.
-		for(Score score : getScores(distrusted)) {
-			Score oldScore = score.clone();
-			score.setValue(computeScoreValue(score.getTruster(), distrusted));
-			score.storeWithoutCommit();
-			
+		ArrayList<Score> scoresWithOutdatedValue = new ArrayList<Score>();
+		for(Identity changedTrustee : changedTrustees)
+			scoresWithOutdatedValue.addAll(getScores(changedTrustee));
+		scoresWithOutdatedValue.addAll(scoresCreated);
+		scoresCreated = null;
+		
+		for(Score score : scoresWithOutdatedValue) {
 			String id = score.getID();
 			
-			scoresWithUpdatedValue.add(id);
+			if(!scoresWithUpdatedValue.add(id))
+				continue;
+			
+			Score oldScore = score.clone();
+			score.setValue(computeScoreValue(score.getTruster(), score.getTrustee()));
+			score.storeWithoutCommit();
 			
 			if(!score.equals(oldScore)) {
 				if(!scoresWhichNeedEventNotification.containsKey(id))
@@ -4346,6 +5286,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 			++scoresAffectedByTrustChange;
 		}
 		
+		scoresWithOutdatedValue = null;
+		
 		if(logMINOR) {
 			Logger.minor(this,
 				"Time for updating " + scoresAffectedByTrustChange + " score values due to changed "
@@ -4373,23 +5315,28 @@ public final class WebOfTrust extends WebOfTrustInterface
 			OwnIdentity treeOwner = scoreWithUpdatedCapacity.getTruster();
 			Identity trustGiver = scoreWithUpdatedCapacity.getTrustee();
 			
-			for(Trust givenTrust : getGivenTrusts(trustGiver)) {
-				Identity trustReceiver = givenTrust.getTrustee();
-				ScoreID scoreID = new ScoreID(treeOwner, trustReceiver);
+			final TrustGraph graph = getTrustGraph();
+			final int trustGiverIndex = graph.getIndex(trustGiver.getID());
+			final int givenTrustCount = trustGiverIndex != TrustGraph.NO_INDEX
+				? graph.getGivenTrustCount(trustGiverIndex) : 0;
+			
+			for(int i = 0; i < givenTrustCount; ++i) {
+				String trustReceiverID = graph.getID(graph.getGivenTrustee(trustGiverIndex, i));
+				ScoreID scoreID = new ScoreID(treeOwner.getID(), trustReceiverID);
 				
 				if(!scoresWithUpdatedValue.add(scoreID.toString()))
 					continue;
 				
 				Score score;
 				try {
-					// TODO: Performance: Use getScore() which consumes ScoreID
-					score = getScore(treeOwner, trustReceiver);
+					score = getScore(scoreID.toString());
 				} catch(NotInTrustTreeException e) {
 					// No need to create it: updateRanksAfterDistrustWithoutCommit() has already
 					// created all scores which could be created.
 					continue;
 				}
 				
+				Identity trustReceiver = score.getTrustee();
 				Score oldScore = score.clone();
 				score.setValue(computeScoreValue(treeOwner, trustReceiver));
 				score.storeWithoutCommit();
@@ -4418,66 +5365,86 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// (Instead of having already created events while updating rank, capacity and value, we now
 		// create the events after all three components have been updated to ensure that we only
 		// create one event for each modified Score instead of three.)
-		for(ChangeSet<Score> changeSet : scoresWhichNeedEventNotification.values()) {
-			Score oldScore = changeSet.beforeChange;
-			Score newScore = changeSet.afterChange;
-			
-			// Update SubscriptionManager
-			
-			mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(oldScore, newScore);
-			
-			// Update IdentityFetcher
-			
-			boolean shouldFetchIdentity_maybeChanged = false;
-			
-			if(oldScore == null ^ newScore == null) {
-				// Score was created or deleted
-				shouldFetchIdentity_maybeChanged = true;
-			} else if(shouldMaybeFetchIdentity(oldScore) != shouldMaybeFetchIdentity(newScore)) {
-				shouldFetchIdentity_maybeChanged = true;
-			}
-			
-			// TODO: Performance: I am not sure whether a score having been created can cause any
-			// change to shouldFetchIdentity() in this function: I feel like the Score can only be
-			// a distrusting one and thus not cause an Identity to suddenly be wanted.
-			// Thus, if the Score was created, you might avoid executing this branch.
-			if(shouldFetchIdentity_maybeChanged) {
-				Identity target = newScore != null ? newScore.getTrustee() : oldScore.getTrustee();
+		for(ChangeSet<Score> changeSet : scoresWhichNeedEventNotification.values())
+			notifyAboutScoreChangeWithoutCommit(changeSet.beforeChange, changeSet.afterChange);
+	}
+
+	/**
+	 * Stores the {@link SubscriptionManager} notification and the {@link IdentityFetcher} command
+	 * for a {@link Score} which {@link #updateScoresAfterDistrustWithoutCommit(Collection)} has
+	 * changed.
+	 * 
+	 * @param oldScore The Score before the change, null if it was created.
+	 * @param newScore The Score after the change, null if it was deleted.
+	 */
+	private void notifyAboutScoreChangeWithoutCommit(Score oldScore, Score newScore) {
+		// Update SubscriptionManager
+		
+		mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(oldScore, newScore);
+		
+		// Update IdentityFetcher
+		
+		boolean shouldFetchIdentity_maybeChanged = false;
+		
+		if(oldScore == null ^ newScore == null) {
+			// Score was created or deleted
+			shouldFetchIdentity_maybeChanged = true;
+		} else if(shouldMaybeFetchIdentity(oldScore) != shouldMaybeFetchIdentity(newScore)) {
+			shouldFetchIdentity_maybeChanged = true;
+		} else if(oldScore.getCapacity() == 0 && newScore.getCapacity() > 0) {
+			// Not possible upon a single distrust, but upon the increased trust values of
+			// a trust list import: The Identity may introduce new Identitys now, so its
+			// trust list must be refetched. See updateScoresWithoutCommit().
+			shouldFetchIdentity_maybeChanged = true;
+		}
+		
+		// TODO: Performance: I am not sure whether a score having been created can cause any
+		// change to shouldFetchIdentity() in this function: I feel like the Score can only be
+		// a distrusting one and thus not cause an Identity to suddenly be wanted.
+		// Thus, if the Score was created, you might avoid executing this branch.
+		if(shouldFetchIdentity_maybeChanged) {
+			Identity target = newScore != null ? newScore.getTrustee() : oldScore.getTrustee();
+			
+			// TODO: Performance: Use a IdentityHashMap<Identity> to only do this once for
+			// every Identity, i.e. not repeat it for every OwnIdentity's Score tree.
+			// As long as we don't, the IdentityFetcher will deduplicate the commands itself,
+			// but database queries are expensive.
+			// On the other hand, keeping all Identitys in memory might cause OOM, and the
+			// amount of hits this would cause is likely small: As long as WOT doesn't have
+			// a public gateway mode, the amount of OwnIdentitys can be assumed to be very small
+			// as only one real user is using WOT.
+			
+			if(shouldFetchIdentity(target)) {
+				// If the capacity changed from 0 to > 0, we have to call markForRefetch(), see
+				// WoTTest.testRefetchDueToCapacityChange().
+				// Currently, we also call it for any changy of shouldFetchIdentity() even if
+				// there was no Score and thus no capacity before - the old Score computation
+				// implementation did this, and I have no time checking whether it is needed.
+				// TODO: Performance: Figure out if this is necessary.
+				Identity oldTarget = target.clone();
+				target.markForRefetch();
+				target.storeWithoutCommit();
 				
-				// TODO: Performance: Use a IdentityHashMap<Identity> to only do this once for
-				// every Identity, i.e. not repeat it for every OwnIdentity's Score tree.
-				// As long as we don't, the IdentityFetcher will deduplicate the commands itself,
-				// but database queries are expensive.
-				// On the other hand, keeping all Identitys in memory might cause OOM, and the
-				// amount of hits this would cause is likely small: As long as WOT doesn't have
-				// a public gateway mode, the amount of OwnIdentitys can be assumed to be very small
-				// as only one real user is using WOT.
+				if(!target.equals(oldTarget)) { // markForRefetch() does nothing on OwnIdentity
+					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(
+						oldTarget, target);
+				}
 				
-				if(shouldFetchIdentity(target)) {
-					// If the capacity changed from 0 to > 0, we have to call markForRefetch(), see
-					// WoTTest.testRefetchDueToCapacityChange().
-					// Currently, we also call it for any changy of shouldFetchIdentity() even if
-					// there was no Score and thus no capacity before - the old Score computation
-					// implementation did this, and I have no time checking whether it is needed.
-					// TODO: Performance: Figure out if this is necessary.
-					Identity oldTarget = target.clone();
-					target.markForRefetch();
-					target.storeWithoutCommit();
-					
-					if(!target.equals(oldTarget)) { // markForRefetch() does nothing on OwnIdentity
-						mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(
-							oldTarget, target);
-					}
-					
-					mFetcher.storeStartFetchCommandWithoutCommit(target);
-				} else
-					mFetcher.storeAbortFetchCommandWithoutCommit(target);
-			}
+				mFetcher.storeStartFetchCommandWithoutCommit(target);
+			} else
+				mFetcher.storeAbortFetchCommandWithoutCommit(target);
 		}
 	}
 
+	/**
+	 * @return Key = {@link Score#getID()}, value = the changed Score. Null if the amount of
+	 *     Scores which this processed exceeded {@link Configuration#getScoreComputationWorkingSetLimit()}:
+	 *     The working set then was moved to the database by
+	 *     {@link #moveRankWorkingSetToDatabaseWithoutCommit(Collection, HashSet, Collection)}, and
+	 *     the caller must use {@link #updateScoresAfterDistrustInDatabaseWithoutCommit(Collection)}
+	 *     to finish the computation. */
 	private HashMap<String, ChangeSet<Score>>
-			updateRanksAfterDistrustWithoutCommit(Identity distrusted) {
+			updateRanksAfterDistrustWithoutCommit(Collection<Identity> changedTrustees) {
 		
 		StopWatch time = logMINOR ? new StopWatch() : null;
 		
@@ -4489,43 +5456,43 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// created by other code as class Score does allow it explicitely, so it might be used
 		// for other things already.
 		HashSet<String> scoresCreated = new HashSet<String>(); // Key = Score.getID()
-		// FIXME: Profile memory usage of this. It might get too large to fit into memory.
-		// If it does, then instead store this in the database by having an "outdated?" flag on
-		// Score objects.
+		// If this and the other working sets get too large to fit into memory, we instead mark
+		// the Score objects in the database. See the limit check in the loop below.
 		HashMap<String, ChangeSet<Score>> scoresWithOutdatedRank
 			= new HashMap<String, ChangeSet<Score>>(); // Key = Score.getID()
+		final int workingSetLimit = mConfig.getScoreComputationWorkingSetLimit();
 
-		// Add all Scores of the distrusted identity to the queue.
+		// Add all Scores of the changed trustees to the queue.
 		// We do this by iterating over all treeOwners instead via getScores():
-		// There might *not* have been an existing Score object in every trust tree for the
-		// distrusted identity if it had not received a trust value yet; and by the distrust it
+		// There might *not* have been an existing Score object in every trust tree for a
+		// changed trustee if it had not received a trust value yet; and by the changed trust it
 		// could now be eligible for having one exist.
 		// Thus, we must check whether we need to create a new Score object.
-		// (We do not have to do this for trustees of the distrusted identity: A distrusted
-		// identity must not be allowed to introduce other identities to prevent sybil, so
-		// it cannot give them a Score)
-		// FIXME: Test whether the above is actually true. Do so by attaching a special
-		// marker to the created score values and checking whether they continue to survice 
-		// the loop below which deletes scores.
+		// (For trustees of the changed trustees this is done in the loop below, if they are
+		// reachable by an inheritable rank.)
 		// FIXME: Do something smarter: Maybe we could first look at the changed trust value
 		// to decide whether it could cause a Score object to be created before we do the
 		// expensive database query which follows...
-		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
-			Score outdated;
-			try {
-				outdated = getScore(treeOwner, distrusted);
-			} catch(NotInTrustTreeException e) {
-				// Use initial rank value of 0 because:
-				// - it is invalid and thus the below "if(score.getRank() == newRank)" will not be
-				//   confused
-				// - cannot use -1 because the below computeRankFromScratch() will return that.
-				outdated = new Score(this, treeOwner, distrusted, 0, 0, 0);
-				outdated.storeWithoutCommit();
-				scoresCreated.add(outdated.getID());
+		final ArrayList<OwnIdentity> treeOwners
+			= new ArrayList<OwnIdentity>(getAllOwnIdentities());
+		for(Identity changedTrustee : changedTrustees) {
+			for(OwnIdentity treeOwner : treeOwners) {
+				Score outdated;
+				try {
+					outdated = getScore(treeOwner, changedTrustee);
+				} catch(NotInTrustTreeException e) {
+					// Use initial rank value of 0 because:
+					// - it is invalid and thus the below "if(score.getRank() == newRank)" will
+					//   not be confused
+					// - cannot use -1 because the below computeRankFromScratch() will return that.
+					outdated = new Score(this, treeOwner, changedTrustee, 0, 0, 0);
+					outdated.storeWithoutCommit();
+					scoresCreated.add(outdated.getID());
+				}
+				
+				if(scoresQueued.add(outdated.getID()))
+					scoreQueue.add(outdated);
 			}
-			
-			scoreQueue.add(outdated);
-			scoresQueued.add(outdated.getID());
 		}
 
 		// computeRankFromScratch() has a worst-case runtime of O(IdentityCount * ...)
@@ -4533,15 +5500,27 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// Thus, if we used computeRankFromScratch() in this function, it would have a worst
 		// case runtime of O(IdentityCount ^ 2).
 		// As a consequence, a function computeRankFromScratch_Caching() has been written which
-		// caches ranks in this Map and so prevents the O(... ^ 2) worst case.
+		// caches ranks and so prevents the O(... ^ 2) worst case.
 		// (It also opportunistically computes even more ranks than we request it to compute, which
 		// is the actual trick. See its JavaDoc)
-		HashMap<String, Integer> rankCache = new HashMap<String, Integer>();
+		// It is the default RankComputer, the user may choose a different one which is faster
+		// for the shape of his Trust graph, see benchmarkRankComputers().
+		// The Trusts won't change during the loop, so the caches of the RankComputer stay valid.
+		final RankComputer rankComputer = mConfig.getRankComputerType().construct(this);
 		
 		Score score;
 		while((score = scoreQueue.poll()) != null) {
-			int newRank
-				= computeRankFromScratch_Caching(score.getTruster(), score.getTrustee(), rankCache);
+			if(scoresQueued.size() > workingSetLimit) {
+				scoreQueue.addFirst(score);
+				moveRankWorkingSetToDatabaseWithoutCommit(
+					scoreQueue, scoresCreated, scoresWithOutdatedRank.values());
+				
+				Logger.normal(this, "Score computation exceeded working set limit of "
+					+ workingSetLimit + ", continuing with Scores marked in the database.");
+				return null;
+			}
+			
+			int newRank = rankComputer.computeRank(score.getTruster(), score.getTrustee());
 			
 			if(score.getRank() == newRank) {
 				assert(!scoresCreated.contains(score.getID()))
@@ -4576,75 +5555,354 @@ public final class WebOfTrust extends WebOfTrustInterface
 			
 			final OwnIdentity treeOwner = score.getTruster();
 			
-			for(Trust edge : getGivenTrusts(score.getTrustee())) {
-				Identity neighbour = edge.getTrustee();
+			final TrustGraph graph = getTrustGraph();
+			final int vertex = graph.getIndex(score.getTrustee().getID());
+			final int edgeCount = vertex != TrustGraph.NO_INDEX ? graph.getGivenTrustCount(vertex) : 0;
+			
+			// Only an inheritable rank can give the trustees a Score they did not have before.
+			final boolean mayCreateNeighbourScores = newRank >= 0 && newRank < Integer.MAX_VALUE;
+			
+			for(int i = 0; i < edgeCount; ++i) {
+				String neighbourID = graph.getID(graph.getGivenTrustee(vertex, i));
+				String neighbourScoreID = new ScoreID(treeOwner.getID(), neighbourID).toString();
 				
-				if(scoresQueued.contains(new ScoreID(treeOwner, neighbour).toString()))
+				if(scoresQueued.contains(neighbourScoreID))
 					continue;
 				
 				Score touchedScore;
 				try  {
-					touchedScore = getScore(treeOwner, neighbour);
+					touchedScore = getScore(neighbourScoreID);
 				} catch(NotInTrustTreeException e) {
-					// No need to create a Score: This function is only called upon distrust.
-					// Distrust can only induce Score creation for the distrusted identity, not
-					// for its trustees. We already dealt with creating scores for the distrusted
-					// identity in all score trees.
+					// Upon a single distrust, there is no need to create a Score: Distrust can
+					// only induce Score creation for the distrusted identity, not for its
+					// trustees, and we already dealt with that above.
+					// But if the rank was improved by an increased trust value, the trustees
+					// might now be eligible for having a Score.
+					if(!mayCreateNeighbourScores)
+						continue;
+					
+					Identity neighbour;
+					try {
+						neighbour = getIdentityByID(neighbourID);
+					} catch(UnknownIdentityException e2) {
+						throw new RuntimeException(e2); // The TrustGraph is out of sync
+					}
+					
+					// Initial rank value of 0, see above.
+					touchedScore = new Score(this, treeOwner, neighbour, 0, 0, 0);
+					touchedScore.storeWithoutCommit();
+					scoresCreated.add(touchedScore.getID());
+				}
+				
+				scoreQueue.add(touchedScore);
+				scoresQueued.add(touchedScore.getID());
+			}
+		}
+		
+		if(logMINOR) {
+			Logger.minor(this,
+				"Time for processing " + scoresQueued.size() + " scores to mark "
+			  + scoresWithOutdatedRank.size() + " ranks as outdated: " + time);
+		}
+		
+		return scoresWithOutdatedRank;
+	}
+
+	private HashMap<String, ChangeSet<Score>> updateCapacitiesAfterDistrustWithoutCommit(
+			Collection<ChangeSet<Score>> scoresWithOutdatedRank) {
+		
+		StopWatch time = logMINOR ? new StopWatch() : null;
+		
+		// Is a subset of scoresWithOutdatedRank, which was limited to
+		// Configuration.getScoreComputationWorkingSetLimit() already.
+		HashMap<String, ChangeSet<Score>> scoresWithOutdatedCapacity
+			= new HashMap<String, ChangeSet<Score>>(); // Key = Score.getID()
+		
+		for(ChangeSet<Score> changeSet : scoresWithOutdatedRank) {
+			Score score = changeSet.afterChange;
+			if(score == null) {
+				assert(changeSet.beforeChange != null);
+				scoresWithOutdatedCapacity.put(changeSet.beforeChange.getID(), changeSet);
+				continue;
+			}
+			
+			int newCapacity
+				= computeCapacity(score.getTruster(), score.getTrustee(), score.getRank());
+			
+			if(score.getCapacity() == newCapacity)
+				continue;
+			
+			score.setCapacity(newCapacity);
+			score.storeWithoutCommit();
+			
+			scoresWithOutdatedCapacity.put(score.getID(), changeSet);
+		}
+		
+		if(logMINOR) {
+			Logger.minor(this,
+				"Time for processing " + scoresWithOutdatedRank.size() + " scores to mark "
+		      + scoresWithOutdatedCapacity.size() + " capacities as outdated: " + time);
+		}
+		
+		return scoresWithOutdatedCapacity;
+	}
+
+	/**
+	 * Switches {@link #updateRanksAfterDistrustWithoutCommit(Collection)} to the bounded-memory
+	 * mode of {@link #updateScoresAfterDistrustInDatabaseWithoutCommit(Collection)}: Marks the
+	 * {@link Score}s of its in-memory working set in the database so the computation can be
+	 * finished without keeping the Scores in memory.
+	 * 
+	 * Scores which were deleted already cannot be marked. Thus, the event notifications for them
+	 * are stored immediately instead of after all other changes. That is safe because their
+	 * state is final: A rank is computed from scratch, so it does not change when it is computed
+	 * again.
+	 * 
+	 * @param scoreQueue The Scores whose rank was not recomputed yet.
+	 * @param scoresCreated The IDs of the Scores which were created by the computation.
+	 * @param scoresWithOutdatedRank The Scores whose rank was recomputed and has changed.
+	 */
+	private void moveRankWorkingSetToDatabaseWithoutCommit(Collection<Score> scoreQueue,
+			HashSet<String> scoresCreated, Collection<ChangeSet<Score>> scoresWithOutdatedRank) {
+		
+		for(Score score : scoreQueue) {
+			if(scoresCreated.contains(score.getID())) {
+				score.markChangePending(null);
+				score.setValueOutdated(true);
+			}
+			score.setRankOutdated(true);
+			score.storeWithoutCommit();
+		}
+		
+		// The capacities and values of these were not updated yet.
+		for(ChangeSet<Score> changeSet : scoresWithOutdatedRank) {
+			if(changeSet.afterChange == null) {
+				Score deleted = changeSet.beforeChange;
+				notifyAboutScoreChangeWithoutCommit(deleted, null);
+				if(deleted.getCapacity() != 0) {
+					markValuesOfTrusteesOutdatedWithoutCommit(
+						deleted.getTruster().getID(), deleted.getTrustee().getID());
+				}
+				continue;
+			}
+			
+			Score score = changeSet.afterChange;
+			score.markChangePending(changeSet.beforeChange);
+			if(changeSet.beforeChange == null)
+				score.setValueOutdated(true);
+			updateCapacityInDatabaseWithoutCommit(score);
+		}
+	}
+
+	/**
+	 * Bounded-memory mode of {@link #updateScoresAfterDistrustWithoutCommit(Collection)}.
+	 * Instead of keeping the working set of {@link Score}s in memory, it marks them in the
+	 * database (see {@link Score#isRankOutdated()}, {@link Score#isValueOutdated()} and
+	 * {@link Score#isChangePending()}), and processes them in batches of at most
+	 * {@link Configuration#getScoreComputationWorkingSetLimit()} Scores.
+	 * 
+	 * Must be called after {@link #moveRankWorkingSetToDatabaseWithoutCommit(Collection, HashSet,
+	 * Collection)}. Removes all markers.
+	 */
+	private void updateScoresAfterDistrustInDatabaseWithoutCommit(
+			Collection<Identity> changedTrustees) {
+		
+		final StopWatch time = new StopWatch();
+		final int batchSize = Math.max(1, mConfig.getScoreComputationWorkingSetLimit());
+		
+		// The rank cache of the default RankComputer is a Map of all ranks it has seen. The one
+		// of the TrustGraph RankComputer is a few arrays of int per tree owner.
+		final RankComputer rankComputer = RankComputer.Type.TrustGraph.construct(this);
+		
+		// Ranks and capacities.
+		// Each Score is queued until we have computed its rank. Its capacity can be computed
+		// right after that because it only depends on the rank. If the capacity changed, the
+		// values of the Scores of the trustees are marked as outdated.
+		// Scores may be queued again after they were processed: Unlike the in-memory mode, we do
+		// not remember which ones were processed. That is fine because the rank is computed from
+		// scratch, so it will not change again, and thus the trustees won't be queued again.
+		ArrayList<Score> batch;
+		while(!(batch = getMarkedScores("mRankOutdated", batchSize)).isEmpty()) {
+			for(Score score : batch) {
+				score.setRankOutdated(false);
+				final OwnIdentity treeOwner = score.getTruster();
+				final String trusteeID = score.getTrustee().getID();
+				final int newRank = rankComputer.computeRank(treeOwner, score.getTrustee());
+				
+				if(score.getRank() == newRank) {
+					score.storeWithoutCommit();
 					continue;
 				}
-				
-				scoreQueue.add(touchedScore);
-				scoresQueued.add(touchedScore.getID());
+				
+				if(newRank == -1) {
+					final Score beforeChange
+						= score.isChangePending() ? score.clearPendingChange() : score.clone();
+					final int capacity = score.getCapacity();
+					score.deleteWithoutCommit();
+					
+					// If we created the Score ourself, there was no change.
+					if(beforeChange != null) {
+						notifyAboutScoreChangeWithoutCommit(beforeChange, null);
+						if(capacity != 0)
+							markValuesOfTrusteesOutdatedWithoutCommit(treeOwner.getID(), trusteeID);
+					}
+				} else {
+					score.markChangePending(score);
+					score.setRank(newRank);
+					updateCapacityInDatabaseWithoutCommit(score);
+				}
+				
+				// Only an inheritable rank can give the trustees a Score they did not have before.
+				markRanksOfTrusteesOutdatedWithoutCommit(treeOwner, trusteeID,
+					newRank >= 0 && newRank < Integer.MAX_VALUE);
+			}
+		}
+		
+		// Values. See updateScoresAfterDistrustWithoutCommit() for what needs to be updated.
+		for(Identity changedTrustee : changedTrustees) {
+			// Copy because we modify the Scores. It contains at most one per OwnIdentity.
+			for(Score score : new ArrayList<Score>(getScores(changedTrustee))) {
+				score.setValueOutdated(true);
+				score.storeWithoutCommit();
+			}
+		}
+		
+		while(!(batch = getMarkedScores("mValueOutdated", batchSize)).isEmpty()) {
+			for(Score score : batch) {
+				score.setValueOutdated(false);
+				final int newValue = computeScoreValue(score.getTruster(), score.getTrustee());
+				if(score.getScore() != newValue) {
+					score.markChangePending(score);
+					score.setValue(newValue);
+				}
+				score.storeWithoutCommit();
+			}
+		}
+		
+		// Event notifications. Like in the in-memory mode, we only store them after all components
+		// of the Scores have been updated to only create one event for each modified Score.
+		int changedScores = 0;
+		while(!(batch = getMarkedScores("mChangePending", batchSize)).isEmpty()) {
+			for(Score score : batch) {
+				final Score beforeChange = score.clearPendingChange();
+				score.storeWithoutCommit();
+				
+				if(beforeChange == null || !beforeChange.equals(score)) {
+					notifyAboutScoreChangeWithoutCommit(beforeChange, score);
+					++changedScores;
+				}
+			}
+		}
+		
+		++mIncrementalScoreRecomputationInDatabaseCount;
+		Logger.normal(this, "Score computation in database changed " + changedScores
+			+ " Scores in " + time);
+	}
+
+	/**
+	 * Used by {@link #updateScoresAfterDistrustInDatabaseWithoutCommit(Collection)} to get its
+	 * next batch of work.
+	 * 
+	 * @param marker The name of a boolean member variable of {@link Score}.
+	 * @return Up to maxCount Scores for which the marker is true. A copy, not a lazy
+	 *     {@link ObjectSet}, so the caller may modify and delete the Scores.
+	 */
+	private ArrayList<Score> getMarkedScores(final String marker, final int maxCount) {
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend(marker).constrain(true);
+		
+		final ArrayList<Score> result = new ArrayList<Score>();
+		for(Score score : new Persistent.InitializingObjectSet<Score>(this, query)) {
+			result.add(score);
+			if(result.size() >= maxCount)
+				break;
+		}
+		return result;
+	}
+
+	/**
+	 * Recomputes the capacity of the given {@link Score}, whose rank has changed, and stores it.
+	 * If the capacity changed, marks the values of the Scores of the trustees as outdated. */
+	private void updateCapacityInDatabaseWithoutCommit(Score score) {
+		final int oldCapacity = score.getCapacity();
+		score.setCapacity(computeCapacity(score.getTruster(), score.getTrustee(), score.getRank()));
+		score.storeWithoutCommit();
+		
+		if(score.getCapacity() != oldCapacity) {
+			markValuesOfTrusteesOutdatedWithoutCommit(
+				score.getTruster().getID(), score.getTrustee().getID());
+		}
+	}
+
+	/**
+	 * Marks the values of the {@link Score}s in the trust tree of the given {@link OwnIdentity}
+	 * which the trustees of the given {@link Identity} have as outdated.
+	 * Used when the capacity of the Identity has changed: Its capacity is the weight of its
+	 * {@link Trust} values in the Score values of the trustees. */
+	private void markValuesOfTrusteesOutdatedWithoutCommit(String treeOwnerID, String trustGiverID) {
+		final TrustGraph graph = getTrustGraph();
+		final int trustGiver = graph.getIndex(trustGiverID);
+		final int givenTrustCount
+			= trustGiver != TrustGraph.NO_INDEX ? graph.getGivenTrustCount(trustGiver) : 0;
+		
+		for(int i = 0; i < givenTrustCount; ++i) {
+			String trusteeID = graph.getID(graph.getGivenTrustee(trustGiver, i));
+			try {
+				Score score = getScore(new ScoreID(treeOwnerID, trusteeID).toString());
+				if(!score.isValueOutdated()) {
+					score.setValueOutdated(true);
+					score.storeWithoutCommit();
+				}
+			} catch(NotInTrustTreeException e) {
+				// Scores which will be created are marked when creating them.
 			}
 		}
-		
-		if(logMINOR) {
-			Logger.minor(this,
-				"Time for processing " + scoresQueued.size() + " scores to mark "
-			  + scoresWithOutdatedRank.size() + " ranks as outdated: " + time);
-		}
-		
-		return scoresWithOutdatedRank;
 	}
 
-	private HashMap<String, ChangeSet<Score>> updateCapacitiesAfterDistrustWithoutCommit(
-			Collection<ChangeSet<Score>> scoresWithOutdatedRank) {
-		
-		StopWatch time = logMINOR ? new StopWatch() : null;
+	/**
+	 * Marks the ranks of the {@link Score}s in the trust tree of the given {@link OwnIdentity}
+	 * which the trustees of the given {@link Identity} have as outdated.
+	 * Used when the rank of the Identity has changed.
+	 * 
+	 * @param mayCreateScores If true, creates the Scores of trustees which have none. Only an
+	 *     inheritable rank can give the trustees a Score they did not have before.
+	 */
+	private void markRanksOfTrusteesOutdatedWithoutCommit(OwnIdentity treeOwner,
+			String trustGiverID, boolean mayCreateScores) {
 		
-		// FIXME: Profile memory usage of this. It might get too large to fit into memory.
-		// If it does, then instead store this in the database by having an "outdated?" flag on
-		// Score objects.
-		HashMap<String, ChangeSet<Score>> scoresWithOutdatedCapacity
-			= new HashMap<String, ChangeSet<Score>>(); // Key = Score.getID()
+		final TrustGraph graph = getTrustGraph();
+		final int trustGiver = graph.getIndex(trustGiverID);
+		final int givenTrustCount
+			= trustGiver != TrustGraph.NO_INDEX ? graph.getGivenTrustCount(trustGiver) : 0;
 		
-		for(ChangeSet<Score> changeSet : scoresWithOutdatedRank) {
-			Score score = changeSet.afterChange;
-			if(score == null) {
-				assert(changeSet.beforeChange != null);
-				scoresWithOutdatedCapacity.put(changeSet.beforeChange.getID(), changeSet);
-				continue;
+		for(int i = 0; i < givenTrustCount; ++i) {
+			String trusteeID = graph.getID(graph.getGivenTrustee(trustGiver, i));
+			Score score;
+			try {
+				score = getScore(new ScoreID(treeOwner.getID(), trusteeID).toString());
+				if(score.isRankOutdated())
+					continue;
+			} catch(NotInTrustTreeException e) {
+				if(!mayCreateScores)
+					continue;
+				
+				Identity trustee;
+				try {
+					trustee = getIdentityByID(trusteeID);
+				} catch(UnknownIdentityException e2) {
+					throw new RuntimeException(e2); // The TrustGraph is out of sync
+				}
+				
+				// Initial rank value of 0, see updateRanksAfterDistrustWithoutCommit().
+				score = new Score(this, treeOwner, trustee, 0, 0, 0);
+				score.markChangePending(null);
+				score.setValueOutdated(true);
 			}
 			
-			int newCapacity
-				= computeCapacity(score.getTruster(), score.getTrustee(), score.getRank());
-			
-			if(score.getCapacity() == newCapacity)
-				continue;
-			
-			score.setCapacity(newCapacity);
+			score.setRankOutdated(true);
 			score.storeWithoutCommit();
-			
-			scoresWithOutdatedCapacity.put(score.getID(), changeSet);
-		}
-		
-		if(logMINOR) {
-			Logger.minor(this,
-				"Time for processing " + scoresWithOutdatedRank.size() + " scores to mark "
-		      + scoresWithOutdatedCapacity.size() + " capacities as outdated: " + time);
 		}
-		
-		return scoresWithOutdatedCapacity;
 	}
 
 	/* Client interface functions */
@@ -4731,10 +5989,6 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 				beginTrustListImport();
 
-				// Incremental score computation has proven to be very very slow when creating identities so we just schedule a full computation.
-				// TODO: Performance: Only recompute the Score tree of the created identity.
-				mFullScoreComputationNeeded = true;
-
 				for(String seedURI : WebOfTrustInterface.SEED_IDENTITIES) {
 					try {
 						setTrustWithoutCommit(identity, getIdentityByURI(seedURI), (byte)100, "Automatically assigned trust to a seed identity.");
@@ -4743,6 +5997,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 					}
 				}
 
+				// Incremental score computation has proven to be very very slow when creating identities.
+				// Nobody can have trusted the new identity yet, so its trust list can only affect its own
+				// trust tree: Compute only that one instead of the batch update of finishTrustListImport().
+				computeTrustTreeWithoutCommit(identity);
+				mTrustListImportTrusteesWithChangedTrust.clear();
+
 				finishTrustListImport();
 				Persistent.checkedCommit(mDB, this);
 
@@ -4907,6 +6167,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 					oldGivenTrust.deleteWithoutCommit();
 					newGivenTrust.storeWithoutCommit();
 				}
+				
+				// The TrustGraph only stores the IDs of the identities and the Trust values.
+				// Both did not change by copying the Trusts, so it needs no update.
 
 				mPuzzleStore.onIdentityDeletion(oldIdentity);
 				mFetcher.storeAbortFetchCommandWithoutCommit(oldIdentity);
@@ -5028,6 +6291,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 					// Copy all received scores.
 					// We don't have to modify them because the rating of the identity from the perspective of a
 					// different own identity should NOT be dependent upon whether it is an own identity or not.
+					boolean wasInTrustTree = false;
 					for(Score oldScore : getScores(oldIdentity)) {
 						Score newScore = new Score(this, oldScore.getTruster(), identity, oldScore.getScore(),
 								oldScore.getRank(), oldScore.getCapacity());
@@ -5039,6 +6303,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 						
 						oldScore.deleteWithoutCommit();
 						newScore.storeWithoutCommit();
+						wasInTrustTree = true;
 						
 						// Nothing has changed about the actual score so we do not notify.
 						// mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(oldScore, newScore);
@@ -5067,6 +6332,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 					for(Trust oldGivenTrust : oldGivenTrusts)
 						oldGivenTrust.deleteWithoutCommit();
 					
+					// The given Trusts were deleted without using removeTrustWithoutCommit().
+					invalidateTrustGraph();
+					
 					assert(getGivenTrusts(oldIdentity).size() == 0);
 					
 					// We do not call finishTrustListImport() now: It might trigger execution of computeAllScoresWithoutCommit
@@ -5085,11 +6353,17 @@ public final class WebOfTrust extends WebOfTrustInterface
 					
 					// Update all given trusts. This will also cause given scores to be computed,
 					// which is why we had not set them yet.
-					// FIXME: Performance: This could maybe be optimized by setting
-					// mFullScoreComputationNeeded to true. Do benchmarks.
 					for(Trust givenTrust : oldGivenTrustsCopy)
 						setTrustWithoutCommit(identity, givenTrust.getTrustee(), givenTrust.getValue(), givenTrust.getComment());
 					
+					if(!wasInTrustTree && !mFullScoreComputationNeeded) {
+						// The old identity had no Score, so its given trusts cannot have affected
+						// the trust tree of any other OwnIdentity: Only compute the tree of the
+						// restored one instead of the batch update of finishTrustListImport().
+						computeTrustTreeWithoutCommit(identity);
+						mTrustListImportTrusteesWithChangedTrust.clear();
+					}
+					
 					mFetcher.storeStartFetchCommandWithoutCommit(identity);
 					
 					finishTrustListImport();
@@ -5203,6 +6477,192 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 
+	/**
+	 * Computes which {@link Score}s would change, and which {@link Identity}s would start or stop
+	 * being fetched, if the given {@link #setTrust(String, String, byte, String)} and
+	 * {@link #removeTrust(String, String)} operations were applied. Intended for showing the
+	 * consequences of a distrust to the user before setting it.<br>
+	 * Nothing is written to the database: The operations are applied to a
+	 * {@link TrustGraph.Overlay} of the {@link #getTrustGraph()}, and only the trust trees which
+	 * they can affect are computed from it. Those are the ones in which a truster of an operation
+	 * has a capacity > 0, since an Identity without capacity cannot influence a trust tree.<br>
+	 * The time this takes is O(number of affected trust trees * (vertices + edges)) and does not
+	 * depend on the number of Scores in the database, except for loading the changed ones.
+	 * 
+	 * @param operations Applied in the given order, i.e. later ones override earlier ones.
+	 * @throws UnknownIdentityException If a truster is not an {@link OwnIdentity} or a trustee
+	 *     does not exist.
+	 * @throws InvalidParameterException If an operation is a self-referential Trust, or its value
+	 *     is out of range.
+	 */
+	public synchronized TrustSimulation simulateTrustChanges(
+			final List<TrustSimulation.Operation> operations)
+				throws UnknownIdentityException, InvalidParameterException {
+		
+		final StopWatch time = logMINOR ? new StopWatch() : null;
+		
+		synchronized(Persistent.transactionLock(mDB)) {
+			// We only read from the database, but the trust graph must not be invalidated by a
+			// concurrent rollback while we use it.
+			final TrustGraph trustGraph = getTrustGraph();
+			
+			// Key = OwnIdentity.getID() of the affected tree owners
+			final HashMap<String, OwnIdentity> treeOwners = new HashMap<String, OwnIdentity>();
+			
+			for(TrustSimulation.Operation operation : operations) {
+				final OwnIdentity truster = getOwnIdentityByID(operation.trusterID);
+				final Identity trustee = getIdentityByID(operation.trusteeID);
+				
+				if(truster == trustee)
+					throw new InvalidParameterException("Trust values cannot be self-referential!");
+				
+				if(!operation.isRemoval()
+						&& (operation.value < Trust.MIN_TRUST_VALUE
+							|| operation.value > Trust.MAX_TRUST_VALUE)) {
+					throw new InvalidParameterException("Invalid trust value (" + operation.value
+						+ "). Trust values must be in range of -100 to +100.");
+				}
+				
+				treeOwners.put(truster.getID(), truster);
+				for(Score score : getScores(truster)) {
+					if(score.getCapacity() > 0)
+						treeOwners.put(score.getTruster().getID(), score.getTruster());
+				}
+			}
+			
+			// The tree owners need a vertex in both snapshots. The TrustGraph must not be
+			// modified anymore once the Overlay exists, so create them first.
+			for(String treeOwnerID : treeOwners.keySet())
+				trustGraph.getOrCreateIndex(treeOwnerID);
+			
+			final TrustGraph.Overlay overlay = trustGraph.overlay();
+			for(TrustSimulation.Operation operation : operations) {
+				if(operation.isRemoval())
+					overlay.removeTrust(operation.trusterID, operation.trusteeID);
+				else
+					overlay.setTrust(operation.trusterID, operation.trusteeID, operation.value);
+			}
+			
+			final TrustGraph.Snapshot before = trustGraph.snapshot();
+			final TrustGraph.Snapshot after = overlay.snapshot();
+			
+			final ArrayList<ChangeSet<Score>> scoreChanges = new ArrayList<ChangeSet<Score>>();
+			// Key = Identity.getID() of the trustee, value = its Scores which would change.
+			// Used for computing the fetch state changes.
+			final HashMap<String, ArrayList<ChangeSet<Score>>> changesByTrustee
+				= new HashMap<String, ArrayList<ChangeSet<Score>>>();
+			
+			for(OwnIdentity treeOwner : treeOwners.values()) {
+				final int treeOwnerRank;
+				try {
+					treeOwnerRank = getScore(treeOwner, treeOwner).getRank();
+				} catch(NotInTrustTreeException e) {
+					// If there is no self-Score, it only happens in unit tests. The trust tree
+					// is empty then, and thus cannot change.
+					continue;
+				}
+				
+				final TrustGraph.ScoreTable oldTable
+					= before.computeScoreTable(before.getIndex(treeOwner.getID()), treeOwnerRank);
+				final TrustGraph.ScoreTable newTable
+					= after.computeScoreTable(after.getIndex(treeOwner.getID()), treeOwnerRank);
+				
+				for(int v = 0; v < after.vertexCount; ++v) {
+					final boolean existedBefore = v < before.vertexCount
+						&& oldTable.rank[v] != TrustGraph.NO_RANK;
+					final boolean existsAfter = newTable.rank[v] != TrustGraph.NO_RANK;
+					
+					if(!existedBefore && !existsAfter)
+						continue;
+					
+					if(existedBefore && existsAfter
+							&& oldTable.rank[v] == newTable.rank[v]
+							&& oldTable.capacity[v] == newTable.capacity[v]
+							&& oldTable.value[v] == newTable.value[v])
+						continue;
+					
+					final String trusteeID = after.getID(v);
+					final Identity trustee = getIdentityByID(trusteeID);
+					
+					Score oldScore = null;
+					if(existedBefore) {
+						try {
+							oldScore = getScore(new ScoreID(treeOwner, trustee).toString()).clone();
+						} catch(NotInTrustTreeException e) {
+							// The stored Scores do not match the TrustGraph. Should not happen.
+							Logger.error(this, "Score missing, database is corrupted?", e);
+						}
+					}
+					
+					final Score newScore = existsAfter
+						? new Score(this, treeOwner, trustee, newTable.value[v], newTable.rank[v],
+							newTable.capacity[v])
+						: null;
+					
+					if(oldScore == null && newScore == null)
+						continue;
+					
+					final ChangeSet<Score> change = new ChangeSet<Score>(oldScore, newScore);
+					scoreChanges.add(change);
+					
+					ArrayList<ChangeSet<Score>> trusteeChanges = changesByTrustee.get(trusteeID);
+					if(trusteeChanges == null) {
+						trusteeChanges = new ArrayList<ChangeSet<Score>>(2);
+						changesByTrustee.put(trusteeID, trusteeChanges);
+					}
+					trusteeChanges.add(change);
+				}
+			}
+			
+			final ArrayList<String> startFetching = new ArrayList<String>();
+			final ArrayList<String> stopFetching = new ArrayList<String>();
+			
+			for(Map.Entry<String, ArrayList<ChangeSet<Score>>> entry : changesByTrustee.entrySet()) {
+				final Identity trustee = getIdentityByID(entry.getKey());
+				// OwnIdentitys are always fetched, their self-Score cannot change here.
+				if(trustee instanceof OwnIdentity)
+					continue;
+				
+				final boolean oldShouldFetch = shouldFetchIdentity(trustee);
+				
+				// Same as computeShouldFetchIdentity() with the changed Scores replaced.
+				final HashSet<String> changedScoreIDs = new HashSet<String>();
+				boolean newShouldFetch = false;
+				for(ChangeSet<Score> change : entry.getValue()) {
+					final Score score
+						= change.afterChange != null ? change.afterChange : change.beforeChange;
+					changedScoreIDs.add(score.getID());
+					if(change.afterChange != null && shouldMaybeFetchIdentity(change.afterChange))
+						newShouldFetch = true;
+				}
+				if(!newShouldFetch) {
+					for(Score score : getScores(trustee)) {
+						if(!changedScoreIDs.contains(score.getID())
+								&& shouldMaybeFetchIdentity(score)) {
+							newShouldFetch = true;
+							break;
+						}
+					}
+				}
+				
+				if(!oldShouldFetch && newShouldFetch)
+					startFetching.add(trustee.getID());
+				else if(oldShouldFetch && !newShouldFetch)
+					stopFetching.add(trustee.getID());
+			}
+			
+			final TrustSimulation result
+				= new TrustSimulation(operations, scoreChanges, startFetching, stopFetching);
+			
+			if(logMINOR) {
+				Logger.minor(this, "Simulated " + operations.size() + " Trust changes in "
+					+ treeOwners.size() + " trust trees: " + result + "; " + time);
+			}
+			
+			return result;
+		}
+	}
+	
 	/**
 	 * Enables or disables the publishing of the trust list of an {@link OwnIdentity}.
 	 * The trust list contains all trust values which the OwnIdentity has assigned to other identities.
@@ -5411,6 +6871,204 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public IdentityFileProcessor getIdentityFileProcessor() {
 		return mIdentityFileProcessor;
 	}
+	
+	/**
+	 * Starts an {@link OnlineBackup} of the database to {@link #getOnlineBackupFile()}, which
+	 * reads at most {@link OnlineBackup#DEFAULT_MAX_BYTES_PER_SECOND}. WoT keeps running
+	 * meanwhile.
+	 * 
+	 * @throws IllegalStateException If a backup is running already.
+	 */
+	public void startOnlineBackup() {
+		mOnlineBackup.start(getOnlineBackupFile(), OnlineBackup.DEFAULT_MAX_BYTES_PER_SECOND);
+	}
+	
+	/** @return The progress of the running {@link OnlineBackup}, or the result of the last one. */
+	public OnlineBackup.Status getOnlineBackupStatus() {
+		return mOnlineBackup.getStatus();
+	}
+	
+	/**
+	 * @return The file to which {@link #startOnlineBackup()} writes. It is a copy of the database
+	 *     file, so it can be restored by replacing the database file with it while WoT is not
+	 *     running. */
+	public File getOnlineBackupFile() {
+		return new File(mDatabaseFile.getPath() + ".online-backup");
+	}
+	
+	OnlineBackup getOnlineBackup() {
+		return mOnlineBackup;
+	}
+	
+	/** @return The file which {@link #openDatabase(File)} opened. */
+	File getDatabaseFile() {
+		return mDatabaseFile;
+	}
+	
+	/**
+	 * @return The file to which the web interface exports a {@link DatabaseSnapshot}, and from
+	 *     which it imports one. */
+	public File getSnapshotFile() {
+		return new File(mDatabaseFile.getPath() + ".snapshot");
+	}
+	
+	/**
+	 * Writes a {@link DatabaseSnapshot} of all {@link Identity}s and {@link Trust}s, and optionally
+	 * of all {@link Score}s, to the given file. An existing file is only replaced once the
+	 * snapshot is complete.<br>
+	 * Blocks this WoT while it is running.
+	 * 
+	 * @param includeOwnIdentities If false, {@link OwnIdentity}s are exported as non-own
+	 *     Identitys without their insert URI. The snapshot then can be given to other people to
+	 *     bootstrap their WoT with {@link #importSnapshot(File)}.
+	 * @param includeScores Requires includeOwnIdentities.
+	 */
+	public synchronized DatabaseSnapshot.Statistics exportSnapshot(File file,
+			boolean includeOwnIdentities, boolean includeScores) throws IOException {
+		
+		final StopWatch time = new StopWatch();
+		final File tempFile = new File(file.getPath() + ".temp");
+		final FileOutputStream out = new FileOutputStream(tempFile);
+		final DatabaseSnapshot.Statistics result;
+		boolean success = false;
+		
+		try {
+			result = DatabaseSnapshot.write(this, out, includeOwnIdentities, includeScores);
+			out.getFD().sync();
+			success = true;
+		} finally {
+			out.close();
+			
+			if(!success)
+				tempFile.delete();
+		}
+		
+		if(file.exists() && !file.delete())
+			throw new IOException("Cannot delete previous snapshot: " + file);
+		if(!tempFile.renameTo(file))
+			throw new IOException("Cannot rename " + tempFile + " to " + file);
+		
+		Logger.normal(this, "Exported snapshot to " + file + " in " + time + ": " + result);
+		return result;
+	}
+	
+	/**
+	 * Imports a {@link DatabaseSnapshot} which was written by
+	 * {@link #exportSnapshot(File, boolean, boolean)}. The database must not contain any
+	 * {@link Identity} yet.<br><br>
+	 * 
+	 * All objects are stored in a single transaction, without updating the Scores for each of
+	 * them. Then all Scores are computed once, and all objects are validated with
+	 * {@link Persistent#startupDatabaseIntegrityTest()}. If anything fails, nothing is imported.
+	 * 
+	 * @throws IOException If the file cannot be read, is damaged or contains invalid objects.
+	 * @throws IllegalStateException If the database is not empty.
+	 */
+	public synchronized DatabaseSnapshot.Statistics importSnapshot(File file) throws IOException {
+		final StopWatch time = new StopWatch();
+		final FileInputStream in = new FileInputStream(file);
+		
+		try {
+			synchronized(mFetcher) { // For computeAllScoresWithoutCommit()
+			synchronized(mSubscriptionManager) { // For the notifications
+			synchronized(Persistent.transactionLock(mDB)) {
+				if(getAllIdentities().size() != 0)
+					throw new IllegalStateException("Snapshots can only be imported into an empty database");
+				
+				try {
+					final DatabaseSnapshot.Statistics result
+						= importSnapshotWithoutCommit(new DatabaseSnapshot.Reader(this, in));
+					Persistent.checkedCommit(mDB, this);
+					
+					Logger.normal(this, "Imported snapshot " + file + " in " + time + ": " + result);
+					return result;
+				} catch(IOException e) {
+					Persistent.checkedRollback(mDB, this, e);
+					throw e;
+				} catch(RuntimeException e) {
+					Persistent.checkedRollbackAndThrow(mDB, this, e);
+					throw e; // The compiler doesn't know that the above function throws
+				}
+			}
+			}
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/** Body of {@link #importSnapshot(File)}, see its synchronization. */
+	private DatabaseSnapshot.Statistics importSnapshotWithoutCommit(
+			final DatabaseSnapshot.Reader reader) throws IOException {
+		
+		final ArrayList<Identity> identities = reader.readIdentities();
+		for(Identity identity : identities) {
+			identity.storeWithoutCommit();
+			mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, identity);
+		}
+		
+		final int trustCount = reader.readTrustCount();
+		for(int i = 0; i < trustCount; ++i) {
+			final Trust trust = reader.readTrust();
+			trust.storeWithoutCommit();
+			mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(null, trust);
+		}
+		
+		int scoreCount = 0;
+		if(reader.hasScores()) {
+			scoreCount = reader.readScoreCount();
+			for(int i = 0; i < scoreCount; ++i) {
+				final Score score = reader.readScore();
+				score.storeWithoutCommit();
+				mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(null, score);
+			}
+		}
+		
+		reader.finish();
+		
+		// The Trusts were stored without updating the TrustGraph and the index. The Scores of the
+		// snapshot only save work here: Those which are correct need not be written again.
+		invalidateTrustGraph();
+		invalidateTrustAndScoreIndex();
+		computeAllScoresWithoutCommit();
+		
+		for(Identity identity : identities) {
+			// The best Score which the Identity contains is the one of the exporting database.
+			identity.updateBestScoreWithoutCommit(null, false);
+			
+			if(shouldFetchIdentity(identity))
+				mFetcher.storeStartFetchCommandWithoutCommit(identity);
+		}
+		
+		for(Identity identity : identities)
+			validateImportedObject(identity);
+		for(Trust trust : getAllTrusts())
+			validateImportedObject(trust);
+		for(Score score : getAllScores())
+			validateImportedObject(score);
+		
+		return new DatabaseSnapshot.Statistics(identities.size(), trustCount, scoreCount);
+	}
+	
+	private void validateImportedObject(final Persistent p) throws IOException {
+		try {
+			p.startupDatabaseIntegrityTest();
+		} catch(Exception e) {
+			throw new IOException("Invalid object in snapshot: " + p, e);
+		}
+	}
+	
+	/** @return A copy of the statistics of all {@link GroupCommit}s. */
+	public GroupCommit.Statistics getGroupCommitStatistics() {
+		synchronized(mGroupCommitStatistics) {
+			return mGroupCommitStatistics.clone();
+		}
+	}
+	
+	/** For {@link GroupCommit} only. */
+	GroupCommit.Statistics getGroupCommitStatisticsForUpdating() {
+		return mGroupCommitStatistics;
+	}
 
     public IdentityInserter getIdentityInserter() {
         return mInserter;
@@ -5501,22 +7159,15 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * This is identities for which {@link #shouldFetchIdentity(Identity)} returns true but
 	 * {@link Identity#getLastFetchedDate()} is <code>new Date(0)</code>.<br><br>
 	 * 
-	 * Notice: This is an expensive database query and thus should only be used for manual
-	 * statistical inquiries at the UI; do not use it in program logic. */
+	 * Notice: This is a database query and thus should only be used for manual statistical
+	 * inquiries at the UI; do not use it in program logic. */
 	public int getNumberOfUnfetchedIdentities() {
 		Query query = mDB.query();
 		query.constrain(Identity.class);
 		query.constrain(OwnIdentity.class).not();
 		query.descend("mLastFetchedDate").constrain(new Date(0));
-		
-		// TODO: Performance: Once we have a database table for the value of shouldFetchIdentity()
-		// for each identity remove this loop and do everything in the database query.
-		int count = 0;
-		for(Identity identity : new Persistent.InitializingObjectSet<Identity>(this, query)) {
-			if(shouldFetchIdentity(identity))
-				++count;
-		}
-		return count;
+		query.descend("mShouldFetch").constrain(true);
+		return query.execute().size();
 	}
 
     public int getNumberOfFullScoreRecomputations() {
@@ -5528,6 +7179,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 			/ (1000d * (mFullScoreRecomputationCount != 0 ? mFullScoreRecomputationCount : 1));
 	}
 
+	public int getNumberOfTrustTreeComputations() {
+		return mTrustTreeComputationCount;
+	}
+
+	public synchronized double getAverageTimeForTrustTreeComputation() {
+		return (double)mTrustTreeComputationNanos /
+			(1000d * 1000d * 1000d *
+				(mTrustTreeComputationCount != 0 ? mTrustTreeComputationCount : 1));
+	}
+
 	public int getNumberOfIncrementalScoreRecomputationDueToTrust() {
 		return mIncrementalScoreRecomputationDueToTrustCount;
 	}
@@ -5552,6 +7213,119 @@ public final class WebOfTrust extends WebOfTrustInterface
 			);
 	}
 
+	public int getNumberOfIncrementalScoreRecomputationDueToTrustListImport() {
+		return mIncrementalScoreRecomputationDueToTrustListImportCount;
+	}
+
+	public synchronized double getAverageTimeForIncrementalScoreRecomputationDueToTrustListImport() {
+		return (double)mIncrementalScoreRecomputationDueToTrustListImportNanos / 
+			(1000d * 1000d * 1000d *
+				(mIncrementalScoreRecomputationDueToTrustListImportCount != 0
+			  ?  mIncrementalScoreRecomputationDueToTrustListImportCount : 1)
+			);
+	}
+
+	public int getNumberOfIncrementalScoreRecomputationInDatabase() {
+		return mIncrementalScoreRecomputationInDatabaseCount;
+	}
+
+	/** @see Configuration#getScoreComputationWorkingSetLimit() */
+	public synchronized int getScoreComputationWorkingSetLimit() {
+		return mConfig.getScoreComputationWorkingSetLimit();
+	}
+
+	/**
+	 * Sets the value of {@link Configuration#getScoreComputationWorkingSetLimit()} and stores it
+	 * in the {@link Configuration}.
+	 */
+	public synchronized void setScoreComputationWorkingSetLimit(int limit) {
+		mConfig.setScoreComputationWorkingSetLimit(limit);
+		mConfig.storeAndCommit();
+	}
+
+	/**
+	 * Gets the {@link RankComputer.Type} which is used for incremental Score computation, see
+	 * {@link RankComputer}.
+	 */
+	public synchronized RankComputer.Type getRankComputerType() {
+		return mConfig.getRankComputerType();
+	}
+
+	/**
+	 * Sets the {@link RankComputer.Type} which is used for incremental Score computation and
+	 * stores it in the {@link Configuration}. Use {@link #benchmarkRankComputers(int)} to find the
+	 * fastest one.
+	 */
+	public synchronized void setRankComputerType(RankComputer.Type type) {
+		mConfig.setRankComputerType(type);
+		mConfig.storeAndCommit();
+		Logger.normal(this, "RankComputer changed to: " + type);
+	}
+
+	/**
+	 * Measures the execution time of each {@link RankComputer.Type} on the current {@link Trust}
+	 * graph: Each of them computes the ranks of the same random pairs of {@link OwnIdentity} and
+	 * {@link Identity}, in the same order. A fresh {@link RankComputer} is used for each Type, but
+	 * its caches are kept for all pairs - just like it happens during
+	 * {@link #updateScoresAfterDistrustWithoutCommit(Collection)}.
+	 * Also checks whether all Types yield the same ranks and logs an error if not.
+	 * 
+	 * ATTENTION: This blocks the whole WoT while it runs. Some of the Types need to walk the
+	 * whole graph for each rank, so the sample count should not be very large.
+	 * 
+	 * @param sampleCount The number of ranks to compute with each Type.
+	 * @return The result. It is also returned by {@link #getRankComputerBenchmark()} afterwards.
+	 */
+	public synchronized RankComputer.Benchmark benchmarkRankComputers(final int sampleCount) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			final ArrayList<OwnIdentity> ownIdentities
+				= new ArrayList<OwnIdentity>(getAllOwnIdentities());
+			final ArrayList<Identity> identities = new ArrayList<Identity>(getAllIdentities());
+			final int samples = ownIdentities.isEmpty() ? 0 : sampleCount;
+			
+			final Random random = new Random();
+			final OwnIdentity[] sources = new OwnIdentity[samples];
+			final Identity[] targets = new Identity[samples];
+			for(int i = 0; i < samples; ++i) {
+				sources[i] = ownIdentities.get(random.nextInt(ownIdentities.size()));
+				targets[i] = identities.get(random.nextInt(identities.size()));
+			}
+			
+			final EnumMap<RankComputer.Type, Long> nanoseconds
+				= new EnumMap<RankComputer.Type, Long>(RankComputer.Type.class);
+			int[] referenceRanks = null;
+			
+			for(RankComputer.Type type : RankComputer.Type.values()) {
+				final int[] ranks = new int[samples];
+				final StopWatch time = new StopWatch();
+				final RankComputer rankComputer = type.construct(this);
+				for(int i = 0; i < samples; ++i)
+					ranks[i] = rankComputer.computeRank(sources[i], targets[i]);
+				nanoseconds.put(type, time.getNanos());
+				
+				if(referenceRanks == null)
+					referenceRanks = ranks;
+				else if(!Arrays.equals(referenceRanks, ranks)) {
+					Logger.error(this, "RankComputer " + type + " yields different ranks than "
+						+ RankComputer.Type.values()[0]);
+				}
+			}
+			
+			mRankComputerBenchmark = new RankComputer.Benchmark(samples, nanoseconds);
+			Logger.normal(this, "Benchmark of RankComputers finished, fastest: "
+				+ mRankComputerBenchmark.getFastest());
+			return mRankComputerBenchmark;
+		}
+	}
+
+	/**
+	 * @return The result of the last {@link #benchmarkRankComputers(int)}, or null if it was not
+	 *     run since WoT was started.
+	 */
+	public synchronized RankComputer.Benchmark getRankComputerBenchmark() {
+		return mRankComputerBenchmark;
+	}
+
     /**
      * Tests whether two WoT are equal.
      * This is a complex operation in terms of execution time and memory usage and only intended for being used in unit tests.
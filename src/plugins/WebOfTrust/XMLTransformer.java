@@ -3,11 +3,17 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -16,22 +22,29 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -102,20 +115,34 @@ public final class XMLTransformer {
 	
 	private final ExtObjectContainer mDB;
 	
-	/* TODO: Check with a profiler how much memory this takes, do not cache it if it is too much */
-	/** Used for parsing the identity XML when decoding identities*/
-	private final DocumentBuilder mDocumentBuilder;
+	/**
+	 * Maximal amount of idle {@link DocumentBuilder}s and {@link Transformer}s which are kept for
+	 * reuse. More can exist while more threads use them concurrently.
+	 */
+	private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+	
+	/** Creates the {@link #mDocumentBuilders}. Not thread-safe, so synchronize on it. */
+	private final DocumentBuilderFactory mDocumentBuilderFactory;
 	
 	/* TODO: Check with a profiler how much memory this takes, do not cache it if it is too much */
-	/** Created by mDocumentBuilder, used for building the identity XML DOM when encoding identities */
-	private final DOMImplementation mDOM;
+	/** Used for parsing XML and for building the XML DOM when encoding identities. Each of them is
+	 *  only used by one thread at once, so parsing does not need a lock. */
+	private final Pool<DocumentBuilder> mDocumentBuilders;
+	
+	/** Used for parsing identity XML without a DOM, see {@link #parseIdentityXML(InputStream)}.
+	 *  Not modified after construction, so it can create readers concurrently. */
+	private final XMLInputFactory mXMLInputFactory;
 	
 	/** Used for ensuring that the order of the output XML does not reveal private data of the user */
 	private final Random mFastWeakRandom;
 	
+	/** Creates the {@link #mSerializers}. Not thread-safe, so synchronize on it. */
+	private final TransformerFactory mTransformerFactory;
+	
 	/* TODO: Check with a profiler how much memory this takes, do not cache it if it is too much */
-	/** Used for storing the XML DOM of encoded identities as physical XML text */
-	private final Transformer mSerializer;
+	/** Used for storing the XML DOM of encoded identities as physical XML text. Each of them is
+	 *  only used by one thread at once. */
+	private final Pool<Transformer> mSerializers;
 	
 	private final SimpleDateFormat mDateFormat;
 	
@@ -143,17 +170,17 @@ public final class XMLTransformer {
 		mFastWeakRandom = mWoT.getPluginRespirator() != null ? mWoT.getPluginRespirator().getNode().fastWeakRandom : new SecureRandom();
 		
 		try {
-			DocumentBuilderFactory xmlFactory = DocumentBuilderFactory.newInstance();
-			xmlFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			mDocumentBuilderFactory = DocumentBuilderFactory.newInstance();
+			mDocumentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
 			// DOM parser uses .setAttribute() to pass to underlying Xerces
-			xmlFactory.setAttribute("http://apache.org/xml/features/disallow-doctype-decl", true);
-			mDocumentBuilder = xmlFactory.newDocumentBuilder(); 
-			mDOM = mDocumentBuilder.getDOMImplementation();
-
-			mSerializer = TransformerFactory.newInstance().newTransformer();
-			mSerializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-			mSerializer.setOutputProperty(OutputKeys.INDENT, "yes"); // TODO: Disable as soon as bug 0004850 is fixed.
-			mSerializer.setOutputProperty(OutputKeys.STANDALONE, "no");
+			mDocumentBuilderFactory.setAttribute("http://apache.org/xml/features/disallow-doctype-decl", true);
+			
+			mXMLInputFactory = XMLInputFactory.newInstance();
+			mXMLInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false); // Like mDocumentBuilderFactory
+			mXMLInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			mXMLInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+			mTransformerFactory = TransformerFactory.newInstance();
 			
 			mDateFormat = new SimpleDateFormat("yyyy-MM-dd");
 			mDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
@@ -161,6 +188,93 @@ public final class XMLTransformer {
 		catch(Exception e) {
 			throw new RuntimeException(e);
 		}
+		
+		mDocumentBuilders = new Pool<DocumentBuilder>() {
+			@Override DocumentBuilder create() throws ParserConfigurationException {
+				synchronized(mDocumentBuilderFactory) {
+					return mDocumentBuilderFactory.newDocumentBuilder();
+				}
+			}
+			
+			@Override boolean reset(DocumentBuilder builder) {
+				builder.reset();
+				return true;
+			}
+		};
+		
+		mSerializers = new Pool<Transformer>() {
+			@Override Transformer create() throws TransformerConfigurationException {
+				final Transformer serializer;
+				synchronized(mTransformerFactory) {
+					serializer = mTransformerFactory.newTransformer();
+				}
+				serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+				serializer.setOutputProperty(OutputKeys.INDENT, "yes"); // TODO: Disable as soon as bug 0004850 is fixed.
+				serializer.setOutputProperty(OutputKeys.STANDALONE, "no");
+				return serializer;
+			}
+			
+			@Override boolean reset(Transformer serializer) {
+				// Not Transformer.reset(): It would also reset the output properties.
+				serializer.clearParameters();
+				return true;
+			}
+		};
+		
+		// Fail early if the configuration is not supported
+		mDocumentBuilders.release(mDocumentBuilders.acquire());
+		mSerializers.release(mSerializers.acquire());
+	}
+	
+	/**
+	 * Pool of objects which are expensive to create and not thread-safe: Each thread
+	 * {@link #acquire()}s its own instance and {@link #release(Object)}s it afterwards. At most
+	 * {@link XMLTransformer#POOL_SIZE} idle ones are kept.<br>
+	 * Used instead of ThreadLocals: Those would keep an instance in each thread of the node's
+	 * thread pool, and would prevent unloading the plugin's classes.
+	 */
+	private static abstract class Pool<T> {
+		
+		private final ArrayBlockingQueue<T> mIdle = new ArrayBlockingQueue<T>(POOL_SIZE);
+		
+		abstract T create() throws Exception;
+		
+		/** @return False if the object cannot be reused. */
+		abstract boolean reset(T object);
+		
+		final T acquire() {
+			final T object = mIdle.poll();
+			if(object != null)
+				return object;
+			
+			try {
+				return create();
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		/** Must not be called if the object was used by a function which threw, its state is
+		 *  undefined then. */
+		final void release(T object) {
+			if(reset(object))
+				mIdle.offer(object); // Discards it if the pool is full
+		}
+	}
+	
+	/** @return A new document with the root element {@link WebOfTrustInterface#WOT_NAME}. */
+	private Document createDocument() {
+		final DocumentBuilder builder = mDocumentBuilders.acquire();
+		final Document result = builder.getDOMImplementation().createDocument(null, WebOfTrustInterface.WOT_NAME, null);
+		mDocumentBuilders.release(builder);
+		return result;
+	}
+	
+	/** Writes the given document as XML text to the given stream. */
+	private void serialize(Document xmlDoc, OutputStream os) throws TransformerException {
+		final Transformer serializer = mSerializers.acquire();
+		serializer.transform(new DOMSource(xmlDoc), new StreamResult(os));
+		mSerializers.release(serializer);
 	}
 
     /**
@@ -178,16 +292,14 @@ public final class XMLTransformer {
         if(xmlInputStream.available() > softXMLByteSizeLimit)
             throw new IllegalArgumentException("XML contains too many bytes: " + xmlInputStream.available());
         
-        synchronized(mDocumentBuilder) { // TODO: Figure out whether the DocumentBuilder is maybe synchronized anyway
-            return mDocumentBuilder.parse(xmlInputStream);
-        }
+        final DocumentBuilder builder = mDocumentBuilders.acquire();
+        final Document result = builder.parse(xmlInputStream);
+        mDocumentBuilders.release(builder);
+        return result;
     }
 
 	public void exportOwnIdentity(OwnIdentity identity, OutputStream os) throws TransformerException {
-		Document xmlDoc;
-		synchronized(mDocumentBuilder) { // TODO: Figure out whether the DocumentBuilder is maybe synchronized anyway 
-			xmlDoc = mDOM.createDocument(null, WebOfTrustInterface.WOT_NAME, null);
-		}
+		final Document xmlDoc = createDocument();
 		
 		// 1.0 does not support all Unicode characters which the String class supports. To prevent us from having to filter all Strings, we use 1.1
 		xmlDoc.setXmlVersion("1.1");
@@ -269,11 +381,7 @@ public final class XMLTransformer {
 		
 		rootElement.appendChild(identityElement);
 
-		DOMSource domSource = new DOMSource(xmlDoc);
-		StreamResult resultStream = new StreamResult(os);
-		synchronized(mSerializer) { // TODO: Figure out whether the Serializer is maybe synchronized anyway
-			mSerializer.transform(domSource, resultStream);
-		}
+		serialize(xmlDoc, os);
 	}
 	
 	/**
@@ -296,7 +404,56 @@ public final class XMLTransformer {
 
 	}
 	
-	private static final class ParsedIdentityXML {
+	/**
+	 * Throws an IOException as soon as more than the given amount of bytes was read, as opposed to
+	 * the check of {@link InputStream#available()} in {@link #parseDocument(InputStream, int)}.
+	 */
+	private static final class SizeLimitedInputStream extends FilterInputStream {
+		
+		private long mRemaining;
+		
+		SizeLimitedInputStream(InputStream in, int limit) {
+			super(in);
+			mRemaining = limit;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			final int result = super.read();
+			if(result != -1)
+				consume(1);
+			return result;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			// Read one byte more than allowed so exceeding the limit is noticed.
+			final int result = super.read(b, off, (int)Math.min(len, mRemaining + 1));
+			if(result > 0)
+				consume(result);
+			return result;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			final long result = super.skip(Math.min(n, mRemaining + 1));
+			consume(result);
+			return result;
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+		private void consume(long bytes) throws IOException {
+			mRemaining -= bytes;
+			if(mRemaining < 0)
+				throw new IOException("XML contains too many bytes");
+		}
+	}
+	
+	static final class ParsedIdentityXML {
 		static final class TrustListEntry {
 			final FreenetURI mTrusteeURI;
 			final byte mTrustValue;
@@ -317,17 +474,208 @@ public final class XMLTransformer {
 		HashMap<String, String> identityProperties = null;
 		ArrayList<TrustListEntry> identityTrustList = null;
 		
+		/** @see #getContentDigest() */
+		private byte[] contentDigest = null;
+		
 		public ParsedIdentityXML() {
 			
 		}
+		
+		/**
+		 * Gets a SHA-256 hash of all fields except the {@link #parseError}, which is used to
+		 * detect editions whose content did not change, see
+		 * {@link XMLTransformer#isContentUnchanged(Identity, ParsedIdentityXML, String, boolean)}.
+		 * <br>
+		 * It is computed upon the first call. {@link XMLTransformer#parseIdentityXML(InputStream)}
+		 * does that, so it happens in the parsing thread instead of while importing.
+		 */
+		byte[] getContentDigest() {
+			if(contentDigest != null)
+				return contentDigest;
+			
+			try {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+				final DataOutputStream out = new DataOutputStream(bytes);
+				
+				writeString(out, identityName);
+				out.writeByte(identityPublishesTrustList == null ? 2 : (identityPublishesTrustList ? 1 : 0));
+				
+				out.writeInt(identityContexts != null ? identityContexts.size() : -1);
+				if(identityContexts != null) {
+					for(String context : identityContexts)
+						writeString(out, context);
+				}
+				
+				out.writeInt(identityProperties != null ? identityProperties.size() : -1);
+				if(identityProperties != null) {
+					// Sorted since the order of a HashMap is not defined
+					for(Entry<String, String> property : new TreeMap<String, String>(identityProperties).entrySet()) {
+						writeString(out, property.getKey());
+						writeString(out, property.getValue());
+					}
+				}
+				
+				out.writeInt(identityTrustList != null ? identityTrustList.size() : -1);
+				if(identityTrustList != null) {
+					for(TrustListEntry entry : identityTrustList) {
+						// Includes the edition: It is the edition hint of the trustee.
+						writeString(out, entry.mTrusteeURI.toString());
+						out.writeByte(entry.mTrustValue);
+						writeString(out, entry.mTrustComment);
+					}
+				}
+				
+				out.flush();
+				contentDigest = MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray());
+				return contentDigest;
+			} catch(IOException e) {
+				throw new RuntimeException(e); // ByteArrayOutputStream does not throw it
+			} catch(NoSuchAlgorithmException e) {
+				throw new RuntimeException(e); // Every JRE must support SHA-256
+			}
+		}
+		
+		/** Not {@link DataOutputStream#writeUTF(String)}: It is limited to 64 KiB. */
+		private static void writeString(DataOutputStream out, String string) throws IOException {
+			if(string == null) {
+				out.writeInt(-1);
+				return;
+			}
+			out.writeInt(string.length());
+			out.writeChars(string);
+		}
 	}
 	
 	/**
-	 * @param xmlInputStream An InputStream which must not return more than {@link MAX_IDENTITY_XML_BYTE_SIZE} bytes.
+	 * Parses the identity XML with a pull parser, without building a DOM as
+	 * {@link #parseIdentityXMLWithDOM(InputStream)} does: The elements are evaluated while reading,
+	 * the input is rejected as soon as it exceeds {@link #MAX_IDENTITY_XML_BYTE_SIZE} bytes or
+	 * {@link #MAX_IDENTITY_XML_TRUSTEE_AMOUNT} trustees, and there is no lock on a shared parser.<br>
+	 * Yields the same result as the DOM parser, which is kept as a reference for XMLTransformerTest.
+	 * 
+	 * @param xmlInputStream An InputStream which should not return more than {@link MAX_IDENTITY_XML_BYTE_SIZE} bytes.
 	 */
-	private ParsedIdentityXML parseIdentityXML(InputStream xmlInputStream) throws IOException {
+	ParsedIdentityXML parseIdentityXML(InputStream xmlInputStream) {
 		Logger.normal(this, "Parsing identity XML...");
 		
+		final ParsedIdentityXML result = new ParsedIdentityXML();
+		XMLStreamReader xml = null;
+		
+		try {
+			// Cheap early rejection, SizeLimitedInputStream enforces the limit exactly.
+			if(xmlInputStream.available() > MAX_IDENTITY_XML_BYTE_SIZE)
+				throw new IllegalArgumentException("XML contains too many bytes: " + xmlInputStream.available());
+			
+			// We decode the UTF-8 with the JRE instead of the parser: The bug which
+			// OneBytePerReadInputStream works around is in the parser's decoder, which is thereby
+			// not used. The decoder must report malformed input instead of replacing it.
+			xml = mXMLInputFactory.createXMLStreamReader(new InputStreamReader(
+				new SizeLimitedInputStream(xmlInputStream, MAX_IDENTITY_XML_BYTE_SIZE),
+				Charset.forName("UTF-8").newDecoder()));
+			
+			final String encoding = xml.getCharacterEncodingScheme();
+			if(encoding != null && !encoding.equalsIgnoreCase("UTF-8"))
+				throw new Exception("Unsupported encoding: " + encoding);
+			
+			// Element depth, and the depth of the Identity / TrustList element while we are inside it
+			int depth = 0;
+			int identityDepth = -1;
+			int trustListDepth = -1;
+			boolean identityFound = false;
+			boolean trustListFound = false;
+			
+			// We read the whole document even though we only need the Identity element: The DOM
+			// parser also rejects XML which is malformed after it.
+			while(xml.hasNext()) {
+				switch(xml.next()) {
+					case XMLStreamConstants.DTD:
+						throw new Exception("DOCTYPE is not allowed");
+					case XMLStreamConstants.START_ELEMENT:
+						++depth;
+						final String name = xml.getLocalName();
+						
+						if(identityDepth < 0) {
+							// Like getElementsByTagName("Identity").item(0): Only the first one.
+							if(!identityFound && name.equals("Identity")) {
+								identityFound = true;
+								identityDepth = depth;
+								
+								final String version = getAttribute(xml, "Version");
+								if(Integer.parseInt(version) > XML_FORMAT_VERSION)
+									throw new Exception("Version " + version + " > " + XML_FORMAT_VERSION);
+								
+								result.identityName = getAttribute(xml, "Name");
+								result.identityPublishesTrustList = Boolean.parseBoolean(getAttribute(xml, "PublishesTrustList"));
+								result.identityContexts = new ArrayList<String>();
+								result.identityProperties = new HashMap<String, String>();
+							}
+						} else if(name.equals("Context")) {
+							result.identityContexts.add(getAttribute(xml, "Name"));
+						} else if(name.equals("Property")) {
+							result.identityProperties.put(getAttribute(xml, "Name"), getAttribute(xml, "Value"));
+						} else if(name.equals("TrustList")) {
+							if(!trustListFound && result.identityPublishesTrustList) {
+								trustListFound = true;
+								trustListDepth = depth;
+								result.identityTrustList = new ArrayList<ParsedIdentityXML.TrustListEntry>();
+							}
+						} else if(name.equals("Trust") && trustListDepth >= 0) {
+							if(result.identityTrustList.size() >= MAX_IDENTITY_XML_TRUSTEE_AMOUNT)
+								throw new Exception("Too many trustees, the limit is " + MAX_IDENTITY_XML_TRUSTEE_AMOUNT);
+							
+							result.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+									new FreenetURI(getAttribute(xml, "Identity")),
+									Byte.parseByte(getAttribute(xml, "Value")),
+									getAttribute(xml, "Comment")
+								));
+						}
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						if(depth == trustListDepth)
+							trustListDepth = -1;
+						if(depth == identityDepth)
+							identityDepth = -1;
+						--depth;
+						break;
+				}
+			}
+			
+			if(!identityFound)
+				throw new Exception("No Identity element");
+			if(result.identityPublishesTrustList && !trustListFound)
+				throw new Exception("No TrustList element");
+			
+			result.getContentDigest();
+		} catch(Exception e) {
+			result.parseError = e;
+		} finally {
+			if(xml != null) {
+				try {
+					xml.close(); // Does not close the InputStream
+				} catch(XMLStreamException e) {
+					Logger.error(this, "Closing the XMLStreamReader failed", e);
+				}
+			}
+		}
+		
+		Logger.normal(this, "Finished parsing identity XML.");
+		
+		return result;
+	}
+	
+	/** @return The value of the attribute, or "" if it does not exist - like {@link Element#getAttribute(String)}. */
+	private static String getAttribute(XMLStreamReader xml, String name) {
+		final String value = xml.getAttributeValue(null, name);
+		return value != null ? value : "";
+	}
+	
+	/**
+	 * Reference implementation of {@link #parseIdentityXML(InputStream)} which builds a DOM.
+	 * Not used for importing anymore, XMLTransformerTest compares the results of both.
+	 * 
+	 * @param xmlInputStream An InputStream which must not return more than {@link MAX_IDENTITY_XML_BYTE_SIZE} bytes.
+	 */
+	ParsedIdentityXML parseIdentityXMLWithDOM(InputStream xmlInputStream) {
 		final ParsedIdentityXML result = new ParsedIdentityXML();
 		
 		try {			
@@ -358,6 +706,8 @@ public final class XMLTransformer {
 			if(result.identityPublishesTrustList) {
 				final Element trustListElement = (Element)identityElement.getElementsByTagName("TrustList").item(0);
 				final NodeList trustList = trustListElement.getElementsByTagName("Trust");
+				if(trustList.getLength() > MAX_IDENTITY_XML_TRUSTEE_AMOUNT)
+					throw new Exception("Too many trustees, the limit is " + MAX_IDENTITY_XML_TRUSTEE_AMOUNT);
 				result.identityTrustList = new ArrayList<ParsedIdentityXML.TrustListEntry>(trustList.getLength() + 1);
 				for(int i = 0; i < trustList.getLength(); ++i) {
 					Element trustElement = (Element)trustList.item(i);
@@ -373,8 +723,6 @@ public final class XMLTransformer {
 			result.parseError = e;
 		}
 		
-		Logger.normal(this, "Finished parsing identity XML.");
-		
 		return result;
 	}
 	
@@ -386,171 +734,36 @@ public final class XMLTransformer {
 	 * @param xmlInputStream The input stream containing the XML.
 	 */
 	public void importIdentity(FreenetURI identityURI, InputStream xmlInputStream) {
-		try { // Catch import problems so we can mark the edition as parsing failed
 		// We first parse the XML without synchronization, then do the synchronized import into the WebOfTrust		
-		final ParsedIdentityXML xmlData = parseIdentityXML(xmlInputStream);
-		
+		importIdentity(identityURI, parseIdentityXML(xmlInputStream));
+	}
+	
+	/**
+	 * Imports a identity XML file which was parsed by {@link #parseIdentityXML(InputStream)}
+	 * before. This allows the {@link IdentityFileProcessor} to parse files in other threads while
+	 * this function imports the previous one.<br>
+	 * If the {@link ParsedIdentityXML#parseError} is set, the edition is marked as parsing failed.
+	 * 
+	 * @return True if the content of the edition was equal to the one which was imported
+	 *     previously, so only the edition number was updated. False if it was not, or if the
+	 *     edition was not imported.
+	 */
+	boolean importIdentity(FreenetURI identityURI, ParsedIdentityXML xmlData) {
+		try { // Catch import problems so we can mark the edition as parsing failed
 		synchronized(mWoT) {
 		synchronized(mWoT.getIdentityFetcher()) {
 		synchronized(mSubscriptionManager) {
-			final Identity identity = mWoT.getIdentityByURI(identityURI);
-			final Identity oldIdentity = identity.clone(); // For the SubscriptionManager
-			
-			Logger.normal(this, "Importing parsed XML for " + identity);
-
-			// When shouldFetchIdentity() changes from true to false due to an identity becoming
-			// distrusted, this change will not cause the IdentityFetcher to abort the fetch
-			// immediately: It queues the command to abort the fetch, and processes commands after
-			// some seconds.
-			// Also, fetched identity files are enqueued for processing in an IdentityFileQueue, and
-			// might wait there for several minutes.
-			// Thus, it is possible that this function is called for an Identity which is not
-			// actually wanted anymore. So we must check whether the identity is really still
-			// wanted.
-            if(!mWoT.shouldFetchIdentity(identity)) {
-                Logger.normal(this,
-                    "importIdentity() called for unwanted identity, probably because the "
-                  + "IdentityFetcher has not processed the AbortFetchCommand yet or the "
-                  + "file was in the IdentityFileQueue for some time, not importing: "
-                  + identity);
-                return;
-            }
-			
-			long newEdition = identityURI.getEdition();
-			if(identity.getEdition() > newEdition) {
-				if(logDEBUG) Logger.debug(this, "Fetched an older edition: current == " + identity.getEdition() + "; fetched == " + identityURI.getEdition());
-				return;
-			} else if(identity.getEdition() == newEdition) {
-				if(identity.getCurrentEditionFetchState() == FetchState.Fetched) {
-					if(logDEBUG) Logger.debug(this, "Fetched current edition which is marked as fetched already, not importing: " + identityURI);
-					return;
-				} else if(identity.getCurrentEditionFetchState() == FetchState.ParsingFailed) {
-					Logger.normal(this, "Re-fetched current-edition which was marked as parsing failed: " + identityURI);
-				}
-			}
-				
-			// We throw parse errors AFTER checking the edition number: If this XML was outdated anyway, we don't have to throw.
-			if(xmlData.parseError != null)
-				throw xmlData.parseError;
-				
+			final Identity identity = getIdentityToImport(identityURI, xmlData);
+			if(identity == null)
+				return false;
 			
+			final boolean unchanged;
 			synchronized(Persistent.transactionLock(mDB)) {
 				try { // Transaction rollback block
-					identity.setEdition(newEdition); // The identity constructor only takes the edition number as a hint, so we must store it explicitly.
-					boolean didPublishTrustListPreviously = identity.doesPublishTrustList();
-					identity.setPublishTrustList(xmlData.identityPublishesTrustList);
-					
-					try {
-						identity.setNickname(xmlData.identityName);
-					}
-					catch(Exception e) {
-						/* Nickname changes are not allowed, ignore them... */
-						Logger.warning(this, "setNickname() failed.", e);
-					}
-	
-					try { /* Failure of context importing should not make an identity disappear, therefore we catch exceptions. */
-						identity.setContexts(xmlData.identityContexts);
-					}
-					catch(Exception e) {
-						Logger.warning(this, "setContexts() failed.", e);
-					}
-	
-					try { /* Failure of property importing should not make an identity disappear, therefore we catch exceptions. */
-						identity.setProperties(xmlData.identityProperties);
-					}
-					catch(Exception e) {
-						Logger.warning(this, "setProperties() failed", e);
-					}
-				
-					
 					mWoT.beginTrustListImport(); // We delete the old list if !identityPublishesTrustList and it did publish one earlier => we always call this. 
-					
-					if(xmlData.identityPublishesTrustList) {
-						// We import the trust list of an identity if it's score is equal to 0, but we only create new identities or import edition hints
-						// if the score is greater than 0. Solving a captcha therefore only allows you to create one single identity.
-						boolean positiveScore = false;
-						boolean hasCapacity = false;
-						
-						// TODO: getBestScore/getBestCapacity should always yield a positive result because we store a positive score object for an OwnIdentity
-						// upon creation. The only case where it could not exist might be restoreOwnIdentity() ... check that. If it is created there as well,
-						// remove the additional check here.
-						if(identity instanceof OwnIdentity) {
-							// Importing of OwnIdentities is always allowed
-							positiveScore = true;
-							hasCapacity = true;
-						} else {
-							try {
-								positiveScore = mWoT.getBestScore(identity) > 0;
-								hasCapacity = mWoT.getBestCapacity(identity) > 0;
-							}
-							catch(NotInTrustTreeException e) { }
-						}
-						
-						
-						HashSet<String>	identitiesWithUpdatedEditionHint = null;
-
-						if(positiveScore) {
-							identitiesWithUpdatedEditionHint = new HashSet<String>(xmlData.identityTrustList.size() * 2);
-						}
-
-						for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
-							final FreenetURI trusteeURI = trustListEntry.mTrusteeURI;
-							final byte trustValue = trustListEntry.mTrustValue;
-							final String trustComment = trustListEntry.mTrustComment;
-
-							Identity trustee = null;
-							try {
-								trustee = mWoT.getIdentityByURI(trusteeURI);
-								if(positiveScore) {
-									if(trustee.setNewEditionHint(trusteeURI.getEdition())) {
-										identitiesWithUpdatedEditionHint.add(trustee.getID());
-										trustee.storeWithoutCommit();
-										
-										// We don't notify clients about this: The edition hint is not very useful to them.
-										// mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(trustee, trustee);
-									}
-								}
-							}
-							catch(UnknownIdentityException e) {
-								if(hasCapacity) { /* We only create trustees if the truster has capacity to rate them. */
-									try {
-										trustee = new Identity(mWoT, trusteeURI, null, false);
-										trustee.storeWithoutCommit();
-										mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, trustee);
-										Logger.normal(this, "New identity received via trust list: " + identity);
-									} catch(MalformedURLException urlEx) {
-										// Logging the exception does NOT log the actual malformed URL so we do it manually.
-										Logger.warning(this, "Received malformed identity URL: " + trusteeURI, urlEx);
-										throw urlEx;
-									}
-								}
-							}
-
-							if(trustee != null)
-								mWoT.setTrustWithoutCommit(identity, trustee, trustValue, trustComment); // Also takes care of SubscriptionManager
-						}
-
-						for(Trust trust : mWoT.getGivenTrustsOfDifferentEdition(identity, identityURI.getEdition())) {
-							mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
-						}
-
-						IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
-						if(positiveScore) {
-							for(String id : identitiesWithUpdatedEditionHint)
-								identityFetcher.storeUpdateEditionHintCommandWithoutCommit(id);
-
-							// We do not have to store fetch commands for new identities here, setTrustWithoutCommit does it.
-						}
-					} else if(!xmlData.identityPublishesTrustList && didPublishTrustListPreviously && !(identity instanceof OwnIdentity)) {
-						// If it does not publish a trust list anymore, we delete all trust values it has given.
-						for(Trust trust : mWoT.getGivenTrusts(identity))
-							mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
-					}
-
+					unchanged = importIdentityWithoutCommit(identity, identityURI, xmlData);
 					mWoT.finishTrustListImport();
-					identity.onFetched(); // Marks the identity as parsed successfully
-					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldIdentity, identity);
-					identity.storeAndCommit();
+					Persistent.checkedCommit(mDB, this);
 				}
 				catch(Exception e) { 
 					mWoT.abortTrustListImport(e, Logger.LogLevel.WARNING); // Does the rollback
@@ -558,7 +771,9 @@ public final class XMLTransformer {
 				} // try
 			} // synchronized(Persistent.transactionLock(db))
 				
-			Logger.normal(this, "Finished XML import for " + identity);
+			Logger.normal(this, "Finished XML import for " + identity
+				+ (unchanged ? " (content unchanged)" : ""));
+			return unchanged;
 		} // synchronized(mSubscriptionManager)
 		} // synchronized(mWoT.getIdentityFetcher())
 		} // synchronized(mWoT)
@@ -594,15 +809,415 @@ public final class XMLTransformer {
 				}	
 			}
 			}
+			return false;
+		}
+	}
+	
+	/** Result of {@link XMLTransformer#importIdentities(List, List)}. */
+	static final class BatchImportResult {
+		/** False if the transaction failed, so the files were imported one by one instead. */
+		boolean mImportedInSingleTransaction = true;
+		
+		/** Amount of files whose content was unchanged, see
+		 *  {@link XMLTransformer#importIdentity(FreenetURI, ParsedIdentityXML)}. */
+		int mUnchangedFiles = 0;
+	}
+	
+	/**
+	 * Imports multiple identity XML files which were parsed by {@link #parseIdentityXML(
+	 * InputStream)} in a single transaction. As opposed to calling
+	 * {@link #importIdentity(FreenetURI, ParsedIdentityXML)} for each of them, the Scores are
+	 * only updated once for all of them by {@link WebOfTrust#finishTrustListImport()}, and there
+	 * is only one commit.<br>
+	 * The decisions which depend on the Score of the truster, i.e. whether an identity is still
+	 * wanted, and whether new trustees and edition hints are accepted, are thus made with the
+	 * Scores from before the batch. They are corrected when the next edition is imported.<br><br>
+	 * 
+	 * The files must be in the order in which they would have been imported one by one.<br>
+	 * Files whose {@link ParsedIdentityXML#parseError} is set are not part of the transaction:
+	 * Marking their edition as parsing failed needs a transaction of its own. They are imported
+	 * one by one after it, which yields the same result as importing them in their place: The
+	 * import of an edition which is older than the current one is skipped.<br>
+	 * If importing any of the other files fails, the whole transaction is rolled back, and they
+	 * are imported one by one instead, which also marks the failing edition as parsing failed.
+	 */
+	BatchImportResult importIdentities(List<FreenetURI> identityURIs,
+			List<ParsedIdentityXML> xmlData) {
+		
+		assert(identityURIs.size() == xmlData.size());
+		
+		final ArrayList<FreenetURI> uris = new ArrayList<FreenetURI>(identityURIs.size());
+		final ArrayList<ParsedIdentityXML> xmls = new ArrayList<ParsedIdentityXML>(xmlData.size());
+		final ArrayList<FreenetURI> failedURIs = new ArrayList<FreenetURI>();
+		final ArrayList<ParsedIdentityXML> failedXMLs = new ArrayList<ParsedIdentityXML>();
+		for(int i = 0; i < identityURIs.size(); ++i) {
+			if(xmlData.get(i).parseError == null) {
+				uris.add(identityURIs.get(i));
+				xmls.add(xmlData.get(i));
+			} else {
+				failedURIs.add(identityURIs.get(i));
+				failedXMLs.add(xmlData.get(i));
+			}
+		}
+		
+		final BatchImportResult result = new BatchImportResult();
+		
+		if(!uris.isEmpty()) {
+			final int unchanged = importIdentitiesInTransaction(uris, xmls);
+			if(unchanged >= 0)
+				result.mUnchangedFiles += unchanged;
+			else {
+				result.mImportedInSingleTransaction = false;
+				
+				Logger.warning(this, "Importing batch failed, importing its files one by one to "
+					+ "find the failing one: " + uris);
+				
+				// This relies on the rollback having reverted the Identity objects which the
+				// transaction modified, so importIdentitiesWithoutCommit() must not leave
+				// references to them.
+				for(int i = 0; i < uris.size(); ++i) {
+					if(importIdentity(uris.get(i), xmls.get(i)))
+						++result.mUnchangedFiles;
+				}
+			}
+		}
+		
+		for(int i = 0; i < failedURIs.size(); ++i)
+			importIdentity(failedURIs.get(i), failedXMLs.get(i));
+		
+		return result;
+	}
+	
+	/**
+	 * Backend of {@link #importIdentities(List, List)}: Imports the given files, none of which may
+	 * have a {@link ParsedIdentityXML#parseError}, in a single transaction.
+	 * 
+	 * @return The amount of files whose content was unchanged. -1 if the transaction was rolled
+	 *     back.
+	 */
+	private int importIdentitiesInTransaction(List<FreenetURI> identityURIs,
+			List<ParsedIdentityXML> xmlData) {
+		
+		synchronized(mWoT) {
+		synchronized(mWoT.getIdentityFetcher()) {
+		synchronized(mSubscriptionManager) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				mWoT.beginTrustListImport();
+				final int unchanged = importIdentitiesWithoutCommit(identityURIs, xmlData);
+				mWoT.finishTrustListImport();
+				Persistent.checkedCommit(mDB, this);
+				return unchanged;
+			} catch(Exception e) {
+				mWoT.abortTrustListImport(e, Logger.LogLevel.WARNING); // Does the rollback
+				return -1;
+			}
+		}
+		}
+		}
+		}
+	}
+	
+	/**
+	 * Part of {@link #importIdentitiesInTransaction(List, List)}.<br>
+	 * A function of its own so the rollback happens after the references to the imported
+	 * Identity objects are gone: db4o cannot revert objects which are still referenced.
+	 * 
+	 * @return The amount of files whose content was unchanged.
+	 */
+	private int importIdentitiesWithoutCommit(List<FreenetURI> identityURIs,
+			List<ParsedIdentityXML> xmlData) throws Exception {
+		
+		int imported = 0;
+		int unchanged = 0;
+		for(int i = 0; i < identityURIs.size(); ++i) {
+			final FreenetURI identityURI = identityURIs.get(i);
+			final Identity identity = getIdentityToImport(identityURI, xmlData.get(i));
+			if(identity != null) {
+				if(importIdentityWithoutCommit(identity, identityURI, xmlData.get(i)))
+					++unchanged;
+				++imported;
+			}
 		}
+		
+		Logger.normal(this, "Finished XML import of batch: Imported " + imported + " of "
+			+ identityURIs.size() + " files, " + unchanged + " of them were unchanged");
+		return unchanged;
 	}
+	
+	/**
+	 * Checks whether the given edition of an identity should be imported.<br>
+	 * Must be called while synchronized on the WoT, its IdentityFetcher and SubscriptionManager.
+	 * 
+	 * @return The identity, or null if the edition is outdated or the identity is not wanted.
+	 * @throws Exception The {@link ParsedIdentityXML#parseError}, if the edition should be
+	 *     imported but could not be parsed, or {@link UnknownIdentityException}.
+	 */
+	private Identity getIdentityToImport(FreenetURI identityURI, ParsedIdentityXML xmlData)
+			throws Exception {
+		
+		final Identity identity = mWoT.getIdentityByURI(identityURI);
+		
+		Logger.normal(this, "Importing parsed XML for " + identity);
 
-	public void exportIntroduction(OwnIdentity identity, OutputStream os) throws TransformerException {
-		Document xmlDoc;
-		synchronized(mDocumentBuilder) { // TODO: Figure out whether the DocumentBuilder is maybe synchronized anyway
-			xmlDoc = mDOM.createDocument(null, WebOfTrustInterface.WOT_NAME, null);
+		// When shouldFetchIdentity() changes from true to false due to an identity becoming
+		// distrusted, this change will not cause the IdentityFetcher to abort the fetch
+		// immediately: It queues the command to abort the fetch, and processes commands after
+		// some seconds.
+		// Also, fetched identity files are enqueued for processing in an IdentityFileQueue, and
+		// might wait there for several minutes.
+		// Thus, it is possible that this function is called for an Identity which is not
+		// actually wanted anymore. So we must check whether the identity is really still
+		// wanted.
+		if(!mWoT.shouldFetchIdentity(identity)) {
+			Logger.normal(this,
+				"importIdentity() called for unwanted identity, probably because the "
+			  + "IdentityFetcher has not processed the AbortFetchCommand yet or the "
+			  + "file was in the IdentityFileQueue for some time, not importing: "
+			  + identity);
+			return null;
 		}
 		
+		long newEdition = identityURI.getEdition();
+		if(identity.getEdition() > newEdition) {
+			if(logDEBUG) Logger.debug(this, "Fetched an older edition: current == " + identity.getEdition() + "; fetched == " + identityURI.getEdition());
+			return null;
+		} else if(identity.getEdition() == newEdition) {
+			if(identity.getCurrentEditionFetchState() == FetchState.Fetched) {
+				if(logDEBUG) Logger.debug(this, "Fetched current edition which is marked as fetched already, not importing: " + identityURI);
+				return null;
+			} else if(identity.getCurrentEditionFetchState() == FetchState.ParsingFailed) {
+				Logger.normal(this, "Re-fetched current-edition which was marked as parsing failed: " + identityURI);
+			}
+		}
+			
+		// We throw parse errors AFTER checking the edition number: If this XML was outdated anyway, we don't have to throw.
+		if(xmlData.parseError != null)
+			throw xmlData.parseError;
+		
+		return identity;
+	}
+	
+	/**
+	 * Applies the given parsed XML to the identity, including its trust list, and marks the
+	 * edition as fetched.<br>
+	 * If the content is equal to the one which was imported previously, only the edition number is
+	 * updated, see {@link #isContentUnchanged(Identity, ParsedIdentityXML, String, boolean)}.<br>
+	 * Must be called within a transaction and between {@link WebOfTrust#beginTrustListImport()}
+	 * and {@link WebOfTrust#finishTrustListImport()}, after
+	 * {@link #getIdentityToImport(FreenetURI, ParsedIdentityXML)} returned the identity.
+	 * 
+	 * @return True if the content was unchanged.
+	 */
+	private boolean importIdentityWithoutCommit(Identity identity, FreenetURI identityURI,
+			ParsedIdentityXML xmlData) throws Exception {
+		
+		final Identity oldIdentity = identity.clone(); // For the SubscriptionManager
+		
+		// We import the trust list of an identity if it's score is equal to 0, but we only create new identities or import edition hints
+		// if the score is greater than 0. Solving a captcha therefore only allows you to create one single identity.
+		boolean positiveScore = false;
+		boolean hasCapacity = false;
+		
+		// TODO: getBestScore/getBestCapacity should always yield a positive result because we store a positive score object for an OwnIdentity
+		// upon creation. The only case where it could not exist might be restoreOwnIdentity() ... check that. If it is created there as well,
+		// remove the additional check here.
+		if(identity instanceof OwnIdentity) {
+			// Importing of OwnIdentities is always allowed
+			positiveScore = true;
+			hasCapacity = true;
+		} else {
+			try {
+				positiveScore = mWoT.getBestScore(identity) > 0;
+				hasCapacity = mWoT.getBestCapacity(identity) > 0;
+			}
+			catch(NotInTrustTreeException e) { }
+		}
+		
+		final String contentHash = getContentHash(xmlData, positiveScore, hasCapacity);
+		final boolean unchanged = isContentUnchanged(identity, xmlData, contentHash, hasCapacity);
+		
+		identity.setEdition(identityURI.getEdition()); // The identity constructor only takes the edition number as a hint, so we must store it explicitly.
+		
+		if(unchanged) {
+			// setTrustWithoutCommit() would only update the edition of the trust list of the
+			// Trusts, so we do only that.
+			for(Trust trust : mWoT.getGivenTrusts(identity)) {
+				final Trust oldTrust = trust.clone();
+				trust.trusterEditionUpdated();
+				trust.storeWithoutCommit();
+				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(oldTrust, trust);
+			}
+		} else
+			importContentWithoutCommit(identity, identityURI, xmlData, positiveScore, hasCapacity);
+		
+		identity.setImportedContentHash(contentHash);
+		identity.onFetched(); // Marks the identity as parsed successfully
+		mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldIdentity, identity);
+		identity.storeWithoutCommit();
+		return unchanged;
+	}
+	
+	/**
+	 * @return A hash of the content of the XML, and of the Score-dependent decisions which its
+	 *     import makes, for {@link Identity#setImportedContentHash(String)}.
+	 */
+	private static String getContentHash(ParsedIdentityXML xmlData, boolean positiveScore,
+			boolean hasCapacity) {
+		
+		try {
+			final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			sha256.update(xmlData.getContentDigest());
+			sha256.update((byte)((positiveScore ? 1 : 0) | (hasCapacity ? 2 : 0)));
+			return Base64.encode(sha256.digest());
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e); // Every JRE must support SHA-256
+		}
+	}
+	
+	/**
+	 * Many identities insert new editions whose content is the same as the one of the previous
+	 * edition. Importing such an edition would not change anything but the edition number, so
+	 * {@link #importIdentityWithoutCommit(Identity, FreenetURI, ParsedIdentityXML)} can skip the
+	 * trust list then.<br>
+	 * This is the case if the hash of the content and of the Score-dependent decisions equals the
+	 * one of the edition which was imported last, and if the truster has a Trust to exactly those
+	 * of the listed trustees which the import would give one to.
+	 */
+	private boolean isContentUnchanged(Identity identity, ParsedIdentityXML xmlData,
+			String contentHash, boolean hasCapacity) {
+		
+		// The trust values of an OwnIdentity can be changed by the user, not only by the import.
+		if(identity instanceof OwnIdentity)
+			return false;
+		
+		if(!contentHash.equals(identity.getImportedContentHash()))
+			return false;
+		
+		if(!xmlData.identityPublishesTrustList)
+			return true;
+		
+		// The trust list of the previous import only differs from the current one in the trustees
+		// which it could not give a Trust to, so the Trusts match if their amount matches.
+		// Identitys can be deleted, which also deletes the Trusts they have received. If the
+		// truster has capacity, the import would create them again, so it must trust all of them.
+		// Otherwise it only trusts the ones which exist. They might have been created by other
+		// trusters since the previous import.
+		// This is also false if the trust list contains a trustee twice, which is harmless.
+		int expectedTrusts = 0;
+		if(hasCapacity)
+			expectedTrusts = xmlData.identityTrustList.size();
+		else {
+			for(ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
+				try {
+					mWoT.getIdentityByURI(trustListEntry.mTrusteeURI);
+					++expectedTrusts;
+				} catch(UnknownIdentityException e) { }
+			}
+		}
+		
+		return mWoT.getGivenTrusts(identity).size() == expectedTrusts;
+	}
+	
+	/**
+	 * Applies the attributes and the trust list of the given parsed XML to the identity.
+	 * Called by {@link #importIdentityWithoutCommit(Identity, FreenetURI, ParsedIdentityXML)}
+	 * if the content has changed.
+	 */
+	private void importContentWithoutCommit(Identity identity, FreenetURI identityURI,
+			ParsedIdentityXML xmlData, boolean positiveScore, boolean hasCapacity)
+			throws Exception {
+		
+		boolean didPublishTrustListPreviously = identity.doesPublishTrustList();
+		identity.setPublishTrustList(xmlData.identityPublishesTrustList);
+		
+		try {
+			identity.setNickname(xmlData.identityName);
+		}
+		catch(Exception e) {
+			/* Nickname changes are not allowed, ignore them... */
+			Logger.warning(this, "setNickname() failed.", e);
+		}
+
+		try { /* Failure of context importing should not make an identity disappear, therefore we catch exceptions. */
+			identity.setContexts(xmlData.identityContexts);
+		}
+		catch(Exception e) {
+			Logger.warning(this, "setContexts() failed.", e);
+		}
+
+		try { /* Failure of property importing should not make an identity disappear, therefore we catch exceptions. */
+			identity.setProperties(xmlData.identityProperties);
+		}
+		catch(Exception e) {
+			Logger.warning(this, "setProperties() failed", e);
+		}
+		
+		if(xmlData.identityPublishesTrustList) {
+			HashSet<String>	identitiesWithUpdatedEditionHint = null;
+
+			if(positiveScore) {
+				identitiesWithUpdatedEditionHint = new HashSet<String>(xmlData.identityTrustList.size() * 2);
+			}
+
+			for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
+				final FreenetURI trusteeURI = trustListEntry.mTrusteeURI;
+				final byte trustValue = trustListEntry.mTrustValue;
+				final String trustComment = trustListEntry.mTrustComment;
+
+				Identity trustee = null;
+				try {
+					trustee = mWoT.getIdentityByURI(trusteeURI);
+					if(positiveScore) {
+						if(trustee.setNewEditionHint(trusteeURI.getEdition())) {
+							identitiesWithUpdatedEditionHint.add(trustee.getID());
+							trustee.storeWithoutCommit();
+							
+							// We don't notify clients about this: The edition hint is not very useful to them.
+							// mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(trustee, trustee);
+						}
+					}
+				}
+				catch(UnknownIdentityException e) {
+					if(hasCapacity) { /* We only create trustees if the truster has capacity to rate them. */
+						try {
+							trustee = new Identity(mWoT, trusteeURI, null, false);
+							trustee.storeWithoutCommit();
+							mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, trustee);
+							Logger.normal(this, "New identity received via trust list: " + identity);
+						} catch(MalformedURLException urlEx) {
+							// Logging the exception does NOT log the actual malformed URL so we do it manually.
+							Logger.warning(this, "Received malformed identity URL: " + trusteeURI, urlEx);
+							throw urlEx;
+						}
+					}
+				}
+
+				if(trustee != null)
+					mWoT.setTrustWithoutCommit(identity, trustee, trustValue, trustComment); // Also takes care of SubscriptionManager
+			}
+
+			for(Trust trust : mWoT.getGivenTrustsOfDifferentEdition(identity, identityURI.getEdition())) {
+				mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+			}
+
+			IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
+			if(positiveScore) {
+				for(String id : identitiesWithUpdatedEditionHint)
+					identityFetcher.storeUpdateEditionHintCommandWithoutCommit(id);
+
+				// We do not have to store fetch commands for new identities here, setTrustWithoutCommit does it.
+			}
+		} else if(!xmlData.identityPublishesTrustList && didPublishTrustListPreviously && !(identity instanceof OwnIdentity)) {
+			// If it does not publish a trust list anymore, we delete all trust values it has given.
+			for(Trust trust : mWoT.getGivenTrusts(identity))
+				mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+		}
+	}
+
+	public void exportIntroduction(OwnIdentity identity, OutputStream os) throws TransformerException {
+		final Document xmlDoc = createDocument();
+		
 		// 1.0 does not support all Unicode characters which the String class supports. To prevent us from having to filter all Strings, we use 1.1
 		xmlDoc.setXmlVersion("1.1");
 		
@@ -622,11 +1237,7 @@ public final class XMLTransformer {
 	
 		rootElement.appendChild(introElement);
 
-		DOMSource domSource = new DOMSource(xmlDoc);
-		StreamResult resultStream = new StreamResult(os);
-		synchronized(mSerializer) {  // TODO: Figure out whether the Serializer is maybe synchronized anyway
-			mSerializer.transform(domSource, resultStream);
-		}
+		serialize(xmlDoc, os);
 	}
 
 	/**
@@ -715,10 +1326,7 @@ public final class XMLTransformer {
 	public void exportIntroductionPuzzle(IntroductionPuzzle puzzle, OutputStream os)
 		throws TransformerException, ParserConfigurationException {
 		
-		Document xmlDoc;
-		synchronized(mDocumentBuilder) { // TODO: Figure out whether the DocumentBuilder is maybe synchronized anyway
-			xmlDoc = mDOM.createDocument(null, WebOfTrustInterface.WOT_NAME, null);
-		}
+		final Document xmlDoc = createDocument();
 		
 		// 1.0 does not support all Unicode characters which the String class supports. To prevent us from having to filter all Strings, we use 1.1
 		xmlDoc.setXmlVersion("1.1");
@@ -748,11 +1356,7 @@ public final class XMLTransformer {
 		
 		rootElement.appendChild(puzzleElement);
 
-		DOMSource domSource = new DOMSource(xmlDoc);
-		StreamResult resultStream = new StreamResult(os);
-		synchronized(mSerializer) {
-			mSerializer.transform(domSource, resultStream);
-		}
+		serialize(xmlDoc, os);
 	}
 
 	/**
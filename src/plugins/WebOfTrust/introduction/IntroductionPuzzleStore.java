@@ -1,8 +1,11 @@
 package plugins.WebOfTrust.introduction;
 
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
+import plugins.WebOfTrust.GroupCommit;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.OwnIdentity;
 import plugins.WebOfTrust.Persistent;
@@ -109,19 +112,32 @@ public final class IntroductionPuzzleStore {
 			q.descend("mValidUntilDate").constrain(CurrentTimeUTC.get()).smaller();
 			final ObjectSet<IntroductionPuzzle> result = new Persistent.InitializingObjectSet<IntroductionPuzzle>(mWoT, q);
 			
-			int deleted = 0;
+			long deleted;
 			
-			for(IntroductionPuzzle p : result) {
-				synchronized(Persistent.transactionLock(mDB)) {
-				try {
+			synchronized(Persistent.transactionLock(mDB)) {
+				// A rollback also restores the uncommitted deletions of the other puzzles, but
+				// they are still expired so the next call will delete them.
+				final GroupCommit groupCommit = new GroupCommit(mWoT, this);
+				
+				for(IntroductionPuzzle p : result) {
 					if(logDEBUG) Logger.debug(this, "Deleting expired puzzle, was valid until " + p.getValidUntilDate());
-					p.deleteWithoutCommit();
-					Persistent.checkedCommit(mDB, this);
-					++deleted;					
-				} catch(RuntimeException e) {
-					Persistent.checkedRollback(mDB, this, e);
-				}
+					
+					try {
+						p.deleteWithoutCommit();
+					} catch(RuntimeException e) {
+						groupCommit.discard(); // deleteWithoutCommit() did roll back already
+						continue;
+					}
+					
+					try {
+						groupCommit.operationFinished();
+					} catch(RuntimeException e) {
+						groupCommit.rollback(e);
+					}
 				}
+				
+				groupCommit.commit();
+				deleted = groupCommit.getCommittedOperations();
 			}
 			
 			
@@ -146,26 +162,87 @@ public final class IntroductionPuzzleStore {
 			q.descend("mWasSolved").constrain(false);
 			final ObjectSet<IntroductionPuzzle> result = new Persistent.InitializingObjectSet<IntroductionPuzzle>(mWoT, q);
 			
-			int deleteCount = Math.max(result.size() - puzzlePoolSize, 0);
+			final int deleteCount = Math.max(result.size() - puzzlePoolSize, 0);
 			
 			if(logDEBUG) Logger.debug(this, "Deleting " + deleteCount + " old puzzles, keeping " + puzzlePoolSize);
 			
-			while(deleteCount > 0 && result.hasNext()) {
-				final IntroductionPuzzle puzzle = result.next();
-
-				synchronized(Persistent.transactionLock(mDB)) {
-				try {
-					puzzle.deleteWithoutCommit();
-					Persistent.checkedCommit(mDB, this);
-					deleteCount--;
-				}
-				catch(RuntimeException e) {
-					Persistent.checkedRollback(mDB, this, e);	
-				}
+			synchronized(Persistent.transactionLock(mDB)) {
+				final GroupCommit groupCommit = new GroupCommit(mWoT, this);
+				// The deletions which the groupCommit has not committed yet.
+				final ArrayList<IntroductionPuzzle> pending = new ArrayList<IntroductionPuzzle>();
+				// Including the pending ones.
+				int deleted = 0;
+				
+				// A rollback also restores the pending deletions. They are then deleted one by one
+				// so only the failed puzzle is skipped: Otherwise newer puzzles would be deleted
+				// in place of the older ones.
+				while(deleted < deleteCount && result.hasNext()) {
+					final IntroductionPuzzle puzzle = result.next();
+					
+					try {
+						puzzle.deleteWithoutCommit();
+					}
+					catch(RuntimeException e) {
+						groupCommit.discard(); // deleteWithoutCommit() did roll back already
+						deleted += deletePuzzlesOneByOne(pending) - pending.size();
+						pending.clear();
+						continue;
+					}
+					
+					pending.add(puzzle);
+					++deleted;
+					
+					try {
+						groupCommit.operationFinished();
+					}
+					catch(RuntimeException e) {
+						groupCommit.rollback(e);
+						// The commit failed, not the deletion of the current puzzle, so it is
+						// retried as well.
+						deleted += deletePuzzlesOneByOne(pending) - pending.size();
+						pending.clear();
+						continue;
+					}
+					
+					if(groupCommit.getPendingOperations() == 0)
+						pending.clear();
 				}
+				
+				groupCommit.commit();
 			}
 	}
 	
+	/**
+	 * Deletes the given puzzles and commits after each of them. Skips those whose deletion fails.
+	 * For {@link #deleteOldestUnsolvedPuzzles(int)} to repeat the deletions which a rollback
+	 * restored.<br>
+	 * You have to lock this IntroductionPuzzleStore and the database before calling this function.
+	 * 
+	 * @return The amount of deleted puzzles.
+	 */
+	private int deletePuzzlesOneByOne(final List<IntroductionPuzzle> puzzles) {
+		int deleted = 0;
+		
+		for(IntroductionPuzzle puzzle : puzzles) {
+			try {
+				puzzle.deleteWithoutCommit();
+			}
+			catch(RuntimeException e) {
+				continue; // deleteWithoutCommit() did roll back already
+			}
+			
+			try {
+				Persistent.checkedCommit(mDB, this);
+				++deleted;
+			}
+			catch(RuntimeException e) {
+				Persistent.checkedRollback(mDB, this, e);
+			}
+		}
+		
+		return deleted;
+	}
+	
 	/**
 	 * Called by the WoT before an identity is deleted.
 	 * Deletes all puzzles it has published or solved. Does not commit the transaction.
@@ -15,6 +15,7 @@ import java.util.concurrent.TimeUnit;
 import plugins.WebOfTrust.EventSource;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.OnlineBackup;
 import plugins.WebOfTrust.OwnIdentity;
 import plugins.WebOfTrust.Score;
 import plugins.WebOfTrust.SubscriptionManager;
@@ -32,6 +33,7 @@ import plugins.WebOfTrust.SubscriptionManager.TrustChangedNotification;
 import plugins.WebOfTrust.SubscriptionManager.TrustsSubscription;
 import plugins.WebOfTrust.SubscriptionManager.UnknownSubscriptionException;
 import plugins.WebOfTrust.Trust;
+import plugins.WebOfTrust.TrustSimulation;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NoSuchContextException;
@@ -42,6 +44,7 @@ import plugins.WebOfTrust.exceptions.UnknownPuzzleException;
 import plugins.WebOfTrust.introduction.IntroductionPuzzle;
 import plugins.WebOfTrust.introduction.IntroductionPuzzle.PuzzleType;
 import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ChangeSet;
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.SubscriptionType;
 import plugins.WebOfTrust.util.RandomName;
 import freenet.clients.fcp.FCPPluginConnection;
@@ -155,6 +158,8 @@ public final class FCPInterface
                 result = handleSetTrust(params);
             } else if (message.equals("RemoveTrust")) {
                 result = handleRemoveTrust(params);
+            } else if (message.equals("SimulateTrustChanges")) {
+                result = handleSimulateTrustChanges(params);
             } else if (message.equals("AddIdentity")) {
                 result = handleAddIdentity(params);
             } else if (message.equals("GetIdentity")) {
@@ -201,6 +206,10 @@ public final class FCPInterface
                 result = handlePing();
             } else if (message.equals("RandomName")) {
                 result = handleRandomName(params);
+            } else if (message.equals("StartOnlineBackup")) {
+                result = handleStartOnlineBackup();
+            } else if (message.equals("GetOnlineBackupStatus")) {
+                result = handleGetOnlineBackupStatus();
             } else {
                 throw new Exception("Unknown message (" + message + ")");
             }
@@ -463,6 +472,68 @@ public final class FCPInterface
 		return sfs;
 	}
 
+    /**
+     * Parameters:<br>
+     * Operations.Amount = number of operations<br>
+     * Operations.N.Truster, Operations.N.Trustee = IDs of the truster and trustee of operation N,
+     * starting at 0<br>
+     * Operations.N.Value = new Trust value. If absent, the Trust is removed.<br><br>
+     * 
+     * Reply: Message "TrustSimulation" with the {@link Score}s which would change, in the format of
+     * the "Before" / "After" fields of the "ObjectChangedEvent" as ScoreChanges.N.Before /
+     * ScoreChanges.N.After, plus the IDs of the identities whose fetching would start or stop as
+     * Fetching.Started.N / Fetching.Stopped.N.<br>
+     * Nothing is changed in the database.
+     * 
+     * @see WebOfTrust#simulateTrustChanges(List)
+     */
+    private SimpleFieldSet handleSimulateTrustChanges(final SimpleFieldSet params)
+		throws InvalidParameterException, NumberFormatException, UnknownIdentityException
+	{
+		final int amount = Integer.parseInt(getMandatoryParameter(params, "Operations.Amount"));
+		final ArrayList<TrustSimulation.Operation> operations
+			= new ArrayList<TrustSimulation.Operation>(amount);
+		
+		for(int i = 0; i < amount; ++i) {
+			final String prefix = "Operations." + i + ".";
+			final String trusterID = getMandatoryParameter(params, prefix + "Truster");
+			final String trusteeID = getMandatoryParameter(params, prefix + "Trustee");
+			final String value = params.get(prefix + "Value");
+			
+			operations.add(value != null
+				? TrustSimulation.Operation.setTrust(trusterID, trusteeID, Byte.parseByte(value))
+				: TrustSimulation.Operation.removeTrust(trusterID, trusteeID));
+		}
+		
+		final TrustSimulation simulation = mWoT.simulateTrustChanges(operations);
+		
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "TrustSimulation");
+		
+		int i = 0;
+		for(ChangeSet<Score> change : simulation.getScoreChanges()) {
+			final String prefix = "ScoreChanges." + i + ".";
+			sfs.put(prefix + "Before",
+				handleGetScore(new SimpleFieldSet(true), change.beforeChange, "0"));
+			sfs.put(prefix + "After",
+				handleGetScore(new SimpleFieldSet(true), change.afterChange, "0"));
+			++i;
+		}
+		sfs.put("ScoreChanges.Amount", i);
+		
+		i = 0;
+		for(String identityID : simulation.getIdentitiesToStartFetching())
+			sfs.putOverwrite("Fetching.Started." + i++, identityID);
+		sfs.put("Fetching.Started.Amount", i);
+		
+		i = 0;
+		for(String identityID : simulation.getIdentitiesToStopFetching())
+			sfs.putOverwrite("Fetching.Stopped." + i++, identityID);
+		sfs.put("Fetching.Stopped.Amount", i);
+		
+		return sfs;
+	}
+
     /**
      * NOTICE: The added identity will not be fetched unless you also add a positive {@link Trust} value from an {@link OwnIdentity} to it.
      * (An exception would be if another identity which is being fetched starts trusting the added identity at some point in the future)
@@ -1161,6 +1232,37 @@ public final class FCPInterface
 	    return sfs;
     }
 
+    /**
+     * Starts a backup of the database while WOT keeps running, see
+     * {@link WebOfTrust#startOnlineBackup()}.<br>
+     * Replies with the same message as {@link #handleGetOnlineBackupStatus()}. Use that to poll
+     * the progress.<br>
+     * Fails with errorCode "InternalError" if a backup is running already. */
+    private SimpleFieldSet handleStartOnlineBackup() {
+        mWoT.startOnlineBackup();
+        return handleGetOnlineBackupStatus();
+    }
+
+    /**
+     * Replies with Message=OnlineBackupStatus and:<br>
+     * State = {@link OnlineBackup.State#name()}<br>
+     * File = the absolute path of the backup<br>
+     * BytesCopied, BytesTotal = progress<br>
+     * Error = only present if State=Failed */
+    private SimpleFieldSet handleGetOnlineBackupStatus() {
+        final OnlineBackup.Status status = mWoT.getOnlineBackupStatus();
+
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "OnlineBackupStatus");
+        sfs.putOverwrite("State", status.mState.name());
+        sfs.putOverwrite("File", mWoT.getOnlineBackupFile().getAbsolutePath());
+        sfs.put("BytesCopied", status.mBytesCopied);
+        sfs.put("BytesTotal", status.mBytesTotal);
+        if(status.mError != null)
+            sfs.putOverwrite("Error", status.mError);
+        return sfs;
+    }
+
     private SimpleFieldSet handleRemoveProperty(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String identityID = getMandatoryParameter(params, "Identity");
         final String propertyName = getMandatoryParameter(params, "Property");
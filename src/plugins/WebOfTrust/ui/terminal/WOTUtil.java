@@ -191,6 +191,11 @@ public final class WOTUtil {
 		err.println("    Push ENTER to exit for pause. Resume by restarting with same parameters.");
 		err.println("    Deterministic execution by SEED is not supported with resume.");
 		err.println("WOTUtil -testAndRepair INPUT_DATABASE");
+		err.println("WOTUtil -exportSnapshot INPUT_DATABASE OUTPUT_SNAPSHOT [-withOwnIdentities] [-withScores]");
+		err.println("    Without -withOwnIdentities, the snapshot contains no private keys.");
+		err.println("    -withScores requires -withOwnIdentities.");
+		err.println("WOTUtil -importSnapshot OUTPUT_DATABASE INPUT_SNAPSHOT");
+		err.println("    OUTPUT_DATABASE must not contain any identities, e.g. be a new file.");
 		err.println("WOTUtil -trustValueHistogram INPUT_DATABASE");
 		err.println("WOTUtil -trusteeCountHistogram INPUT_DATABASE");
 	}
@@ -219,6 +224,23 @@ public final class WOTUtil {
 				trustValueHistogram(wot);
 			else if(args[0].equalsIgnoreCase("-trusteeCountHistogram"))
 				trusteeCountHistogram(wot);
+			else if(args[0].equalsIgnoreCase("-exportSnapshot")) {
+				if(args.length < 3 || args.length > 5) {
+					printSyntax();
+					return 1;
+				}
+				List<String> flags = Arrays.asList(args).subList(3, args.length);
+				System.out.println("Exporting snapshot...");
+				System.out.println(wot.exportSnapshot(new File(args[2]),
+					flags.contains("-withOwnIdentities"), flags.contains("-withScores")));
+			} else if(args[0].equalsIgnoreCase("-importSnapshot")) {
+				if(args.length != 3) {
+					printSyntax();
+					return 1;
+				}
+				System.out.println("Importing snapshot...");
+				System.out.println(wot.importSnapshot(new File(args[2])));
+			}
 			else if(args[0].equalsIgnoreCase("-benchmarkRemoveTrustDestructive")) {
 				if(args.length != 4) {
 					printSyntax();
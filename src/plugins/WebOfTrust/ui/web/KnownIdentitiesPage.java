@@ -45,7 +45,9 @@ public class KnownIdentitiesPage extends WebPageImpl {
 	    Edition,
 		Nickname,
 		Score,
-		LocalTrust
+		LocalTrust,
+		LastFetched,
+		ReceivedTrustCount
 	};
 	
 	/**
@@ -235,6 +237,8 @@ public class KnownIdentitiesPage extends WebPageImpl {
 		options.put(SortBy.Nickname.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.Nickname"));
 		options.put(SortBy.Score.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.Score"));
 		options.put(SortBy.LocalTrust.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.LocalTrust"));
+		options.put(SortBy.LastFetched.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.LastFetched"));
+		options.put(SortBy.ReceivedTrustCount.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.ReceivedTrustCount"));
 		for(String e : options.keySet()) {
 			HTMLNode newOption = option.addChild("option", "value", e, options.get(e));
 			if(e.equals(sortBy)) {
@@ -12,15 +12,20 @@ import java.util.Date;
 import java.util.concurrent.TimeUnit;
 
 import plugins.WebOfTrust.Configuration;
+import plugins.WebOfTrust.DatabaseSnapshot;
+import plugins.WebOfTrust.GroupCommit;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.IdentityFileProcessor;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileQueueStatistics;
+import plugins.WebOfTrust.OnlineBackup;
+import plugins.WebOfTrust.RankComputer;
 import plugins.WebOfTrust.SubscriptionManager;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
 import freenet.clients.http.ToadletContext;
 import freenet.support.CurrentTimeUTC;
 import freenet.support.HTMLNode;
+import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
 
@@ -32,6 +37,11 @@ import freenet.support.api.HTTPRequest;
  */
 public class StatisticsPage extends WebPageImpl {
 
+	/**
+	 * Number of ranks which {@link #makeRankComputerBox(boolean)} tells
+	 * {@link WebOfTrust#benchmarkRankComputers(int)} to compute. */
+	private static final int RANK_COMPUTER_BENCHMARK_SAMPLES = 100;
+
 	/**
 	 * Creates a new StatisticsPage.
 	 * 
@@ -48,6 +58,9 @@ public class StatisticsPage extends WebPageImpl {
 		makeIdentityFileQueueBox();
 		makeIdentityFileProcessorBox();
 		makeMaintenanceBox();
+		makeOnlineBackupBox(mayWrite);
+		makeSnapshotBox(mayWrite);
+		makeRankComputerBox(mayWrite);
 	}
 
 	/**
@@ -72,6 +85,13 @@ public class StatisticsPage extends WebPageImpl {
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustRecomputationTime") + mWebOfTrust.getAverageTimeForIncrementalScoreRecomputationDueToTrust()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalDistrustRecomputations") + mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToDistrust()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalDistrustRecomputationTime") + mWebOfTrust.getAverageTimeForIncrementalScoreRecomputationDueToDistrust()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustListImportRecomputations") + mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustListImport()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustListImportRecomputationTime") + mWebOfTrust.getAverageTimeForIncrementalScoreRecomputationDueToTrustListImport()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalRecomputationsInDatabase") + mWebOfTrust.getNumberOfIncrementalScoreRecomputationInDatabase()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.TrustTreeComputations") + mWebOfTrust.getNumberOfTrustTreeComputations()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.TrustTreeComputationTime") + mWebOfTrust.getAverageTimeForTrustTreeComputation()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IdentityCacheHits") + mWebOfTrust.getNumberOfIdentityCacheHits()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IdentityCacheMisses") + mWebOfTrust.getNumberOfIdentityCacheMisses()));
 		IntroductionPuzzleStore puzzleStore = mWebOfTrust.getIntroductionPuzzleStore();
 		synchronized(puzzleStore) {
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.UnsolvedOwnCaptchas") + ": " + puzzleStore.getOwnCatpchaAmount(false)));
@@ -149,6 +169,18 @@ public class StatisticsPage extends WebPageImpl {
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "AverageProcessingTimeSecs")
 			+ stats.getAverageXMLImportTime()));
 		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "AverageParsingTimeSecs")
+			+ stats.getAverageXMLParsingTime()));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "ImportBatches")
+			+ stats.mImportBatches));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "FailedImportBatches")
+			+ stats.mFailedImportBatches));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "UnchangedFiles")
+			+ stats.mUnchangedFiles + " (" + Math.round(stats.getUnchangedFilesRatio() * 100) + "%)"));
+		
 		box.addChild(list);
 	}
 
@@ -160,6 +192,7 @@ public class StatisticsPage extends WebPageImpl {
 		Date now;
 		Date lastDefragDate;
 		Date lastVerificationDate;
+		String verificationCursor;
 		
 		// TODO: Performance: The synchronized() can be removed after this is fixed:
 		// https://bugs.freenetproject.org/view.php?id=6247
@@ -168,6 +201,7 @@ public class StatisticsPage extends WebPageImpl {
 			now = CurrentTimeUTC.get();
 			lastDefragDate = config.getLastDefragDate();
 			lastVerificationDate = config.getLastVerificationOfScoresDate();
+			verificationCursor = config.getScoreVerificationCursor();
 		}
 		
 		String defrag =  l10n().getString(l10nPrefix + "LastDefrag",
@@ -184,8 +218,201 @@ public class StatisticsPage extends WebPageImpl {
 		
 		list.addChild(new HTMLNode("li", defrag));
 		list.addChild(new HTMLNode("li", verification));
+		if(verificationCursor != null) {
+			list.addChild(new HTMLNode("li",
+				l10n().getString(l10nPrefix + "ScoreVerificationInProgress")));
+		}
+		
+		GroupCommit.Statistics groupCommits = mWebOfTrust.getGroupCommitStatistics();
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "GroupCommitsPerHour")
+			+ groupCommits.getAverageCommitsPerHour()));
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "GroupCommitOperations")
+			+ groupCommits.getAverageOperationsPerCommit()));
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "GroupCommitRollbacks")
+			+ groupCommits.mRolledBackOperations));
 		
 		box.addChild(list);
 	}
 
+	/**
+	 * Shows the progress or the result of the {@link OnlineBackup}, and allows the user to start
+	 * one.
+	 */
+	public void makeOnlineBackupBox(final boolean mayWrite) {
+		String l10nPrefix = "StatisticsPage.OnlineBackupBox.";
+		
+		if(mayWrite && mRequest.isPartSet("StartOnlineBackup")) {
+			try {
+				mWebOfTrust.startOnlineBackup();
+			} catch(IllegalStateException e) {
+				new ErrorPage(mToadlet, mRequest, mContext, e).addToPage(this);
+			}
+		}
+		
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		OnlineBackup.Status status = mWebOfTrust.getOnlineBackupStatus();
+		
+		String file = mWebOfTrust.getOnlineBackupFile().getAbsolutePath();
+		String progress = l10n().getString(l10nPrefix + "Progress",
+			new String[] { "percentage", "copied", "total" },
+			new String[] { Integer.toString(status.getPercentage()),
+			               SizeUtil.formatSize(status.mBytesCopied),
+			               SizeUtil.formatSize(status.mBytesTotal) });
+		
+		switch(status.mState) {
+			case NotStarted:
+				box.addChild("p", l10n().getString(l10nPrefix + "NotStarted", "file", file));
+				break;
+			case Running:
+				box.addChild("p", l10n().getString(l10nPrefix + "Running", "file", file));
+				box.addChild("p", progress);
+				break;
+			default:
+				box.addChild("p", l10n().getString(l10nPrefix + status.mState.name(),
+					new String[] { "file", "lastTime" },
+					new String[] { file,
+					               formatTimeDelta(CurrentTimeUTC.getInMillis()
+					                   - status.mEndDate.getTime(), l10n()) }));
+				box.addChild("p", progress);
+				if(status.mError != null)
+					box.addChild("p", status.mError);
+		}
+		
+		if(status.mState != OnlineBackup.State.Running) {
+			HTMLNode form = pr.addFormChild(box, uri.toString(), "StartOnlineBackup");
+			form.addChild("input", new String[] { "type", "name", "value" },
+				new String[] { "submit", "StartOnlineBackup",
+				               l10n().getString(l10nPrefix + "StartButton") });
+		}
+	}
+
+	/**
+	 * Allows the user to export a {@link DatabaseSnapshot} to
+	 * {@link WebOfTrust#getSnapshotFile()}, and to import it from there into an empty database.
+	 */
+	public void makeSnapshotBox(final boolean mayWrite) {
+		String l10nPrefix = "StatisticsPage.SnapshotBox.";
+		String file = mWebOfTrust.getSnapshotFile().getAbsolutePath();
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		
+		try {
+			String result = null;
+			DatabaseSnapshot.Statistics statistics = null;
+			
+			if(mayWrite && mRequest.isPartSet("ExportSnapshot")) {
+				boolean includeOwnIdentities = mRequest.getPartAsStringFailsafe(
+					"IncludeOwnIdentities", 4).equals("true");
+				boolean includeScores = includeOwnIdentities
+					&& mRequest.getPartAsStringFailsafe("IncludeScores", 4).equals("true");
+				
+				statistics = mWebOfTrust.exportSnapshot(mWebOfTrust.getSnapshotFile(),
+					includeOwnIdentities, includeScores);
+				result = "Exported";
+			} else if(mayWrite && mRequest.isPartSet("ImportSnapshot")) {
+				statistics = mWebOfTrust.importSnapshot(mWebOfTrust.getSnapshotFile());
+				result = "Imported";
+			}
+			
+			if(statistics != null) {
+				box.addChild("p", l10n().getString(l10nPrefix + result,
+					new String[] { "file", "identities", "trusts", "scores" },
+					new String[] { file,
+					               Integer.toString(statistics.mIdentities),
+					               Integer.toString(statistics.mTrusts),
+					               Integer.toString(statistics.mScores) }));
+			}
+		} catch(Exception e) {
+			new ErrorPage(mToadlet, mRequest, mContext, e).addToPage(this);
+		}
+		
+		box.addChild("p", l10n().getString(l10nPrefix + "Description", "file", file));
+		
+		HTMLNode exportForm = pr.addFormChild(box, uri.toString(), "ExportSnapshot");
+		HTMLNode p = exportForm.addChild("p");
+		p.addChild("input", new String[] { "type", "name", "value" },
+			new String[] { "checkbox", "IncludeOwnIdentities", "true" });
+		p.addChild("#", " " + l10n().getString(l10nPrefix + "IncludeOwnIdentities"));
+		p = exportForm.addChild("p");
+		p.addChild("input", new String[] { "type", "name", "value" },
+			new String[] { "checkbox", "IncludeScores", "true" });
+		p.addChild("#", " " + l10n().getString(l10nPrefix + "IncludeScores"));
+		exportForm.addChild("input", new String[] { "type", "name", "value" },
+			new String[] { "submit", "ExportSnapshot",
+			               l10n().getString(l10nPrefix + "ExportButton") });
+		
+		HTMLNode importForm = pr.addFormChild(box, uri.toString(), "ImportSnapshot");
+		importForm.addChild("input", new String[] { "type", "name", "value" },
+			new String[] { "submit", "ImportSnapshot",
+			               l10n().getString(l10nPrefix + "ImportButton") });
+	}
+
+	/**
+	 * Shows the {@link RankComputer} which is being used and the results of
+	 * {@link WebOfTrust#benchmarkRankComputers(int)}, and allows the user to run the benchmark and
+	 * choose a different RankComputer.
+	 */
+	public void makeRankComputerBox(final boolean mayWrite) {
+		String l10nPrefix = "StatisticsPage.RankComputerBox.";
+		
+		if(mayWrite && mRequest.isPartSet("BenchmarkRankComputers"))
+			mWebOfTrust.benchmarkRankComputers(RANK_COMPUTER_BENCHMARK_SAMPLES);
+		
+		if(mayWrite && mRequest.isPartSet("SetRankComputer")) {
+			try {
+				mWebOfTrust.setRankComputerType(RankComputer.Type.valueOf(
+					mRequest.getPartAsStringFailsafe("RankComputer", 32)));
+			} catch(IllegalArgumentException e) {
+				new ErrorPage(mToadlet, mRequest, mContext, e).addToPage(this);
+			}
+		}
+		
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		
+		RankComputer.Type current;
+		RankComputer.Benchmark benchmark;
+		synchronized(mWebOfTrust) {
+			current = mWebOfTrust.getRankComputerType();
+			benchmark = mWebOfTrust.getRankComputerBenchmark();
+		}
+		
+		box.addChild("p", l10n().getString(l10nPrefix + "Current", "type", current.name()));
+		
+		if(benchmark == null)
+			box.addChild("p", l10n().getString(l10nPrefix + "NoBenchmark"));
+		else {
+			box.addChild("p", l10n().getString(l10nPrefix + "Benchmark",
+				new String[] { "sampleCount",
+				               "lastTime" },
+				new String[] { Integer.toString(benchmark.mSampleCount),
+				               formatTimeDelta(CurrentTimeUTC.getInMillis()
+				                   - benchmark.getDate().getTime(), l10n()) }));
+			
+			HTMLNode list = new HTMLNode("ul");
+			for(RankComputer.Type type : RankComputer.Type.values()) {
+				list.addChild(new HTMLNode("li", type.name() + ": "
+					+ l10n().getString(l10nPrefix + "AverageSecondsPerRank")
+					+ benchmark.getAverageSecondsPerRank(type)));
+			}
+			box.addChild(list);
+			box.addChild("p", l10n().getString(l10nPrefix + "Fastest", "type",
+				benchmark.getFastest().name()));
+		}
+		
+		HTMLNode benchmarkForm = pr.addFormChild(box, uri.toString(), "BenchmarkRankComputers");
+		benchmarkForm.addChild("input", new String[] { "type", "name", "value" },
+			new String[] { "submit", "BenchmarkRankComputers",
+			               l10n().getString(l10nPrefix + "BenchmarkButton") });
+		
+		HTMLNode selectForm = pr.addFormChild(box, uri.toString(), "SetRankComputer");
+		HTMLNode select = selectForm.addChild("select", "name", "RankComputer");
+		for(RankComputer.Type type : RankComputer.Type.values()) {
+			HTMLNode option = select.addChild("option", "value", type.name(), type.name());
+			if(type == current)
+				option.addAttribute("selected", "selected");
+		}
+		selectForm.addChild("input", new String[] { "type", "name", "value" },
+			new String[] { "submit", "SetRankComputer",
+			               l10n().getString(l10nPrefix + "SetButton") });
+	}
+
 }
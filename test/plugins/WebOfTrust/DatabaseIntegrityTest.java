@@ -0,0 +1,84 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+
+/** Tests {@link WebOfTrust#verifyDatabaseIntegrity()}, which tests and repairs in parallel. */
+public final class DatabaseIntegrityTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	/** Enough objects for more than one chunk per class, so the work is actually partitioned. */
+	@Test public void testVerifyDatabaseIntegrity() throws MalformedURLException,
+			InvalidParameterException {
+
+		final ArrayList<Identity> identities = addRandomIdentities(200);
+		identities.addAll(addRandomOwnIdentities(5));
+		addRandomTrustValues(identities, 3000);
+
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+
+		// Must not have modified anything.
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+	}
+
+	@Test public void testDuplicateTrustIsDeleted() throws MalformedURLException,
+			InvalidParameterException {
+
+		final ArrayList<Identity> identities = addRandomIdentities(20);
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		identities.add(truster);
+		addRandomTrustValues(identities, 100);
+
+		final Identity trustee = identities.get(0);
+		mWebOfTrust.beginTrustListImport();
+		mWebOfTrust.setTrustWithoutCommit(truster, trustee, (byte)100, "");
+		mWebOfTrust.finishTrustListImport();
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+
+		// Bypass setTrustWithoutCommit(), which would update the existing Trust.
+		synchronized(mWebOfTrust) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			new Trust(mWebOfTrust, truster, trustee, (byte)-100, "").storeWithoutCommit();
+			Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+		}
+		}
+		assertEquals(2, countGivenTrusts(truster, trustee));
+
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+		assertEquals(1, countGivenTrusts(truster, trustee));
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+	}
+
+	private int countGivenTrusts(Identity truster, Identity trustee) {
+		int count = 0;
+		synchronized(mWebOfTrust) {
+			for(Trust trust : mWebOfTrust.getGivenTrusts(truster)) {
+				if(trust.getTrustee().getID().equals(trustee.getID()))
+					++count;
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,191 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/** Tests {@link WebOfTrust#exportSnapshot(File, boolean, boolean)} and
+ *  {@link WebOfTrust#importSnapshot(File)}. */
+public final class DatabaseSnapshotTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() throws MalformedURLException, InvalidParameterException {
+		mWebOfTrust = constructEmptyWebOfTrust();
+
+		final ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(3));
+		addRandomTrustValues(identities, 1000);
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testWithOwnIdentitiesAndScores() throws IOException,
+			UnknownIdentityException, NotTrustedException, DuplicateTrustException,
+			NotInTrustTreeException {
+
+		final File file = new File(mTempFolder.newFolder(), "test.snapshot");
+		final DatabaseSnapshot.Statistics exported = mWebOfTrust.exportSnapshot(file, true, true);
+		assertEquals(mWebOfTrust.getAllIdentities().size(), exported.mIdentities);
+		assertEquals(mWebOfTrust.getAllTrusts().size(), exported.mTrusts);
+		assertEquals(mWebOfTrust.getAllScores().size(), exported.mScores);
+
+		final WebOfTrust imported = constructWebOfTrust();
+		try {
+			final DatabaseSnapshot.Statistics result = imported.importSnapshot(file);
+			assertEquals(exported.mIdentities, result.mIdentities);
+			assertEquals(exported.mTrusts, result.mTrusts);
+			assertEquals(exported.mScores, result.mScores);
+
+			assertTrue(imported.verifyDatabaseIntegrity());
+			assertTrue(imported.verifyAndCorrectStoredScores());
+
+			synchronized(mWebOfTrust) {
+			synchronized(imported) {
+				for(Identity identity : mWebOfTrust.getAllIdentities())
+					assertEquals(identity, imported.getIdentityByID(identity.getID()));
+				for(Trust trust : mWebOfTrust.getAllTrusts())
+					assertEquals(trust, imported.getTrust(trust.getID()));
+				for(Score score : mWebOfTrust.getAllScores())
+					assertEquals(score, imported.getScore(score.getID()));
+
+				assertEquals(mWebOfTrust.getAllOwnIdentities().size(),
+					imported.getAllOwnIdentities().size());
+				assertEquals(mWebOfTrust.getAllScores().size(), imported.getAllScores().size());
+			}
+			}
+		} finally {
+			imported.terminate();
+		}
+	}
+
+	@Test public void testWithoutOwnIdentities() throws IOException, UnknownIdentityException,
+			NotTrustedException, DuplicateTrustException {
+
+		final File file = new File(mTempFolder.newFolder(), "test.snapshot");
+		final DatabaseSnapshot.Statistics exported = mWebOfTrust.exportSnapshot(file, false, false);
+		assertEquals(0, exported.mScores);
+
+		final WebOfTrust imported = constructWebOfTrust();
+		try {
+			imported.importSnapshot(file);
+			assertTrue(imported.verifyDatabaseIntegrity());
+			assertTrue(imported.verifyAndCorrectStoredScores());
+
+			synchronized(mWebOfTrust) {
+			synchronized(imported) {
+				// No private keys, and thus no Scores
+				assertEquals(0, imported.getAllOwnIdentities().size());
+				assertEquals(0, imported.getAllScores().size());
+				assertEquals(mWebOfTrust.getAllIdentities().size(),
+					imported.getAllIdentities().size());
+
+				for(OwnIdentity own : mWebOfTrust.getAllOwnIdentities()) {
+					final Identity identity = imported.getIdentityByID(own.getID());
+					assertFalse(identity instanceof OwnIdentity);
+					assertEquals(FetchState.NotFetched, identity.getCurrentEditionFetchState());
+				}
+				for(Trust trust : mWebOfTrust.getAllTrusts())
+					assertEquals(trust.getValue(), imported.getTrust(trust.getID()).getValue());
+			}
+			}
+		} finally {
+			imported.terminate();
+		}
+	}
+
+	@Test public void testDamagedSnapshot() throws IOException {
+		final File file = new File(mTempFolder.newFolder(), "test.snapshot");
+		mWebOfTrust.exportSnapshot(file, true, true);
+
+		// Change the last byte of the checksum.
+		final byte[] data = readUncompressed(file);
+		data[data.length - 1] ^= 1;
+		writeCompressed(file, data);
+		assertImportFails(file);
+
+		// Truncate the file.
+		data[data.length - 1] ^= 1;
+		writeCompressed(file, Arrays.copyOf(data, data.length / 2));
+		assertImportFails(file);
+	}
+
+	private void assertImportFails(File file) throws IOException {
+		final WebOfTrust imported = constructWebOfTrust();
+		try {
+			try {
+				imported.importSnapshot(file);
+				fail("The damaged snapshot must not be imported");
+			} catch(IOException e) {}
+
+			// Nothing must have been stored.
+			assertEquals(0, imported.getAllIdentities().size());
+			assertEquals(0, imported.getAllTrusts().size());
+			assertTrue(imported.verifyDatabaseIntegrity());
+		} finally {
+			imported.terminate();
+		}
+	}
+
+	private static byte[] readUncompressed(File file) throws IOException {
+		final GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) > 0)
+				out.write(buffer, 0, read);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeCompressed(File file, byte[] data) throws IOException {
+		final GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test public void testNonEmptyDatabase() throws IOException {
+		final File file = new File(mTempFolder.newFolder(), "test.snapshot");
+		mWebOfTrust.exportSnapshot(file, true, true);
+
+		try {
+			mWebOfTrust.importSnapshot(file);
+			fail("Import into a database which contains identities must fail");
+		} catch(IllegalStateException e) {}
+	}
+
+	private WebOfTrust constructWebOfTrust() throws IOException {
+		return new WebOfTrust(new File(mTempFolder.newFolder(), "imported.db4o").toString());
+	}
+
+}
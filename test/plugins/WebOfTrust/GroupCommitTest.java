@@ -0,0 +1,68 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests the batching and the statistics of {@link GroupCommit}. */
+public final class GroupCommitTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testMaxOperations() {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			final GroupCommit groupCommit = new GroupCommit(mWebOfTrust, this, 3, 60 * 60 * 1000);
+
+			groupCommit.operationFinished();
+			groupCommit.operationFinished();
+			assertEquals(2, groupCommit.getPendingOperations());
+			assertEquals(0, groupCommit.getCommittedOperations());
+
+			groupCommit.operationFinished();
+			assertEquals(0, groupCommit.getPendingOperations());
+			assertEquals(3, groupCommit.getCommittedOperations());
+
+			groupCommit.operationFinished();
+			groupCommit.rollback(new RuntimeException("Test rollback"));
+			assertEquals(0, groupCommit.getPendingOperations());
+			assertEquals(3, groupCommit.getCommittedOperations());
+
+			groupCommit.operationFinished();
+			groupCommit.commit();
+			groupCommit.commit(); // Must not count a commit if nothing is pending
+			assertEquals(4, groupCommit.getCommittedOperations());
+		}
+
+		final GroupCommit.Statistics stats = mWebOfTrust.getGroupCommitStatistics();
+		assertEquals(4, stats.mCommittedOperations);
+		assertEquals(2, stats.mCommits);
+		assertEquals(1, stats.mRolledBackOperations);
+		assertEquals(2f, stats.getAverageOperationsPerCommit(), 0f);
+	}
+
+	@Test public void testMaxDelay() {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			final GroupCommit groupCommit = new GroupCommit(mWebOfTrust, this, 1000, 0);
+
+			groupCommit.operationFinished();
+			assertEquals(0, groupCommit.getPendingOperations());
+			groupCommit.operationFinished();
+			assertEquals(2, groupCommit.getCommittedOperations());
+		}
+
+		assertEquals(2, mWebOfTrust.getGroupCommitStatistics().mCommits);
+	}
+
+}
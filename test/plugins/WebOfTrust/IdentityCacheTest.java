@@ -0,0 +1,151 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.keys.FreenetURI;
+import freenet.keys.InsertableClientSSK;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Tests whether {@link WebOfTrust#getIdentityByID(String)} and
+ * {@link WebOfTrust#getOwnIdentityByID(String)} return the same results with the
+ * {@link IdentityCache} as the database would.
+ */
+public final class IdentityCacheTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testHits()
+			throws MalformedURLException, InvalidParameterException, UnknownIdentityException {
+
+		final Identity identity = addRandomIdentities(1).get(0);
+		final long hits = mWebOfTrust.getNumberOfIdentityCacheHits();
+		final long misses = mWebOfTrust.getNumberOfIdentityCacheMisses();
+
+		assertSame(identity, mWebOfTrust.getIdentityByID(identity.getID()));
+		assertEquals(misses + 1, mWebOfTrust.getNumberOfIdentityCacheMisses());
+		assertSame(identity, mWebOfTrust.getIdentityByID(identity.getID()));
+		assertEquals(hits + 1, mWebOfTrust.getNumberOfIdentityCacheHits());
+
+		try {
+			mWebOfTrust.getOwnIdentityByID(identity.getID());
+			fail("A non-own Identity should not be returned as OwnIdentity");
+		} catch(UnknownIdentityException e) {}
+
+		try {
+			mWebOfTrust.getIdentityByID("unknown");
+			fail("Identity should not exist");
+		} catch(UnknownIdentityException e) {}
+	}
+
+	@Test public void testConversion()
+			throws MalformedURLException, InvalidParameterException, UnknownIdentityException {
+
+		// OwnIdentity -> Identity
+		final OwnIdentity own = addRandomOwnIdentities(1).get(0);
+		assertSame(own, mWebOfTrust.getOwnIdentityByID(own.getID()));
+		mWebOfTrust.deleteOwnIdentity(own.getID());
+		assertFalse(mWebOfTrust.getIdentityByID(own.getID()) instanceof OwnIdentity);
+		try {
+			mWebOfTrust.getOwnIdentityByID(own.getID());
+			fail("OwnIdentity should have been deleted");
+		} catch(UnknownIdentityException e) {}
+
+		// Identity -> OwnIdentity
+		final InsertableClientSSK keypair = InsertableClientSSK.createRandom(mRandom, "");
+		final FreenetURI requestURI = keypair.getURI();
+		final String id = mWebOfTrust.addIdentity(requestURI.toString()).getID();
+		assertFalse(mWebOfTrust.getIdentityByID(id) instanceof OwnIdentity);
+		mWebOfTrust.restoreOwnIdentity(keypair.getInsertURI());
+		assertTrue(mWebOfTrust.getIdentityByID(id) instanceof OwnIdentity);
+		assertSame(mWebOfTrust.getIdentityByID(id), mWebOfTrust.getOwnIdentityByID(id));
+
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	@Test public void testRollback()
+			throws MalformedURLException, InvalidParameterException, UnknownIdentityException {
+
+		final Identity identity = addRandomIdentities(1).get(0);
+		mWebOfTrust.getIdentityByID(identity.getID());
+		assertEquals(1, mWebOfTrust.getIdentityCache().size());
+
+		final int generation = mWebOfTrust.getIdentityCache().getGeneration();
+		Persistent.checkedRollback(mWebOfTrust.getDatabase(), this,
+			new RuntimeException("Test rollback"), LogLevel.NORMAL);
+		assertEquals(0, mWebOfTrust.getIdentityCache().size());
+
+		// A lookup which started before the rollback must not fill the cache.
+		mWebOfTrust.getIdentityCache().put(identity, generation);
+		assertEquals(0, mWebOfTrust.getIdentityCache().size());
+	}
+
+	/**
+	 * A rollback must revert the {@link Identity} objects which the cache returns, not only
+	 * empty it: db4o only reverts objects which are not referenced anymore.
+	 */
+	@Test public void testRollbackRevertsIdentity()
+			throws MalformedURLException, InvalidParameterException, UnknownIdentityException {
+
+		// Only keep the ID so the test itself does not keep the Identity in memory.
+		final String id = addRandomIdentities(1).get(0).getID();
+		changeEditionWithoutCommit(id);
+		assertEquals(1, mWebOfTrust.getIdentityCache().size());
+
+		Persistent.checkedRollback(mWebOfTrust.getDatabase(), this,
+			new RuntimeException("Test rollback"), LogLevel.NORMAL);
+
+		final Identity identity = mWebOfTrust.getIdentityByID(id);
+		assertEquals(0, identity.getEdition());
+		assertEquals(FetchState.NotFetched, identity.getCurrentEditionFetchState());
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	/** Separate function so the changed {@link Identity} is not referenced by the caller. */
+	private void changeEditionWithoutCommit(String id)
+			throws UnknownIdentityException, InvalidParameterException {
+
+		synchronized(mWebOfTrust) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			final Identity identity = mWebOfTrust.getIdentityByID(id);
+			identity.setEdition(10);
+			identity.onFetched();
+			identity.storeWithoutCommit();
+		}
+		}
+	}
+
+	@Test public void testEviction() throws MalformedURLException, InvalidParameterException {
+		final ArrayList<Identity> identities = addRandomIdentities(3);
+		final IdentityCache cache = new IdentityCache(2);
+
+		for(Identity identity : identities)
+			cache.put(identity, cache.getGeneration());
+
+		assertEquals(2, cache.size());
+		assertNull(cache.get(identities.get(0).getID()));
+		assertSame(identities.get(1), cache.get(identities.get(1).getID()));
+		assertSame(identities.get(2), cache.get(identities.get(2).getID()));
+	}
+
+}
@@ -4,6 +4,8 @@
 package plugins.WebOfTrust;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -24,6 +26,8 @@ import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
+import freenet.keys.FreenetURI;
 import freenet.support.PooledExecutor;
 import freenet.support.PrioritizedTicker;
 
@@ -167,9 +171,11 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 		// TODO: Code quality: Move the Ticker creation to a function. Also search the other unit
 		// tests for similar code to deduplicate then.
 		IdentityFileProcessor proc1 = new IdentityFileProcessor(queue1,
-			new PrioritizedTicker(new PooledExecutor(), 0), wot1.getXMLTransformer());
+			new PrioritizedTicker(new PooledExecutor(), 0), new PooledExecutor(),
+			wot1.getXMLTransformer());
 		IdentityFileProcessor proc2 = new IdentityFileProcessor(queue2,
-			new PrioritizedTicker(new PooledExecutor(), 0), wot2.getXMLTransformer());
+			new PrioritizedTicker(new PooledExecutor(), 0), new PooledExecutor(),
+			wot2.getXMLTransformer());
 		
 		@Ignore final class ConcurrentEnqueuer {
 			public void enqueue(final List<IdentityFileStream> files,
@@ -220,6 +226,48 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 		assertEquals(mWebOfTrust, wot2);
 	}
 
+	/**
+	 * The {@link IdentityFileProcessor} processes multiple files concurrently. Tests whether
+	 * {@link IdentityFileDiskQueue} then holds back files of an {@link Identity} of which a file
+	 * is being processed, while it does return files of other Identitys. */
+	@Test public void testDiskQueueHoldsBackFilesInProcessing() throws IOException {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		final ArrayList<Identity> identities = addRandomIdentities(2);
+		final FreenetURI uri1 = identities.get(0).getRequestURI();
+		final FreenetURI uri2 = identities.get(1).getRequestURI();
+		
+		final IdentityFileQueue queue = new IdentityFileDiskQueue(mTempFolder.newFolder());
+		queue.registerEventHandler(MockDelayedBackgroundJob.DEFAULT);
+		
+		queue.add(new IdentityFileStream(uri1.setSuggestedEdition(1),
+			new ByteArrayInputStream(new byte[] { 1 })));
+		final IdentityFileStream edition1 = queue.poll();
+		assertEquals(1, edition1.mURI.getEdition());
+		
+		// Another edition of the same Identity must wait until the first one is processed
+		queue.add(new IdentityFileStream(uri1.setSuggestedEdition(2),
+			new ByteArrayInputStream(new byte[] { 2 })));
+		assertNull(queue.poll());
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		
+		// Files of other Identitys can be processed concurrently
+		queue.add(new IdentityFileStream(uri2, new ByteArrayInputStream(new byte[] { 3 })));
+		final IdentityFileStream other = queue.poll();
+		assertNotNull(other);
+		assertEquals(uri2, other.mURI);
+		assertEquals(2, queue.getStatistics().mProcessingFiles);
+		
+		edition1.mXMLInputStream.close();
+		final IdentityFileStream edition2 = queue.poll();
+		assertEquals(2, edition2.mURI.getEdition());
+		assertNull(queue.poll());
+		
+		edition2.mXMLInputStream.close();
+		other.mXMLInputStream.close();
+		assertEquals(0, queue.getStatistics().mProcessingFiles);
+		assertEquals(3, queue.getStatistics().mFinishedFiles);
+	}
+
     @Override protected WebOfTrust getWebOfTrust() {
     	return mWebOfTrust;
     }
@@ -0,0 +1,118 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.net.MalformedURLException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.keys.FreenetURI;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Measures the memory which the "GetIdentities" FCP message allocates, and how much of it
+ * {@link Identity#getRequestURI()} would allocate without its cache, i.e. by parsing the
+ * {@link FreenetURI} of each {@link Identity} from its String for every call as it was done
+ * before.<br>
+ * Uses {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}. On JVMs which do
+ * not support it, only the correctness of the cache is tested.
+ */
+public final class IdentityRequestURIBenchmark extends AbstractJUnit4BaseTest {
+
+	/** Roughly the amount of identities in the database of a typical node. */
+	private static final int IDENTITY_COUNT = 12 * 1000;
+
+	/** Amount of measured calls, after one call for warming up. */
+	private static final int ITERATIONS = 5;
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testBenchmark() throws MalformedURLException {
+		addRandomIdentities(IDENTITY_COUNT);
+
+		// Check the cache before measuring so the benchmark does not measure something broken.
+		for(Identity identity : mWebOfTrust.getAllIdentities()) {
+			final FreenetURI uri = identity.getRequestURI();
+			assertSame(uri, identity.getRequestURI());
+			assertEquals(identity.getEdition(), uri.getEdition());
+		}
+
+		final FCPInterface fcp = new FCPInterface(mWebOfTrust);
+		final SimpleFieldSet params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", "GetIdentities");
+
+		final FCPPluginMessage warmUp
+			= fcp.handlePluginFCPMessage(null, FCPPluginMessage.construct(params, null));
+		assertEquals(Integer.toString(IDENTITY_COUNT), warmUp.params.get("Identities.Amount"));
+
+		final com.sun.management.ThreadMXBean threads = getThreadMXBean();
+		if(threads == null) {
+			System.out.println("IdentityRequestURIBenchmark: Allocation measurement not supported"
+				+ " by this JVM.");
+			return;
+		}
+
+		final long threadID = Thread.currentThread().getId();
+
+		long handlerBytes = 0;
+		for(int i = 0; i < ITERATIONS; ++i) {
+			final long before = threads.getThreadAllocatedBytes(threadID);
+			fcp.handlePluginFCPMessage(null, FCPPluginMessage.construct(params, null));
+			handlerBytes += threads.getThreadAllocatedBytes(threadID) - before;
+		}
+
+		// addIdentityFields() calls getRequestURI() once per Identity. Previously, getEdition()
+		// did as well, but it now uses Identity.mEdition. This is what the cache saves.
+		final String[] uris = new String[IDENTITY_COUNT];
+		int i = 0;
+		for(Identity identity : mWebOfTrust.getAllIdentities())
+			uris[i++] = identity.getRequestURI().toString();
+
+		long parseBytes = 0;
+		for(int iteration = 0; iteration < ITERATIONS; ++iteration) {
+			final long before = threads.getThreadAllocatedBytes(threadID);
+			for(String uri : uris)
+				new FreenetURI(uri);
+			parseBytes += threads.getThreadAllocatedBytes(threadID) - before;
+		}
+
+		System.out.println("IdentityRequestURIBenchmark: " + IDENTITY_COUNT + " identities, "
+			+ ITERATIONS + " iterations");
+		System.out.println("    GetIdentities with cache:    " + (handlerBytes / ITERATIONS)
+			+ " bytes per call");
+		System.out.println("    GetIdentities without cache: "
+			+ ((handlerBytes + parseBytes) / ITERATIONS) + " bytes per call");
+		System.out.println("    Saved per Identity:          "
+			+ (parseBytes / ITERATIONS / IDENTITY_COUNT) + " bytes");
+	}
+
+	/** @return The ThreadMXBean if it supports allocation measurement, null otherwise. */
+	private static com.sun.management.ThreadMXBean getThreadMXBean() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean))
+			return null;
+
+		final com.sun.management.ThreadMXBean result = (com.sun.management.ThreadMXBean)bean;
+		if(!result.isThreadAllocatedMemorySupported())
+			return null;
+
+		result.setThreadAllocatedMemoryEnabled(true);
+		return result;
+	}
+
+}
@@ -11,6 +11,7 @@ import org.junit.Ignore;
 import plugins.WebOfTrust.Identity.FetchState;
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 
 import com.db4o.ObjectSet;
@@ -211,6 +212,60 @@ public final class IdentityTest extends AbstractJUnit3BaseTest {
 		assertEquals(identity.getLastChangeDate(), stored.getLastChangeDate());
 	}
 	
+	/**
+	 * Tests whether the best {@link Score} / capacity / should-fetch state which an Identity
+	 * stores is updated when Scores are stored or deleted.
+	 */
+	public void testBestScore() throws MalformedURLException, InvalidParameterException,
+			UnknownIdentityException, NotInTrustTreeException {
+		
+		final OwnIdentity a = mWoT.createOwnIdentity(getRandomSSKPair()[0], "A", true, null);
+		final OwnIdentity b = mWoT.createOwnIdentity(getRandomSSKPair()[0], "B", true, null);
+		final String id = identity.getID();
+		
+		assertEquals(Identity.NO_SCORE, mWoT.getIdentityByID(id).getBestScore());
+		assertFalse(mWoT.shouldFetchIdentity(mWoT.getIdentityByID(id)));
+		assertTrue(mWoT.shouldFetchIdentity(a));
+		assertEquals(Integer.MAX_VALUE, mWoT.getBestScore(a));
+		assertEquals(100, mWoT.getBestCapacity(a));
+		
+		// Distrust of an OwnIdentity: Negative Score and no capacity, so it should not be fetched
+		mWoT.setTrust(a.getID(), id, (byte)-50, "");
+		assertEquals(-50, mWoT.getBestScore(mWoT.getIdentityByID(id)));
+		assertEquals(0, mWoT.getBestCapacity(mWoT.getIdentityByID(id)));
+		assertFalse(mWoT.shouldFetchIdentity(mWoT.getIdentityByID(id)));
+		
+		// A better Score takes precedence
+		mWoT.setTrust(b.getID(), id, (byte)100, "");
+		assertEquals(100, mWoT.getBestScore(mWoT.getIdentityByID(id)));
+		assertEquals(40, mWoT.getBestCapacity(mWoT.getIdentityByID(id)));
+		assertTrue(mWoT.shouldFetchIdentity(mWoT.getIdentityByID(id)));
+		
+		// Deleting the best Score must restore the values of the remaining one.
+		mWoT.removeTrust(b.getID(), id);
+		assertEquals(-50, mWoT.getBestScore(mWoT.getIdentityByID(id)));
+		assertEquals(0, mWoT.getBestCapacity(mWoT.getIdentityByID(id)));
+		assertFalse(mWoT.shouldFetchIdentity(mWoT.getIdentityByID(id)));
+		
+		mWoT.removeTrust(a.getID(), id);
+		try {
+			mWoT.getBestScore(mWoT.getIdentityByID(id));
+			fail("Identity has no Score anymore");
+		} catch(NotInTrustTreeException e) {}
+		assertFalse(mWoT.shouldFetchIdentity(mWoT.getIdentityByID(id)));
+		
+		// The values must survive restarting WoT.
+		mWoT.setTrust(b.getID(), id, (byte)100, "");
+		mWoT.terminate();
+		mWoT = null;
+		flushCaches();
+		mWoT = new WebOfTrust(getDatabaseFilename());
+		assertEquals(100, mWoT.getBestScore(mWoT.getIdentityByID(id)));
+		assertEquals(40, mWoT.getBestCapacity(mWoT.getIdentityByID(id)));
+		assertTrue(mWoT.shouldFetchIdentity(mWoT.getIdentityByID(id)));
+		assertTrue(mWoT.verifyDatabaseIntegrity());
+	}
+	
 	public void testValidateNickname() {
 		try {
             // '@' needs to be disallowed because we use it in Identity.getShortestUniqueNickname()
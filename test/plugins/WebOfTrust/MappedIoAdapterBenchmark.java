@@ -0,0 +1,135 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.util.StopWatch;
+
+/**
+ * Compares the startup time, the time of a full Score recomputation and the throughput of trust
+ * list imports of a database which is accessed with db4o's default file I/O with one which uses
+ * {@link MappedIoAdapter}, as selected by
+ * {@link Configuration#setMappedDatabasePageCacheSize(int)}.<br><br>
+ *
+ * Both measurements use the same database file, so the operating system's file cache affects
+ * them equally. Each is repeated {@link #ITERATIONS} times, alternating the two modes.
+ */
+public final class MappedIoAdapterBenchmark extends AbstractJUnit4BaseTest {
+
+	private static final int IDENTITY_COUNT = 1000;
+
+	private static final int TRUST_COUNT = IDENTITY_COUNT * 20;
+
+	/** Amount of trust lists which each iteration imports. Each is a separate transaction. */
+	private static final int IMPORT_COUNT = 100;
+
+	/** Amount of Trusts per imported trust list. */
+	private static final int IMPORT_TRUST_COUNT = 20;
+
+	private static final int ITERATIONS = 3;
+
+	/** 64 MiB, which is enough to map the whole benchmark database. */
+	private static final int PAGE_CACHE_SIZE = 64;
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testBenchmark()
+			throws IOException, MalformedURLException, InvalidParameterException {
+
+		final File database = new File(mTempFolder.newFolder(), "MappedIoAdapterBenchmark.db4o");
+		mWebOfTrust = new WebOfTrust(database.toString());
+		final ArrayList<Identity> identities = addRandomIdentities(IDENTITY_COUNT);
+		identities.addAll(addRandomOwnIdentities(1));
+		addRandomTrustValues(identities, TRUST_COUNT);
+		mWebOfTrust.terminate();
+
+		final long[][] nanos = new long[2][3];
+		for(int iteration = 0; iteration < ITERATIONS; ++iteration) {
+			for(int mode = 0; mode < 2; ++mode) {
+				setPageCacheSize(database, mode == 0 ? 0 : PAGE_CACHE_SIZE);
+
+				final StopWatch startup = new StopWatch();
+				mWebOfTrust = new WebOfTrust(database.toString());
+				nanos[mode][0] += startup.getNanos();
+
+				final StopWatch recomputation = new StopWatch();
+				assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+				nanos[mode][1] += recomputation.getNanos();
+
+				final ArrayList<Identity> all = new ArrayList<Identity>(IDENTITY_COUNT + 1);
+				for(Identity identity : mWebOfTrust.getAllIdentities())
+					all.add(identity);
+
+				final StopWatch imports = new StopWatch();
+				importRandomTrustLists(all);
+				nanos[mode][2] += imports.getNanos();
+
+				mWebOfTrust.terminate();
+			}
+		}
+
+		System.out.println("MappedIoAdapterBenchmark: " + IDENTITY_COUNT + " identities, "
+			+ TRUST_COUNT + " trusts, " + ITERATIONS + " iterations, database size: "
+			+ database.length() + " bytes");
+		final String[] modes = { "Default I/O:  ", "Memory-mapped:" };
+		for(int mode = 0; mode < 2; ++mode) {
+			final double startupMillis = nanos[mode][0] / ITERATIONS / (1000d * 1000d);
+			final double recomputationMillis = nanos[mode][1] / ITERATIONS / (1000d * 1000d);
+			final double importSeconds = nanos[mode][2] / ITERATIONS / (1000d * 1000d * 1000d);
+
+			System.out.println("    " + modes[mode]
+				+ " startup: " + startupMillis + " ms"
+				+ "; full recomputation: " + recomputationMillis + " ms"
+				+ "; imports: " + (IMPORT_COUNT / importSeconds) + " trust lists/s");
+		}
+	}
+
+	private void setPageCacheSize(File database, int pages) {
+		mWebOfTrust = new WebOfTrust(database.toString());
+		mWebOfTrust.getConfig().setMappedDatabasePageCacheSize(pages);
+		mWebOfTrust.getConfig().storeAndCommit();
+		mWebOfTrust.terminate();
+	}
+
+	/** Same as an import of {@link XMLTransformer} does, except for the parsing. */
+	private void importRandomTrustLists(ArrayList<Identity> identities)
+			throws InvalidParameterException {
+
+		for(int i = 0; i < IMPORT_COUNT; ++i) {
+			final Identity truster = identities.get(mRandom.nextInt(identities.size()));
+
+			mWebOfTrust.beginTrustListImport();
+			for(int j = 0; j < IMPORT_TRUST_COUNT; ++j) {
+				final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(trustee == truster)
+					continue;
+
+				if(mRandom.nextInt(4) == 0) {
+					try {
+						mWebOfTrust.removeTrustWithoutCommit(
+							mWebOfTrust.getTrust(truster, trustee));
+					} catch(NotTrustedException e) {}
+				} else
+					mWebOfTrust.setTrustWithoutCommit(truster, trustee, getRandomTrustValue(), "");
+			}
+			mWebOfTrust.finishTrustListImport();
+			Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+
+import com.db4o.io.IoAdapter;
+
+/**
+ * Tests whether {@link MappedIoAdapter} reads and writes the same data as a
+ * {@link RandomAccessFile}, and whether a {@link WebOfTrust} database can be switched to it.
+ */
+public final class MappedIoAdapterTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testReadWrite() throws IOException {
+		final File mappedFile = mTempFolder.newFile();
+		final File referenceFile = mTempFolder.newFile();
+
+		// Small pages and cache so the accesses cross page boundaries and pages get evicted.
+		final int pageSize = 64;
+		final IoAdapter mapped
+			= new MappedIoAdapter(pageSize, 2).open(mappedFile.toString(), true, 0, false);
+		final RandomAccessFile reference = new RandomAccessFile(referenceFile, "rw");
+
+		try {
+			for(int i = 0; i < 1000; ++i) {
+				final long length = reference.length();
+				assertEquals(length, mapped.getLength());
+
+				// Allow positions beyond the end to test appending.
+				final long position = mRandom.nextInt((int)length + pageSize);
+				final byte[] data = new byte[mRandom.nextInt(3 * pageSize) + 1];
+
+				mapped.seek(position);
+				reference.seek(position);
+
+				if(mRandom.nextBoolean()) {
+					mRandom.nextBytes(data);
+					mapped.write(data, data.length);
+					reference.write(data);
+				} else {
+					final byte[] expected = new byte[data.length];
+					final int expectedAmount = reference.read(expected);
+					assertEquals(expectedAmount, mapped.read(data, data.length));
+					assertArrayEquals(expected, data);
+				}
+
+				if(i % 100 == 0)
+					mapped.sync();
+			}
+		} finally {
+			mapped.close();
+			reference.close();
+		}
+
+		assertEquals(referenceFile.length(), mappedFile.length());
+		assertTrue(Arrays.equals(readFile(referenceFile), readFile(mappedFile)));
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final byte[] result = new byte[(int)raf.length()];
+			raf.readFully(result);
+			return result;
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test public void testDatabase() throws IOException, MalformedURLException,
+			InvalidParameterException {
+
+		final File database = new File(mTempFolder.newFolder(), "MappedIoAdapterTest.db4o");
+		mWebOfTrust = new WebOfTrust(database.toString());
+
+		final ArrayList<Identity> identities = addRandomIdentities(50);
+		identities.addAll(addRandomOwnIdentities(2));
+		addRandomTrustValues(identities, 200);
+		mWebOfTrust.getConfig().setMappedDatabasePageCacheSize(1);
+		mWebOfTrust.getConfig().storeAndCommit();
+		mWebOfTrust.terminate();
+
+		// Reopen with the MappedIoAdapter, modify and reopen with the default adapter.
+		mWebOfTrust = new WebOfTrust(database.toString());
+		assertEquals(1, mWebOfTrust.getConfig().getMappedDatabasePageCacheSize());
+		assertEquals(identities.size(), mWebOfTrust.getAllIdentities().size());
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+
+		final int identityCount = identities.size() + addRandomIdentities(50).size();
+		mWebOfTrust.getConfig().setMappedDatabasePageCacheSize(0);
+		mWebOfTrust.getConfig().storeAndCommit();
+		mWebOfTrust.terminate();
+
+		mWebOfTrust = new WebOfTrust(database.toString());
+		assertEquals(identityCount, mWebOfTrust.getAllIdentities().size());
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		mWebOfTrust.terminate();
+	}
+
+}
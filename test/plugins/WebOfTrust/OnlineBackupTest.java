@@ -0,0 +1,126 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.OnlineBackup.State;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+
+/**
+ * Tests whether {@link OnlineBackup} produces a consistent copy of the database while it is being
+ * modified.
+ */
+public final class OnlineBackupTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testBackup() throws MalformedURLException, InvalidParameterException,
+			InterruptedException {
+
+		final ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(2));
+		addRandomTrustValues(identities, 500);
+
+		// Without concurrent modifications, the backup must equal the database.
+		final WebOfTrust backup = startBackupAndWait();
+		try {
+			assertTrue(backup.verifyDatabaseIntegrity());
+			assertEquals(mWebOfTrust, backup);
+		} finally {
+			backup.terminate();
+		}
+	}
+
+	@Test public void testConcurrentModification() throws MalformedURLException,
+			InvalidParameterException, InterruptedException {
+
+		final ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(2));
+		addRandomTrustValues(identities, 500);
+		final int identitiesBefore = mWebOfTrust.getAllIdentities().size();
+
+		// Slow enough for the database to be modified during the backup: 2 seconds
+		final File file = mWebOfTrust.getOnlineBackupFile();
+		file.delete();
+		mWebOfTrust.getOnlineBackup().start(file,
+			mWebOfTrust.getDatabaseFile().length() / 2 + 1);
+		assertEquals(State.Running, mWebOfTrust.getOnlineBackupStatus().mState);
+		try {
+			mWebOfTrust.startOnlineBackup();
+			fail("Only one backup may run at once");
+		} catch(IllegalStateException e) {}
+
+		while(mWebOfTrust.getOnlineBackupStatus().mState == State.Running) {
+			addRandomIdentities(1);
+			addRandomTrust();
+		}
+		final int identitiesAfter = mWebOfTrust.getAllIdentities().size();
+		assertEquals(State.Succeeded, mWebOfTrust.getOnlineBackupStatus().mState);
+
+		final WebOfTrust backup = openBackup();
+		try {
+			assertTrue(backup.verifyDatabaseIntegrity());
+			assertTrue(backup.verifyAndCorrectStoredScores());
+			final int identitiesInBackup = backup.getAllIdentities().size();
+			assertTrue(identitiesInBackup >= identitiesBefore);
+			assertTrue(identitiesInBackup <= identitiesAfter);
+		} finally {
+			backup.terminate();
+		}
+	}
+
+	/** Adds a Trust, which does a transaction including Score computation. */
+	private void addRandomTrust() throws InvalidParameterException {
+		final ArrayList<Identity> identities = new ArrayList<Identity>();
+		for(Identity identity : mWebOfTrust.getAllIdentities())
+			identities.add(identity);
+
+		final Identity truster = identities.get(mRandom.nextInt(identities.size()));
+		final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+		if(truster == trustee)
+			return;
+
+		mWebOfTrust.beginTrustListImport();
+		mWebOfTrust.setTrustWithoutCommit(truster, trustee, getRandomTrustValue(), "");
+		mWebOfTrust.finishTrustListImport();
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+	}
+
+	private WebOfTrust startBackupAndWait() throws InterruptedException {
+		mWebOfTrust.getOnlineBackupFile().delete();
+		mWebOfTrust.startOnlineBackup();
+
+		while(mWebOfTrust.getOnlineBackupStatus().mState == State.Running)
+			Thread.sleep(10);
+
+		final OnlineBackup.Status status = mWebOfTrust.getOnlineBackupStatus();
+		assertEquals(status.mError, State.Succeeded, status.mState);
+		assertEquals(100, status.getPercentage());
+		return openBackup();
+	}
+
+	private WebOfTrust openBackup() {
+		final File file = mWebOfTrust.getOnlineBackupFile();
+		assertTrue(file.exists());
+		assertFalse(new File(file.getPath() + ".temp").exists());
+		return new WebOfTrust(file.getAbsolutePath());
+	}
+
+}
@@ -0,0 +1,104 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+
+/**
+ * Compares the size and the encoding / decoding time of {@link Persistent#serialize()}, which
+ * uses {@link PersistentCodec}, against the Java serialization of
+ * {@link Persistent#serializeWithObjectOutputStream()}, which was used before.<br>
+ * Not run by the build, see {@link PersistentCodecTest} for the correctness of both formats.
+ */
+public final class PersistentCodecBenchmark extends AbstractJUnit4BaseTest {
+
+	/** Each object is encoded and decoded this many times in each format. */
+	private static final int ITERATIONS = 10;
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testBenchmark() throws MalformedURLException, InvalidParameterException {
+		final ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(5));
+		addRandomTrustValues(identities, 1000);
+
+		final ArrayList<Persistent> identityObjects = new ArrayList<Persistent>();
+		for(Identity identity : mWebOfTrust.getAllIdentities())
+			identityObjects.add(identity);
+		benchmark("Identity", identityObjects);
+
+		benchmark("Trust", new ArrayList<Persistent>(mWebOfTrust.getAllTrusts()));
+		benchmark("Score", new ArrayList<Persistent>(mWebOfTrust.getAllScores()));
+	}
+
+	private void benchmark(final String name, final ArrayList<Persistent> objects) {
+		assertTrue(objects.size() > 0);
+
+		long javaBytes = 0;
+		long codecBytes = 0;
+		long javaEncodeNanos = 0;
+		long javaDecodeNanos = 0;
+		long codecEncodeNanos = 0;
+		long codecDecodeNanos = 0;
+
+		for(Persistent object : objects) {
+			byte[] javaSerialized = null;
+			byte[] codecSerialized = null;
+
+			for(int i = 0; i < ITERATIONS; ++i) {
+				long start = System.nanoTime();
+				javaSerialized = object.serializeWithObjectOutputStream();
+				javaEncodeNanos += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				codecSerialized = object.serialize();
+				codecEncodeNanos += System.nanoTime() - start;
+			}
+
+			javaBytes += javaSerialized.length;
+			codecBytes += codecSerialized.length;
+
+			for(int i = 0; i < ITERATIONS; ++i) {
+				long start = System.nanoTime();
+				Persistent.deserialize(mWebOfTrust, javaSerialized);
+				javaDecodeNanos += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				Persistent.deserialize(mWebOfTrust, codecSerialized);
+				codecDecodeNanos += System.nanoTime() - start;
+			}
+		}
+
+		final long count = (long)objects.size() * ITERATIONS;
+		System.out.println(name + ": " + objects.size() + " objects, " + ITERATIONS
+			+ " iterations each");
+		System.out.println("    Java serialization: "
+			+ (javaBytes / objects.size()) + " bytes; "
+			+ (javaEncodeNanos / count) + " ns to encode; "
+			+ (javaDecodeNanos / count) + " ns to decode");
+		System.out.println("    PersistentCodec:    "
+			+ (codecBytes / objects.size()) + " bytes; "
+			+ (codecEncodeNanos / count) + " ns to encode; "
+			+ (codecDecodeNanos / count) + " ns to decode");
+
+		assertTrue(codecBytes < javaBytes);
+	}
+
+}
@@ -0,0 +1,94 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+
+/**
+ * Tests whether {@link Persistent#deserialize(WebOfTrustInterface, byte[])} reads both the
+ * {@link PersistentCodec} format of {@link Persistent#serialize()} and the Java serialization of
+ * {@link Persistent#serializeWithObjectOutputStream()}: Byte arrays which were stored in the old
+ * format must stay readable.
+ */
+public final class PersistentCodecTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testCodecFormat() throws MalformedURLException, InvalidParameterException {
+		for(Persistent object : getObjects()) {
+			final byte[] serialized = object.serialize();
+			assertEquals(PersistentCodec.MAGIC, serialized[0]);
+
+			final Persistent deserialized = Persistent.deserialize(mWebOfTrust, serialized);
+			assertNotSame(object, deserialized);
+			assertEquals(object, deserialized);
+			assertEquals(object.getCreationDate(), deserialized.getCreationDate());
+			// Encoding the decoded object must yield the same bytes, i.e. no field was lost.
+			assertArrayEquals(serialized, deserialized.serialize());
+		}
+	}
+
+	@Test public void testLegacyFormat() throws MalformedURLException, InvalidParameterException {
+		for(Persistent object : getObjects()) {
+			final byte[] serialized = object.serializeWithObjectOutputStream();
+			assertEquals(PersistentCodec.JAVA_SERIALIZATION_MAGIC, serialized[0]);
+
+			final Persistent deserialized = Persistent.deserialize(mWebOfTrust, serialized);
+			assertNotSame(object, deserialized);
+			assertEquals(object, deserialized);
+			assertEquals(object.getCreationDate(), deserialized.getCreationDate());
+			// Converting an old byte array to the new format must not lose anything either.
+			assertArrayEquals(object.serialize(), deserialized.serialize());
+		}
+	}
+
+	/** Stored byte arrays of both formats exist side by side after an upgrade. */
+	@Test public void testMixedFormats() throws MalformedURLException, InvalidParameterException {
+		final ArrayList<Persistent> objects = getObjects();
+		final ArrayList<byte[]> serialized = new ArrayList<byte[]>(objects.size());
+		for(int i = 0; i < objects.size(); ++i) {
+			serialized.add(i % 2 == 0 ? objects.get(i).serialize()
+				: objects.get(i).serializeWithObjectOutputStream());
+		}
+
+		for(int i = 0; i < objects.size(); ++i)
+			assertEquals(objects.get(i), Persistent.deserialize(mWebOfTrust, serialized.get(i)));
+	}
+
+	/** @return Identitys, OwnIdentitys, Trusts and Scores. */
+	private ArrayList<Persistent> getObjects()
+			throws MalformedURLException, InvalidParameterException {
+
+		final ArrayList<Identity> identities = addRandomIdentities(10);
+		identities.addAll(addRandomOwnIdentities(2));
+		addRandomTrustValues(identities, 40);
+
+		final ArrayList<Persistent> objects = new ArrayList<Persistent>();
+		for(Identity identity : mWebOfTrust.getAllIdentities())
+			objects.add(identity);
+		objects.addAll(mWebOfTrust.getAllTrusts());
+		objects.addAll(mWebOfTrust.getAllScores());
+
+		assertTrue(mWebOfTrust.getAllTrusts().size() > 0);
+		assertTrue(mWebOfTrust.getAllScores().size() > 0);
+		return objects;
+	}
+
+}
@@ -14,8 +14,11 @@ import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.util.StopWatch;
 import freenet.support.TimeUtil;
 
@@ -25,6 +28,7 @@ import freenet.support.TimeUtil;
  * - {@link WebOfTrust#computeRankFromScratch(OwnIdentity, Identity)}
  * - {@link WebOfTrust#computeRankFromScratch_Forward(OwnIdentity, Identity)}
  * - {@link WebOfTrust#computeAllScoresWithoutCommit()}
+ * Also tests them through the {@link RankComputer} interface.
  * 
  * For the caching function, tests whether the cache it produces is correct.
  * Notice: For using this to debug wrong cache entries, you might have to comment out the assert
@@ -153,6 +157,54 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 			+ TimeUtil.formatTime(time_rank_computeRankFromScratch_Forward, 3, true));
 	}
 
+	/**
+	 * Tests whether each {@link RankComputer.Type} yields the same ranks as the stored
+	 * {@link Score}s, whether {@link WebOfTrust#benchmarkRankComputers(int)} works and whether the
+	 * incremental Score computation is correct with each Type chosen by
+	 * {@link WebOfTrust#setRankComputerType(RankComputer.Type)}. */
+	@Test public void testRankComputer()
+			throws MalformedURLException, InvalidParameterException, DuplicateTrustException,
+			NotTrustedException, UnknownIdentityException {
+
+		ArrayList<OwnIdentity> ownIdentitys = addRandomOwnIdentities(3);
+		ArrayList<Identity> identitys = addRandomIdentities(100);
+		identitys.addAll(ownIdentitys);
+		addRandomTrustValues(identitys, 1000);
+		
+		for(RankComputer.Type type : RankComputer.Type.values()) {
+			RankComputer rankComputer = type.construct(mWebOfTrust);
+			
+			for(OwnIdentity source : ownIdentitys) {
+				for(Identity target : identitys) {
+					int expectedRank;
+					try {
+						expectedRank = mWebOfTrust.getScore(source, target).getRank();
+					} catch(NotInTrustTreeException e) {
+						expectedRank = -1;
+					}
+					
+					assertEquals(type.name(), expectedRank,
+						rankComputer.computeRank(source, target));
+				}
+			}
+		}
+		
+		RankComputer.Benchmark benchmark = mWebOfTrust.benchmarkRankComputers(100);
+		assertSame(benchmark, mWebOfTrust.getRankComputerBenchmark());
+		assertEquals(100, benchmark.mSampleCount);
+		assertNotNull(benchmark.getFastest());
+		
+		assertEquals(RankComputer.Type.DEFAULT, mWebOfTrust.getRankComputerType());
+		for(RankComputer.Type type : RankComputer.Type.values()) {
+			mWebOfTrust.setRankComputerType(type);
+			assertEquals(type, mWebOfTrust.getRankComputerType());
+			
+			doRandomChangesToWOT(100);
+			// Returns false if it had to correct any Score
+			assertTrue(type.name(), mWebOfTrust.computeAllScoresWithoutCommit());
+		}
+	}
+
 	@Override protected WebOfTrust getWebOfTrust() {
 		return mWebOfTrust;
 	}
@@ -0,0 +1,94 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/**
+ * Tests whether the bounded-memory mode of
+ * {@link WebOfTrust#updateScoresAfterDistrustWithoutCommit(java.util.Collection)}, which is used
+ * if the working set exceeds {@link Configuration#getScoreComputationWorkingSetLimit()}, yields
+ * the same results as {@link WebOfTrust#computeAllScoresWithoutCommit()}.
+ */
+public final class ScoreComputationWorkingSetTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testWorkingSetLimit()
+			throws MalformedURLException, InvalidParameterException, DuplicateTrustException,
+			NotTrustedException, UnknownIdentityException {
+
+		assertEquals(Configuration.DEFAULT_SCORE_COMPUTATION_WORKING_SET_LIMIT,
+			mWebOfTrust.getScoreComputationWorkingSetLimit());
+
+		ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(3));
+		addRandomTrustValues(identities, 500);
+
+		for(int limit : new int[] { 0, 1, 10, 100 }) {
+			mWebOfTrust.setScoreComputationWorkingSetLimit(limit);
+			assertEquals(limit, mWebOfTrust.getScoreComputationWorkingSetLimit());
+
+			final int count = mWebOfTrust.getNumberOfIncrementalScoreRecomputationInDatabase();
+			doRandomChangesToWOT(200);
+			if(limit == 0)
+				assertTrue(mWebOfTrust.getNumberOfIncrementalScoreRecomputationInDatabase() > count);
+
+			// Returns false if it had to correct any Score
+			assertTrue(mWebOfTrust.computeAllScoresWithoutCommit());
+			// Fails if the markers of the bounded-memory mode were not removed.
+			assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+		}
+	}
+
+	/** Tests the bounded-memory mode with the batch update of {@link Score}s after a trust list
+	 *  import, which has many changed trustees. */
+	@Test public void testWorkingSetLimitWithTrustListImport()
+			throws MalformedURLException, InvalidParameterException {
+
+		ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(3));
+		addRandomTrustValues(identities, 500);
+		mWebOfTrust.setScoreComputationWorkingSetLimit(5);
+
+		for(int iteration = 0; iteration < 10; ++iteration) {
+			Identity truster;
+			do {
+				truster = identities.get(mRandom.nextInt(identities.size()));
+			} while(truster instanceof OwnIdentity);
+
+			mWebOfTrust.beginTrustListImport();
+			for(int i = 0; i < 20; ++i) {
+				Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(trustee != truster)
+					mWebOfTrust.setTrustWithoutCommit(truster, trustee, getRandomTrustValue(), "");
+			}
+			mWebOfTrust.finishTrustListImport();
+			Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+
+			assertTrue(mWebOfTrust.computeAllScoresWithoutCommit());
+			assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+
+/**
+ * Tests whether the background verification of {@link Score}s by
+ * {@link WebOfTrust#verifyAndCorrectStoredScoresOfNextTreeOwner()} corrects the same Scores as
+ * {@link WebOfTrust#verifyAndCorrectStoredScores()} would, and whether it resumes at the position
+ * of {@link Configuration#getScoreVerificationCursor()}.
+ */
+public final class ScoreVerificationTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testVerification() throws MalformedURLException, InvalidParameterException {
+		ArrayList<Identity> identities = addRandomIdentities(100);
+		ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(5);
+		identities.addAll(ownIdentities);
+		addRandomTrustValues(identities, 500);
+
+		final Configuration config = mWebOfTrust.getConfig();
+		assertNull(config.getScoreVerificationCursor());
+		// Not started, so there is nothing to do
+		assertFalse(mWebOfTrust.verifyAndCorrectStoredScoresOfNextTreeOwner());
+
+		corruptRandomScores(10);
+
+		final Date lastVerification = config.getLastVerificationOfScoresDate();
+		config.setScoreVerificationCursor("");
+		config.storeAndCommit();
+
+		int steps = 0;
+		while(mWebOfTrust.verifyAndCorrectStoredScoresOfNextTreeOwner())
+			++steps;
+
+		assertEquals(ownIdentities.size(), steps);
+		assertNull(config.getScoreVerificationCursor());
+		assertFalse(lastVerification.after(config.getLastVerificationOfScoresDate()));
+		// Returns false if it had to correct any Score
+		assertTrue(mWebOfTrust.computeAllScoresWithoutCommit());
+	}
+
+	@Test public void testResume() throws MalformedURLException, InvalidParameterException {
+		ArrayList<Identity> identities = addRandomIdentities(100);
+		ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(5);
+		identities.addAll(ownIdentities);
+		addRandomTrustValues(identities, 500);
+
+		final ArrayList<String> ownIdentityIDs = new ArrayList<String>();
+		for(OwnIdentity ownIdentity : ownIdentities)
+			ownIdentityIDs.add(ownIdentity.getID());
+		Collections.sort(ownIdentityIDs);
+
+		// Pretend that the first two trees were verified before a restart.
+		final Configuration config = mWebOfTrust.getConfig();
+		config.setScoreVerificationCursor(ownIdentityIDs.get(1));
+		config.storeAndCommit();
+
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScoresOfNextTreeOwner());
+		assertEquals(ownIdentityIDs.get(2), config.getScoreVerificationCursor());
+
+		int steps = 1;
+		while(mWebOfTrust.verifyAndCorrectStoredScoresOfNextTreeOwner())
+			++steps;
+
+		assertEquals(ownIdentities.size() - 2, steps);
+		assertNull(config.getScoreVerificationCursor());
+	}
+
+	private void corruptRandomScores(int count) {
+		final ArrayList<Score> scores = new ArrayList<Score>(mWebOfTrust.getAllScores());
+		for(int i = 0; i < count; ++i) {
+			final Score score = scores.get(mRandom.nextInt(scores.size()));
+			if(score.getTruster() == score.getTrustee()) { // Value is Integer.MAX_VALUE
+				--i;
+				continue;
+			}
+			score.setValue(score.getScore() + 1 + mRandom.nextInt(100));
+			score.storeWithoutCommit();
+		}
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+	}
+
+}
@@ -0,0 +1,164 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Tests whether the {@link TrustAndScoreIndex} of {@link WebOfTrust#getTrustAndScoreIndex()}
+ * stays equal to the {@link Trust} and {@link Score} objects in the database.
+ */
+public final class TrustAndScoreIndexTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testIndexMirrorsDatabase()
+			throws MalformedURLException, InvalidParameterException, DuplicateTrustException,
+			NotTrustedException, UnknownIdentityException, NotInTrustTreeException {
+
+		ArrayList<Identity> identities = addRandomIdentities(50);
+		identities.addAll(addRandomOwnIdentities(3));
+		// Construct the index before the changes so they have to be applied incrementally
+		mWebOfTrust.getTrustAndScoreIndex();
+		addRandomTrustValues(identities, 500);
+		assertTrue(mWebOfTrust.getTrustAndScoreIndex().verify(mWebOfTrust));
+
+		doRandomChangesToWOT(500);
+		assertTrue(mWebOfTrust.getTrustAndScoreIndex().verify(mWebOfTrust));
+		assertEquals(mWebOfTrust.getAllTrusts().size(),
+			mWebOfTrust.getTrustAndScoreIndex().getTrustCount());
+		assertEquals(mWebOfTrust.getAllScores().size(),
+			mWebOfTrust.getTrustAndScoreIndex().getScoreCount());
+
+		// Lookups must return the stored objects
+		for(Trust trust : mWebOfTrust.getAllTrusts())
+			assertSame(trust, mWebOfTrust.getTrust(trust.getID()));
+		for(Score score : mWebOfTrust.getAllScores())
+			assertSame(score, mWebOfTrust.getScore(score.getID()));
+
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	@Test public void testRollback()
+			throws MalformedURLException, InvalidParameterException, DuplicateTrustException {
+
+		ArrayList<Identity> identities = addRandomIdentities(2);
+		Identity truster = identities.get(0);
+		Identity trustee = identities.get(1);
+		mWebOfTrust.getTrustAndScoreIndex();
+
+		mWebOfTrust.setTrustWithoutCommit(truster, trustee, (byte)100, "");
+		assertNotNull(mWebOfTrust.getTrustAndScoreIndex().getTrust(
+			new Trust.TrustID(truster, trustee).toString()));
+		Persistent.checkedRollback(mWebOfTrust.getDatabase(), this,
+			new RuntimeException("Test rollback"), LogLevel.NORMAL);
+
+		assertEquals(0, mWebOfTrust.getAllTrusts().size());
+		assertTrue(mWebOfTrust.getTrustAndScoreIndex().verify(mWebOfTrust));
+		try {
+			mWebOfTrust.getTrust(truster, trustee);
+			fail("Trust should not exist after rollback");
+		} catch(NotTrustedException e) {}
+	}
+
+	/**
+	 * A rollback must revert the {@link Trust} and {@link Score} objects which the index returns,
+	 * not only its keys: db4o only reverts objects which are not referenced anymore.
+	 */
+	@Test public void testRollbackRevertsObjects()
+			throws MalformedURLException, InvalidParameterException, UnknownIdentityException,
+			NotTrustedException, DuplicateTrustException, NotInTrustTreeException {
+
+		// Only keep the IDs so the test itself does not keep any of the objects in memory.
+		final String trusterID = addRandomOwnIdentities(1).get(0).getID();
+		final String trusteeID = addRandomIdentities(1).get(0).getID();
+		mWebOfTrust.setTrust(trusterID, trusteeID, (byte)100, "");
+		final String trustID = new Trust.TrustID(trusterID, trusteeID).toString();
+		final String scoreID = new Score.ScoreID(trusterID, trusteeID).toString();
+		final int score = mWebOfTrust.getScore(scoreID).getScore();
+
+		changeTrustWithoutCommit(trusterID, trusteeID);
+		assertEquals(-100, mWebOfTrust.getTrust(trustID).getValue());
+		Persistent.checkedRollback(mWebOfTrust.getDatabase(), this,
+			new RuntimeException("Test rollback"), LogLevel.NORMAL);
+
+		assertEquals(100, mWebOfTrust.getTrust(trustID).getValue());
+		assertEquals(score, mWebOfTrust.getScore(scoreID).getScore());
+		assertTrue(mWebOfTrust.getTrustAndScoreIndex().verify(mWebOfTrust));
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+	}
+
+	/** Separate function so the changed objects are not referenced by the caller. */
+	private void changeTrustWithoutCommit(String trusterID, String trusteeID)
+			throws UnknownIdentityException, InvalidParameterException, DuplicateTrustException {
+
+		mWebOfTrust.setTrustWithoutCommit(mWebOfTrust.getOwnIdentityByID(trusterID),
+			mWebOfTrust.getIdentityByID(trusteeID), (byte)-100, "");
+	}
+
+	/** Lookups of an ID of which multiple objects are stored must fail, as the query did. */
+	@Test public void testDuplicateTrust() throws MalformedURLException,
+			InvalidParameterException, NotTrustedException {
+
+		final ArrayList<Identity> identities = addRandomIdentities(2);
+		final Identity truster = identities.get(0);
+		final Identity trustee = identities.get(1);
+		final String trustID = new Trust.TrustID(truster, trustee).toString();
+		mWebOfTrust.setTrust(truster, trustee, (byte)100, "");
+		mWebOfTrust.getTrustAndScoreIndex();
+
+		final Trust duplicate = new Trust(mWebOfTrust, truster, trustee, (byte)50, "");
+		duplicate.storeWithoutCommit();
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+
+		try {
+			mWebOfTrust.getTrust(trustID);
+			fail("Duplicate Trust should not be returned");
+		} catch(DuplicateTrustException e) {}
+
+		// Same when loading the index from the database. Nothing is left to roll back, the
+		// rollback only invalidates the index.
+		assertFalse(mWebOfTrust.getTrustAndScoreIndex().verify(mWebOfTrust));
+		Persistent.checkedRollback(mWebOfTrust.getDatabase(), this,
+			new RuntimeException("Test rollback"), LogLevel.NORMAL);
+		assertNull(mWebOfTrust.getTrustAndScoreIndexIfLoaded());
+		try {
+			mWebOfTrust.getTrust(trustID);
+			fail("Duplicate Trust should not be returned");
+		} catch(DuplicateTrustException e) {}
+	}
+
+	@Test public void testNotInTrustTree()
+			throws MalformedURLException, InvalidParameterException {
+
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		final Identity trustee = addRandomIdentities(1).get(0);
+		try {
+			mWebOfTrust.getScore(truster, trustee);
+			fail("Score should not exist");
+		} catch(NotInTrustTreeException e) {}
+	}
+
+}
@@ -0,0 +1,191 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.Trust.TrustID;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.support.Logger.LogLevel;
+import freenet.support.PooledExecutor;
+
+/**
+ * Tests whether the in-memory {@link TrustGraph} of {@link WebOfTrust#getTrustGraph()} stays
+ * equal to the {@link Trust} objects in the database, and whether
+ * {@link TrustGraph.Snapshot#computeScoreTable(int, int)} yields the same results as the
+ * {@link Score} objects which are stored in the database.
+ */
+public final class TrustGraphTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testGraphMirrorsDatabase()
+			throws MalformedURLException, InvalidParameterException, DuplicateTrustException,
+			NotTrustedException, UnknownIdentityException {
+
+		ArrayList<Identity> identities = addRandomIdentities(50);
+		identities.addAll(addRandomOwnIdentities(3));
+		// Construct the graph before the changes so they have to be applied incrementally
+		mWebOfTrust.getTrustGraph();
+		addRandomTrustValues(identities, 500);
+		assertGraphEqualsDatabase(mWebOfTrust.getTrustGraph());
+
+		doRandomChangesToWOT(500);
+		assertGraphEqualsDatabase(mWebOfTrust.getTrustGraph());
+
+		// The lazily constructed graph must be equal to the incrementally updated one.
+		assertGraphEqualsDatabase(TrustGraph.constructFromDatabase(mWebOfTrust));
+	}
+
+	@Test public void testRollback() throws MalformedURLException, InvalidParameterException {
+		ArrayList<Identity> identities = addRandomIdentities(2);
+		Identity truster = identities.get(0);
+		Identity trustee = identities.get(1);
+		mWebOfTrust.getTrustGraph();
+
+		mWebOfTrust.setTrustWithoutCommit(truster, trustee, (byte)100, "");
+		TrustGraph graph = mWebOfTrust.getTrustGraph();
+		assertEquals(100, graph.getTrustValue(
+			graph.getIndex(truster.getID()), graph.getIndex(trustee.getID())));
+		Persistent.checkedRollback(mWebOfTrust.getDatabase(), this,
+			new RuntimeException("Test rollback"), LogLevel.NORMAL);
+
+		assertEquals(0, mWebOfTrust.getAllTrusts().size());
+		assertGraphEqualsDatabase(mWebOfTrust.getTrustGraph());
+	}
+
+	@Test public void testComputeScoreTable()
+			throws MalformedURLException, InvalidParameterException, NotInTrustTreeException {
+
+		ArrayList<Identity> identities = addRandomIdentities(100);
+		ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(3);
+		identities.addAll(ownIdentities);
+		addRandomTrustValues(identities, 1000);
+
+		TrustGraph graph = mWebOfTrust.getTrustGraph();
+		for(OwnIdentity treeOwner : ownIdentities)
+			graph.getOrCreateIndex(treeOwner.getID());
+		TrustGraph.Snapshot snapshot = graph.snapshot();
+
+		for(OwnIdentity treeOwner : ownIdentities) {
+			TrustGraph.ScoreTable table
+				= snapshot.computeScoreTable(snapshot.getIndex(treeOwner.getID()), 0);
+
+			int scoreCount = 0;
+			for(int i = 0; i < snapshot.vertexCount; ++i) {
+				if(table.rank[i] == TrustGraph.NO_RANK)
+					continue;
+
+				Score score = mWebOfTrust.getScore(
+					new Score.ScoreID(treeOwner.getID(), snapshot.getID(i)).toString());
+				assertEquals(score.getRank(), table.rank[i]);
+				assertEquals(score.getCapacity(), table.capacity[i]);
+				assertEquals(score.getScore(), table.value[i]);
+				++scoreCount;
+			}
+
+			assertEquals(mWebOfTrust.getGivenScores(treeOwner).size(), scoreCount);
+		}
+	}
+
+	@Test public void testComputeScoreTablesInParallel()
+			throws MalformedURLException, InvalidParameterException {
+
+		ArrayList<Identity> identities = addRandomIdentities(100);
+		ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(10);
+		identities.addAll(ownIdentities);
+		addRandomTrustValues(identities, 1000);
+
+		TrustGraph graph = mWebOfTrust.getTrustGraph();
+		int[] treeOwners = new int[ownIdentities.size()];
+		int[] treeOwnerRanks = new int[ownIdentities.size()];
+		for(int i = 0; i < treeOwners.length; ++i)
+			treeOwners[i] = graph.getOrCreateIndex(ownIdentities.get(i).getID());
+		TrustGraph.Snapshot snapshot = graph.snapshot();
+
+		TrustGraph.ScoreTable[] serial
+			= snapshot.computeScoreTables(treeOwners, treeOwnerRanks, false, null, 1);
+
+		for(int threads : new int[] { 2, 3, 4, 16 }) {
+			TrustGraph.ScoreTable[] parallel = snapshot.computeScoreTables(
+				treeOwners, treeOwnerRanks, false, new PooledExecutor(), threads);
+			assertArrayEquals(serial, parallel);
+		}
+
+		for(int i = 0; i < treeOwners.length; ++i)
+			assertEquals(snapshot.computeScoreTable(treeOwners[i], 0), serial[i]);
+	}
+
+	/**
+	 * Tests whether the bit-parallel rank computation yields the same result as the per tree
+	 * owner one. Uses more than 64 tree owners so multiple groups are needed, and marks some of
+	 * them as having no rank. */
+	@Test public void testComputeScoreTablesBitParallel()
+			throws MalformedURLException, InvalidParameterException {
+
+		ArrayList<Identity> identities = addRandomIdentities(200);
+		ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(70);
+		identities.addAll(ownIdentities);
+		addRandomTrustValues(identities, 3000);
+
+		TrustGraph graph = mWebOfTrust.getTrustGraph();
+		int[] treeOwners = new int[ownIdentities.size()];
+		int[] treeOwnerRanks = new int[ownIdentities.size()];
+		for(int i = 0; i < treeOwners.length; ++i) {
+			treeOwners[i] = graph.getOrCreateIndex(ownIdentities.get(i).getID());
+			treeOwnerRanks[i] = mRandom.nextInt(10) == 0 ? TrustGraph.NO_RANK : 0;
+		}
+		TrustGraph.Snapshot snapshot = graph.snapshot();
+
+		TrustGraph.ScoreTable[] reference
+			= snapshot.computeScoreTables(treeOwners, treeOwnerRanks, false, null, 1);
+
+		assertArrayEquals(reference,
+			snapshot.computeScoreTables(treeOwners, treeOwnerRanks, true, null, 1));
+		assertArrayEquals(reference,
+			snapshot.computeScoreTables(treeOwners, treeOwnerRanks, true, new PooledExecutor(), 4));
+	}
+
+	private void assertGraphEqualsDatabase(TrustGraph graph) {
+		assertEquals(mWebOfTrust.getAllTrusts().size(), graph.getEdgeCount());
+
+		int edgeCount = 0;
+		for(Trust trust : mWebOfTrust.getAllTrusts()) {
+			TrustID id = new TrustID(trust);
+			int truster = graph.getIndex(id.getTrusterID());
+			int trustee = graph.getIndex(id.getTrusteeID());
+			assertNotEquals(TrustGraph.NO_INDEX, truster);
+			assertNotEquals(TrustGraph.NO_INDEX, trustee);
+			assertEquals(trust.getValue(), graph.getTrustValue(truster, trustee));
+			++edgeCount;
+		}
+
+		int givenCount = 0;
+		int receivedCount = 0;
+		for(int i = 0; i < graph.getVertexCount(); ++i) {
+			givenCount += graph.getGivenTrustCount(i);
+			receivedCount += graph.getReceivedTrustCount(i);
+		}
+		assertEquals(edgeCount, givenCount);
+		assertEquals(edgeCount, receivedCount);
+	}
+}
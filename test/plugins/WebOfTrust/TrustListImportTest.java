@@ -0,0 +1,78 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+
+/**
+ * Tests whether {@link WebOfTrust#finishTrustListImport()} updates the Scores of all
+ * {@link Trust}s which were changed during a trust list import in a single batch, and whether
+ * the result equals the one of {@link WebOfTrust#computeAllScoresWithoutCommit()}.
+ */
+public final class TrustListImportTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testBatchScoreUpdate() throws MalformedURLException, InvalidParameterException {
+		ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(3));
+		addRandomTrustValues(identities, 500);
+
+		for(int iteration = 0; iteration < 20; ++iteration) {
+			final int distrustCount
+				= mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToDistrust();
+			final int batchCount
+				= mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustListImport();
+
+			// Import a trust list which creates, increases, decreases and removes Trusts.
+			Identity truster;
+			do {
+				truster = identities.get(mRandom.nextInt(identities.size()));
+			} while(truster instanceof OwnIdentity);
+
+			mWebOfTrust.beginTrustListImport();
+			for(int i = 0; i < 20; ++i) {
+				Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(trustee == truster)
+					continue;
+
+				if(mRandom.nextInt(4) == 0) {
+					try {
+						mWebOfTrust.removeTrustWithoutCommit(mWebOfTrust.getTrust(truster, trustee));
+					} catch(NotTrustedException e) {}
+				} else
+					mWebOfTrust.setTrustWithoutCommit(truster, trustee, getRandomTrustValue(), "");
+			}
+			mWebOfTrust.finishTrustListImport();
+			Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+
+			// The distrusts were not processed individually
+			assertEquals(distrustCount,
+				mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToDistrust());
+			assertTrue(batchCount + 1
+				>= mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustListImport());
+
+			// Returns false if it had to correct any Score
+			assertTrue(mWebOfTrust.computeAllScoresWithoutCommit());
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ChangeSet;
+
+/**
+ * Tests whether {@link WebOfTrust#simulateTrustChanges(java.util.List)} does not modify the
+ * database, and whether its result equals the changes which actually happen when the same
+ * operations are applied with {@link WebOfTrust#setTrust(String, String, byte, String)} and
+ * {@link WebOfTrust#removeTrust(String, String)}.
+ */
+public final class TrustSimulationTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testSimulateTrustChanges()
+			throws MalformedURLException, InvalidParameterException, UnknownIdentityException {
+
+		ArrayList<Identity> identities = addRandomIdentities(100);
+		ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(3);
+		identities.addAll(ownIdentities);
+		addRandomTrustValues(identities, 500);
+
+		for(int iteration = 0; iteration < 20; ++iteration) {
+			final ArrayList<TrustSimulation.Operation> operations
+				= new ArrayList<TrustSimulation.Operation>();
+			for(int i = 1 + mRandom.nextInt(3); i > 0; --i) {
+				final OwnIdentity truster = ownIdentities.get(mRandom.nextInt(ownIdentities.size()));
+				final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(trustee == truster)
+					continue;
+
+				operations.add(mRandom.nextInt(4) == 0
+					? TrustSimulation.Operation.removeTrust(truster.getID(), trustee.getID())
+					: TrustSimulation.Operation.setTrust(truster.getID(), trustee.getID(),
+						getRandomTrustValue()));
+			}
+
+			final HashMap<String, String> scoresBefore = getScores();
+			final HashSet<String> fetchedBefore = getFetchedIdentities();
+
+			final TrustSimulation simulation = mWebOfTrust.simulateTrustChanges(operations);
+
+			// The database must not have been modified
+			assertEquals(scoresBefore, getScores());
+			assertEquals(fetchedBefore, getFetchedIdentities());
+
+			for(TrustSimulation.Operation operation : operations) {
+				if(operation.isRemoval())
+					mWebOfTrust.removeTrust(operation.trusterID, operation.trusteeID);
+				else {
+					mWebOfTrust.setTrust(operation.trusterID, operation.trusteeID,
+						operation.value, "");
+				}
+			}
+
+			// Apply the simulated changes to the old state and compare it to the new state
+			final HashMap<String, String> expectedScores = scoresBefore;
+			for(ChangeSet<Score> change : simulation.getScoreChanges()) {
+				if(change.beforeChange != null) {
+					assertEquals(toString(change.beforeChange),
+						expectedScores.remove(change.beforeChange.getID()));
+				}
+				if(change.afterChange != null)
+					expectedScores.put(change.afterChange.getID(), toString(change.afterChange));
+			}
+			assertEquals(expectedScores, getScores());
+
+			final HashSet<String> expectedFetched = fetchedBefore;
+			expectedFetched.addAll(simulation.getIdentitiesToStartFetching());
+			expectedFetched.removeAll(simulation.getIdentitiesToStopFetching());
+			assertEquals(expectedFetched, getFetchedIdentities());
+		}
+	}
+
+	@Test(expected = InvalidParameterException.class)
+	public void testSimulateSelfTrust() throws MalformedURLException, InvalidParameterException,
+			UnknownIdentityException {
+
+		final OwnIdentity ownIdentity = addRandomOwnIdentities(1).get(0);
+		final ArrayList<TrustSimulation.Operation> operations
+			= new ArrayList<TrustSimulation.Operation>();
+		operations.add(TrustSimulation.Operation.setTrust(ownIdentity.getID(),
+			ownIdentity.getID(), (byte)100));
+		mWebOfTrust.simulateTrustChanges(operations);
+	}
+
+	/** Key = {@link Score#getID()}, value = {@link #toString(Score)} */
+	private HashMap<String, String> getScores() {
+		final HashMap<String, String> result = new HashMap<String, String>();
+		for(Score score : mWebOfTrust.getAllScores())
+			assertNull(result.put(score.getID(), toString(score)));
+		return result;
+	}
+
+	private static String toString(Score score) {
+		return score.getScore() + " " + score.getRank() + " " + score.getCapacity();
+	}
+
+	/** @return The IDs of all {@link Identity}s for which
+	 *      {@link WebOfTrust#shouldFetchIdentity(Identity)} is true. */
+	private HashSet<String> getFetchedIdentities() {
+		final HashSet<String> result = new HashSet<String>();
+		for(Identity identity : mWebOfTrust.getAllIdentities()) {
+			if(mWebOfTrust.shouldFetchIdentity(identity))
+				result.add(identity.getID());
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,88 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.keys.InsertableClientSSK;
+
+/**
+ * Tests whether {@link WebOfTrust#createOwnIdentity(freenet.keys.FreenetURI, String, boolean,
+ * String)} and {@link WebOfTrust#restoreOwnIdentity(freenet.keys.FreenetURI)} only compute the
+ * trust tree of the new {@link OwnIdentity} where that is sufficient, and whether the result
+ * equals the one of {@link WebOfTrust#computeAllScoresWithoutCommit()}.
+ */
+public final class TrustTreeComputationTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testCreateOwnIdentity() throws MalformedURLException, InvalidParameterException {
+		ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(3));
+		addRandomTrustValues(identities, 500);
+
+		final int count = mWebOfTrust.getNumberOfTrustTreeComputations();
+		addRandomOwnIdentities(5);
+		assertEquals(count + 5, mWebOfTrust.getNumberOfTrustTreeComputations());
+
+		// Returns false if it had to correct any Score
+		assertTrue(mWebOfTrust.computeAllScoresWithoutCommit());
+	}
+
+	@Test public void testRestoreOwnIdentity()
+			throws MalformedURLException, InvalidParameterException, UnknownIdentityException {
+
+		ArrayList<Identity> identities = addRandomIdentities(100);
+		ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(3);
+		identities.addAll(ownIdentities);
+		addRandomTrustValues(identities, 500);
+
+		for(int iteration = 0; iteration < 10; ++iteration) {
+			final InsertableClientSSK keypair = InsertableClientSSK.createRandom(mRandom, "");
+			final Identity restored = mWebOfTrust.addIdentity(keypair.getURI().toString());
+
+			mWebOfTrust.beginTrustListImport();
+			for(int i = 0; i < 20; ++i) {
+				mWebOfTrust.setTrustWithoutCommit(restored,
+					identities.get(mRandom.nextInt(identities.size())), getRandomTrustValue(), "");
+			}
+			mWebOfTrust.finishTrustListImport();
+			Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+
+			// If it is part of another trust tree, its given Trusts affect that tree, and thus
+			// computing only the tree of the restored OwnIdentity would not be sufficient.
+			final boolean inOtherTree = iteration % 2 == 1;
+			if(inOtherTree) {
+				mWebOfTrust.setTrust(ownIdentities.get(mRandom.nextInt(ownIdentities.size())),
+					restored, (byte)100, "");
+			}
+			assertEquals(inOtherTree, mWebOfTrust.getScores(restored).size() > 0);
+
+			final int count = mWebOfTrust.getNumberOfTrustTreeComputations();
+			mWebOfTrust.restoreOwnIdentity(keypair.getInsertURI());
+			assertEquals(inOtherTree ? count : count + 1,
+				mWebOfTrust.getNumberOfTrustTreeComputations());
+
+			assertTrue(mWebOfTrust.computeAllScoresWithoutCommit());
+			identities.add(mWebOfTrust.getOwnIdentityByURI(keypair.getURI()));
+		}
+	}
+
+}
@@ -755,7 +755,50 @@ public class WoTTest extends AbstractJUnit3BaseTest {
 		}
 
 	}
-	
+
+	public void testGetAllIdentitiesFilteredAndSorted() throws MalformedURLException, InvalidParameterException {
+		OwnIdentity o = mWoT.createOwnIdentity(new FreenetURI(insertUriO), "O", true, "Test");
+
+		Identity a = new Identity(mWoT, requestUriA, "A", true); a.setEdition(3); a.storeAndCommit();
+		Identity b = new Identity(mWoT, requestUriB, "B", true); b.setEdition(1); b.storeAndCommit();
+		Identity c = new Identity(mWoT, requestUriC, "C", true); c.setEdition(2); c.storeAndCommit();
+
+		{
+			ObjectSet<Identity> obca = mWoT.getAllIdentitiesFilteredAndSorted(o, null, WebOfTrust.SortOrder.ByEditionAscending);
+			assertTrue(obca.hasNext()); assertSame(o, obca.next());
+			assertTrue(obca.hasNext()); assertSame(b, obca.next());
+			assertTrue(obca.hasNext()); assertSame(c, obca.next());
+			assertTrue(obca.hasNext()); assertSame(a, obca.next());
+			assertFalse(obca.hasNext());
+		}
+
+		// Received trust counts: a = 1, b = 2, c = 3
+		mWoT.beginTrustListImport();
+		mWoT.setTrustWithoutCommit(o, a, (byte)0, "");
+		mWoT.setTrustWithoutCommit(o, b, (byte)0, "");
+		mWoT.setTrustWithoutCommit(o, c, (byte)0, "");
+		mWoT.setTrustWithoutCommit(a, b, (byte)0, "");
+		mWoT.setTrustWithoutCommit(a, c, (byte)0, "");
+		mWoT.setTrustWithoutCommit(b, c, (byte)0, "");
+		mWoT.finishTrustListImport();
+		Persistent.checkedCommit(mWoT.getDatabase(), this);
+
+		{
+			ObjectSet<Identity> cbao = mWoT.getAllIdentitiesFilteredAndSorted(o, null, WebOfTrust.SortOrder.ByReceivedTrustCountDescending);
+			assertTrue(cbao.hasNext()); assertSame(c, cbao.next());
+			assertTrue(cbao.hasNext()); assertSame(b, cbao.next());
+			assertTrue(cbao.hasNext()); assertSame(a, cbao.next());
+			assertTrue(cbao.hasNext()); assertSame(o, cbao.next());
+			assertFalse(cbao.hasNext());
+		}
+
+		// The edition is stored separately from the URI, so it must stay equal to it.
+		a.forceSetEdition(0); a.storeAndCommit();
+		assertEquals(0, a.getRequestURI().getEdition());
+		assertEquals(0, a.getEdition());
+		assertTrue(mWoT.verifyDatabaseIntegrity());
+	}
+
 	/**
 	 * Test for {@link restoreOwnIdentity}: Using a request URI instead of an insert URI. Restoring should fail. 
 	 */
@@ -0,0 +1,299 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.XMLTransformer.BatchImportResult;
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.keys.FreenetURI;
+
+/**
+ * Tests {@link XMLTransformer#importIdentities(java.util.List, java.util.List)}, and the skipping
+ * of unchanged editions which it shares with
+ * {@link XMLTransformer#importIdentity(FreenetURI, ParsedIdentityXML)}.
+ */
+public final class XMLTransformerBatchImportTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	private XMLTransformer mTransformer = null;
+
+	/**
+	 * IDs of identities which are trusted by an {@link OwnIdentity}, so they are fetched and may
+	 * create new identities.<br>
+	 * Not the objects: Keeping them in memory would prevent the rollback of failing imports from
+	 * reverting them. */
+	private ArrayList<String> mIdentityIDs = null;
+
+	@Before public void setUp() throws MalformedURLException, InvalidParameterException {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		mTransformer = new XMLTransformer(mWebOfTrust);
+
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		mIdentityIDs = new ArrayList<String>(5);
+
+		mWebOfTrust.beginTrustListImport();
+		for(Identity identity : addRandomIdentities(5)) {
+			mWebOfTrust.setTrustWithoutCommit(truster, identity, (byte)100, "");
+			mIdentityIDs.add(identity.getID());
+		}
+		mWebOfTrust.finishTrustListImport();
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testImportIdentities() throws UnknownIdentityException,
+			NotTrustedException, DuplicateTrustException {
+
+		final ArrayList<FreenetURI> uris = new ArrayList<FreenetURI>();
+		final ArrayList<ParsedIdentityXML> xmls = new ArrayList<ParsedIdentityXML>();
+		for(int i = 0; i < 3; ++i) {
+			final ParsedIdentityXML xml = createXML();
+			xml.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+				getRequestURI(i + 1), (byte)(10 * i), "Comment " + i));
+			xml.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+				getRandomRequestURI(), (byte)50, ""));
+
+			uris.add(getRequestURI(i).setSuggestedEdition(1));
+			xmls.add(xml);
+		}
+
+		final BatchImportResult result = mTransformer.importIdentities(uris, xmls);
+		assertTrue(result.mImportedInSingleTransaction);
+		assertEquals(0, result.mUnchangedFiles);
+
+		synchronized(mWebOfTrust) {
+			for(int i = 0; i < 3; ++i) {
+				final Identity identity = getIdentity(i);
+				assertEquals(1, identity.getEdition());
+				assertEquals(FetchState.Fetched, identity.getCurrentEditionFetchState());
+				assertEquals(xmls.get(i).identityName, identity.getNickname());
+
+				final Trust trust = mWebOfTrust.getTrust(identity, getIdentity(i + 1));
+				assertEquals(10 * i, trust.getValue());
+				assertEquals("Comment " + i, trust.getComment());
+
+				// The new identity
+				mWebOfTrust.getIdentityByURI(xmls.get(i).identityTrustList.get(1).mTrusteeURI);
+				assertEquals(2, mWebOfTrust.getGivenTrusts(identity).size());
+			}
+		}
+
+		// The single Score update at the end of the batch must have yielded the same Scores as
+		// updating them after each file.
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	/**
+	 * If any file of the batch fails, the transaction must be rolled back and the files must be
+	 * imported one by one instead, which must only mark the failing one as parsing failed.
+	 */
+	@Test public void testImportIdentitiesFailure() throws UnknownIdentityException,
+			NotTrustedException, DuplicateTrustException {
+
+		final ParsedIdentityXML validXML = createXML();
+		validXML.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+			getRequestURI(2), (byte)100, ""));
+
+		// Trust values cannot be self-referential, so importing this fails.
+		final ParsedIdentityXML invalidXML = createXML();
+		invalidXML.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+			getRequestURI(1), (byte)100, ""));
+
+		final ArrayList<FreenetURI> uris = new ArrayList<FreenetURI>();
+		uris.add(getRequestURI(0).setSuggestedEdition(1));
+		uris.add(getRequestURI(1).setSuggestedEdition(1));
+		final ArrayList<ParsedIdentityXML> xmls = new ArrayList<ParsedIdentityXML>();
+		xmls.add(validXML);
+		xmls.add(invalidXML);
+
+		final BatchImportResult result = mTransformer.importIdentities(uris, xmls);
+		assertFalse(result.mImportedInSingleTransaction);
+		assertEquals(0, result.mUnchangedFiles);
+
+		synchronized(mWebOfTrust) {
+			final Identity valid = getIdentity(0);
+			assertEquals(1, valid.getEdition());
+			assertEquals(FetchState.Fetched, valid.getCurrentEditionFetchState());
+			assertEquals(1, mWebOfTrust.getGivenTrusts(valid).size());
+			assertEquals(100, mWebOfTrust.getTrust(valid, getIdentity(2)).getValue());
+
+			final Identity invalid = getIdentity(1);
+			assertEquals(1, invalid.getEdition());
+			assertEquals(FetchState.ParsingFailed, invalid.getCurrentEditionFetchState());
+			assertEquals(0, mWebOfTrust.getGivenTrusts(invalid).size());
+		}
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	/**
+	 * A file which could not be parsed must not cause the transaction of the other files to fail,
+	 * it must be marked as parsing failed separately.
+	 */
+	@Test public void testImportIdentitiesWithParseError() throws UnknownIdentityException {
+		final ArrayList<FreenetURI> uris = new ArrayList<FreenetURI>();
+		final ArrayList<ParsedIdentityXML> xmls = new ArrayList<ParsedIdentityXML>();
+		for(int i = 0; i < 3; ++i) {
+			final ParsedIdentityXML xml = createXML();
+			xml.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+				getRequestURI(3), (byte)50, ""));
+			if(i == 1)
+				xml.parseError = new Exception("Test parse error");
+
+			uris.add(getRequestURI(i).setSuggestedEdition(1));
+			xmls.add(xml);
+		}
+
+		final BatchImportResult result = mTransformer.importIdentities(uris, xmls);
+		assertTrue(result.mImportedInSingleTransaction);
+
+		synchronized(mWebOfTrust) {
+			for(int i = 0; i < 3; ++i) {
+				final Identity identity = getIdentity(i);
+				assertEquals(1, identity.getEdition());
+				assertEquals(i == 1 ? FetchState.ParsingFailed : FetchState.Fetched,
+					identity.getCurrentEditionFetchState());
+				assertEquals(i == 1 ? 0 : 1, mWebOfTrust.getGivenTrusts(identity).size());
+			}
+		}
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	/** An edition whose content equals the previous one must only update the edition number. */
+	@Test public void testImportUnchangedIdentity() throws UnknownIdentityException,
+			NotTrustedException, DuplicateTrustException {
+
+		final Identity identity = getIdentity(0);
+		final Identity trustee = getIdentity(1);
+		final ParsedIdentityXML xml = createXML();
+		xml.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+			trustee.getRequestURI(), (byte)50, "Comment"));
+		xml.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+			getRandomRequestURI(), (byte)50, ""));
+
+		assertFalse(mTransformer.importIdentity(identity.getRequestURI().setSuggestedEdition(1), xml));
+		// A different object with the same content
+		assertTrue(mTransformer.importIdentity(identity.getRequestURI().setSuggestedEdition(2),
+			copy(xml)));
+
+		synchronized(mWebOfTrust) {
+			final Identity imported = mWebOfTrust.getIdentityByID(identity.getID());
+			assertEquals(2, imported.getEdition());
+			assertEquals(FetchState.Fetched, imported.getCurrentEditionFetchState());
+			assertEquals(2, mWebOfTrust.getGivenTrusts(imported).size());
+			for(Trust trust : mWebOfTrust.getGivenTrusts(imported))
+				assertEquals(2, trust.getTrusterEdition());
+		}
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+
+		// Changed content must be imported.
+		final ParsedIdentityXML changed = copy(xml);
+		changed.identityTrustList.set(0, new ParsedIdentityXML.TrustListEntry(
+			trustee.getRequestURI(), (byte)-50, "Comment"));
+		assertFalse(mTransformer.importIdentity(identity.getRequestURI().setSuggestedEdition(3),
+			changed));
+		assertEquals(-50, mWebOfTrust.getTrust(identity, trustee).getValue());
+
+		// The batch import must skip unchanged editions, too.
+		final ArrayList<FreenetURI> uris = new ArrayList<FreenetURI>();
+		uris.add(identity.getRequestURI().setSuggestedEdition(4));
+		final ArrayList<ParsedIdentityXML> xmls = new ArrayList<ParsedIdentityXML>();
+		xmls.add(copy(changed));
+		assertEquals(1, mTransformer.importIdentities(uris, xmls).mUnchangedFiles);
+		assertEquals(4, mWebOfTrust.getTrust(identity, trustee).getTrusterEdition());
+
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	/**
+	 * A truster without capacity only trusts those listed trustees which exist. If one of them is
+	 * created after the import, importing an unchanged edition must trust it.
+	 */
+	@Test public void testImportUnchangedIdentityWithNewTrustee() throws MalformedURLException,
+			InvalidParameterException, UnknownIdentityException, NotInTrustTreeException,
+			NotTrustedException, DuplicateTrustException {
+
+		final OwnIdentity own = addRandomOwnIdentities(1).get(0);
+		final Identity truster = addRandomIdentities(1).get(0);
+		// Trust value 0: The truster is fetched, but does not have capacity.
+		mWebOfTrust.setTrust(own.getID(), truster.getID(), (byte)0, "");
+		assertEquals(0, mWebOfTrust.getBestCapacity(truster));
+
+		final FreenetURI trusteeURI = getRandomRequestURI();
+		final ParsedIdentityXML xml = createXML();
+		xml.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+			getRequestURI(0), (byte)50, ""));
+		xml.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+			trusteeURI, (byte)50, ""));
+
+		assertFalse(mTransformer.importIdentity(truster.getRequestURI().setSuggestedEdition(1), xml));
+		assertEquals(1, mWebOfTrust.getGivenTrusts(truster).size());
+
+		// As if the trust list of another identity had introduced it.
+		final Identity trustee = mWebOfTrust.addIdentity(trusteeURI.toString());
+		assertFalse(mTransformer.importIdentity(truster.getRequestURI().setSuggestedEdition(2),
+			copy(xml)));
+		assertEquals(2, mWebOfTrust.getGivenTrusts(truster).size());
+		assertEquals(50, mWebOfTrust.getTrust(truster, trustee).getValue());
+
+		// All existing trustees are trusted now.
+		assertTrue(mTransformer.importIdentity(truster.getRequestURI().setSuggestedEdition(3),
+			copy(xml)));
+		assertEquals(3, mWebOfTrust.getTrust(truster, trustee).getTrusterEdition());
+
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	private Identity getIdentity(int index) throws UnknownIdentityException {
+		return mWebOfTrust.getIdentityByID(mIdentityIDs.get(index));
+	}
+
+	private FreenetURI getRequestURI(int index) throws UnknownIdentityException {
+		return getIdentity(index).getRequestURI();
+	}
+
+	private ParsedIdentityXML createXML() {
+		final ParsedIdentityXML xml = new ParsedIdentityXML();
+		xml.identityName = getRandomLatinString(Identity.MAX_NICKNAME_LENGTH);
+		xml.identityPublishesTrustList = true;
+		xml.identityContexts = new ArrayList<String>();
+		xml.identityProperties = new HashMap<String, String>();
+		xml.identityTrustList = new ArrayList<ParsedIdentityXML.TrustListEntry>();
+		return xml;
+	}
+
+	private static ParsedIdentityXML copy(ParsedIdentityXML original) {
+		final ParsedIdentityXML xml = new ParsedIdentityXML();
+		xml.identityName = original.identityName;
+		xml.identityPublishesTrustList = original.identityPublishesTrustList;
+		xml.identityContexts = new ArrayList<String>(original.identityContexts);
+		xml.identityProperties = new HashMap<String, String>(original.identityProperties);
+		xml.identityTrustList
+			= new ArrayList<ParsedIdentityXML.TrustListEntry>(original.identityTrustList);
+		return xml;
+	}
+
+}
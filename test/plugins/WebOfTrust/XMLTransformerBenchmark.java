@@ -0,0 +1,130 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.MalformedURLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.TransformerException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+
+/**
+ * Measures the throughput of parsing identity XML with 1, 2, 4 and 8 concurrent threads, with
+ * both {@link XMLTransformer#parseIdentityXMLWithDOM(java.io.InputStream)}, which uses the pooled
+ * DocumentBuilders, and the streaming {@link XMLTransformer#parseIdentityXML(
+ * java.io.InputStream)}. Neither takes a shared lock, so the throughput should scale with the
+ * amount of threads up to the amount of CPU cores.
+ */
+public final class XMLTransformerBenchmark extends AbstractJUnit4BaseTest {
+
+	private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+	/** Total amount of parsed files per thread count and parser. */
+	private static final int PARSES = 800;
+
+	private WebOfTrust mWebOfTrust = null;
+
+	private XMLTransformer mTransformer = null;
+
+	/** Identity XML with the maximal amount of trustees. */
+	private byte[] mXML = null;
+
+	@Before public void setUp() throws MalformedURLException, InvalidParameterException,
+			TransformerException {
+
+		mWebOfTrust = constructEmptyWebOfTrust();
+		mTransformer = new XMLTransformer(mWebOfTrust);
+
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		mWebOfTrust.beginTrustListImport();
+		for(Identity trustee : addRandomIdentities(XMLTransformer.MAX_IDENTITY_XML_TRUSTEE_AMOUNT)) {
+			mWebOfTrust.setTrustWithoutCommit(truster, trustee, getRandomTrustValue(),
+				getRandomLatinString(Trust.MAX_TRUST_COMMENT_LENGTH));
+		}
+		mWebOfTrust.finishTrustListImport();
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		mTransformer.exportOwnIdentity(truster, os);
+		mXML = os.toByteArray();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testBenchmark() throws InterruptedException {
+		System.out.println("Identity XML: " + mXML.length + " bytes, "
+			+ XMLTransformer.MAX_IDENTITY_XML_TRUSTEE_AMOUNT + " trustees; " + PARSES + " parses");
+
+		// Warm up the JIT
+		benchmark(THREAD_COUNTS[THREAD_COUNTS.length - 1], true);
+		benchmark(THREAD_COUNTS[THREAD_COUNTS.length - 1], false);
+
+		for(int threads : THREAD_COUNTS) {
+			final long domNanos = benchmark(threads, true);
+			final long streamingNanos = benchmark(threads, false);
+			System.out.println("    " + threads + " threads: "
+				+ "DOM: " + throughput(domNanos) + " files/s; "
+				+ "Streaming: " + throughput(streamingNanos) + " files/s");
+		}
+	}
+
+	/** @return The nanoseconds it took to parse the XML {@link #PARSES} times. */
+	private long benchmark(final int threads, final boolean dom) throws InterruptedException {
+		final AtomicInteger remaining = new AtomicInteger(PARSES);
+		final AtomicInteger failures = new AtomicInteger(0);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(threads);
+
+		for(int i = 0; i < threads; ++i) {
+			new Thread(new Runnable() {
+				@Override public void run() {
+					try {
+						start.await();
+						while(remaining.getAndDecrement() > 0) {
+							final ByteArrayInputStream is = new ByteArrayInputStream(mXML);
+							final ParsedIdentityXML result = dom
+								? mTransformer.parseIdentityXMLWithDOM(is)
+								: mTransformer.parseIdentityXML(is);
+
+							if(result.parseError != null
+									|| result.identityTrustList.size()
+										!= XMLTransformer.MAX_IDENTITY_XML_TRUSTEE_AMOUNT)
+								failures.incrementAndGet();
+						}
+					} catch(InterruptedException e) {
+						failures.incrementAndGet();
+					} finally {
+						finished.countDown();
+					}
+				}
+			}, "XMLTransformerBenchmark").start();
+		}
+
+		final long startTime = System.nanoTime();
+		start.countDown();
+		finished.await();
+		final long nanos = System.nanoTime() - startTime;
+
+		assertEquals(0, failures.get());
+		return nanos;
+	}
+
+	private static long throughput(long nanos) {
+		return PARSES * TimeUnit.SECONDS.toNanos(1) / Math.max(nanos, 1);
+	}
+
+}
@@ -5,13 +5,16 @@ package plugins.WebOfTrust;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 
 import javax.xml.transform.TransformerException;
 
 import org.xml.sax.SAXException;
 
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.introduction.IntroductionPuzzle;
@@ -106,6 +109,96 @@ public class XMLTransformerTest extends AbstractJUnit3BaseTest {
 	public void testImportIdentity() throws Exception {
 		//fail("Not yet implemented"); // TODO
 	}
+	
+	/**
+	 * Tests whether the streaming {@link XMLTransformer#parseIdentityXML(InputStream)} yields the
+	 * same result as the DOM parser {@link XMLTransformer#parseIdentityXMLWithDOM(InputStream)}.
+	 */
+	public void testParseIdentityXML() throws MalformedURLException, InvalidParameterException, TransformerException {
+		for(int i=0; i < 5; ++i)
+			mOwnIdentity.addContext(getRandomLatinString(OwnIdentity.MAX_CONTEXT_NAME_LENGTH));
+		for(int i=0; i < 5; ++i)
+			mOwnIdentity.setProperty(getRandomLatinString(OwnIdentity.MAX_PROPERTY_NAME_LENGTH), getRandomLatinString(OwnIdentity.MAX_PROPERTY_VALUE_LENGTH));
+		mOwnIdentity.storeAndCommit();
+		
+		mWoT.beginTrustListImport();
+		byte value = -100;
+		for(Identity trustee : addRandomIdentities(100)) {
+			mWoT.setTrust(mOwnIdentity, trustee, value, getRandomLatinString(Trust.MAX_TRUST_COMMENT_LENGTH));
+			value += 2;
+		}
+		mWoT.finishTrustListImport();
+		
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		mTransformer.exportOwnIdentity(mOwnIdentity, os);
+		final byte[] xml = os.toByteArray();
+		
+		final ParsedIdentityXML expected = mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(xml));
+		final ParsedIdentityXML actual = mTransformer.parseIdentityXML(new ByteArrayInputStream(xml));
+		assertNull(expected.parseError);
+		assertNull(actual.parseError);
+		
+		assertEquals(mOwnIdentity.getNickname(), actual.identityName);
+		assertEquals(100, actual.identityTrustList.size());
+		assertEquals(expected.identityName, actual.identityName);
+		assertEquals(expected.identityPublishesTrustList, actual.identityPublishesTrustList);
+		assertEquals(expected.identityContexts, actual.identityContexts);
+		assertEquals(expected.identityProperties, actual.identityProperties);
+		assertEquals(expected.identityTrustList.size(), actual.identityTrustList.size());
+		for(int i=0; i < expected.identityTrustList.size(); ++i) {
+			final ParsedIdentityXML.TrustListEntry expectedEntry = expected.identityTrustList.get(i);
+			final ParsedIdentityXML.TrustListEntry actualEntry = actual.identityTrustList.get(i);
+			assertEquals(expectedEntry.mTrusteeURI, actualEntry.mTrusteeURI);
+			assertEquals(expectedEntry.mTrustValue, actualEntry.mTrustValue);
+			assertEquals(expectedEntry.mTrustComment, actualEntry.mTrustComment);
+		}
+	}
+	
+	/** Both parsers must reject invalid identity XML. */
+	public void testParseInvalidIdentityXML() throws IOException {
+		final String header = "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>"
+			+ "<" + WebOfTrustInterface.WOT_NAME + " Version=\"" + Version.getRealVersion() + "\">";
+		final String footer = "</" + WebOfTrustInterface.WOT_NAME + ">";
+		final String trust = "<Trust Comment=\"\" Identity=\"" + getRandomRequestURI() + "\" Value=\"100\"/>";
+		
+		final StringBuilder tooManyTrustees = new StringBuilder();
+		for(int i=0; i <= XMLTransformer.MAX_IDENTITY_XML_TRUSTEE_AMOUNT; ++i)
+			tooManyTrustees.append(trust);
+		
+		final StringBuilder tooLarge = new StringBuilder(XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE + 1);
+		tooLarge.append(header + "<Identity Name=\"a\" PublishesTrustList=\"false\" Version=\"1\"/>");
+		while(tooLarge.length() < XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE)
+			tooLarge.append(' ');
+		tooLarge.append(footer);
+		
+		final String[] invalidXML = {
+			header,
+			header + footer,
+			header + "<Identity Name=\"a\" PublishesTrustList=\"false\" Version=\"2\"/>" + footer,
+			header + "<Identity Name=\"a\" PublishesTrustList=\"true\" Version=\"1\"/>" + footer,
+			header + "<Identity Name=\"a\" PublishesTrustList=\"true\" Version=\"1\"><TrustList>"
+				+ trust.replace("100", "1000") + "</TrustList></Identity>" + footer,
+			header + "<Identity Name=\"a\" PublishesTrustList=\"true\" Version=\"1\"><TrustList>"
+				+ tooManyTrustees + "</TrustList></Identity>" + footer,
+			header + "<Identity Name=\"a\" PublishesTrustList=\"false\" Version=\"1\"/>" + footer + "<",
+			"<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?><!DOCTYPE a [<!ENTITY b \"c\">]>"
+				+ "<" + WebOfTrustInterface.WOT_NAME + "><Identity Name=\"&b;\" PublishesTrustList=\"false\" Version=\"1\"/>" + footer,
+			tooLarge.toString()
+		};
+		
+		for(String xml : invalidXML) {
+			assertNotNull(xml, mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(xml.getBytes("UTF-8"))).parseError);
+			assertNotNull(xml, mTransformer.parseIdentityXML(new ByteArrayInputStream(xml.getBytes("UTF-8"))).parseError);
+		}
+		
+		// The streaming parser must also enforce the size limit if available() does not tell the size.
+		final InputStream unknownSize = new FilterInputStream(new ByteArrayInputStream(tooLarge.toString().getBytes("UTF-8"))) {
+			@Override public int available() {
+				return 0;
+			}
+		};
+		assertNotNull(mTransformer.parseIdentityXML(unknownSize).parseError);
+	}
 
 	public void testExportIntroduction() throws MalformedURLException, InvalidParameterException, TransformerException {
 		ByteArrayOutputStream os = new ByteArrayOutputStream();